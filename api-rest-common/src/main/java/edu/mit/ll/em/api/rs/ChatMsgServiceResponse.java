@@ -42,6 +42,9 @@ public class ChatMsgServiceResponse {
 
     private int count;
 
+    // Cursor of the next page when paging by cursor, null on the last page
+    private String nextCursor;
+
     public String getMessage() {
         return message;
     }
@@ -70,5 +73,12 @@ public class ChatMsgServiceResponse {
     public void setCount(int count) {
         this.count = count;
     }
-}
 
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
@@ -37,6 +37,8 @@ public class MsgEnvelope {
 
     private String msgTimestamp;
 
+    private String msgTopic;
+
     public String getMsgType() {
         return msgType;
     }
@@ -60,4 +62,16 @@ public class MsgEnvelope {
     public void setMsgTimestamp(String msgTimestamp) {
         this.msgTimestamp = msgTimestamp;
     }
+
+    /**
+     * @return the topic the message was published to, e.g. "iweb.NICS.incident.5.update", naming the entity it is
+     * about, or null if not known
+     */
+    public String getMsgTopic() {
+        return msgTopic;
+    }
+
+    public void setMsgTopic(String msgTopic) {
+        this.msgTopic = msgTopic;
+    }
 }
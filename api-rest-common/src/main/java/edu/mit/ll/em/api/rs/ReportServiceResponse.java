@@ -48,6 +48,9 @@ public class ReportServiceResponse {
     // the list of Reports just the count.
     private int count;
 
+    // Cursor of the next page when paging by cursor, null on the last page
+    private String nextCursor;
+
     public String getMessage() {
         return message;
     }
@@ -101,5 +104,12 @@ public class ReportServiceResponse {
     public void setCount(int count) {
         this.count = count;
     }
-}
 
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.cache.CacheLoadException;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.em.api.dataaccess.cache.CacheStats;
+import edu.mit.ll.em.api.dataaccess.cache.EntityCache;
+import edu.mit.ll.em.api.dataaccess.cache.EntityCacheFactory;
+import edu.mit.ll.em.api.dataaccess.cache.EntityLoader;
+import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
+
+/**
+ * Caches the outcome of CollabRoomDAO.hasPermissions checks, keyed by (userId, collabRoomId, mode). Decisions are
+ * grouped per collab room, so changing the ACL of a room drops all decisions for it in one go, see
+ * {@link #invalidate(long)}. Rooms expire as a whole, "em.api.cache.permission.expireminutes" (1) minutes after their
+ * first decision was cached.
+ */
+public class CollabRoomPermissionCache {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(CollabRoomPermissionCache.class);
+
+    public static final String CACHE_NAME = "permission";
+
+    /**
+     * The variant of the permission check made
+     */
+    public enum Mode {
+        // hasPermissions(userId, collabRoomId), membership of secured rooms
+        ROOM,
+        // hasPermissions(userId, collabRoomId, incidentMap), where everyone may access the incident map
+        INCIDENT_MAP
+    }
+
+    // Decisions for a single room, per userId and mode
+    private static class RoomDecisions {
+        final ConcurrentHashMap<Long, Boolean> decisions = new ConcurrentHashMap<Long, Boolean>();
+    }
+
+    private static final CollabRoomDAOImpl defaultCollabRoomDao = new CollabRoomDAOImpl();
+
+    private final CollabRoomDAOImpl collabRoomDao;
+
+    private final EntityCache<Integer, RoomDecisions> rooms;
+
+    private final int maxDecisionsPerRoom;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong checkFailureCount = new AtomicLong();
+    private final AtomicLong totalCheckTime = new AtomicLong();
+
+    /**
+     * @param settings            bounds the number of rooms and how long their decisions live
+     * @param maxDecisionsPerRoom decisions beyond this many per room are not cached
+     */
+    public CollabRoomPermissionCache(CacheSettings settings, int maxDecisionsPerRoom) {
+        this(settings, maxDecisionsPerRoom, defaultCollabRoomDao);
+    }
+
+    /**
+     * @param collabRoomDao makes the permission checks not cached
+     */
+    public CollabRoomPermissionCache(CacheSettings settings, int maxDecisionsPerRoom,
+            CollabRoomDAOImpl collabRoomDao) {
+        this.collabRoomDao = collabRoomDao;
+        this.maxDecisionsPerRoom = maxDecisionsPerRoom;
+        this.rooms = EntityCacheFactory.create(settings, new EntityLoader<Integer, RoomDecisions>() {
+            @Override
+            public RoomDecisions load(Integer collabRoomId) {
+                return new RoomDecisions();
+            }
+        });
+    }
+
+    /**
+     * @return the underlying cache of rooms, for registering with a CacheInvalidator
+     */
+    public EntityCache<Integer, ?> getRoomCache() {
+        return rooms;
+    }
+
+    public boolean hasPermissions(long userId, long collabRoomId) {
+        return hasPermissions(userId, collabRoomId, Mode.ROOM, null);
+    }
+
+    public boolean hasPermissions(long userId, long collabRoomId, String incidentMap) {
+        return hasPermissions(userId, collabRoomId, Mode.INCIDENT_MAP, incidentMap);
+    }
+
+    /**
+     * Drops all decisions for the room. Call this whenever the ACL of the room changes.
+     */
+    public void invalidate(long collabRoomId) {
+        rooms.invalidate((int) collabRoomId);
+    }
+
+    public void invalidateAll() {
+        rooms.invalidateAll();
+    }
+
+    /**
+     * @return hit and miss counters of the decisions, with load counters covering the checks made against the
+     * database and size counting rooms
+     */
+    public CacheStats stats() {
+        CacheStats roomStats = rooms.stats();
+        long misses = missCount.get();
+        return new CacheStats(CACHE_NAME, roomStats.getSize(), hitCount.get(), misses,
+                misses - checkFailureCount.get(), checkFailureCount.get(), totalCheckTime.get(),
+                roomStats.getEvictionCount());
+    }
+
+    private boolean hasPermissions(long userId, long collabRoomId, Mode mode, String incidentMap) {
+        RoomDecisions room;
+        try {
+            room = rooms.get((int) collabRoomId);
+        } catch(CacheLoadException e) {
+            // Can't happen with the loader above, but never let the cache decide on its own
+            log.warn("Failed to get permission decisions for collab room {}", collabRoomId, e);
+            return check(userId, collabRoomId, mode, incidentMap);
+        }
+
+        Long key = (userId << 1) | mode.ordinal();
+        Boolean allowed = room.decisions.get(key);
+        if(allowed != null) {
+            hitCount.incrementAndGet();
+            return allowed;
+        }
+
+        allowed = check(userId, collabRoomId, mode, incidentMap);
+        // An ACL change made meanwhile replaced this room's decisions, so storing into it can't resurrect a stale one
+        if(room.decisions.size() < maxDecisionsPerRoom) {
+            room.decisions.put(key, allowed);
+        }
+        return allowed;
+    }
+
+    private boolean check(long userId, long collabRoomId, Mode mode, String incidentMap) {
+        missCount.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            if(mode == Mode.INCIDENT_MAP) {
+                return collabRoomDao.hasPermissions(userId, collabRoomId, incidentMap);
+            }
+            return collabRoomDao.hasPermissions(userId, collabRoomId);
+        } catch(RuntimeException e) {
+            checkFailureCount.incrementAndGet();
+            throw e;
+        } finally {
+            totalCheckTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.cache.CacheLoadException;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.em.api.dataaccess.cache.CacheStats;
+import edu.mit.ll.em.api.dataaccess.cache.EntityCache;
+import edu.mit.ll.em.api.dataaccess.cache.EntityCacheFactory;
+import edu.mit.ll.em.api.dataaccess.cache.EntityLoader;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.nics.common.entity.datalayer.Datasource;
+import edu.mit.ll.nics.nicsdao.impl.DatalayerDAOImpl;
+
+/**
+ * Caches datasourceIds per datasource url, creating the datasource on first use where asked to. Concurrent requests
+ * for the same url on this node share a single lookup. Across nodes, creating a datasource is serialized on a
+ * database advisory lock keyed by its url, so two nodes uploading to the same url at once create it only once.
+ * <p>
+ * Ids are kept "em.api.cache.datasource.expireminutes" (60) minutes. Datasources are rarely deleted, and
+ * {@link #invalidateAll()} is called when one is deleted through the API.
+ */
+public class DatasourceCache {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(DatasourceCache.class);
+
+    public static final String CACHE_NAME = "datasource";
+
+    // First key of the advisory locks taken here, the url hash is the second
+    private static final int LOCK_NAMESPACE = 0x44534944;
+
+    private static final DatalayerDAOImpl defaultDatalayerDao = new DatalayerDAOImpl();
+
+    /**
+     * A datasource url, and how to create the datasource if it doesn't exist yet. Only the url takes part in equals,
+     * so lookups with and without creation share entries; a create that joined a lookup-only load is retried, see
+     * {@link DatasourceCache#get(DatasourceKey)}.
+     */
+    private static class DatasourceKey {
+        final String url;
+        // Null to only look the datasource up
+        final String type;
+        final String displayName;
+
+        DatasourceKey(String url, String type, String displayName) {
+            this.url = url;
+            this.type = type;
+            this.displayName = displayName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DatasourceKey && url.equals(((DatasourceKey) o).url);
+        }
+
+        @Override
+        public int hashCode() {
+            return url.hashCode();
+        }
+    }
+
+    private final DatalayerDAOImpl datalayerDao;
+
+    private final EntityCache<DatasourceKey, String> ids;
+
+    private final AtomicLong createCount = new AtomicLong();
+
+    // Looked up on first use, stays null if there is no such pool
+    private volatile DataSource lockDataSource;
+    private volatile boolean lockDataSourceMissing;
+
+    /**
+     * @param settings bounds the number of urls and how long their ids live
+     */
+    public DatasourceCache(CacheSettings settings) {
+        this(settings, defaultDatalayerDao);
+    }
+
+    /**
+     * @param datalayerDao reads and creates the datasources
+     */
+    public DatasourceCache(CacheSettings settings, DatalayerDAOImpl datalayerDao) {
+        this.datalayerDao = datalayerDao;
+        this.ids = EntityCacheFactory.create(settings, new EntityLoader<DatasourceKey, String>() {
+            @Override
+            public String load(DatasourceKey key) throws Exception {
+                return lookupOrCreate(key);
+            }
+        });
+    }
+
+    /**
+     * @param url internal url of the datasource
+     * @return the datasourceId, or null if there is no datasource with that url
+     *
+     * @throws ICSDatastoreException if the datasource could not be read
+     */
+    public String getDatasourceId(String url) throws ICSDatastoreException {
+        return get(new DatasourceKey(url, null, null));
+    }
+
+    /**
+     * @param url         internal url of the datasource
+     * @param type        datasource type name, used if the datasource has to be created
+     * @param displayName display name of the datasource if it has to be created, may be null
+     * @return the datasourceId, or null if the datasource did not exist and type is unknown
+     *
+     * @throws ICSDatastoreException if the datasource could not be read or created
+     */
+    public String getOrCreateDatasourceId(String url, String type, String displayName)
+            throws ICSDatastoreException {
+        return get(new DatasourceKey(url, type, displayName));
+    }
+
+    /**
+     * Drops the id cached for url
+     */
+    public void invalidate(String url) {
+        ids.invalidate(new DatasourceKey(url, null, null));
+    }
+
+    public void invalidateAll() {
+        ids.invalidateAll();
+    }
+
+    /**
+     * @return the counters of the underlying cache, with loads including the datasources created
+     */
+    public CacheStats stats() {
+        return ids.stats();
+    }
+
+    /**
+     * @return the number of datasources this node created
+     */
+    public long getCreateCount() {
+        return createCount.get();
+    }
+
+    private String get(DatasourceKey key) throws ICSDatastoreException {
+        if(key.url == null) {
+            return null;
+        }
+        try {
+            String datasourceId = ids.get(key);
+            if(datasourceId == null && key.type != null) {
+                // The load this call shared may have been a lookup-only one for the same url, which doesn't create
+                datasourceId = lookupOrCreate(key);
+                if(datasourceId != null) {
+                    ids.put(key, datasourceId);
+                }
+            }
+            return datasourceId;
+        } catch(SQLException e) {
+            throw new ICSDatastoreException("Unable to find/create datasource " + key.url + ": " + e.getMessage());
+        } catch(CacheLoadException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new ICSDatastoreException("Unable to find/create datasource " + key.url + ": " +
+                    cause.getMessage());
+        }
+    }
+
+    private String lookupOrCreate(DatasourceKey key) throws SQLException {
+        String datasourceId = datalayerDao.getDatasourceId(key.url);
+        if(datasourceId != null || key.type == null) {
+            return datasourceId;
+        }
+
+        Connection lock = lock(key.url);
+        try {
+            // Another node may have created it while we waited for the lock
+            datasourceId = datalayerDao.getDatasourceId(key.url);
+            if(datasourceId == null) {
+                int datasourceTypeId = datalayerDao.getDatasourceTypeId(key.type);
+                if(datasourceTypeId == -1) {
+                    log.warn("Unknown datasource type {}, not creating datasource {}", key.type, key.url);
+                    return null;
+                }
+                Datasource ds = new Datasource();
+                ds.setInternalurl(key.url);
+                ds.setDatasourcetypeid(datasourceTypeId);
+                if(key.displayName != null) {
+                    ds.setDisplayname(key.displayName);
+                }
+                datasourceId = datalayerDao.insertDataSource(ds);
+                createCount.incrementAndGet();
+                log.info("Created {} datasource {} for {}", key.type, datasourceId, key.url);
+            }
+            return datasourceId;
+        } finally {
+            unlock(lock, key.url);
+        }
+    }
+
+    /**
+     * Takes the advisory lock of url, on a connection of its own held until {@link #unlock(Connection, String)}.
+     *
+     * @return the connection holding the lock, or null if there is no connection pool to lock with
+     */
+    private Connection lock(String url) throws SQLException {
+        DataSource dataSource = getLockDataSource();
+        if(dataSource == null) {
+            return null;
+        }
+        Connection connection = dataSource.getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_lock(?, ?)");
+            try {
+                statement.setInt(1, LOCK_NAMESPACE);
+                statement.setInt(2, url.hashCode());
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+            return connection;
+        } catch(SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private void unlock(Connection connection, String url) {
+        if(connection == null) {
+            return;
+        }
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_unlock(?, ?)");
+            try {
+                statement.setInt(1, LOCK_NAMESPACE);
+                statement.setInt(2, url.hashCode());
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch(SQLException e) {
+            // The statement only fails on a broken connection, which the pool discards along with the lock
+            log.warn("Failed to release the datasource lock of {}: {}", url, e.getMessage());
+        } finally {
+            try {
+                connection.close();
+            } catch(SQLException e) {
+                log.warn("Failed to close the datasource lock connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    private DataSource getLockDataSource() {
+        if(lockDataSource == null && !lockDataSourceMissing) {
+            try {
+                lockDataSource = (DataSource) new InitialContext().lookup(APIConfig.DATASOURCE_JNDI_NAME);
+            } catch(NamingException e) {
+                lockDataSourceMissing = true;
+                log.warn("No {} connection pool, datasources are only created once per node: {}",
+                        APIConfig.DATASOURCE_JNDI_NAME, e.getMessage());
+            }
+        }
+        return lockDataSource;
+    }
+}
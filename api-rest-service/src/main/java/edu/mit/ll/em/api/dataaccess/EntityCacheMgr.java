@@ -29,16 +29,32 @@
  */
 package edu.mit.ll.em.api.dataaccess;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.dataaccess.cache.CacheInvalidator;
+import edu.mit.ll.em.api.dataaccess.cache.CacheLoadException;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.em.api.dataaccess.cache.CacheStats;
+import edu.mit.ll.em.api.dataaccess.cache.EntityCache;
+import edu.mit.ll.em.api.dataaccess.cache.EntityCacheFactory;
+import edu.mit.ll.em.api.dataaccess.cache.EntityLoader;
+import edu.mit.ll.em.api.dataaccess.cache.InProcessInvalidationBus;
+import edu.mit.ll.em.api.dataaccess.cache.InvalidationBus;
+import edu.mit.ll.em.api.dataaccess.cache.NegativeCache;
+import edu.mit.ll.em.api.dataaccess.cache.RabbitInvalidationBus;
+import edu.mit.ll.em.api.dataaccess.cache.RemovalListener;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.nics.common.entity.CollabRoom;
 import edu.mit.ll.nics.common.entity.FormType;
@@ -46,17 +62,32 @@ import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.nics.common.entity.RemoteLogType;
 import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.FormDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.RemoteLogDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserSessionDAOImpl;
 
 /**
  * Maintains a collection of entities, meant to be used for read-only purposes. Frequent queries for entity attributes
- * known to change infrequently, if ever at all, can avoid hitting the database by going through this cache instead. The
- * cache is refreshed at configurable intervals of time controlled via the api properties file, by the key
- * "...cache.entity.refreshminutes". The default is 60 minutes.
+ * known to change infrequently, if ever at all, can avoid hitting the database by going through this cache instead.
+ * <p>
+ * Each entity type is held in its own bounded {@link EntityCache}. Entries expire individually, by default
+ * "...cache.user.refreshminutes" (60) minutes after they were loaded, so the caches never empty all at once. Size,
+ * expiry and refresh-ahead can be tuned per cache, see {@link CacheSettings}. Concurrent misses for the same id
+ * result in a single database query.
+ * <p>
+ * Users can also be looked up by username through a secondary index onto the user cache, which only holds entries for
+ * users currently cached. Usernames not found in the database are remembered for a few seconds, see
+ * {@link APIConfig#CACHE_USERNAME_NEGATIVE_TTLSECONDS}, so repeated lookups of unknown users don't each hit the
+ * database.
+ * <p>
+ * With {@link APIConfig#CACHE_INVALIDATION_ENABLED} set, the nodes of a cluster evict entries changed on any node
+ * through a {@link CacheInvalidator} listening on RabbitMQ, and entries then live
+ * {@link APIConfig#CACHE_INVALIDATION_EXPIREMINUTES} (360) minutes by default. Code changing a cached entity without
+ * publishing one of the change topics handled below should call the matching invalidate method.
+ * <p>
+ * Reference data (form types, log types and other lookup tables) is held in an immutable {@link ReferenceData}
+ * snapshot, read at startup and replaced as a whole every {@link APIConfig#CACHE_REFERENCEDATA_REFRESHMINUTES}.
  * <p>
  * CAUTION: It is imperative that entities in this Cache not be used for updates, nor is it to be relied on for an
  * up-to-date state of entity attributes known to change frequently.
@@ -70,45 +101,64 @@ public class EntityCacheMgr {
      */
     private static final Logger log = LoggerFactory.getLogger(EntityCacheMgr.class);
 
+    public static final String COLLABROOM_CACHE = "collabroom";
+    public static final String INCIDENT_CACHE = "incident";
+    public static final String USER_CACHE = "userentity";
+    public static final String USERSESSION_CACHE = "usersession";
+    public static final String USERNAME_TARGET = "username";
+    public static final String IDENTITY_CACHE = "identity";
+    public static final String REFERENCEDATA_TARGET = "referencedata";
+
     private static final CollabRoomDAOImpl collabRoomDao = new CollabRoomDAOImpl();
     private static final IncidentDAOImpl incidentDao = new IncidentDAOImpl();
     private static final UserDAOImpl userDao = new UserDAOImpl();
     private static final UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
-    private static final FormDAOImpl formDao = new FormDAOImpl();
-    private static final RemoteLogDAOImpl remoteLogDao = new RemoteLogDAOImpl();
+    private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
 
-    // Invalidates the user cache every so many minutes.
-    TimerTask cacheRecycler;
+    // Evicts entries changed on this or other nodes
+    private final CacheInvalidator invalidator;
+
+    // Rereads the reference data every so many minutes.
+    TimerTask referenceDataRefresher;
+
+    // Runs referenceDataRefresher, cancelled with it so a redeploy leaves no thread behind
+    private final Timer referenceDataTimer = new Timer("EntityCacheMgr", true);
 
     // Caches CollabRoom per collabRoomId
-    private ConcurrentHashMap<Integer, CollabRoom> collabRoomCache =
-            new ConcurrentHashMap<Integer, CollabRoom>();
+    private final EntityCache<Integer, CollabRoom> collabRoomCache;
 
     // Caches Incident per incidentId
-    private ConcurrentHashMap<Integer, Incident> incidentCache =
-            new ConcurrentHashMap<Integer, Incident>();
+    private final EntityCache<Integer, Incident> incidentCache;
 
     // Caches User entries.
-    private ConcurrentHashMap<Integer, User> userCache =
-            new ConcurrentHashMap<Integer, User>();
+    private final EntityCache<Integer, User> userCache;
 
-    // Caches UserSessionIds per userId
-    private ConcurrentHashMap<Integer, Integer> userSessionIdCache =
-            new ConcurrentHashMap<Integer, Integer>();
+    // Looks up users by username, through userCache
+    private final UsernameIndex usernameIndex;
+
+    // Caches the UserIdentity of requesting users per userId, briefly since org memberships and roles aren't tracked
+    private final EntityCache<Integer, UserIdentity> identityCache;
 
-    // Caches FormType entries.
-    private ConcurrentHashMap<String, FormType> formTypeCache =
-            new ConcurrentHashMap<String, FormType>();
+    // Caches CollabRoom permission decisions
+    private final CollabRoomPermissionCache permissionCache;
 
-    private ConcurrentHashMap<Integer, FormType> formTypeIdCache =
-            new ConcurrentHashMap<Integer, FormType>();
+    // Caches the system roles held per userId
+    private final SystemRoleCache systemRoleCache;
 
-    // Caches RemoteLogType entries.
-    private ConcurrentHashMap<String, RemoteLogType> remoteLogTypeCache =
-            new ConcurrentHashMap<String, RemoteLogType>();
+    // Caches datasourceIds per datasource url
+    private final DatasourceCache datasourceCache;
 
-    private ConcurrentHashMap<Integer, RemoteLogType> remoteLogTypeIdCache =
-            new ConcurrentHashMap<Integer, RemoteLogType>();
+    // Holds the org hierarchy
+    private final OrgGraphCache orgGraphCache;
+
+    // Caches UserSessionIds per userId
+    private final EntityCache<Integer, Integer> userSessionIdCache;
+
+    // Change counters of the resources served, for conditional GETs
+    private final ResourceVersions resourceVersions = new ResourceVersions();
+
+    // Form types, log types and the other reference data tables, replaced as a whole
+    private volatile ReferenceData referenceData;
 
     // Lazy-initialization Holder class idiom.
     private static class Holder {
@@ -116,26 +166,16 @@ public class EntityCacheMgr {
     }
 
     private void flushCaches() {
-        // TODO: Race condition if a user were to be added simultaneously.
-        // Totally preventing this condition would cost performance-wise.
-        if(collabRoomCache != null && !collabRoomCache.isEmpty()) {
-            collabRoomCache.clear();
-        }
-        if(incidentCache != null && !incidentCache.isEmpty()) {
-            incidentCache.clear();
-        }
-        if(userCache != null && !userCache.isEmpty()) {
-            userCache.clear();
-        }
-        if(userSessionIdCache != null && !userSessionIdCache.isEmpty()) {
-            userSessionIdCache.clear();
-        }
-        if(formTypeCache != null && !formTypeCache.isEmpty()) {
-            formTypeCache.clear();
-        }
-        if(remoteLogTypeCache != null && !remoteLogTypeCache.isEmpty()) {
-            remoteLogTypeCache.clear();
-        }
+        collabRoomCache.invalidateAll();
+        incidentCache.invalidateAll();
+        userCache.invalidateAll();
+        usernameIndex.clear();
+        userSessionIdCache.invalidateAll();
+        identityCache.invalidateAll();
+        permissionCache.invalidateAll();
+        systemRoleCache.invalidateAll();
+        orgGraphCache.invalidateAll();
+        datasourceCache.invalidateAll();
     }
 
     public void finalize() {
@@ -147,306 +187,658 @@ public class EntityCacheMgr {
     }
 
     public void freeResources() {
+        referenceDataRefresher.cancel();
+        referenceDataTimer.cancel();
         flushCaches();
+        invalidator.close();
+    }
+
+    /**
+     * @return a snapshot of the counters of each entity cache
+     */
+    public List<CacheStats> getCacheStats() {
+        List<CacheStats> stats = new ArrayList<CacheStats>();
+        stats.add(collabRoomCache.stats());
+        stats.add(incidentCache.stats());
+        stats.add(userCache.stats());
+        stats.add(userSessionIdCache.stats());
+        stats.add(identityCache.stats());
+        stats.add(permissionCache.stats());
+        stats.add(systemRoleCache.stats());
+        stats.add(datasourceCache.stats());
+        stats.add(orgGraphCache.stats());
+        return stats;
     }
 
     // Hide the default constructor.
     private EntityCacheMgr() {
+        Configuration config = APIConfig.getInstance().getConfiguration();
+
+        // Subscribe before any entry is cached, so no change can slip by unnoticed.
+        invalidator = new CacheInvalidator(createInvalidationBus(config));
+        addInvalidationRules();
+        boolean clustered = false;
+        try {
+            invalidator.start();
+            clustered = invalidator.isClustered();
+        } catch(IOException e) {
+            log.error("Failed to subscribe to cache invalidation topics, entries will only expire", e);
+        }
+
+        // Without invalidation, entries live 60 minutes by default, matching the interval of the former global flush.
+        long expireMins = clustered ?
+                config.getLong(APIConfig.CACHE_INVALIDATION_EXPIREMINUTES, 360) :
+                config.getLong(APIConfig.CACHE_USER_REFRESHMINUTES, 60);
+
+        collabRoomCache = EntityCacheFactory.create(
+                CacheSettings.fromConfig(COLLABROOM_CACHE, 10000, expireMins, 0),
+                new EntityLoader<Integer, CollabRoom>() {
+                    @Override
+                    public CollabRoom load(Integer collabRoomId) {
+                        return collabRoomDao.getCollabRoomById(collabRoomId);
+                    }
+                });
+
+        incidentCache = EntityCacheFactory.create(
+                CacheSettings.fromConfig(INCIDENT_CACHE, 5000, expireMins, 0),
+                new EntityLoader<Integer, Incident>() {
+                    @Override
+                    public Incident load(Integer incidentId) {
+                        return incidentDao.getIncident(incidentId);
+                    }
+                });
+
+        userCache = EntityCacheFactory.create(
+                CacheSettings.fromConfig(USER_CACHE, 50000, expireMins, 0),
+                new EntityLoader<Integer, User>() {
+                    @Override
+                    public User load(Integer userId) {
+                        User user = userDao.getUserById(userId);
+                        usernameIndex.index(user);
+                        return user;
+                    }
+                },
+                new RemovalListener<Integer, User>() {
+                    @Override
+                    public void onRemoval(Integer userId, User user) {
+                        usernameIndex.unindex(userId, user);
+                    }
+                });
+
+        usernameIndex = new UsernameIndex(userCache, new NegativeCache<String>(
+                APIConfig.getInstance().getConfiguration().getLong(APIConfig.CACHE_USERNAME_NEGATIVE_TTLSECONDS, 30),
+                APIConfig.getInstance().getConfiguration().getInt(APIConfig.CACHE_USERNAME_NEGATIVE_MAXSIZE, 10000)),
+                userDao);
+
+        userSessionIdCache = EntityCacheFactory.create(
+                CacheSettings.fromConfig(USERSESSION_CACHE, 50000, expireMins, 0),
+                new EntityLoader<Integer, Integer>() {
+                    @Override
+                    public Integer load(Integer userId) {
+                        int userSessionId = userSessDao.getUserSessionid(userId);
+                        if(userSessionId < 0) {
+                            // TODO:refactor do we need to create a User Session? If this is just a cache to get
+                            //  one if it exists, I don't think we should assume one needs created?
+                            log.info("No usersession found for userId: {}", userId);
+                            return null;
+                        }
+                        return userSessionId;
+                    }
+                });
+
+        identityCache = EntityCacheFactory.create(
+                CacheSettings.fromConfig(IDENTITY_CACHE, 10000, 1, 0),
+                new EntityLoader<Integer, UserIdentity>() {
+                    @Override
+                    public UserIdentity load(Integer userId) throws Exception {
+                        User user = userCache.get(userId);
+                        return user == null ? null : new UserIdentity(user.getUserId(), user.getUsername());
+                    }
+                });
+
+        permissionCache = new CollabRoomPermissionCache(
+                CacheSettings.fromConfig(CollabRoomPermissionCache.CACHE_NAME, 5000, 1, 0),
+                APIConfig.getInstance().getConfiguration().getInt(APIConfig.CACHE_PERMISSION_MAXPERROOM, 10000));
+
+        systemRoleCache = new SystemRoleCache(CacheSettings.fromConfig(SystemRoleCache.CACHE_NAME, 50000, 5, 0));
+
+        datasourceCache = new DatasourceCache(CacheSettings.fromConfig(DatasourceCache.CACHE_NAME, 1000, 60, 0));
+
+        orgGraphCache = new OrgGraphCache(CacheSettings.fromConfig(OrgGraphCache.CACHE_NAME, 0, 10, 0));
+
+        invalidator.registerTarget(COLLABROOM_CACHE, CacheInvalidator.integerKeys(collabRoomCache));
+        invalidator.registerTarget(INCIDENT_CACHE, CacheInvalidator.integerKeys(incidentCache));
+        invalidator.registerTarget(USER_CACHE, CacheInvalidator.integerKeys(userCache));
+        invalidator.registerTarget(USERSESSION_CACHE, CacheInvalidator.integerKeys(userSessionIdCache));
+        invalidator.registerTarget(IDENTITY_CACHE, CacheInvalidator.integerKeys(identityCache));
+        invalidator.registerTarget(CollabRoomPermissionCache.CACHE_NAME,
+                CacheInvalidator.integerKeys(permissionCache.getRoomCache()));
+        invalidator.registerTarget(SystemRoleCache.CACHE_NAME,
+                CacheInvalidator.integerKeys(systemRoleCache.getUserCache()));
+        invalidator.registerTarget(OrgGraphCache.CACHE_NAME, new CacheInvalidator.InvalidationTarget() {
+            @Override
+            public void invalidate(String orgId) {
+                try {
+                    orgGraphCache.refreshOrg(Integer.parseInt(orgId));
+                } catch(NumberFormatException e) {
+                    orgGraphCache.invalidateAll();
+                }
+            }
 
-        cacheRecycler = new TimerTask() {
+            @Override
+            public void invalidateAll() {
+                orgGraphCache.invalidateAll();
+            }
+        });
+        invalidator.registerTarget(DatasourceCache.CACHE_NAME, new CacheInvalidator.InvalidationTarget() {
+            @Override
+            public void invalidate(String url) {
+                datasourceCache.invalidate(url);
+            }
+
+            @Override
+            public void invalidateAll() {
+                datasourceCache.invalidateAll();
+            }
+        });
+        invalidator.registerTarget(ResourceVersions.CACHE_NAME, new CacheInvalidator.InvalidationTarget() {
+            @Override
+            public void invalidate(String key) {
+                resourceVersions.changed(key);
+            }
+
+            @Override
+            public void invalidateAll() {
+                resourceVersions.changedAll();
+            }
+        });
+        invalidator.registerTarget(USERNAME_TARGET, new CacheInvalidator.InvalidationTarget() {
+            @Override
+            public void invalidate(String username) {
+                usernameIndex.invalidate(username);
+            }
+
+            @Override
+            public void invalidateAll() {
+                usernameIndex.invalidateUnknown();
+            }
+        });
+
+        invalidator.registerTarget(REFERENCEDATA_TARGET, new CacheInvalidator.InvalidationTarget() {
+            @Override
+            public void invalidate(String key) {
+                invalidateAll();
+            }
+
+            @Override
+            public void invalidateAll() {
+                try {
+                    refreshReferenceDataLocally();
+                } catch(ICSDatastoreException e) {
+                    log.error("Failed to reread reference data, keeping the previous snapshot: {}", e.getMessage());
+                }
+            }
+        });
+
+        // Read at startup, so requests never wait for it
+        try {
+            refreshReferenceDataLocally();
+        } catch(ICSDatastoreException e) {
+            log.error("Failed to read reference data, retrying on first use: {}", e.getMessage());
+        }
+        long refreshMins = config.getLong(APIConfig.CACHE_REFERENCEDATA_REFRESHMINUTES, expireMins);
+        referenceDataRefresher = new TimerTask() {
             public void run() {
-                EntityCacheMgr.getInstance().flushCaches();
+                try {
+                    refreshReferenceDataLocally();
+                } catch(ICSDatastoreException e) {
+                    log.error("Failed to reread reference data, keeping the previous snapshot: {}", e.getMessage());
+                }
             }
         };
-        // Refresh every 60 minutes by default.
-        int userCacheRefreshMins = APIConfig.getInstance().getConfiguration()
-                .getInt(APIConfig.CACHE_USER_REFRESHMINUTES, 60);
-        new Timer(true).scheduleAtFixedRate(cacheRecycler, 0,
-                userCacheRefreshMins * 60 * 1000);
+        referenceDataTimer.scheduleAtFixedRate(referenceDataRefresher, refreshMins * 60 * 1000, refreshMins * 60 * 1000);
     }
 
-    public CollabRoom getCollabRoomEntity(int collabRoomId) throws ICSDatastoreException {
-        CollabRoom cr = null;
-        if(collabRoomCache.containsKey(collabRoomId)) {
-            cr = collabRoomCache.get(collabRoomId);
-        } else {
-            // We need to hit the database.
+    private static InvalidationBus createInvalidationBus(Configuration config) {
+        if(config.getBoolean(APIConfig.CACHE_INVALIDATION_ENABLED, false)) {
             try {
-                CollabRoom collabRoomEntity = collabRoomDao.getCollabRoomById(collabRoomId);
-
-                cr = collabRoomEntity;
-                collabRoomCache.putIfAbsent(collabRoomId, cr);
-            } catch(DataAccessException e) {
-                // TODO:refactor keep using, or get rid of ICSDataStoreException?
-                throw new ICSDatastoreException("Cannot read CollabRoom entity with id " +
-                        collabRoomId + e.getMessage());
-            } catch(Exception e) {
-                // TODO:refactor keep using, or get rid of ICSDataStoreException?
-                throw new ICSDatastoreException("Caught unhandled exception trying to read CollabRoom entity with id " +
-                        collabRoomId + e.getMessage());
+                return RabbitInvalidationBus.connect(
+                        config.getString(APIConfig.RABBIT_HOSTNAME_KEY),
+                        config.getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
+                        config.getString(APIConfig.RABBIT_USERNAME_KEY),
+                        config.getString(APIConfig.RABBIT_USERPWD_KEY));
+            } catch(IOException e) {
+                log.error("Failed to connect to RabbitMQ for cache invalidation, entries will only expire", e);
             }
         }
-        return cr;
+        return new InProcessInvalidationBus();
+    }
+
+    // Maps the change notifications published by the services onto the cached entries they affect.
+    private void addInvalidationRules() {
+        // Payload is the CollabRoom
+        invalidator.addRule("iweb.NICS.incident.*.updatedcollabroom", COLLABROOM_CACHE,
+                invalidator.jsonField("collabroomid", "collabRoomId"));
+        invalidator.addRule("iweb.NICS.incident.*.renamecollabroom", COLLABROOM_CACHE,
+                invalidator.jsonField("collabroomid", "collabRoomId"));
+        // Published whenever the ACL of a room changes
+        invalidator.addRule("iweb.NICS.incident.*.updatedcollabroom", CollabRoomPermissionCache.CACHE_NAME,
+                invalidator.jsonField("collabroomid", "collabRoomId"));
+
+        // iweb.NICS.incident.{incidentId}.update
+        invalidator.addRule("iweb.NICS.incident.*.update", INCIDENT_CACHE, CacheInvalidator.topicWord(3));
+        // Payload is the incidentId
+        invalidator.addRule("iweb.NICS.ws.*.removeIncident", INCIDENT_CACHE, CacheInvalidator.messageBody());
+
+        // iweb.NICS.{workspaceId}.user.{userId}.userorgupdate
+        invalidator.addRule("iweb.NICS.*.user.*.userorgupdate", USER_CACHE, CacheInvalidator.topicWord(4));
+        invalidator.addRule("iweb.NICS.*.user.*.userorgupdate", IDENTITY_CACHE, CacheInvalidator.topicWord(4));
+        invalidator.addRule("iweb.NICS.*.user.*.userorgupdate", SystemRoleCache.CACHE_NAME,
+                CacheInvalidator.topicWord(4));
+    }
+
+    public CollabRoom getCollabRoomEntity(int collabRoomId) throws ICSDatastoreException {
+        try {
+            return collabRoomCache.get(collabRoomId);
+        } catch(CacheLoadException e) {
+            // TODO:refactor keep using, or get rid of ICSDataStoreException?
+            throw toDatastoreException("CollabRoom", collabRoomId, e);
+        }
     }
 
     public Incident getIncidentEntity(int incidentId) throws ICSDatastoreException {
-        Incident incident = null;
-        if(incidentCache.containsKey(incidentId)) {
-            incident = incidentCache.get(incidentId);
-        } else {
-            // We need to hit the database.
-            try {
-                Incident incidentEntity = incidentDao.getIncident(incidentId);
-
-                incident = incidentEntity;
-                incidentCache.putIfAbsent(incidentId, incident);
-            } catch(DataAccessException e) {
-                throw new ICSDatastoreException(
-                        "Cannot read Incident entity with id " + incidentId +
-                                e.getMessage());
-            } catch(Exception e) {
-                throw new ICSDatastoreException("Unhandled exception reading Incident entity with id " +
-                        incidentId + ": " + e.getMessage());
-            }
+        try {
+            return incidentCache.get(incidentId);
+        } catch(CacheLoadException e) {
+            throw toDatastoreException("Incident", incidentId, e);
         }
-        return incident;
     }
 
     public User getUserEntity(int userId) throws ICSDatastoreException {
-        User user = null;
-        if(userCache.containsKey(userId)) {
-            user = userCache.get(userId);
-        } else {
-            // We need to hit the database.
-
-            try {
-                User userEntity = userDao.getUserById(userId);
+        try {
+            return userCache.get(userId);
+        } catch(CacheLoadException e) {
+            throw toDatastoreException("User", userId, e);
+        }
+    }
 
-                user = userEntity;
-                userCache.putIfAbsent(userId, user);
+    /**
+     * Looks up a user by username, which is matched exactly, see {@link UsernameIndex}.
+     *
+     * @param username the username to look up
+     * @return the User, or null if no user has that username
+     *
+     * @throws ICSDatastoreException if the user could not be read
+     */
+    public User getUserEntityByUsername(String username) throws ICSDatastoreException {
+        try {
+            return usernameIndex.get(username);
+        } catch(DataAccessException e) {
+            throw new ICSDatastoreException("Cannot read User entity with username " + username + ": " +
+                    e.getMessage());
+        }
+    }
 
-            } catch(DataAccessException e) {
-                throw new ICSDatastoreException("Cannot read User entity with id " +
-                        userId + ": " + e.getMessage());
-            } catch(Exception e) {
-                throw new ICSDatastoreException("Caught unhandled exception while trying to read User entity with id " +
-                        userId + ": " + e.getMessage());
-            }
+    /**
+     * Forgets anything cached about username on every node, in particular that no such user exists. Call this once a
+     * user has been created or renamed, so the new username resolves right away.
+     *
+     * @param username the username to forget
+     */
+    public void invalidateUsername(String username) {
+        if(username != null) {
+            invalidator.invalidate(USERNAME_TARGET, Collections.singletonList(username));
         }
-        return user;
     }
 
-    public User getUserEntityByUsername(String username) throws ICSDatastoreException {
-        User user = null;
-        for(User u : userCache.values()) {
-            if(u.getUsername().equals(username)) {
-                return u;
+    /**
+     * Evicts the user, its identity and its system roles, on every node. Call this after changing the user.
+     */
+    public void invalidateUser(int userId) {
+        invalidator.invalidate(USER_CACHE, Collections.singletonList(userId));
+        invalidator.invalidate(IDENTITY_CACHE, Collections.singletonList(userId));
+        invalidator.invalidate(SystemRoleCache.CACHE_NAME, Collections.singletonList(userId));
+    }
+
+    /**
+     * Drops the cached system roles of the user on every node. Call this after adding the user to an org, changing
+     * the system role of one of their orgs, or enabling or disabling one of their orgs.
+     */
+    public void invalidateUserRoles(int userId) {
+        invalidator.invalidate(SystemRoleCache.CACHE_NAME, Collections.singletonList(userId));
+        resourceChanged(Collections.singletonList(ResourceVersions.USERORGS));
+    }
+
+    /**
+     * Cached UserOrgDAO.isUserRole(username, systemRoleId)
+     */
+    public boolean isUserRole(String username, int systemRoleId) {
+        return hasAnyUserRole(username, systemRoleId);
+    }
+
+    /**
+     * @return true if the user holds any of systemRoleIds, same as calling UserOrgDAO.isUserRole for each
+     */
+    public boolean hasAnyUserRole(String username, int... systemRoleIds) {
+        User user;
+        try {
+            user = getUserEntityByUsername(username);
+        } catch(ICSDatastoreException e) {
+            log.warn("Failed to resolve user {} for a role check: {}", username, e.getMessage());
+            user = null;
+        }
+        if(user == null) {
+            // Let the DAO decide, as it always did
+            for(int systemRoleId : systemRoleIds) {
+                if(userOrgDao.isUserRole(username, systemRoleId)) {
+                    return true;
+                }
             }
+            return false;
         }
+        return systemRoleCache.hasAnyRole(user.getUserId(), username, systemRoleIds);
+    }
+
+    /**
+     * Cached UserOrgDAO.isUserRole, for a user already resolved
+     */
+    public boolean hasUserRole(int userId, String username, int systemRoleId) {
+        return systemRoleCache.hasRole(userId, username, systemRoleId);
+    }
+
+    /**
+     * Evicts the identity of the user on every node. Call this after changing the orgs or roles of the user.
+     */
+    public void invalidateUserIdentity(int userId) {
+        invalidator.invalidate(IDENTITY_CACHE, Collections.singletonList(userId));
+    }
+
+    /**
+     * Evicts the user session id of the user on every node. Call this after creating or removing a session.
+     */
+    public void invalidateUserSession(int userId) {
+        invalidator.invalidate(USERSESSION_CACHE, Collections.singletonList(userId));
+    }
+
+    /**
+     * Evicts the collab room on every node. Call this after changing the room without publishing
+     * "iweb.NICS.incident.{incidentId}.updatedcollabroom".
+     */
+    public void invalidateCollabRoom(int collabRoomId) {
+        invalidator.invalidate(COLLABROOM_CACHE, Collections.singletonList(collabRoomId));
+    }
+
+    /**
+     * Evicts the incident on every node. Call this after changing the incident without publishing
+     * "iweb.NICS.incident.{incidentId}.update".
+     */
+    public void invalidateIncident(int incidentId) {
+        invalidator.invalidate(INCIDENT_CACHE, Collections.singletonList(incidentId));
+    }
 
-        user = userDao.getUser(username);
-        if(user != null) {
-            userCache.putIfAbsent(user.getUserId(), user);
+    /**
+     * Cached CollabRoomDAO.hasPermissions(userId, collabRoomId)
+     */
+    public boolean hasCollabRoomPermission(long userId, long collabRoomId) {
+        return permissionCache.hasPermissions(userId, collabRoomId);
+    }
+
+    /**
+     * Cached CollabRoomDAO.hasPermissions(userId, collabRoomId, incidentMap)
+     */
+    public boolean hasCollabRoomPermission(long userId, long collabRoomId, String incidentMap) {
+        return permissionCache.hasPermissions(userId, collabRoomId, incidentMap);
+    }
+
+    /**
+     * Drops the cached permission decisions for the room on every node. Call this after changing its ACL.
+     */
+    public void invalidateCollabRoomPermissions(long collabRoomId) {
+        invalidator.invalidate(CollabRoomPermissionCache.CACHE_NAME, Collections.singletonList(collabRoomId));
+        resourceChanged(Collections.singletonList(ResourceVersions.COLLABROOM_PERMISSIONS + collabRoomId));
+    }
+
+    /**
+     * @return the org hierarchy, for looking up the children and parents of orgs without querying them
+     *
+     * @throws ICSDatastoreException if the orgs could not be read
+     */
+    public OrgGraph getOrgGraph() throws ICSDatastoreException {
+        try {
+            return orgGraphCache.getGraph();
+        } catch(DataAccessException e) {
+            throw new ICSDatastoreException("Cannot read Org entities: " + e.getMessage());
         }
-        return user;
     }
 
-    public int getUserSessionId(int userId) throws ICSDatastoreException {
-        int userSessionId = -1;
-        if(userSessionIdCache.containsKey(userId)) {
-            userSessionId = userSessionIdCache.get(userId);
-        } else {
-            // We need to hit the database.
-            try {
+    /**
+     * Cached OrgDAO.getOrganizationIds(workspaceId), the returned list can't be modified
+     */
+    public List<Integer> getWorkspaceOrgIds(int workspaceId) {
+        return orgGraphCache.getWorkspaceOrgIds(workspaceId);
+    }
 
-                userSessionId = userSessDao.getUserSessionid(userId);
-                if(userSessionId < 0) {
-                    // We need to create a User Session.
-                    // TODO:refactor do we? If this is just a cache to get one if it exists, I don't think
-                    //  we should assume one needs created?
-                    //userSessionId = dbf.createUserSession(em, userId);
-                    log.info("No usersession found for userId: {}", userId);
-                } else {
-                    userSessionIdCache.putIfAbsent(userId, userSessionId);
-                }
+    /**
+     * Updates the org hierarchy with the org on every node. Call this after creating an org, or changing its parent.
+     */
+    public void invalidateOrg(int orgId) {
+        invalidator.invalidate(OrgGraphCache.CACHE_NAME, Collections.singletonList(orgId));
+        resourceChanged(Collections.singletonList(ResourceVersions.ORGS));
+    }
 
-            } catch(DataAccessException e) {
-                throw new ICSDatastoreException(
-                        "Unable to find/create UserSession entry for user " + userId +
-                                e.getMessage());
-            }
+    /**
+     * @return the change counters of this node's resources
+     */
+    public ResourceVersions getResourceVersions() {
+        return resourceVersions;
+    }
+
+    /**
+     * Bumps the versions of the resource keys on every node, see {@link ResourceVersions}
+     */
+    public void resourceChanged(Collection<String> keys) {
+        if(!keys.isEmpty()) {
+            invalidator.invalidate(ResourceVersions.CACHE_NAME, keys);
         }
-        return userSessionId;
     }
 
     /**
-     * @param formTypeName Name of type being seeked.
-     * @return FormType corresponding to formTypeName or null if not found.
+     * @return the invalidator keeping the caches of this node coherent with the rest of the cluster, for other caches
+     * to register with
+     */
+    public CacheInvalidator getInvalidator() {
+        return invalidator;
+    }
+
+    /**
+     * Resolves username into its identity, see {@link UserIdentity}. Identities are only cached for a minute by
+     * default, "em.api.cache.identity.expireminutes".
      *
-     * @throws ICSDatastoreException If an abnormal condition occurs
-     * @throws NullPointerException  If formTypeName is null
+     * @param username the username to resolve
+     * @return the identity, or null if no user has that username
+     *
+     * @throws ICSDatastoreException if the user could not be read
      */
-    public FormType getFormTypeByName(String formTypeName)
-            throws ICSDatastoreException, NullPointerException {
-        FormType ret = null;
-        if(formTypeName == null) {
-            throw new NullPointerException("formTypeName cannot be null");
+    public UserIdentity getUserIdentity(String username) throws ICSDatastoreException {
+        User user = getUserEntityByUsername(username);
+        if(user == null) {
+            return null;
         }
-        formTypeName = formTypeName.toUpperCase();
-        if(formTypeCache.contains(formTypeName)) {
-            return formTypeCache.get(formTypeName);
+        try {
+            return identityCache.get(user.getUserId());
+        } catch(CacheLoadException e) {
+            throw toDatastoreException("User", user.getUserId(), e);
         }
+    }
+
+    /**
+     * @param userId id of the user to resolve
+     * @return the identity, or null if there is no such user
+     *
+     * @throws ICSDatastoreException if the user could not be read
+     */
+    public UserIdentity getUserIdentity(int userId) throws ICSDatastoreException {
+        try {
+            return identityCache.get(userId);
+        } catch(CacheLoadException e) {
+            throw toDatastoreException("User", userId, e);
+        }
+    }
+
+    /**
+     * @param url internal url of the datasource
+     * @return the datasourceId, or null if there is no datasource with that url
+     *
+     * @throws ICSDatastoreException if the datasource could not be read
+     */
+    public String getDatasourceId(String url) throws ICSDatastoreException {
+        return datasourceCache.getDatasourceId(url);
+    }
+
+    /**
+     * Returns the id of the datasource with the url, creating it if it doesn't exist yet. Safe to call concurrently
+     * on any number of nodes, the datasource is created only once.
+     *
+     * @param url         internal url of the datasource
+     * @param type        datasource type name, as DatalayerDAO.getDatasourceTypeId takes it
+     * @param displayName display name of the datasource if it has to be created, may be null
+     * @return the datasourceId, or null if url is null, or if the datasource did not exist and type is unknown
+     *
+     * @throws ICSDatastoreException if the datasource could not be read or created
+     */
+    public String getOrCreateDatasourceId(String url, String type, String displayName)
+            throws ICSDatastoreException {
+        return datasourceCache.getOrCreateDatasourceId(url, type, displayName);
+    }
+
+    /**
+     * Drops the cached datasourceIds on every node. Call this after deleting a datasource.
+     */
+    public void invalidateDatasources() {
+        invalidator.invalidateAll(DatasourceCache.CACHE_NAME);
+    }
+
+    public int getUserSessionId(int userId) throws ICSDatastoreException {
         try {
+            Integer userSessionId = userSessionIdCache.get(userId);
+            return userSessionId == null ? -1 : userSessionId;
+        } catch(CacheLoadException e) {
+            throw new ICSDatastoreException(
+                    "Unable to find/create UserSession entry for user " + userId +
+                            e.getCause().getMessage());
+        }
+    }
 
-            List<FormType> types = formDao.getFormTypes();
-            if(types != null && types.size() > 0) {
-                for(FormType f : types) {
-                    formTypeCache.putIfAbsent(f.getFormTypeName(), f);
+    private static ICSDatastoreException toDatastoreException(String entityName, int id, CacheLoadException e) {
+        Throwable cause = e.getCause();
+        if(cause instanceof DataAccessException) {
+            return new ICSDatastoreException("Cannot read " + entityName + " entity with id " +
+                    id + ": " + cause.getMessage());
+        }
+        return new ICSDatastoreException("Caught unhandled exception trying to read " + entityName +
+                " entity with id " + id + ": " + (cause != null ? cause.getMessage() : e.getMessage()));
+    }
+
+    /**
+     * @return the current reference data, reading it if no snapshot could be read so far
+     *
+     * @throws ICSDatastoreException if no snapshot could be read
+     */
+    public ReferenceData getReferenceData() throws ICSDatastoreException {
+        ReferenceData current = referenceData;
+        if(current == null) {
+            synchronized(this) {
+                current = referenceData;
+                if(current == null) {
+                    current = refreshReferenceDataLocally();
                 }
             }
-            ret = formTypeCache.get(formTypeName);
+        }
+        return current;
+    }
+
+    /**
+     * Rereads the reference data on every node. Call this after changing any of the tables in {@link ReferenceData}.
+     */
+    public void refreshReferenceData() {
+        invalidator.invalidateAll(REFERENCEDATA_TARGET);
+    }
+
+    // Reads a new snapshot and swaps it in, keeping the current one if reading fails
+    private ReferenceData refreshReferenceDataLocally() throws ICSDatastoreException {
+        try {
+            ReferenceData loaded = ReferenceData.load();
+            referenceData = loaded;
+            log.debug("Loaded {} form types, {} log types and {} incident types", loaded.getFormTypes().size(),
+                    loaded.getLogTypes().size(), loaded.getIncidentTypes().size());
+            return loaded;
         } catch(DataAccessException e) {
             throw new ICSDatastoreException(
-                    "Data access exception trying to read FormType entities: " + e.getMessage());
+                    "Data access exception trying to read reference data: " + e.getMessage());
         } catch(Exception e) {
             throw new ICSDatastoreException(
-                    "Unhandled exception trying to read FormType entities: " + e.getMessage());
+                    "Unhandled exception trying to read reference data: " + e.getMessage());
         }
-        return ret;
     }
 
-    public Set<String> getFormTypeNames()
-            throws ICSDatastoreException {
-        if(formTypeCache.isEmpty()) {
-            try {
-				/*List<FormType> types = PhinicsDbFactory.getInstance().getPhinicsDbFacadeSingleton()
-						.getFormTypes();*/
-                List<FormType> types = formDao.getFormTypes();
-
-                if(types != null && types.size() > 0) {
-                    for(FormType f : types) {
-                        formTypeCache.putIfAbsent(f.getFormTypeName(), f);
-                    }
-                }
-            } catch(DataAccessException e) {
-                throw new ICSDatastoreException(
-                        "Data access exception trying to read FormType entities: " + e.getMessage());
-            } catch(Exception e) {
-                throw new ICSDatastoreException(
-                        "Unhandled exception trying to read FormType entities: " + e.getMessage());
-            }
+    /**
+     * @param formTypeName Name of type being seeked, matched case insensitively.
+     * @return FormType corresponding to formTypeName or null if not found.
+     *
+     * @throws ICSDatastoreException If an abnormal condition occurs
+     * @throws NullPointerException  If formTypeName is null
+     */
+    public FormType getFormTypeByName(String formTypeName)
+            throws ICSDatastoreException, NullPointerException {
+        if(formTypeName == null) {
+            throw new NullPointerException("formTypeName cannot be null");
         }
+        return getReferenceData().getFormTypeByName(formTypeName);
+    }
 
-        return formTypeCache.keySet();
+    public Set<String> getFormTypeNames()
+            throws ICSDatastoreException {
+        return getReferenceData().getFormTypeNames();
     }
 
     /**
      * @param formTypeId of type being seeked.
-     * @return FormType corresponding to formTypeName or null if not found.
+     * @return FormType corresponding to formTypeId or null if not found.
      *
      * @throws ICSDatastoreException If an abnormal condition occurs
-     * @throws NullPointerException  If formTypeName is null
      */
     public FormType getFormTypeById(int formTypeId)
             throws ICSDatastoreException {
-        FormType ret = null;
         if(formTypeId < 0) {
             throw new ICSDatastoreException("formTypeId cannot be less than zero");
         }
-
-        if(formTypeIdCache.contains(formTypeId)) {
-            return formTypeIdCache.get(formTypeId);
-        }
-
-        try {
-
-            List<FormType> types = formDao.getFormTypes();
-            if(types != null && types.size() > 0) {
-                for(FormType f : types) {
-                    formTypeIdCache.putIfAbsent(f.getFormTypeId(), f);
-                }
-            }
-            ret = formTypeIdCache.get(formTypeId);
-        } catch(DataAccessException e) {
-            throw new ICSDatastoreException(
-                    "Data access exception trying to read FormType entities: " + e.getMessage());
-        } catch(Exception e) {
-            throw new ICSDatastoreException(
-                    "Unhandled exception trying to read FormType entities: " + e.getMessage());
-        }
-        return ret;
+        return getReferenceData().getFormTypeById(formTypeId);
     }
 
+    /**
+     * @return all form types, or null if they could not be read
+     */
     public List<FormType> getFormTypes() {
-        List<FormType> types = null;
         try {
-            // TODO: could/should just cache these so it's not querying every time, plus once one of the get
-            // formtype by id or name has been called, we already have all the data in the two caches
-            types = formDao.getFormTypes();
-        } catch(Exception e) {
-
+            return getReferenceData().getFormTypes();
+        } catch(ICSDatastoreException e) {
+            log.error("Failed to read FormTypes: {}", e.getMessage());
+            return null;
         }
-        return types;
     }
 
-
     public RemoteLogType getRemoteLogTypeByName(String remoteLogTypeName)
             throws ICSDatastoreException, NullPointerException {
-        RemoteLogType ret = null;
         if(remoteLogTypeName == null) {
             throw new NullPointerException("remoteLogTypeName cannot be null");
         }
-        remoteLogTypeName = remoteLogTypeName.toUpperCase();
-        if(remoteLogTypeCache.contains(remoteLogTypeName)) {
-            return remoteLogTypeCache.get(remoteLogTypeName);
-        }
-        try {
-
-            List<RemoteLogType> types = remoteLogDao.getLogTypes();
-            if(types != null && types.size() > 0) {
-                for(RemoteLogType f : types) {
-                    remoteLogTypeCache.putIfAbsent(f.getName(), f);
-                }
-            }
-            ret = remoteLogTypeCache.get(remoteLogTypeName);
-        } catch(DataAccessException e) {
-            throw new ICSDatastoreException(
-                    "Data access exception trying to read RemoteLogType entities: " + e.getMessage());
-        } catch(Exception e) {
-            throw new ICSDatastoreException(
-                    "Unhandled exception trying to read RemoteLogType entities: " + e.getMessage());
-        }
-        return ret;
+        return getReferenceData().getLogTypeByName(remoteLogTypeName);
     }
 
-
     public RemoteLogType getRemoteLogTypeById(int id) throws ICSDatastoreException {
-        RemoteLogType ret = null;
         if(id < 0) {
             throw new ICSDatastoreException("id cannot be less than zero");
         }
-
-        if(remoteLogTypeCache.contains(id)) {
-            return remoteLogTypeCache.get(id);
-        }
-
-        try {
-
-            List<RemoteLogType> types = remoteLogDao.getLogTypes();
-            if(types != null && types.size() > 0) {
-                for(RemoteLogType f : types) {
-                    remoteLogTypeIdCache.putIfAbsent(f.getId(), f);
-                }
-            }
-            ret = remoteLogTypeIdCache.get(id);
-        } catch(DataAccessException e) {
-            throw new ICSDatastoreException(
-                    "Data access exception trying to read FormType entities: " + e.getMessage());
-        } catch(Exception e) {
-            throw new ICSDatastoreException(
-                    "Unhandled exception trying to read FormType entities: " + e.getMessage());
-        }
-        return ret;
-
+        return getReferenceData().getLogTypeById(id);
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.mit.ll.em.api.dataaccess.cache.CacheStats;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
+
+/**
+ * Names of the layers known to exist on the export GeoServer, so exports can skip asking GeoServer for a layer they
+ * already used. The names are read with a single layer listing at startup and every
+ * "em.api.geoserver.layers.refreshminutes" (10) minutes after, and layers created or deleted through the API are
+ * recorded right away with {@link #layerAdded(String)} and {@link #layerRemoved(String)}.
+ * <p>
+ * Only presence is trusted. A layer missing from the cache may still have been created elsewhere since the last
+ * listing, so callers check GeoServer before creating it.
+ */
+public class GeoServerLayerCache {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(GeoServerLayerCache.class);
+
+    public static final String CACHE_NAME = "geoserverlayer";
+
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private static final ObjectMapper mapper = JsonSerialization.getMapper();
+
+    // Lazy-initialization Holder class idiom.
+    private static class Holder {
+        public static GeoServerLayerCache instance = create(APIConfig.getInstance().getConfiguration());
+    }
+
+    public static GeoServerLayerCache getInstance() {
+        return Holder.instance;
+    }
+
+    private final String restUrl;
+    private final String authorization;
+
+    // Replaced as a whole by each listing. Names are stored without their workspace prefix.
+    private volatile Set<String> layers = ConcurrentHashMap.newKeySet();
+
+    private volatile long listedAt;
+
+    private Timer reconciler;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong listCount = new AtomicLong();
+    private final AtomicLong listFailureCount = new AtomicLong();
+    private final AtomicLong totalListTime = new AtomicLong();
+
+    /**
+     * @param restUrl  GeoServer REST root, e.g. http://localhost:8080/geoserver/rest, or null to never know a layer
+     * @param username GeoServer user, may be null
+     * @param password password of the user
+     */
+    public GeoServerLayerCache(String restUrl, String username, String password) {
+        this.restUrl = restUrl;
+        this.authorization = username == null ? null : "Basic " + Base64.getEncoder().encodeToString(
+                (username + ":" + (password == null ? "" : password)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static GeoServerLayerCache create(Configuration config) {
+        String mapserverURL = config.getString(APIConfig.EXPORT_MAPSERVER_URL);
+        GeoServerLayerCache cache = new GeoServerLayerCache(
+                mapserverURL == null ? null : mapserverURL + APIConfig.EXPORT_REST_URL,
+                config.getString(APIConfig.EXPORT_MAPSERVER_USERNAME),
+                config.getString(APIConfig.EXPORT_MAPSERVER_PASSWORD));
+        cache.startReconciling(config.getLong(APIConfig.GEOSERVER_LAYERS_REFRESHMINUTES, 10));
+        return cache;
+    }
+
+    /**
+     * Lists the layers now, off the calling thread, and again every refreshMins minutes.
+     */
+    public synchronized void startReconciling(long refreshMins) {
+        if(restUrl == null || reconciler != null) {
+            return;
+        }
+        reconciler = new Timer("GeoServerLayerCache", true);
+        reconciler.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                reconcile();
+            }
+        }, 0, refreshMins * 60 * 1000);
+    }
+
+    public synchronized void freeResources() {
+        if(reconciler != null) {
+            reconciler.cancel();
+            reconciler = null;
+        }
+    }
+
+    /**
+     * @param layerName name of the layer, with or without its workspace prefix
+     * @return true if the layer is known to exist. False means it may or may not exist.
+     */
+    public boolean isKnownLayer(String layerName) {
+        if(layerName != null && layers.contains(localName(layerName))) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        missCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that the layer exists, call this after creating it or finding it on GeoServer
+     */
+    public void layerAdded(String layerName) {
+        if(layerName != null) {
+            layers.add(localName(layerName));
+        }
+    }
+
+    /**
+     * Records that the layer no longer exists, call this after deleting it
+     */
+    public void layerRemoved(String layerName) {
+        if(layerName != null) {
+            layers.remove(localName(layerName));
+        }
+    }
+
+    /**
+     * Replaces the known layers with a fresh listing from GeoServer. Keeps the current ones if the listing fails.
+     *
+     * @return true if the listing succeeded
+     */
+    public boolean reconcile() {
+        if(restUrl == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            Set<String> listed = listLayers();
+            layers = listed;
+            listedAt = System.currentTimeMillis();
+            listCount.incrementAndGet();
+            log.debug("Listed {} GeoServer layers", listed.size());
+            return true;
+        } catch(IOException | RuntimeException e) {
+            listFailureCount.incrementAndGet();
+            log.warn("Failed to list GeoServer layers at {}, keeping the {} known: {}", restUrl, layers.size(),
+                    e.getMessage());
+            return false;
+        } finally {
+            totalListTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the time of the last successful listing, 0 if there was none
+     */
+    public long getListedAt() {
+        return listedAt;
+    }
+
+    /**
+     * @return hit and miss counters of the layer checks, with load counters covering the listings
+     */
+    public CacheStats stats() {
+        return new CacheStats(CACHE_NAME, layers.size(), hitCount.get(), missCount.get(), listCount.get(),
+                listFailureCount.get(), totalListTime.get(), 0);
+    }
+
+    private Set<String> listLayers() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(restUrl + "/layers.json").openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Accept", "application/json");
+        if(authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        try {
+            int status = connection.getResponseCode();
+            if(status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("GeoServer responded " + status + " " + connection.getResponseMessage());
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                return parseLayers(mapper.readTree(in));
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // {"layers": {"layer": [{"name": "nics:R12", "href": ...}, ...]}}, or {"layers": ""} when there are none
+    private static Set<String> parseLayers(JsonNode root) throws IOException {
+        JsonNode layersNode = root.get("layers");
+        if(layersNode == null) {
+            throw new IOException("Unexpected layer listing");
+        }
+        Set<String> names = ConcurrentHashMap.newKeySet();
+        JsonNode layerNodes = layersNode.path("layer");
+        if(layerNodes.isObject()) {
+            // A single layer isn't always wrapped in an array
+            layerNodes = mapper.createArrayNode().add(layerNodes);
+        }
+        for(JsonNode layerNode : layerNodes) {
+            String name = layerNode.path("name").asText(null);
+            if(name != null) {
+                names.add(localName(name));
+            }
+        }
+        return names;
+    }
+
+    private static String localName(String layerName) {
+        return layerName.substring(layerName.lastIndexOf(':') + 1);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import edu.mit.ll.nics.common.entity.Org;
+
+/**
+ * An immutable snapshot of the org hierarchy, with the transitive closure of every org precomputed, answering
+ * OrgDAO.getAllChildren and OrgDAO.getAllParents style questions without going to the database.
+ * <p>
+ * Orgs are numbered densely in the order they were added, and the descendants of each org are held as a BitSet over
+ * those numbers. Adding a leaf org with {@link #withOrg(int, int)} only copies the sets of its ancestors, every other
+ * set is shared with the previous snapshot.
+ */
+public class OrgGraph {
+
+    // Index standing for no org, such as the parent of a root org
+    private static final int NONE = -1;
+
+    private static final OrgGraph EMPTY = new OrgGraph(new int[0], new int[0], new BitSet[0]);
+
+    // orgId per index
+    private final int[] orgIds;
+
+    // Index of the parent org per index, or NONE
+    private final int[] parents;
+
+    // Indexes of all descendants per index, never modified once the snapshot is built
+    private final BitSet[] descendants;
+
+    // orgIds sorted, and the index of each, for lookups by binary search
+    private final int[] sortedOrgIds;
+    private final int[] sortedIndexes;
+
+    private OrgGraph(int[] orgIds, int[] parents, BitSet[] descendants) {
+        this.orgIds = orgIds;
+        this.parents = parents;
+        this.descendants = descendants;
+
+        long[] pairs = new long[orgIds.length];
+        for(int i = 0; i < orgIds.length; i++) {
+            pairs[i] = ((long) orgIds[i] << 32) | i;
+        }
+        Arrays.sort(pairs);
+        sortedOrgIds = new int[pairs.length];
+        sortedIndexes = new int[pairs.length];
+        for(int i = 0; i < pairs.length; i++) {
+            sortedOrgIds[i] = (int) (pairs[i] >> 32);
+            sortedIndexes[i] = (int) pairs[i];
+        }
+    }
+
+    public static OrgGraph empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param orgs all orgs, as returned by OrgDAO.getOrganizations
+     */
+    public static OrgGraph build(List<Org> orgs) {
+        if(orgs == null) {
+            return EMPTY;
+        }
+        int[] orgIds = new int[orgs.size()];
+        int[] parentOrgIds = new int[orgs.size()];
+        for(int i = 0; i < orgIds.length; i++) {
+            Org org = orgs.get(i);
+            orgIds[i] = org.getOrgId();
+            parentOrgIds[i] = org.getParentorgid() == null ? 0 : org.getParentorgid();
+        }
+        return build(orgIds, parentOrgIds);
+    }
+
+    /**
+     * @param orgIds       the id of each org
+     * @param parentOrgIds the id of the parent of each org, any id not in orgIds (such as 0) for root orgs
+     */
+    public static OrgGraph build(int[] orgIds, int[] parentOrgIds) {
+        OrgGraph unlinked = new OrgGraph(orgIds.clone(), new int[orgIds.length], new BitSet[orgIds.length]);
+        for(int i = 0; i < orgIds.length; i++) {
+            int parent = unlinked.indexOf(parentOrgIds[i]);
+            unlinked.parents[i] = parent == i ? NONE : parent;
+            unlinked.descendants[i] = new BitSet();
+        }
+        for(int i = 0; i < orgIds.length; i++) {
+            unlinked.markAncestors(i, false);
+        }
+        return unlinked;
+    }
+
+    /**
+     * @return a copy of this graph with orgId added as a child of parentOrgId, or this graph if it already holds orgId
+     */
+    public OrgGraph withOrg(int orgId, int parentOrgId) {
+        if(contains(orgId)) {
+            return this;
+        }
+        int index = orgIds.length;
+        int[] newOrgIds = Arrays.copyOf(orgIds, index + 1);
+        int[] newParents = Arrays.copyOf(parents, index + 1);
+        BitSet[] newDescendants = Arrays.copyOf(descendants, index + 1);
+        newOrgIds[index] = orgId;
+        newParents[index] = indexOf(parentOrgId);
+        newDescendants[index] = new BitSet();
+
+        OrgGraph graph = new OrgGraph(newOrgIds, newParents, newDescendants);
+        graph.markAncestors(index, true);
+        return graph;
+    }
+
+    public int size() {
+        return orgIds.length;
+    }
+
+    public boolean contains(int orgId) {
+        return indexOf(orgId) != NONE;
+    }
+
+    /**
+     * @return true if orgId sits anywhere below ancestorOrgId in the hierarchy, false if they are the same org
+     */
+    public boolean isDescendant(int orgId, int ancestorOrgId) {
+        int index = indexOf(orgId);
+        int ancestor = indexOf(ancestorOrgId);
+        return index != NONE && ancestor != NONE && descendants[ancestor].get(index);
+    }
+
+    /**
+     * @return the ids of all orgs below any of orgIds, without duplicates
+     */
+    public List<Integer> getDescendants(Collection<Integer> orgIds) {
+        BitSet found = new BitSet(this.orgIds.length);
+        for(Integer orgId : orgIds) {
+            int index = orgId == null ? NONE : indexOf(orgId);
+            if(index != NONE) {
+                found.or(descendants[index]);
+            }
+        }
+        return toOrgIds(found);
+    }
+
+    /**
+     * @return orgIds followed by the ids of all orgs below them, without duplicates
+     */
+    public List<Integer> getSelfAndDescendants(Collection<Integer> orgIds) {
+        BitSet found = new BitSet(this.orgIds.length);
+        List<Integer> result = new ArrayList<Integer>();
+        for(Integer orgId : orgIds) {
+            int index = orgId == null ? NONE : indexOf(orgId);
+            if(index == NONE) {
+                // Created after this snapshot was taken, still grant access to the org itself
+                if(orgId != null && !result.contains(orgId)) {
+                    result.add(orgId);
+                }
+            } else if(!found.get(index)) {
+                found.set(index);
+                result.add(orgId);
+            }
+        }
+        for(Integer orgId : orgIds) {
+            int index = orgId == null ? NONE : indexOf(orgId);
+            if(index != NONE) {
+                BitSet below = (BitSet) descendants[index].clone();
+                below.andNot(found);
+                found.or(below);
+                result.addAll(toOrgIds(below));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids of all orgs above any of orgIds, without duplicates
+     */
+    public List<Integer> getAncestors(Collection<Integer> orgIds) {
+        BitSet found = new BitSet(this.orgIds.length);
+        for(Integer orgId : orgIds) {
+            int index = orgId == null ? NONE : indexOf(orgId);
+            if(index == NONE) {
+                continue;
+            }
+            for(int ancestor = parents[index]; ancestor != NONE && ancestor != index && !found.get(ancestor);
+                ancestor = parents[ancestor]) {
+                found.set(ancestor);
+            }
+        }
+        return toOrgIds(found);
+    }
+
+    private List<Integer> toOrgIds(BitSet indexes) {
+        if(indexes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Integer> result = new ArrayList<Integer>(indexes.cardinality());
+        for(int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+            result.add(orgIds[i]);
+        }
+        return result;
+    }
+
+    // Adds index to the descendants of each of its ancestors, copying their sets first if they are shared with another
+    // snapshot. Stops at a cycle, which the parent links shouldn't have.
+    private void markAncestors(int index, boolean copy) {
+        int steps = 0;
+        for(int ancestor = parents[index]; ancestor != NONE && ancestor != index && steps < parents.length;
+            ancestor = parents[ancestor]) {
+            if(copy) {
+                descendants[ancestor] = (BitSet) descendants[ancestor].clone();
+            }
+            descendants[ancestor].set(index);
+            steps++;
+        }
+    }
+
+    private int indexOf(int orgId) {
+        int found = Arrays.binarySearch(sortedOrgIds, orgId);
+        return found < 0 ? NONE : sortedIndexes[found];
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.em.api.dataaccess.cache.CacheStats;
+import edu.mit.ll.nics.common.entity.Org;
+import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
+
+/**
+ * Holds the current {@link OrgGraph}, and the ids of the orgs of each workspace. The graph is loaded on first use and
+ * reloaded "em.api.cache.orggraph.expireminutes" (10) minutes later, picking up hierarchy changes made outside the
+ * API. Orgs created through the API are added to the graph right away, see {@link #refreshOrg(int)}.
+ * <p>
+ * If a reload fails the previous graph is kept, and the reload is not tried again for {@link #RETRY_SECONDS}, so a
+ * database outage doesn't put every request through a failing query. The workspace org ids expire along with the graph.
+ */
+public class OrgGraphCache {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(OrgGraphCache.class);
+
+    public static final String CACHE_NAME = "orggraph";
+
+    /**
+     * Seconds to keep serving the previous graph after a failed reload before trying again
+     */
+    public static final int RETRY_SECONDS = 30;
+
+    private static final OrgDAOImpl defaultOrgDao = new OrgDAOImpl();
+
+    private final OrgDAOImpl orgDao;
+
+    private final long expireNanos;
+
+    // Replaced as a whole, never modified
+    private volatile OrgGraph graph;
+
+    // System.nanoTime() at which the graph is next reloaded
+    private volatile long reloadAt;
+
+    // Ids of the orgs in each workspace, per workspaceId
+    private final ConcurrentHashMap<Integer, List<Integer>> workspaceOrgIds =
+            new ConcurrentHashMap<Integer, List<Integer>>();
+
+    // System.nanoTime() at which workspaceOrgIds is next cleared
+    private volatile long workspaceOrgIdsExpireAt;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadFailureCount = new AtomicLong();
+    private final AtomicLong totalLoadTime = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param settings only the expiry applies, the graph always holds every org
+     */
+    public OrgGraphCache(CacheSettings settings) {
+        this(settings, defaultOrgDao);
+    }
+
+    /**
+     * @param settings only the expiry applies, the graph always holds every org
+     * @param orgDao   reads the orgs
+     */
+    public OrgGraphCache(CacheSettings settings, OrgDAOImpl orgDao) {
+        this.orgDao = orgDao;
+        this.expireNanos = TimeUnit.MINUTES.toNanos(settings.getExpireMinutes());
+        this.workspaceOrgIdsExpireAt = System.nanoTime() + expireNanos;
+    }
+
+    /**
+     * @return the current org hierarchy, loading it if needed
+     *
+     * @throws RuntimeException if the orgs could not be read, and no earlier graph is available
+     */
+    public OrgGraph getGraph() {
+        OrgGraph current = graph;
+        if(current != null && System.nanoTime() - reloadAt < 0) {
+            hitCount.incrementAndGet();
+            return current;
+        }
+        return load();
+    }
+
+    /**
+     * @return the ids of all orgs in the workspace, never null
+     */
+    public List<Integer> getWorkspaceOrgIds(int workspaceId) {
+        long now = System.nanoTime();
+        if(now - workspaceOrgIdsExpireAt >= 0) {
+            // Cleared on each reload of the graph too, this covers the graph not being read
+            workspaceOrgIds.clear();
+            workspaceOrgIdsExpireAt = now + expireNanos;
+        }
+        List<Integer> orgIds = workspaceOrgIds.get(workspaceId);
+        if(orgIds == null) {
+            List<Integer> loaded = orgDao.getOrganizationIds(workspaceId);
+            orgIds = loaded == null ? Collections.<Integer>emptyList() : Collections.unmodifiableList(loaded);
+            workspaceOrgIds.putIfAbsent(workspaceId, orgIds);
+        }
+        return orgIds;
+    }
+
+    /**
+     * Brings the graph up to date with the org. A new org is added to the current graph, anything else about an org
+     * already known makes the graph reload on its next use.
+     */
+    public synchronized void refreshOrg(int orgId) {
+        workspaceOrgIds.clear();
+        OrgGraph current = graph;
+        if(current == null) {
+            return;
+        }
+        Org org = current.contains(orgId) ? null : orgDao.getOrganization(orgId);
+        if(org == null) {
+            invalidateAll();
+            return;
+        }
+        graph = current.withOrg(orgId, org.getParentorgid() == null ? 0 : org.getParentorgid());
+        log.debug("Added org {} to the org graph", orgId);
+    }
+
+    public synchronized void invalidateAll() {
+        if(graph != null) {
+            evictionCount.incrementAndGet();
+        }
+        graph = null;
+        workspaceOrgIds.clear();
+    }
+
+    /**
+     * @return counters of reads of the graph, with size counting the orgs in it
+     */
+    public CacheStats stats() {
+        OrgGraph current = graph;
+        long misses = missCount.get();
+        return new CacheStats(CACHE_NAME, current == null ? 0 : current.size(), hitCount.get(), misses,
+                misses - loadFailureCount.get(), loadFailureCount.get(), totalLoadTime.get(), evictionCount.get());
+    }
+
+    private synchronized OrgGraph load() {
+        OrgGraph current = graph;
+        if(current != null && System.nanoTime() - reloadAt < 0) {
+            // Loaded by another thread meanwhile
+            hitCount.incrementAndGet();
+            return current;
+        }
+
+        missCount.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            OrgGraph loaded = OrgGraph.build(orgDao.getOrganizations());
+            workspaceOrgIds.clear();
+            graph = loaded;
+            reloadAt = System.nanoTime() + expireNanos;
+            workspaceOrgIdsExpireAt = reloadAt;
+            log.debug("Loaded org graph of {} orgs", loaded.size());
+            return loaded;
+        } catch(RuntimeException e) {
+            loadFailureCount.incrementAndGet();
+            if(current == null) {
+                throw e;
+            }
+            reloadAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(RETRY_SECONDS);
+            log.warn("Failed to reload the org graph, keeping the previous one for {}s: {}", RETRY_SECONDS,
+                    e.getMessage());
+            return current;
+        } finally {
+            totalLoadTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.ll.nics.common.entity.ContactType;
+import edu.mit.ll.nics.common.entity.FormType;
+import edu.mit.ll.nics.common.entity.IncidentType;
+import edu.mit.ll.nics.common.entity.OrgType;
+import edu.mit.ll.nics.common.entity.RemoteLogType;
+import edu.mit.ll.nics.common.entity.SystemRole;
+import edu.mit.ll.nics.nicsdao.impl.FormDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.RemoteLogDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
+
+/**
+ * An immutable snapshot of the reference data tables: form types, log types, incident types, org types, contact types
+ * and system roles. A snapshot is loaded as a whole by {@link #load()}, and {@link EntityCacheMgr} replaces it as a
+ * whole, so readers always see the tables as they were read together. Form and log types are also indexed by id and
+ * by their name, which is matched case insensitively.
+ * <p>
+ * The lists returned can't be modified. The entities in them are shared by all readers, and must not be changed.
+ */
+public class ReferenceData {
+
+    private static final FormDAOImpl formDao = new FormDAOImpl();
+    private static final RemoteLogDAOImpl remoteLogDao = new RemoteLogDAOImpl();
+    private static final IncidentDAOImpl incidentDao = new IncidentDAOImpl();
+    private static final OrgDAOImpl orgDao = new OrgDAOImpl();
+    private static final UserDAOImpl userDao = new UserDAOImpl();
+    private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
+
+    private final List<FormType> formTypes;
+    private final Map<String, FormType> formTypesByName;
+    private final Map<Integer, FormType> formTypesById;
+    private final Set<String> formTypeNames;
+
+    private final List<RemoteLogType> logTypes;
+    private final Map<String, RemoteLogType> logTypesByName;
+    private final Map<Integer, RemoteLogType> logTypesById;
+
+    private final List<IncidentType> incidentTypes;
+    private final List<OrgType> orgTypes;
+    private final List<ContactType> contactTypes;
+    private final List<SystemRole> systemRoles;
+
+    private final long loadedAt;
+
+    public ReferenceData(List<FormType> formTypes, List<RemoteLogType> logTypes, List<IncidentType> incidentTypes,
+                         List<OrgType> orgTypes, List<ContactType> contactTypes, List<SystemRole> systemRoles) {
+        this.formTypes = freeze(formTypes);
+        this.logTypes = freeze(logTypes);
+        this.incidentTypes = freeze(incidentTypes);
+        this.orgTypes = freeze(orgTypes);
+        this.contactTypes = freeze(contactTypes);
+        this.systemRoles = freeze(systemRoles);
+
+        Map<String, FormType> formsByName = new HashMap<String, FormType>();
+        Map<Integer, FormType> formsById = new HashMap<Integer, FormType>();
+        Set<String> formNames = new LinkedHashSet<String>();
+        for(FormType formType : this.formTypes) {
+            // The first of any duplicates wins, as it did before
+            if(formType.getFormTypeName() != null && !formsByName.containsKey(key(formType.getFormTypeName()))) {
+                formsByName.put(key(formType.getFormTypeName()), formType);
+                formNames.add(formType.getFormTypeName());
+            }
+            if(!formsById.containsKey(formType.getFormTypeId())) {
+                formsById.put(formType.getFormTypeId(), formType);
+            }
+        }
+        this.formTypesByName = Collections.unmodifiableMap(formsByName);
+        this.formTypesById = Collections.unmodifiableMap(formsById);
+        this.formTypeNames = Collections.unmodifiableSet(formNames);
+
+        Map<String, RemoteLogType> logsByName = new HashMap<String, RemoteLogType>();
+        Map<Integer, RemoteLogType> logsById = new HashMap<Integer, RemoteLogType>();
+        for(RemoteLogType logType : this.logTypes) {
+            if(logType.getName() != null && !logsByName.containsKey(key(logType.getName()))) {
+                logsByName.put(key(logType.getName()), logType);
+            }
+            if(!logsById.containsKey(logType.getId())) {
+                logsById.put(logType.getId(), logType);
+            }
+        }
+        this.logTypesByName = Collections.unmodifiableMap(logsByName);
+        this.logTypesById = Collections.unmodifiableMap(logsById);
+
+        this.loadedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads all reference data tables.
+     *
+     * @throws org.springframework.dao.DataAccessException if any of them could not be read
+     */
+    public static ReferenceData load() {
+        return new ReferenceData(
+                formDao.getFormTypes(),
+                remoteLogDao.getLogTypes(),
+                incidentDao.getIncidentTypes(),
+                orgDao.getOrgTypes(),
+                userDao.getContactTypes(),
+                userOrgDao.getSystemRoles());
+    }
+
+    public List<FormType> getFormTypes() {
+        return formTypes;
+    }
+
+    /**
+     * @return the form type, or null if there is none by that name
+     */
+    public FormType getFormTypeByName(String formTypeName) {
+        return formTypesByName.get(key(formTypeName));
+    }
+
+    public FormType getFormTypeById(int formTypeId) {
+        return formTypesById.get(formTypeId);
+    }
+
+    /**
+     * @return the names of all form types, as stored
+     */
+    public Set<String> getFormTypeNames() {
+        return formTypeNames;
+    }
+
+    public List<RemoteLogType> getLogTypes() {
+        return logTypes;
+    }
+
+    /**
+     * @return the log type, or null if there is none by that name
+     */
+    public RemoteLogType getLogTypeByName(String name) {
+        return logTypesByName.get(key(name));
+    }
+
+    public RemoteLogType getLogTypeById(int id) {
+        return logTypesById.get(id);
+    }
+
+    public List<IncidentType> getIncidentTypes() {
+        return incidentTypes;
+    }
+
+    public List<OrgType> getOrgTypes() {
+        return orgTypes;
+    }
+
+    public List<ContactType> getContactTypes() {
+        return contactTypes;
+    }
+
+    public List<SystemRole> getSystemRoles() {
+        return systemRoles;
+    }
+
+    /**
+     * @return when this snapshot was read, in milliseconds since the epoch
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    private static String key(String name) {
+        return name.toUpperCase(Locale.ENGLISH);
+    }
+
+    private static <T> List<T> freeze(List<T> list) {
+        if(list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<T>(list));
+    }
+}
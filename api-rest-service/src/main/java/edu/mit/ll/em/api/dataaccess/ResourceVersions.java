@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Change counters of the resources served by the API, used to build ETags and Last-Modified dates without reading the
+ * resources. A key names a set of resources, e.g. "features.collabroom.12" for the features of collab room 12, and its
+ * version goes up whenever one of them changes. Keys never changed report version 0, modified at startup.
+ * <p>
+ * Versions are local to this node. {@link EntityCacheMgr#resourceChanged(java.util.Collection)} applies a change on
+ * every node, and {@link #getIncarnation()} tells apart versions of different nodes and restarts.
+ * <p>
+ * This is a single-node scheme: each node counts the changes it hears of from its own startup, so two nodes give the
+ * same resource different versions. Anything derived from them, such as ETags, is only comparable on the node that
+ * produced it. Behind a load balancer that means fewer matches, but never a wrong one.
+ */
+public class ResourceVersions {
+
+    public static final String CACHE_NAME = "resourceversion";
+
+    // Keys, or key prefixes where they end in a dot
+
+    /** Any collab room feature, for changes whose rooms aren't known */
+    public static final String FEATURES = "features";
+    /** Features of one collab room, followed by the collabRoomId */
+    public static final String COLLABROOM_FEATURES = "features.collabroom.";
+    /** Permissions of one collab room, followed by the collabRoomId */
+    public static final String COLLABROOM_PERMISSIONS = "collabroom.permissions.";
+    public static final String INCIDENTS = "incidents";
+    public static final String DATALAYERS = "datalayers";
+    public static final String TRANSLATIONS = "translations";
+    public static final String ORGS = "orgs";
+    /** Org memberships and roles of any user */
+    public static final String USERORGS = "userorgs";
+
+    private static class Version {
+        final AtomicLong version = new AtomicLong();
+        volatile long modifiedAt;
+    }
+
+    private final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<String, Version>();
+
+    private final long incarnation = System.nanoTime() ^ Double.doubleToLongBits(Math.random());
+
+    // Bumped by changedAll, part of every version
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile long generationModifiedAt = System.currentTimeMillis();
+
+    /**
+     * @return a number picked at startup, to mix into anything derived from the versions
+     */
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    /**
+     * @return the number of times all versions were bumped at once
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return the version of key, 0 if it never changed
+     */
+    public long getVersion(String key) {
+        Version version = versions.get(key);
+        return version == null ? 0 : version.version.get();
+    }
+
+    /**
+     * @return the time key last changed in milliseconds, or the startup time if it never did
+     */
+    public long getModifiedAt(String key) {
+        Version version = versions.get(key);
+        long modifiedAt = version == null ? 0 : version.modifiedAt;
+        return Math.max(modifiedAt, generationModifiedAt);
+    }
+
+    /**
+     * Bumps the version of key on this node
+     */
+    public void changed(String key) {
+        Version version = versions.get(key);
+        if(version == null) {
+            Version created = new Version();
+            version = versions.putIfAbsent(key, created);
+            if(version == null) {
+                version = created;
+            }
+        }
+        version.modifiedAt = System.currentTimeMillis();
+        version.version.incrementAndGet();
+    }
+
+    /**
+     * Bumps every version on this node, including those of keys never changed
+     */
+    public void changedAll() {
+        generationModifiedAt = System.currentTimeMillis();
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return the number of keys changed since startup
+     */
+    public int size() {
+        return versions.size();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.cache.CacheLoadException;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.em.api.dataaccess.cache.CacheStats;
+import edu.mit.ll.em.api.dataaccess.cache.EntityCache;
+import edu.mit.ll.em.api.dataaccess.cache.EntityCacheFactory;
+import edu.mit.ll.em.api.dataaccess.cache.EntityLoader;
+import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
+
+/**
+ * Caches the outcome of UserOrgDAO.isUserRole checks per userId, as a bitmask of the system roles checked so far and a
+ * bitmask of those the user holds. Each role is queried once, after that checks are a bit test. Users expire as a
+ * whole, "em.api.cache.systemrole.expireminutes" (5) minutes after their first role was checked, and are dropped right
+ * away by {@link #invalidate(int)} once their orgs, roles or enabled state change.
+ */
+public class SystemRoleCache {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(SystemRoleCache.class);
+
+    public static final String CACHE_NAME = "systemrole";
+
+    // Roles held by a single user
+    private static class RoleSet {
+        // Bit per systemRoleId checked so far
+        final AtomicLong known = new AtomicLong();
+        // Bit per systemRoleId held, only meaningful where the bit in known is set
+        final AtomicLong held = new AtomicLong();
+    }
+
+    private static final UserOrgDAOImpl defaultUserOrgDao = new UserOrgDAOImpl();
+
+    private final UserOrgDAOImpl userOrgDao;
+
+    private final EntityCache<Integer, RoleSet> users;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong checkFailureCount = new AtomicLong();
+    private final AtomicLong totalCheckTime = new AtomicLong();
+
+    /**
+     * @param settings bounds the number of users and how long their roles live
+     */
+    public SystemRoleCache(CacheSettings settings) {
+        this(settings, defaultUserOrgDao);
+    }
+
+    /**
+     * @param userOrgDao makes the role checks not cached
+     */
+    public SystemRoleCache(CacheSettings settings, UserOrgDAOImpl userOrgDao) {
+        this.userOrgDao = userOrgDao;
+        this.users = EntityCacheFactory.create(settings, new EntityLoader<Integer, RoleSet>() {
+            @Override
+            public RoleSet load(Integer userId) {
+                return new RoleSet();
+            }
+        });
+    }
+
+    /**
+     * @return the underlying cache of users, for registering with a CacheInvalidator
+     */
+    public EntityCache<Integer, ?> getUserCache() {
+        return users;
+    }
+
+    /**
+     * @param userId       id of the user, keying the cache
+     * @param username     username of the same user, as UserOrgDAO.isUserRole takes it
+     * @param systemRoleId one of the SADisplayConstants role ids
+     * @return true if the user holds the role in any of their orgs
+     */
+    public boolean hasRole(int userId, String username, int systemRoleId) {
+        if(systemRoleId < 0 || systemRoleId >= Long.SIZE) {
+            // Doesn't fit the mask
+            return check(username, systemRoleId);
+        }
+
+        RoleSet roles;
+        try {
+            roles = users.get(userId);
+        } catch(CacheLoadException e) {
+            // Can't happen with the loader above, but never let the cache decide on its own
+            log.warn("Failed to get the system roles of user {}", userId, e);
+            return check(username, systemRoleId);
+        }
+
+        long bit = 1L << systemRoleId;
+        if((roles.known.get() & bit) != 0) {
+            hitCount.incrementAndGet();
+            return (roles.held.get() & bit) != 0;
+        }
+
+        boolean hasRole = check(username, systemRoleId);
+        // A role change made meanwhile replaced this user's roles, so storing into it can't resurrect a stale one
+        if(hasRole) {
+            setBit(roles.held, bit);
+        }
+        setBit(roles.known, bit);
+        return hasRole;
+    }
+
+    /**
+     * @return true if the user holds any of systemRoleIds, checking them in order
+     */
+    public boolean hasAnyRole(int userId, String username, int... systemRoleIds) {
+        for(int systemRoleId : systemRoleIds) {
+            if(hasRole(userId, username, systemRoleId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the roles of the user. Call this whenever the orgs, roles or enabled state of the user change.
+     */
+    public void invalidate(int userId) {
+        users.invalidate(userId);
+    }
+
+    public void invalidateAll() {
+        users.invalidateAll();
+    }
+
+    /**
+     * @return hit and miss counters of the role checks, with load counters covering the checks made against the
+     * database and size counting users
+     */
+    public CacheStats stats() {
+        CacheStats userStats = users.stats();
+        long misses = missCount.get();
+        return new CacheStats(CACHE_NAME, userStats.getSize(), hitCount.get(), misses,
+                misses - checkFailureCount.get(), checkFailureCount.get(), totalCheckTime.get(),
+                userStats.getEvictionCount());
+    }
+
+    private boolean check(String username, int systemRoleId) {
+        missCount.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return userOrgDao.isUserRole(username, systemRoleId);
+        } catch(RuntimeException e) {
+            checkFailureCount.incrementAndGet();
+            throw e;
+        } finally {
+            totalCheckTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static void setBit(AtomicLong mask, long bit) {
+        long current;
+        do {
+            current = mask.get();
+        } while(!mask.compareAndSet(current, current | bit));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mit.ll.nics.common.constants.SADisplayConstants;
+import edu.mit.ll.nics.common.entity.Org;
+import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
+
+/**
+ * The resolved identity of a requesting user. Org memberships are looked up once per workspace, by
+ * {@link edu.mit.ll.em.api.main.IdentityRequestFilter} for the workspace a request names or else on first use, and
+ * then remembered for as long as the identity is cached by {@link EntityCacheMgr}, which is kept short since they can
+ * change at any time. System roles are answered by the role cache of EntityCacheMgr.
+ */
+public class UserIdentity implements Principal {
+
+    private static final OrgDAOImpl defaultOrgDao = new OrgDAOImpl();
+
+    private final OrgDAOImpl orgDao;
+
+    private final int userId;
+
+    private final String username;
+
+    // Orgs of the user per workspaceId
+    private final ConcurrentHashMap<Integer, List<Org>> orgs = new ConcurrentHashMap<Integer, List<Org>>();
+
+    public UserIdentity(int userId, String username) {
+        this(userId, username, defaultOrgDao);
+    }
+
+    /**
+     * @param orgDao reads the org memberships of the user
+     */
+    public UserIdentity(int userId, String username, OrgDAOImpl orgDao) {
+        this.userId = userId;
+        this.username = username;
+        this.orgDao = orgDao;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String getName() {
+        return username;
+    }
+
+    /**
+     * @return the orgs the user belongs to in workspaceId, never null
+     */
+    public List<Org> getOrgs(int workspaceId) {
+        List<Org> workspaceOrgs = orgs.get(workspaceId);
+        if(workspaceOrgs == null) {
+            List<Org> loaded = orgDao.getUserOrgs(userId, workspaceId);
+            workspaceOrgs = loaded == null ? Collections.<Org>emptyList() : Collections.unmodifiableList(loaded);
+            List<Org> raced = orgs.putIfAbsent(workspaceId, workspaceOrgs);
+            if(raced != null) {
+                workspaceOrgs = raced;
+            }
+        }
+        return workspaceOrgs;
+    }
+
+    /**
+     * @return the ids of the orgs the user belongs to in workspaceId, never null
+     */
+    public List<Integer> getOrgIds(int workspaceId) {
+        List<Org> workspaceOrgs = getOrgs(workspaceId);
+        List<Integer> orgIds = new ArrayList<Integer>(workspaceOrgs.size());
+        for(Org org : workspaceOrgs) {
+            orgIds.add(org.getOrgId());
+        }
+        return orgIds;
+    }
+
+    /**
+     * @param systemRoleId one of the SADisplayConstants role ids
+     * @return true if the user holds the role in any of their orgs
+     */
+    public boolean hasSystemRole(int systemRoleId) {
+        return EntityCacheMgr.getInstance().hasUserRole(userId, username, systemRoleId);
+    }
+
+    public boolean isSuperUser() {
+        return hasSystemRole(SADisplayConstants.SUPER_ROLE_ID);
+    }
+
+    @Override
+    public String toString() {
+        return "UserIdentity{userId=" + userId + ", username='" + username + "'}";
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mit.ll.em.api.dataaccess.cache.EntityCache;
+import edu.mit.ll.em.api.dataaccess.cache.NegativeCache;
+import edu.mit.ll.nics.common.entity.User;
+import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
+
+/**
+ * Looks users up by username through a secondary index onto the user cache, which only holds entries for users
+ * currently cached, and remembers for a while the usernames not found in the database. Usernames are matched exactly,
+ * as the database matches them: the index, the usernames remembered as unknown and the query all use the username as
+ * given, so a miss on "BOB" says nothing about "bob".
+ * <p>
+ * The user cache should call {@link #index(User)} for each user it loads and {@link #unindex(int, User)} for each it
+ * drops.
+ */
+public class UsernameIndex {
+
+    private final EntityCache<Integer, User> userCache;
+
+    private final NegativeCache<String> unknownUsernames;
+
+    private final UserDAOImpl userDao;
+
+    // UserId of each username, only for users in userCache
+    private final ConcurrentHashMap<String, Integer> userIds = new ConcurrentHashMap<String, Integer>();
+
+    public UsernameIndex(EntityCache<Integer, User> userCache, NegativeCache<String> unknownUsernames,
+            UserDAOImpl userDao) {
+        this.userCache = userCache;
+        this.unknownUsernames = unknownUsernames;
+        this.userDao = userDao;
+    }
+
+    /**
+     * @return the User, or null if no user has that username
+     *
+     * @throws org.springframework.dao.DataAccessException if the user could not be read
+     */
+    public User get(String username) {
+        if(username == null) {
+            return null;
+        }
+
+        Integer userId = userIds.get(username);
+        if(userId != null) {
+            User user = userCache.getIfPresent(userId);
+            if(user != null && username.equals(user.getUsername())) {
+                return user;
+            }
+            // The entry was evicted, or the user was renamed, since it was indexed
+            userIds.remove(username, userId);
+        }
+
+        if(unknownUsernames.contains(username)) {
+            return null;
+        }
+
+        User user = userDao.getUser(username);
+        if(user == null) {
+            unknownUsernames.add(username);
+            return null;
+        }
+        userCache.put(user.getUserId(), user);
+        index(user);
+        return user;
+    }
+
+    /**
+     * Indexes a user just put in the user cache
+     */
+    public void index(User user) {
+        if(user != null && user.getUsername() != null) {
+            userIds.put(user.getUsername(), user.getUserId());
+            unknownUsernames.remove(user.getUsername());
+        }
+    }
+
+    /**
+     * Unindexes a user dropped from the user cache, unless a fresher entry with the same username replaced it
+     */
+    public void unindex(int userId, User removed) {
+        String username = removed.getUsername();
+        if(username == null) {
+            return;
+        }
+        User current = userCache.getIfPresent(userId);
+        if(current == null || !username.equals(current.getUsername())) {
+            userIds.remove(username, userId);
+        }
+    }
+
+    /**
+     * Forgets anything known about username, in particular that no such user exists, and evicts its user
+     */
+    public void invalidate(String username) {
+        if(username == null) {
+            return;
+        }
+        unknownUsernames.remove(username);
+        Integer userId = userIds.remove(username);
+        if(userId != null) {
+            userCache.invalidate(userId);
+        }
+    }
+
+    /**
+     * Forgets the usernames found unknown, so they are looked up again
+     */
+    public void invalidateUnknown() {
+        unknownUsernames.clear();
+    }
+
+    /**
+     * Forgets everything, the user cache is cleared separately
+     */
+    public void clear() {
+        userIds.clear();
+        unknownUsernames.clear();
+    }
+
+    /**
+     * @return the usernames indexed
+     */
+    public int size() {
+        return userIds.size();
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Keeps the caches of several em-api nodes coherent. Caches register as named {@link InvalidationTarget}s, and rules
+ * map the change topics the services already publish (e.g. "iweb.NICS.incident.*.update") onto the keys of a target
+ * that the change affects. Every node consumes those topics and evicts just the affected keys.
+ * <p>
+ * Changes that have no topic of their own are announced with a targeted message on
+ * {@link #TARGETED_TOPIC_PREFIX} + target name, see {@link #invalidate(String, Collection)}. A node ignores the
+ * targeted messages it sent itself, having already applied them.
+ * <p>
+ * When the subscription is restored after a loss of connectivity every target is flushed, since messages published in
+ * the meantime were missed.
+ * <p>
+ * Invalidations asked for inside a database transaction are applied once it ends, so no node reloads the entries
+ * from rows the transaction has yet to commit.
+ */
+public class CacheInvalidator implements InvalidationBus.Listener {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(CacheInvalidator.class);
+
+    public static final String TARGETED_TOPIC_PREFIX = "iweb.NICS.cache.invalidate.";
+
+    private static final String ORIGIN = "origin";
+    private static final String KEYS = "keys";
+    private static final String ALL = "all";
+
+    /**
+     * A cache, or any other state derived from the database, that can drop entries by key.
+     */
+    public interface InvalidationTarget {
+
+        void invalidate(String key);
+
+        void invalidateAll();
+    }
+
+    /**
+     * Extracts the keys affected by a change notification.
+     */
+    public interface KeyExtractor {
+
+        /**
+         * @return the affected keys, empty if none could be determined
+         *
+         * @throws Exception if the message could not be parsed
+         */
+        Collection<String> extract(String routingKey, String body) throws Exception;
+    }
+
+    private static class Rule {
+        final String bindingKey;
+        final String targetName;
+        final KeyExtractor extractor;
+
+        Rule(String bindingKey, String targetName, KeyExtractor extractor) {
+            this.bindingKey = bindingKey;
+            this.targetName = targetName;
+            this.extractor = extractor;
+        }
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final InvalidationBus bus;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final Map<String, InvalidationTarget> targets = new ConcurrentHashMap<String, InvalidationTarget>();
+
+    private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong keysInvalidated = new AtomicLong();
+    private final AtomicLong messageFailures = new AtomicLong();
+
+    public CacheInvalidator(InvalidationBus bus) {
+        this.bus = bus;
+    }
+
+    /**
+     * Registers a target under name. Targets can be registered before or after {@link #start()}.
+     */
+    public void registerTarget(String name, InvalidationTarget target) {
+        targets.put(name, target);
+    }
+
+    /**
+     * Invalidates the keys extractor finds in messages matching bindingKey from the target registered as targetName.
+     * Rules must be added before {@link #start()}.
+     */
+    public void addRule(String bindingKey, String targetName, KeyExtractor extractor) {
+        rules.add(new Rule(bindingKey, targetName, extractor));
+    }
+
+    /**
+     * Subscribes to the topics of all rules and to targeted messages.
+     *
+     * @throws IOException if the subscription could not be set up
+     */
+    public void start() throws IOException {
+        Set<String> bindingKeys = new LinkedHashSet<String>();
+        bindingKeys.add(TARGETED_TOPIC_PREFIX + "#");
+        for(Rule rule : rules) {
+            bindingKeys.add(rule.bindingKey);
+        }
+        bus.subscribe(bindingKeys, this);
+    }
+
+    public void close() {
+        bus.close();
+    }
+
+    /**
+     * @return true if invalidations reach the other nodes of the cluster
+     */
+    public boolean isClustered() {
+        return bus.isClustered();
+    }
+
+    /**
+     * Invalidates keys from the named target on this node, then tells the other nodes to do the same.
+     *
+     * @param targetName name the target was registered under
+     * @param keys       keys to invalidate, converted with toString()
+     */
+    public void invalidate(final String targetName, Collection<?> keys) {
+        final List<String> stringKeys = new ArrayList<String>(keys.size());
+        for(Object key : keys) {
+            stringKeys.add(String.valueOf(key));
+        }
+        afterTransaction(new Runnable() {
+            @Override
+            public void run() {
+                invalidateNow(targetName, stringKeys);
+            }
+        });
+    }
+
+    private void invalidateNow(String targetName, List<String> stringKeys) {
+        invalidateLocally(targetName, stringKeys);
+
+        ObjectNode message = mapper.createObjectNode();
+        message.put(ORIGIN, nodeId);
+        ArrayNode keyArray = message.putArray(KEYS);
+        for(String key : stringKeys) {
+            keyArray.add(key);
+        }
+        publish(targetName, message);
+    }
+
+    /**
+     * Flushes the named target on this node, then tells the other nodes to do the same.
+     */
+    public void invalidateAll(final String targetName) {
+        afterTransaction(new Runnable() {
+            @Override
+            public void run() {
+                invalidateAllNow(targetName);
+            }
+        });
+    }
+
+    private void invalidateAllNow(String targetName) {
+        InvalidationTarget target = targets.get(targetName);
+        if(target != null) {
+            target.invalidateAll();
+        }
+
+        ObjectNode message = mapper.createObjectNode();
+        message.put(ORIGIN, nodeId);
+        message.put(ALL, true);
+        publish(targetName, message);
+    }
+
+    @Override
+    public void onMessage(String routingKey, String body) {
+        messagesReceived.incrementAndGet();
+        try {
+            if(routingKey.startsWith(TARGETED_TOPIC_PREFIX)) {
+                handleTargeted(routingKey.substring(TARGETED_TOPIC_PREFIX.length()), body);
+                return;
+            }
+            for(Rule rule : rules) {
+                if(InProcessInvalidationBus.topicMatches(rule.bindingKey, routingKey)) {
+                    invalidateLocally(rule.targetName, rule.extractor.extract(routingKey, body));
+                }
+            }
+        } catch(Exception e) {
+            // Worst case the entries stay until they expire
+            messageFailures.incrementAndGet();
+            log.warn("Failed to apply invalidation message on {}: {}", routingKey, e.getMessage());
+        }
+    }
+
+    @Override
+    public void onResubscribed() {
+        log.info("Flushing {} invalidation targets after resubscribing", targets.size());
+        for(InvalidationTarget target : targets.values()) {
+            target.invalidateAll();
+        }
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getKeysInvalidated() {
+        return keysInvalidated.get();
+    }
+
+    public long getMessageFailures() {
+        return messageFailures.get();
+    }
+
+    /**
+     * Runs invalidation once the transaction bound to the current thread ends, or now if there is none. Invalidated
+     * before the commit, the entries would be reloaded from the rows it has yet to change, on this node or any other,
+     * and kept until they expire. Entries loaded inside a transaction that is rolled back may hold its uncommitted
+     * writes, so the invalidation is run then too.
+     */
+    private static void afterTransaction(final Runnable invalidation) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidation.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                invalidation.run();
+            }
+        });
+    }
+
+    private void handleTargeted(String targetName, String body) throws IOException {
+        JsonNode message = mapper.readTree(body);
+        if(nodeId.equals(message.path(ORIGIN).asText())) {
+            return;
+        }
+        if(message.path(ALL).asBoolean(false)) {
+            InvalidationTarget target = targets.get(targetName);
+            if(target != null) {
+                target.invalidateAll();
+            }
+            return;
+        }
+        List<String> keys = new ArrayList<String>();
+        for(JsonNode key : message.path(KEYS)) {
+            keys.add(key.asText());
+        }
+        invalidateLocally(targetName, keys);
+    }
+
+    private void invalidateLocally(String targetName, Collection<String> keys) {
+        InvalidationTarget target = targets.get(targetName);
+        if(target == null || keys == null) {
+            return;
+        }
+        for(String key : keys) {
+            target.invalidate(key);
+            keysInvalidated.incrementAndGet();
+        }
+        log.debug("Invalidated {} {} from {}", keys.size(), keys, targetName);
+    }
+
+    private void publish(String targetName, ObjectNode message) {
+        try {
+            bus.publish(TARGETED_TOPIC_PREFIX + targetName, mapper.writeValueAsString(message));
+        } catch(IOException e) {
+            // The other nodes will pick up the change once their entries expire
+            log.warn("Failed to publish invalidation of {}: {}", targetName, e.getMessage());
+        }
+    }
+
+    /**
+     * @return a target invalidating Integer keyed entries of cache, ignoring keys that aren't integers
+     */
+    public static InvalidationTarget integerKeys(final EntityCache<Integer, ?> cache) {
+        return new InvalidationTarget() {
+            @Override
+            public void invalidate(String key) {
+                try {
+                    cache.invalidate(Integer.valueOf(key.trim()));
+                } catch(NumberFormatException e) {
+                    log.debug("Ignoring non integer key {} for {}", key, cache.getName());
+                }
+            }
+
+            @Override
+            public void invalidateAll() {
+                cache.invalidateAll();
+            }
+        };
+    }
+
+    /**
+     * @param index zero based position of the key within the routing key, e.g. 3 for the incident id in
+     *              "iweb.NICS.incident.5.update"
+     * @return an extractor taking the key from the routing key
+     */
+    public static KeyExtractor topicWord(final int index) {
+        return new KeyExtractor() {
+            @Override
+            public Collection<String> extract(String routingKey, String body) {
+                String[] words = routingKey.split("\\.");
+                if(index < words.length) {
+                    return Collections.singletonList(words[index]);
+                }
+                return Collections.emptyList();
+            }
+        };
+    }
+
+    /**
+     * @return an extractor taking the whole message body as the key, for messages that only carry an id
+     */
+    public static KeyExtractor messageBody() {
+        return new KeyExtractor() {
+            @Override
+            public Collection<String> extract(String routingKey, String body) {
+                return body == null ? Collections.<String>emptyList() : Collections.singletonList(body.trim());
+            }
+        };
+    }
+
+    /**
+     * @param fieldNames candidate names of the key field, the first one present is used
+     * @return an extractor taking the key from a field of a JSON object, or of each object of a JSON array
+     */
+    public KeyExtractor jsonField(final String... fieldNames) {
+        return new KeyExtractor() {
+            @Override
+            public Collection<String> extract(String routingKey, String body) throws IOException {
+                JsonNode root = mapper.readTree(body);
+                List<String> keys = new ArrayList<String>();
+                if(root.isArray()) {
+                    for(JsonNode node : root) {
+                        addField(node, keys);
+                    }
+                } else {
+                    addField(root, keys);
+                }
+                return keys;
+            }
+
+            private void addField(JsonNode node, List<String> keys) {
+                for(String fieldName : fieldNames) {
+                    JsonNode value = node.get(fieldName);
+                    if(value != null && !value.isNull()) {
+                        keys.add(value.asText());
+                        return;
+                    }
+                }
+            }
+        };
+    }
+}
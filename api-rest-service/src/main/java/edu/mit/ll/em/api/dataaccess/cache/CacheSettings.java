@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tunables of a single {@link EntityCache}. Values are read from the api properties file, keyed by the cache name:
+ * <ul>
+ * <li>em.api.cache.{name}.maxsize - maximum number of entries held</li>
+ * <li>em.api.cache.{name}.expireminutes - minutes after an entry is written before it expires</li>
+ * <li>em.api.cache.{name}.refreshaheadminutes - minutes after an entry is written before it is reloaded in the
+ * background on its next read. 0 disables refresh-ahead.</li>
+ * </ul>
+ * The eviction policy is shared by all caches, and set by "em.api.cache.policy", either "tinylfu" (default) or "lru".
+ */
+public class CacheSettings {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(CacheSettings.class);
+
+    public enum Policy {
+        /**
+         * Window TinyLFU: admits new entries based on their recent access frequency, resisting scans
+         */
+        TINYLFU,
+        /**
+         * Least recently used
+         */
+        LRU
+    }
+
+    private final String name;
+    private final long maxSize;
+    private final long expireMinutes;
+    private final long refreshMinutes;
+    private final Policy policy;
+
+    public CacheSettings(String name, long maxSize, long expireMinutes, long refreshMinutes, Policy policy) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.expireMinutes = expireMinutes;
+        this.refreshMinutes = refreshMinutes;
+        this.policy = policy;
+    }
+
+    /**
+     * Reads the settings for the named cache from the api configuration, falling back to the given defaults.
+     *
+     * @param name                  cache name
+     * @param defaultMaxSize        maximum entries if em.api.cache.{name}.maxsize is not set
+     * @param defaultExpireMinutes  expiry if em.api.cache.{name}.expireminutes is not set
+     * @param defaultRefreshMinutes refresh-ahead if em.api.cache.{name}.refreshaheadminutes is not set
+     * @return the settings
+     */
+    public static CacheSettings fromConfig(String name, long defaultMaxSize, long defaultExpireMinutes,
+                                           long defaultRefreshMinutes) {
+        Configuration config = APIConfig.getInstance().getConfiguration();
+        String prefix = APIConfig.CACHE_PREFIX + name;
+
+        long maxSize = config.getLong(prefix + APIConfig.CACHE_MAXSIZE_SUFFIX, defaultMaxSize);
+        long expireMinutes = config.getLong(prefix + APIConfig.CACHE_EXPIREMINUTES_SUFFIX, defaultExpireMinutes);
+        long refreshMinutes = config.getLong(prefix + APIConfig.CACHE_REFRESHAHEADMINUTES_SUFFIX,
+                defaultRefreshMinutes);
+
+        Policy policy = Policy.TINYLFU;
+        String policyName = config.getString(APIConfig.CACHE_POLICY, Policy.TINYLFU.name());
+        try {
+            policy = Policy.valueOf(policyName.trim().toUpperCase());
+        } catch(IllegalArgumentException e) {
+            log.warn("Unsupported cache policy [{}]. Switched to {}", policyName, Policy.TINYLFU);
+        }
+
+        if(refreshMinutes >= expireMinutes) {
+            // Refreshing after expiry would never happen, the entry is gone by then.
+            refreshMinutes = 0;
+        }
+
+        return new CacheSettings(name, maxSize, expireMinutes, refreshMinutes, policy);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getExpireMinutes() {
+        return expireMinutes;
+    }
+
+    public long getRefreshMinutes() {
+        return refreshMinutes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[policy=%s, maxSize=%d, expireMinutes=%d, refreshMinutes=%d]",
+                name, policy, maxSize, expireMinutes, refreshMinutes);
+    }
+}
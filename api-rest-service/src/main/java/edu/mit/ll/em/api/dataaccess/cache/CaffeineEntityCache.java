@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+/**
+ * {@link EntityCache} backed by Caffeine, which evicts using Window TinyLFU and performs refresh-ahead asynchronously.
+ * Removal notifications are delivered asynchronously.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class CaffeineEntityCache<K, V> implements EntityCache<K, V> {
+
+    private final String name;
+
+    private final LoadingCache<K, V> cache;
+
+    public CaffeineEntityCache(CacheSettings settings, EntityLoader<K, V> loader) {
+        this(settings, loader, null);
+    }
+
+    public CaffeineEntityCache(CacheSettings settings, final EntityLoader<K, V> loader,
+                               final RemovalListener<K, V> removalListener) {
+        this.name = settings.getName();
+
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .maximumSize(settings.getMaxSize())
+                .expireAfterWrite(settings.getExpireMinutes(), TimeUnit.MINUTES)
+                .recordStats();
+        if(settings.getRefreshMinutes() > 0) {
+            builder.refreshAfterWrite(settings.getRefreshMinutes(), TimeUnit.MINUTES);
+        }
+
+        CacheLoader<K, V> cacheLoader = new CacheLoader<K, V>() {
+            @Override
+            public V load(K key) throws Exception {
+                return loader.load(key);
+            }
+        };
+
+        if(removalListener == null) {
+            this.cache = builder.build(cacheLoader);
+        } else {
+            this.cache = builder.removalListener(new com.github.benmanes.caffeine.cache.RemovalListener<K, V>() {
+                @Override
+                public void onRemoval(K key, V value, RemovalCause cause) {
+                    if(key != null && value != null) {
+                        removalListener.onRemoval(key, value);
+                    }
+                }
+            }).build(cacheLoader);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public V get(K key) throws CacheLoadException {
+        try {
+            return cache.get(key);
+        } catch(CompletionException e) {
+            throw new CacheLoadException("Failed to load " + name + " entry for key " + key,
+                    e.getCause() != null ? e.getCause() : e);
+        } catch(RuntimeException e) {
+            throw new CacheLoadException("Failed to load " + name + " entry for key " + key, e);
+        }
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        return cache.getIfPresent(key);
+    }
+
+    @Override
+    public void put(K key, V value) {
+        if(value != null) {
+            cache.put(key, value);
+        }
+    }
+
+    @Override
+    public void invalidate(K key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new ArrayList<V>(cache.asMap().values());
+    }
+
+    @Override
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public CacheStats stats() {
+        com.github.benmanes.caffeine.cache.stats.CacheStats s = cache.stats();
+        return new CacheStats(name, cache.estimatedSize(), s.hitCount(), s.missCount(), s.loadSuccessCount(),
+                s.loadFailureCount(), s.totalLoadTime(), s.evictionCount());
+    }
+}
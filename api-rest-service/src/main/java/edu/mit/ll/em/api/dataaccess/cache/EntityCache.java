@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import java.util.Collection;
+
+/**
+ * A bounded, read-through cache of entities. Each cache is created with an {@link EntityLoader} which is consulted on a
+ * miss. Concurrent misses for the same key result in a single call to the loader; the other callers wait for, and
+ * share, its result. A loader returning null is never cached.
+ * <p>
+ * Entries expire individually after a configurable time since they were written, and the least valuable entries are
+ * evicted once the cache grows past its maximum size. See {@link CacheSettings} for the tunables.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public interface EntityCache<K, V> {
+
+    /**
+     * @return the name of this cache, as used for its configuration keys and statistics
+     */
+    String getName();
+
+    /**
+     * Returns the value associated with key, loading it if it isn't present or has expired.
+     *
+     * @param key the key to look up
+     * @return the cached or loaded value, or null if the loader could not find one
+     *
+     * @throws CacheLoadException if the loader failed
+     */
+    V get(K key) throws CacheLoadException;
+
+    /**
+     * @param key the key to look up
+     * @return the cached value, or null if there is no live entry. Never calls the loader.
+     */
+    V getIfPresent(K key);
+
+    /**
+     * Associates value with key, replacing any existing entry. Null values are ignored.
+     */
+    void put(K key, V value);
+
+    /**
+     * Discards the entry for key, if any.
+     */
+    void invalidate(K key);
+
+    /**
+     * Discards all entries.
+     */
+    void invalidateAll();
+
+    /**
+     * @return a weakly consistent snapshot of the values currently held
+     */
+    Collection<V> values();
+
+    /**
+     * @return the approximate number of entries currently held
+     */
+    long size();
+
+    /**
+     * @return a snapshot of the hit, miss, load and eviction counters of this cache
+     */
+    CacheStats stats();
+}
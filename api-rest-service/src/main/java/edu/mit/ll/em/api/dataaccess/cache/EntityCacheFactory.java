@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates {@link EntityCache} instances using the engine selected by the cache's {@link CacheSettings.Policy}.
+ */
+public class EntityCacheFactory {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(EntityCacheFactory.class);
+
+    private static volatile LoadObserver loadObserver;
+
+    private EntityCacheFactory() {
+    }
+
+    /**
+     * @param observer told of the loads of every cache, including those created before it was set; null for none
+     */
+    public static void setLoadObserver(LoadObserver observer) {
+        loadObserver = observer;
+    }
+
+    public static <K, V> EntityCache<K, V> create(CacheSettings settings, EntityLoader<K, V> loader) {
+        return create(settings, loader, null);
+    }
+
+    /**
+     * @param settings        cache tunables
+     * @param loader          loads values on a miss
+     * @param removalListener notified of every entry leaving the cache, may be null
+     * @return a new cache
+     */
+    public static <K, V> EntityCache<K, V> create(CacheSettings settings, EntityLoader<K, V> loader,
+                                                  RemovalListener<K, V> removalListener) {
+        log.info("Creating entity cache {}", settings);
+        EntityLoader<K, V> observedLoader = observe(settings.getName(), loader);
+        switch(settings.getPolicy()) {
+            case LRU:
+                return new LruEntityCache<K, V>(settings, observedLoader, removalListener);
+            case TINYLFU:
+            default:
+                return new CaffeineEntityCache<K, V>(settings, observedLoader, removalListener);
+        }
+    }
+
+    private static <K, V> EntityLoader<K, V> observe(final String cacheName, final EntityLoader<K, V> loader) {
+        return new EntityLoader<K, V>() {
+            @Override
+            public V load(K key) throws Exception {
+                LoadObserver observer = loadObserver;
+                if(observer == null) {
+                    return loader.load(key);
+                }
+                long start = System.nanoTime();
+                try {
+                    return loader.load(key);
+                } finally {
+                    observer.loaded(cacheName, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+}
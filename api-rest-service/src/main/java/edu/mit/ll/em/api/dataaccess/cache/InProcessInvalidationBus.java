@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link InvalidationBus} delivering messages synchronously to the subscribers within this process. Used when cluster
+ * invalidation is disabled, and as a broker stand-in for testing several {@link CacheInvalidator}s together.
+ */
+public class InProcessInvalidationBus implements InvalidationBus {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(InProcessInvalidationBus.class);
+
+    private static class Subscription {
+        final List<String> bindingKeys;
+        final Listener listener;
+
+        Subscription(Collection<String> bindingKeys, Listener listener) {
+            this.bindingKeys = new ArrayList<String>(bindingKeys);
+            this.listener = listener;
+        }
+
+        boolean matches(String routingKey) {
+            for(String bindingKey : bindingKeys) {
+                if(topicMatches(bindingKey, routingKey)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    @Override
+    public void subscribe(Collection<String> bindingKeys, Listener listener) {
+        subscriptions.add(new Subscription(bindingKeys, listener));
+    }
+
+    @Override
+    public void publish(String routingKey, String body) {
+        for(Subscription subscription : subscriptions) {
+            if(subscription.matches(routingKey)) {
+                try {
+                    subscription.listener.onMessage(routingKey, body);
+                } catch(RuntimeException e) {
+                    log.warn("Subscriber failed to handle message on {}", routingKey, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Simulates a reconnect, notifying every subscriber that messages may have been missed.
+     */
+    public void resubscribeAll() {
+        for(Subscription subscription : subscriptions) {
+            subscription.listener.onResubscribed();
+        }
+    }
+
+    @Override
+    public boolean isClustered() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        subscriptions.clear();
+    }
+
+    /**
+     * @param bindingKey AMQP topic binding key, possibly containing '*' and '#' wildcards
+     * @param routingKey routing key of a message
+     * @return true if a queue bound with bindingKey would receive the message
+     */
+    public static boolean topicMatches(String bindingKey, String routingKey) {
+        return matchWords(bindingKey.split("\\."), 0, routingKey.split("\\."), 0);
+    }
+
+    private static boolean matchWords(String[] pattern, int p, String[] words, int w) {
+        if(p == pattern.length) {
+            return w == words.length;
+        }
+        if("#".equals(pattern[p])) {
+            // '#' swallows zero or more words
+            for(int skip = w; skip <= words.length; skip++) {
+                if(matchWords(pattern, p + 1, words, skip)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if(w == words.length) {
+            return false;
+        }
+        if("*".equals(pattern[p]) || pattern[p].equals(words[w])) {
+            return matchWords(pattern, p + 1, words, w + 1);
+        }
+        return false;
+    }
+}
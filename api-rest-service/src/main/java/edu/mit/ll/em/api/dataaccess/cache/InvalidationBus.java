@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Transport carrying change notifications between em-api nodes, see {@link CacheInvalidator}. Routing and binding keys
+ * follow AMQP topic exchange semantics: words separated by '.', where '*' matches exactly one word and '#' matches
+ * zero or more words.
+ */
+public interface InvalidationBus {
+
+    /**
+     * Receives the messages matching a subscription. Called from the bus' delivery thread, so implementations must not
+     * block.
+     */
+    interface Listener {
+
+        void onMessage(String routingKey, String body);
+
+        /**
+         * Called once the subscription has been restored after a loss of connectivity. Messages published in the
+         * meantime were missed.
+         */
+        void onResubscribed();
+    }
+
+    /**
+     * Delivers messages whose routing key matches any of bindingKeys to listener.
+     *
+     * @throws IOException if the subscription could not be set up
+     */
+    void subscribe(Collection<String> bindingKeys, Listener listener) throws IOException;
+
+    /**
+     * Publishes body under routingKey to all subscribers, including those of this node.
+     *
+     * @throws IOException if the message could not be sent
+     */
+    void publish(String routingKey, String body) throws IOException;
+
+    /**
+     * @return true if messages reach other nodes, false if they're only delivered within this process
+     */
+    boolean isClustered();
+
+    void close();
+}
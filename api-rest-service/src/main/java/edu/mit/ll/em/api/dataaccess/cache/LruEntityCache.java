@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link EntityCache} evicting the least recently used entry once full. Entries live in an access-ordered
+ * {@link LinkedHashMap} guarded by the cache's monitor; loads run outside of it, and are de-duplicated per key so
+ * concurrent misses share one call to the loader.
+ * <p>
+ * A load racing with an invalidation of its key, or of the whole cache, does not store its result, so an invalidated
+ * value can't be resurrected by a read that started before the invalidation. Invalidating one key leaves loads of
+ * other keys alone. Removal notifications are delivered synchronously.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruEntityCache<K, V> implements EntityCache<K, V> {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(LruEntityCache.class);
+
+    /**
+     * Source of the current time in nanoseconds, replaceable for testing
+     */
+    public interface Ticker {
+        long read();
+    }
+
+    public static final Ticker SYSTEM_TICKER = new Ticker() {
+        @Override
+        public long read() {
+            return System.nanoTime();
+        }
+    };
+
+    private static class Entry<V> {
+        final V value;
+        final long writeTime;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        Entry(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    private final String name;
+    private final long maxSize;
+    private final long expireNanos;
+    private final long refreshNanos;
+    private final EntityLoader<K, V> loader;
+    private final Ticker ticker;
+    private final Executor refreshExecutor;
+    private final RemovalListener<K, V> removalListener;
+
+    // Guarded by this
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private final ConcurrentHashMap<K, FutureTask<V>> loadsInFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    // Bumped on every invalidation, guarded by this. A load only stores its value if neither its key nor the whole
+    // cache was invalidated after the load started.
+    private long generation;
+
+    // Generation of the last invalidateAll, guarded by this
+    private long allInvalidatedGeneration;
+
+    // Loads running per key, and the generation each such key was last invalidated at, guarded by this. Only keys
+    // with loads running are tracked, so both stay as small as the loads in flight.
+    private final Map<K, Integer> loadsRunning = new HashMap<K, Integer>();
+    private final Map<K, Long> invalidatedGeneration = new HashMap<K, Long>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadSuccessCount = new AtomicLong();
+    private final AtomicLong loadFailureCount = new AtomicLong();
+    private final AtomicLong totalLoadTime = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public LruEntityCache(CacheSettings settings, EntityLoader<K, V> loader) {
+        this(settings, loader, null);
+    }
+
+    public LruEntityCache(CacheSettings settings, EntityLoader<K, V> loader, RemovalListener<K, V> removalListener) {
+        this(settings, loader, removalListener, SYSTEM_TICKER, ForkJoinPool.commonPool());
+    }
+
+    public LruEntityCache(CacheSettings settings, EntityLoader<K, V> loader, RemovalListener<K, V> removalListener,
+                          Ticker ticker, Executor refreshExecutor) {
+        this.name = settings.getName();
+        this.maxSize = settings.getMaxSize();
+        this.expireNanos = TimeUnit.MINUTES.toNanos(settings.getExpireMinutes());
+        this.refreshNanos = TimeUnit.MINUTES.toNanos(settings.getRefreshMinutes());
+        this.loader = loader;
+        this.ticker = ticker;
+        this.refreshExecutor = refreshExecutor;
+        this.removalListener = removalListener;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if(size() > LruEntityCache.this.maxSize) {
+                    evictionCount.incrementAndGet();
+                    notifyRemoval(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public V get(K key) throws CacheLoadException {
+        Entry<V> entry = liveEntry(key);
+        if(entry != null) {
+            hitCount.incrementAndGet();
+            maybeRefresh(key, entry);
+            return entry.value;
+        }
+        missCount.incrementAndGet();
+        return loadShared(key);
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        Entry<V> entry = liveEntry(key);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        if(value != null) {
+            synchronized(this) {
+                notifyRemoval(key, entries.put(key, new Entry<V>(value, ticker.read())));
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(K key) {
+        synchronized(this) {
+            generation++;
+            if(loadsRunning.containsKey(key)) {
+                invalidatedGeneration.put(key, generation);
+            }
+            notifyRemoval(key, entries.remove(key));
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        synchronized(this) {
+            generation++;
+            allInvalidatedGeneration = generation;
+            if(removalListener != null) {
+                for(Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+                    notifyRemoval(entry.getKey(), entry.getValue());
+                }
+            }
+            entries.clear();
+        }
+    }
+
+    @Override
+    public synchronized Collection<V> values() {
+        long now = ticker.read();
+        Collection<V> values = new ArrayList<V>(entries.size());
+        for(Entry<V> entry : entries.values()) {
+            if(!isExpired(entry, now)) {
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public synchronized long size() {
+        return entries.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return new CacheStats(name, size(), hitCount.get(), missCount.get(), loadSuccessCount.get(),
+                loadFailureCount.get(), totalLoadTime.get(), evictionCount.get());
+    }
+
+    /**
+     * Removes entries that have expired. Expired entries are otherwise only removed when they are read.
+     */
+    public synchronized void cleanUp() {
+        long now = ticker.read();
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<K, Entry<V>> entry = it.next();
+            if(isExpired(entry.getValue(), now)) {
+                it.remove();
+                evictionCount.incrementAndGet();
+                notifyRemoval(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private synchronized Entry<V> liveEntry(K key) {
+        Entry<V> entry = entries.get(key);
+        if(entry != null && isExpired(entry, ticker.read())) {
+            entries.remove(key);
+            evictionCount.incrementAndGet();
+            notifyRemoval(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    // Called with the monitor held, so listeners see removals in order.
+    private void notifyRemoval(K key, Entry<V> removed) {
+        if(removalListener != null && removed != null) {
+            try {
+                removalListener.onRemoval(key, removed.value);
+            } catch(RuntimeException e) {
+                log.warn("Removal listener of {} failed for key {}", name, key, e);
+            }
+        }
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return now - entry.writeTime >= expireNanos;
+    }
+
+    private V loadShared(final K key) throws CacheLoadException {
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                // Another thread may have finished loading this key just before we registered.
+                Entry<V> entry = liveEntry(key);
+                if(entry != null) {
+                    return entry.value;
+                }
+                return loadAndStore(key);
+            }
+        });
+
+        FutureTask<V> inFlight = loadsInFlight.putIfAbsent(key, task);
+        if(inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                loadsInFlight.remove(key, task);
+            }
+        }
+
+        try {
+            return inFlight.get();
+        } catch(ExecutionException e) {
+            throw new CacheLoadException("Failed to load " + name + " entry for key " + key, e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheLoadException("Interrupted waiting for " + name + " entry for key " + key, e);
+        }
+    }
+
+    private V loadAndStore(K key) throws Exception {
+        long startGeneration = loadStarted(key);
+        boolean finished = false;
+        try {
+            long start = ticker.read();
+            V value;
+            try {
+                value = loader.load(key);
+            } catch(Exception e) {
+                loadFailureCount.incrementAndGet();
+                totalLoadTime.addAndGet(ticker.read() - start);
+                throw e;
+            }
+            long end = ticker.read();
+            totalLoadTime.addAndGet(end - start);
+
+            if(value == null) {
+                loadFailureCount.incrementAndGet();
+                return null;
+            }
+            loadSuccessCount.incrementAndGet();
+
+            synchronized(this) {
+                if(isCurrent(key, startGeneration)) {
+                    notifyRemoval(key, entries.put(key, new Entry<V>(value, end)));
+                }
+                loadFinished(key);
+                finished = true;
+            }
+            return value;
+        } finally {
+            if(!finished) {
+                synchronized(this) {
+                    loadFinished(key);
+                }
+            }
+        }
+    }
+
+    private synchronized long loadStarted(K key) {
+        Integer running = loadsRunning.get(key);
+        loadsRunning.put(key, running == null ? 1 : running + 1);
+        return generation;
+    }
+
+    // Called with the monitor held
+    private void loadFinished(K key) {
+        int running = loadsRunning.get(key);
+        if(running > 1) {
+            loadsRunning.put(key, running - 1);
+        } else {
+            loadsRunning.remove(key);
+            invalidatedGeneration.remove(key);
+        }
+    }
+
+    // Called with the monitor held; whether nothing invalidated the key since a load started at startGeneration
+    private boolean isCurrent(K key, long startGeneration) {
+        if(allInvalidatedGeneration > startGeneration) {
+            return false;
+        }
+        Long invalidated = invalidatedGeneration.get(key);
+        return invalidated == null || invalidated <= startGeneration;
+    }
+
+    private void maybeRefresh(final K key, final Entry<V> entry) {
+        if(refreshNanos <= 0 || ticker.read() - entry.writeTime < refreshNanos) {
+            return;
+        }
+        if(!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadAndStore(key);
+                    } catch(Exception e) {
+                        // Keep serving the current value until it expires.
+                        log.debug("Refresh of {} entry for key {} failed: {}", name, key, e.getMessage());
+                    } finally {
+                        // Whatever became of the refresh, let a later read of this entry try again.
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            entry.refreshing.set(false);
+            log.debug("Refresh of {} entry for key {} was rejected: {}", name, key, e.getMessage());
+        }
+    }
+}
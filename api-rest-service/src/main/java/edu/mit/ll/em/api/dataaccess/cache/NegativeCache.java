@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, for a short time, keys that are known to have no value, so repeated lookups of a missing key don't each
+ * hit the database. The number of keys tracked is bounded; once full, new keys are simply not remembered until older
+ * ones expire.
+ */
+public class NegativeCache<K> {
+
+    private final ConcurrentHashMap<K, Long> expiries = new ConcurrentHashMap<K, Long>();
+
+    private final long ttlNanos;
+
+    private final int maxSize;
+
+    private final LruEntityCache.Ticker ticker;
+
+    public NegativeCache(long ttlSeconds, int maxSize) {
+        this(ttlSeconds, maxSize, LruEntityCache.SYSTEM_TICKER);
+    }
+
+    public NegativeCache(long ttlSeconds, int maxSize, LruEntityCache.Ticker ticker) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxSize = maxSize;
+        this.ticker = ticker;
+    }
+
+    /**
+     * @return true if key was recorded as missing and that record hasn't expired
+     */
+    public boolean contains(K key) {
+        Long expiry = expiries.get(key);
+        if(expiry == null) {
+            return false;
+        }
+        if(ticker.read() - expiry >= 0) {
+            expiries.remove(key, expiry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records key as missing for the configured time.
+     */
+    public void add(K key) {
+        if(ttlNanos <= 0) {
+            return;
+        }
+        if(expiries.size() >= maxSize) {
+            purgeExpired();
+            if(expiries.size() >= maxSize) {
+                return;
+            }
+        }
+        expiries.put(key, ticker.read() + ttlNanos);
+    }
+
+    public void remove(K key) {
+        expiries.remove(key);
+    }
+
+    public void clear() {
+        expiries.clear();
+    }
+
+    public int size() {
+        return expiries.size();
+    }
+
+    private void purgeExpired() {
+        long now = ticker.read();
+        Iterator<Map.Entry<K, Long>> it = expiries.entrySet().iterator();
+        while(it.hasNext()) {
+            if(now - it.next().getValue() >= 0) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+
+/**
+ * {@link InvalidationBus} over the NICS RabbitMQ topic exchange. Each subscription consumes from its own exclusive,
+ * server named queue, so every node receives every matching message. The connection recovers automatically,
+ * redeclaring the queue and its bindings, after which the listener is told messages may have been missed.
+ */
+public class RabbitInvalidationBus implements InvalidationBus {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(RabbitInvalidationBus.class);
+
+    private final String exchange;
+
+    private final Connection connection;
+
+    // Channels aren't thread safe, publishing is guarded by the channel's monitor
+    private final Channel publishChannel;
+
+    private RabbitInvalidationBus(String exchange, Connection connection) throws IOException {
+        this.exchange = exchange;
+        this.connection = connection;
+        this.publishChannel = connection.createChannel();
+    }
+
+    /**
+     * Connects to the broker.
+     *
+     * @param host     RabbitMQ host
+     * @param exchange topic exchange the NICS change notifications are published to
+     * @param username RabbitMQ user
+     * @param password RabbitMQ password
+     * @return a connected bus
+     *
+     * @throws IOException if the broker can't be reached
+     */
+    public static RabbitInvalidationBus connect(String host, String exchange, String username, String password)
+            throws IOException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(host);
+        factory.setUsername(username);
+        factory.setPassword(password);
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setTopologyRecoveryEnabled(true);
+        try {
+            return new RabbitInvalidationBus(exchange, factory.newConnection("em-api cache invalidation"));
+        } catch(TimeoutException e) {
+            throw new IOException("Timed out connecting to RabbitMQ on " + host, e);
+        }
+    }
+
+    @Override
+    public void subscribe(Collection<String> bindingKeys, final Listener listener) throws IOException {
+        Channel channel = connection.createChannel();
+        String queue = channel.queueDeclare().getQueue();
+        for(String bindingKey : bindingKeys) {
+            channel.queueBind(queue, exchange, bindingKey);
+        }
+
+        channel.basicConsume(queue, true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                       byte[] body) {
+                try {
+                    listener.onMessage(envelope.getRoutingKey(), new String(body, StandardCharsets.UTF_8));
+                } catch(RuntimeException e) {
+                    log.warn("Subscriber failed to handle message on {}", envelope.getRoutingKey(), e);
+                }
+            }
+        });
+
+        if(connection instanceof Recoverable) {
+            ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recoverable) {
+                    log.info("RabbitMQ connection recovered, resubscribed to {}", exchange);
+                    listener.onResubscribed();
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recoverable) {
+                    log.warn("RabbitMQ connection lost, recovering");
+                }
+            });
+        }
+        log.info("Subscribed queue {} on exchange {} to {}", queue, exchange, bindingKeys);
+    }
+
+    @Override
+    public void publish(String routingKey, String body) throws IOException {
+        synchronized(publishChannel) {
+            publishChannel.basicPublish(exchange, routingKey, null, body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public boolean isClustered() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        } catch(IOException e) {
+            log.warn("Failed to close RabbitMQ connection", e);
+        }
+    }
+}
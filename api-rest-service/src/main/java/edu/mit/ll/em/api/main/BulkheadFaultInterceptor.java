@@ -29,40 +29,32 @@
  */
 package edu.mit.ll.em.api.main;
 
-import java.io.IOException;
-import java.util.Set;
-
-import javax.ws.rs.container.ContainerRequestContext;
-import javax.ws.rs.container.ContainerRequestFilter;
-import javax.ws.rs.core.Response;
-
-
-//import org.apache.cxf.jaxrs.ext.RequestHandler;
-import org.apache.cxf.jaxrs.model.ClassResourceInfo;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Exchange;
 import org.apache.cxf.message.Message;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
 
-public class DefaultRequestFilter implements ContainerRequestFilter {
+import edu.mit.ll.em.api.util.BulkheadCompartment;
 
-    /**
-     * Logger
-     */
-    private static final Logger log = LoggerFactory.getLogger(DefaultRequestFilter.class);
+/**
+ * Gives back the bulkhead place of a request that ended in an exception no mapper turned into a response. CXF sends
+ * those down the fault chain, past the JAX-RS response filters, where {@link BulkheadFilter} would have released it.
+ */
+public class BulkheadFaultInterceptor extends AbstractPhaseInterceptor<Message> {
 
-    public Response handleRequest(Message inputMessage, ClassResourceInfo resourceClass) {
-        Set<String> keys = inputMessage.keySet();
-        for(String key : keys) {
-            log.debug("Key: " + key + " => Value: " + inputMessage.get(key).toString());
-        }
-        return null;  // Makes processing chain continue.
+    public BulkheadFaultInterceptor() {
+        super(Phase.SETUP);
     }
 
     @Override
-    public void filter(ContainerRequestContext containerRequestContext) throws IOException {
-        // TODO:REFACTOR WIth upgrading cxf to 3.0.3, it removed the RequestHandler, in favor of JAXRS
-        //  ContainerRequestFilter,
-        //	but the above handleRequest wasn't even doing anything... so, do nothing here? Can this class be removed?
-
+    public void handleMessage(Message message) throws Fault {
+        Exchange exchange = message.getExchange();
+        BulkheadCompartment.Permit permit = exchange == null ? null :
+                exchange.get(BulkheadCompartment.Permit.class);
+        if(permit != null) {
+            exchange.remove(BulkheadCompartment.Permit.class.getName());
+            permit.release();
+        }
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Priority;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.rs.Bulkhead;
+import edu.mit.ll.em.api.util.BulkheadCompartment;
+import edu.mit.ll.em.api.util.Bulkheads;
+
+/**
+ * Bounds how many requests of each bulkhead group are handled at once, see {@link Bulkheads}, so a burst against one
+ * group, say layer uploads, can't take every request thread and database connection from the rest of the API.
+ * Requests past the limit wait briefly in a bounded queue, and are answered 503 with a Retry-After once it is full or
+ * their wait is up.
+ * <p>
+ * It runs right after {@link MetricsFilter}, so turned away requests are counted but cost no identity lookup. A place is
+ * held until the response body has been written, through asynchronous processing; a request ending in an unmapped
+ * exception gives it back through {@link BulkheadFaultInterceptor}.
+ */
+@Provider
+@Priority(Priorities.AUTHENTICATION - 50)
+public class BulkheadFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(BulkheadFilter.class);
+
+    private static final String PERMIT_PROPERTY = "em.api.bulkhead.permit";
+
+    private static final String WRITING_PROPERTY = "em.api.bulkhead.writing";
+
+    /**
+     * Group of methods not in any bulkhead, as ConcurrentHashMap holds no null values
+     */
+    private static final String NONE = "";
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    private final Bulkheads bulkheads = Bulkheads.getInstance();
+
+    private final ConcurrentMap<Method, String> groups = new ConcurrentHashMap<Method, String>();
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        if(!bulkheads.isEnabled()) {
+            return;
+        }
+        String group = getGroup();
+        if(group == null) {
+            return;
+        }
+
+        BulkheadCompartment compartment = bulkheads.getCompartment(group);
+        BulkheadCompartment.Permit permit = compartment.enter();
+        if(permit == null) {
+            log.debug("Bulkhead {} is full, {} in use and {} waiting, turning a request away", group,
+                    compartment.getInUse(), compartment.getWaiting());
+            requestContext.abortWith(bulkheads.unavailable());
+            return;
+        }
+        requestContext.setProperty(PERMIT_PROPERTY, permit);
+        Message message = PhaseInterceptorChain.getCurrentMessage();
+        if(message != null && message.getExchange() != null) {
+            message.getExchange().put(BulkheadCompartment.Permit.class, permit);
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+            throws IOException {
+        BulkheadCompartment.Permit permit = (BulkheadCompartment.Permit) requestContext.getProperty(PERMIT_PROPERTY);
+        if(permit == null) {
+            return;
+        }
+        if(responseContext.hasEntity() && !HttpMethod.HEAD.equals(requestContext.getMethod())) {
+            // Released once the body is written, see aroundWriteTo
+            requestContext.setProperty(WRITING_PROPERTY, Boolean.TRUE);
+            return;
+        }
+        requestContext.removeProperty(PERMIT_PROPERTY);
+        permit.release();
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        BulkheadCompartment.Permit permit = (BulkheadCompartment.Permit) context.getProperty(PERMIT_PROPERTY);
+        if(permit == null || context.getProperty(WRITING_PROPERTY) == null) {
+            context.proceed();
+            return;
+        }
+        context.removeProperty(PERMIT_PROPERTY);
+        try {
+            context.proceed();
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * @return the bulkhead group of the resource method handling the request, or null if it is in none
+     */
+    private String getGroup() {
+        Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+        if(method == null) {
+            return null;
+        }
+        String group = groups.get(method);
+        if(group == null) {
+            group = findGroup(resourceInfo.getResourceClass(), method);
+            groups.put(method, group);
+        }
+        return NONE.equals(group) ? null : group;
+    }
+
+    /**
+     * Looks for the annotation on the method or the resource class, see
+     * {@link ResourceAnnotations#findOnMethodOrClass(Class, Method, Class)}, then for a bulkhead configured for the
+     * class.
+     */
+    private String findGroup(Class<?> resourceClass, Method method) {
+        if(resourceClass == null) {
+            resourceClass = method.getDeclaringClass();
+        }
+        Bulkhead annotation = ResourceAnnotations.findOnMethodOrClass(resourceClass, method, Bulkhead.class);
+        if(annotation != null) {
+            return annotation.value();
+        }
+        return bulkheads.isConfigured(resourceClass.getSimpleName()) ? resourceClass.getSimpleName() : NONE;
+    }
+}
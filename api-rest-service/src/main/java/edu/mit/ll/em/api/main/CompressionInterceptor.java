@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Compresses response bodies with gzip or deflate, as negotiated through the request's Accept-Encoding header, and
+ * decompresses request bodies sent with a gzip or deflate Content-Encoding.
+ * <p>
+ * Only responses of the configured media types are compressed, and only once they grow past the configured minimum
+ * size; smaller bodies are sent as they are, since compressing them saves less than it costs.
+ * <p>
+ * A decompressed request body may not grow past "em.api.compression.maxinflatedsize" bytes, so a small compressed
+ * body can't expand into gigabytes; reading past that answers 413.
+ */
+@Provider
+public class CompressionInterceptor implements WriterInterceptor, ReaderInterceptor {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(CompressionInterceptor.class);
+
+    public static final String GZIP = "gzip";
+
+    public static final String X_GZIP = "x-gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private static final String[] DEFAULT_MIMETYPES = {
+            "application/json", "application/xml", "application/javascript", "application/vnd.geo+json",
+            "application/vnd.google-earth.kml+xml", "text/*"
+    };
+
+    private static final int DEFAULT_MINSIZE = 1024;
+
+    private static final int DEFAULT_LEVEL = 6;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final long DEFAULT_MAXINFLATEDSIZE = 100L * 1024 * 1024;
+
+    @Context
+    private HttpHeaders httpHeaders;
+
+    private final boolean enabled;
+
+    private final int minSize;
+
+    private final int level;
+
+    private final long maxInflatedSize;
+
+    private final List<MediaType> mimeTypes = new ArrayList<MediaType>();
+
+    public CompressionInterceptor() {
+        Configuration config = APIConfig.getInstance().getConfiguration();
+        this.enabled = config.getBoolean(APIConfig.COMPRESSION_ENABLED, true);
+        this.minSize = Math.max(0, config.getInt(APIConfig.COMPRESSION_MINSIZE, DEFAULT_MINSIZE));
+
+        int configuredLevel = config.getInt(APIConfig.COMPRESSION_LEVEL, DEFAULT_LEVEL);
+        if(configuredLevel < Deflater.BEST_SPEED || configuredLevel > Deflater.BEST_COMPRESSION) {
+            log.warn("Compression level {} is not between 1 and 9, using {}", configuredLevel, DEFAULT_LEVEL);
+            configuredLevel = DEFAULT_LEVEL;
+        }
+        this.level = configuredLevel;
+        this.maxInflatedSize = config.getLong(APIConfig.COMPRESSION_MAXINFLATEDSIZE, DEFAULT_MAXINFLATEDSIZE);
+
+        String[] types = config.getStringArray(APIConfig.COMPRESSION_MIMETYPES);
+        if(types == null || types.length == 0) {
+            types = DEFAULT_MIMETYPES;
+        }
+        for(String type : types) {
+            if(type != null && !type.trim().isEmpty()) {
+                try {
+                    mimeTypes.add(MediaType.valueOf(type.trim()));
+                } catch(IllegalArgumentException e) {
+                    log.warn("Ignoring invalid compression media type {}", type);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        MultivaluedMap<String, Object> headers = context.getHeaders();
+        if(!enabled || !isCompressible(context.getMediaType()) || headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            context.proceed();
+            return;
+        }
+
+        // The body depends on Accept-Encoding whether or not this client gets it compressed
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        String encoding = negotiate(httpHeaders == null ? null :
+                httpHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        if(encoding == null) {
+            context.proceed();
+            return;
+        }
+
+        OutputStream out = context.getOutputStream();
+        CompressingOutputStream compressing = new CompressingOutputStream(out, encoding, headers);
+        context.setOutputStream(compressing);
+        try {
+            context.proceed();
+            compressing.finish();
+        } finally {
+            compressing.end();
+            context.setOutputStream(out);
+        }
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+        String encoding = context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+        if(!enabled || encoding == null) {
+            return context.proceed();
+        }
+
+        encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        LimitedInputStream inflated = null;
+        try {
+            if(GZIP.equals(encoding) || X_GZIP.equals(encoding)) {
+                inflated = new LimitedInputStream(new GZIPInputStream(context.getInputStream(), BUFFER_SIZE),
+                        maxInflatedSize);
+            } else if(DEFLATE.equals(encoding)) {
+                inflated = new LimitedInputStream(new InflaterInputStream(context.getInputStream()), maxInflatedSize);
+            } else {
+                return context.proceed();
+            }
+            context.setInputStream(inflated);
+            context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+            context.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+            return context.proceed();
+        } catch(ZipException e) {
+            log.debug("Failed to decompress {} request body: {}", encoding, e.getMessage());
+            throw new WebApplicationException("Request body is not valid " + encoding, e,
+                    Response.Status.BAD_REQUEST);
+        } catch(IOException | RuntimeException e) {
+            // Readers may wrap what the stream threw, the stream knows whether it was the limit
+            if(inflated != null && inflated.isExceeded()) {
+                throw inflated.tooLarge();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isCompressible(MediaType mediaType) {
+        if(mediaType == null) {
+            return false;
+        }
+        for(MediaType type : mimeTypes) {
+            if(type.isCompatible(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the encoding to compress with from an Accept-Encoding header, preferring gzip over deflate when the client
+     * weighs them the same
+     *
+     * @param acceptEncoding the Accept-Encoding header, may be null
+     * @return {@link #GZIP}, {@link #DEFLATE}, or null if the client accepts neither
+     */
+    public static String negotiate(String acceptEncoding) {
+        if(acceptEncoding == null) {
+            return null;
+        }
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for(String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            float quality = 1;
+            for(int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2).trim());
+                    } catch(NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if(GZIP.equals(coding) || X_GZIP.equals(coding)) {
+                gzip = Math.max(gzip, quality);
+            } else if(DEFLATE.equals(coding)) {
+                deflate = Math.max(deflate, quality);
+            } else if("*".equals(coding)) {
+                any = quality;
+            }
+        }
+
+        // Codings not listed get the weight of "*", if given
+        if(gzip < 0) {
+            gzip = any;
+        }
+        if(deflate < 0) {
+            deflate = any;
+        }
+
+        if(gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * Holds back the first minSize bytes written, then starts compressing if more follow. The Content-Encoding header
+     * is only set once compression starts, which is before anything reaches the response.
+     */
+    private class CompressingOutputStream extends OutputStream {
+
+        private final OutputStream target;
+
+        private final String encoding;
+
+        private final MultivaluedMap<String, Object> headers;
+
+        private final byte[] buffer;
+
+        private int count;
+
+        private DeflaterOutputStream compressor;
+
+        private Deflater deflater;
+
+        private boolean finished;
+
+        CompressingOutputStream(OutputStream target, String encoding, MultivaluedMap<String, Object> headers) {
+            this.target = target;
+            this.encoding = encoding;
+            this.headers = headers;
+            this.buffer = new byte[minSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(finished) {
+                throw new IOException("Stream already finished");
+            }
+            if(compressor == null) {
+                if(count + len <= buffer.length) {
+                    System.arraycopy(b, off, buffer, count, len);
+                    count += len;
+                    return;
+                }
+                startCompressing();
+            }
+            compressor.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Buffered bytes are held until it's known whether they'll be compressed
+            if(compressor != null) {
+                compressor.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The container closes the response stream
+            finish();
+        }
+
+        void finish() throws IOException {
+            if(finished) {
+                return;
+            }
+            finished = true;
+            if(compressor != null) {
+                compressor.finish();
+            } else if(count > 0) {
+                target.write(buffer, 0, count);
+            }
+        }
+
+        /**
+         * Frees the deflater's native memory
+         */
+        void end() {
+            if(deflater != null) {
+                deflater.end();
+            }
+        }
+
+        private void startCompressing() throws IOException {
+            headers.putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+            headers.remove(HttpHeaders.CONTENT_LENGTH);
+
+            if(GZIP.equals(encoding)) {
+                LeveledGZIPOutputStream gzip = new LeveledGZIPOutputStream(target, level);
+                deflater = gzip.getDeflater();
+                compressor = gzip;
+            } else {
+                deflater = new Deflater(level);
+                compressor = new DeflaterOutputStream(target, deflater, BUFFER_SIZE);
+            }
+
+            if(count > 0) {
+                compressor.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read through it and fails the request with 413 once they pass a maximum
+     */
+    public static class LimitedInputStream extends FilterInputStream {
+
+        private final long max;
+
+        private long count;
+
+        private boolean exceeded;
+
+        /**
+         * @param max most bytes that may be read, 0 or less for no limit
+         */
+        public LimitedInputStream(InputStream in, long max) {
+            super(in);
+            this.max = max;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if(skipped > 0) {
+                counted(skipped);
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * @return whether reading went past the maximum
+         */
+        public boolean isExceeded() {
+            return exceeded;
+        }
+
+        WebApplicationException tooLarge() {
+            return new WebApplicationException("Decompressed request body is larger than " + max + " bytes",
+                    Response.Status.REQUEST_ENTITY_TOO_LARGE);
+        }
+
+        private void counted(long n) {
+            count += n;
+            if(max > 0 && count > max) {
+                exceeded = true;
+                log.debug("Decompressed request body passed {} bytes, refusing it", max);
+                throw tooLarge();
+            }
+        }
+    }
+
+    /**
+     * GZIPOutputStream at a compression level other than the default
+     */
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        Deflater getDeflater() {
+            return def;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Provider;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
+import edu.mit.ll.em.api.rs.Changes;
+import edu.mit.ll.em.api.rs.Versioned;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Answers GETs of {@link Versioned} resources with an ETag and Last-Modified date built from their
+ * {@link ResourceVersions}, and with 304 Not Modified when the client's If-None-Match or If-Modified-Since still
+ * matches, without calling the service. Requests to {@link Changes} resources bump the versions they name.
+ * <p>
+ * Besides the versions, ETags cover the request URI, the requesting user and the node. They also change every
+ * "em.api.conditional.maxageseconds" (60) seconds, bounding how long a change made outside the API goes unnoticed.
+ * <p>
+ * Versions are counted per node (see {@link ResourceVersions}), so an ETag only matches on the node that issued it.
+ * Behind a load balancer without sticky sessions clients mostly get full responses again, never stale ones: a tag
+ * from another node never matches.
+ */
+@Provider
+public class ConditionalGetFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(ConditionalGetFilter.class);
+
+    public static final String ETAG_PROPERTY = "em.api.etag";
+
+    public static final String LAST_MODIFIED_PROPERTY = "em.api.lastmodified";
+
+    // Clients must revalidate, and shared caches must not serve one user's response to another
+    private static final String CACHE_CONTROL = "private, no-cache";
+
+    // Version keys of a resource method, either may be null
+    private static class ResourceKeys {
+        final String[] versioned;
+        final String[] changes;
+
+        ResourceKeys(Versioned versioned, Changes changes) {
+            this.versioned = versioned == null ? null : versioned.value();
+            this.changes = changes == null ? null : changes.value();
+        }
+    }
+
+    private final ConcurrentHashMap<Method, ResourceKeys> resourceKeys = new ConcurrentHashMap<Method, ResourceKeys>();
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    private final boolean enabled;
+
+    private final long windowMillis;
+
+    public ConditionalGetFilter() {
+        Configuration config = APIConfig.getInstance().getConfiguration();
+        this.enabled = config.getBoolean(APIConfig.CONDITIONAL_GET_ENABLED, true);
+        this.windowMillis = config.getLong(APIConfig.CONDITIONAL_GET_MAXAGESECONDS, 60) * 1000;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        if(!enabled || !isRead(requestContext)) {
+            return;
+        }
+        ResourceKeys keys = getResourceKeys();
+        if(keys == null || keys.versioned == null) {
+            return;
+        }
+
+        ResourceVersions versions = EntityCacheMgr.getInstance().getResourceVersions();
+        long now = System.currentTimeMillis();
+        long window = windowMillis > 0 ? now / windowMillis : 0;
+        long lastModified = window * windowMillis;
+
+        List<String> versionKeys = resolve(keys.versioned, requestContext.getUriInfo());
+        for(String key : versionKeys) {
+            lastModified = Math.max(lastModified, versions.getModifiedAt(key));
+        }
+        EntityTag etag = entityTag(versions, window, versionKeys,
+                requestContext.getUriInfo().getRequestUri().toString(),
+                requestContext.getHeaderString(IdentityRequestFilter.REMOTE_USER_HEADER),
+                requestContext.getHeaderString(IdentityRequestFilter.CUSTOM_UID_HEADER));
+
+        // HTTP dates have a resolution of seconds, so a date within the current second could hide a change made
+        // later in that same second. Leave those out.
+        Date lastModifiedDate = now - lastModified >= 1000 ? new Date(lastModified / 1000 * 1000) : null;
+
+        Response.ResponseBuilder notModified = lastModifiedDate == null ?
+                requestContext.getRequest().evaluatePreconditions(etag) :
+                requestContext.getRequest().evaluatePreconditions(lastModifiedDate, etag);
+        if(notModified != null) {
+            notModified.tag(etag).header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+            if(lastModifiedDate != null) {
+                notModified.lastModified(lastModifiedDate);
+            }
+            requestContext.abortWith(notModified.build());
+            return;
+        }
+
+        requestContext.setProperty(ETAG_PROPERTY, etag);
+        requestContext.setProperty(LAST_MODIFIED_PROPERTY, lastModifiedDate);
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+            throws IOException {
+        if(!enabled) {
+            return;
+        }
+
+        if(!isRead(requestContext)) {
+            ResourceKeys keys = getResourceKeys();
+            int status = responseContext.getStatus();
+            // Requests refused up front changed nothing, failures may have changed part of it
+            if(keys != null && keys.changes != null && (status < 400 || status >= 500)) {
+                EntityCacheMgr.getInstance().resourceChanged(resolve(keys.changes, requestContext.getUriInfo()));
+            }
+            return;
+        }
+
+        Object etag = requestContext.getProperty(ETAG_PROPERTY);
+        if(etag == null || responseContext.getStatus() != Response.Status.OK.getStatusCode()) {
+            return;
+        }
+        MultivaluedMap<String, Object> headers = responseContext.getHeaders();
+        if(!headers.containsKey(HttpHeaders.ETAG)) {
+            headers.putSingle(HttpHeaders.ETAG, etag);
+            Object lastModified = requestContext.getProperty(LAST_MODIFIED_PROPERTY);
+            if(lastModified != null) {
+                headers.putSingle(HttpHeaders.LAST_MODIFIED, lastModified);
+            }
+            headers.putSingle(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+        }
+    }
+
+    private static boolean isRead(ContainerRequestContext requestContext) {
+        String method = requestContext.getMethod();
+        return HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method);
+    }
+
+    /**
+     * @return the version keys of the resource method handling the request, or null if there is none
+     */
+    private ResourceKeys getResourceKeys() {
+        Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+        if(method == null) {
+            return null;
+        }
+        ResourceKeys keys = resourceKeys.get(method);
+        if(keys == null) {
+            Class<?> resourceClass = resourceInfo.getResourceClass();
+            keys = new ResourceKeys(ResourceAnnotations.find(resourceClass, method, Versioned.class),
+                    ResourceAnnotations.find(resourceClass, method, Changes.class));
+            resourceKeys.put(method, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * @param window      number of the current max age window
+     * @param versionKeys resolved version keys of the resource
+     * @param requestUri  full request URI, query included
+     * @param remoteUser  requesting user, or null
+     * @param uid         custom uid header of the request, or null
+     * @return the weak ETag of the resource as of now. Weak, since the same tag is sent whether or not the body is
+     * compressed.
+     */
+    public static EntityTag entityTag(ResourceVersions versions, long window, List<String> versionKeys,
+                                      String requestUri, String remoteUser, String uid) {
+        StringBuilder tag = new StringBuilder();
+        tag.append(versions.getIncarnation()).append(':').append(versions.getGeneration()).append(':').append(window);
+        for(String key : versionKeys) {
+            tag.append(':').append(key).append('=').append(versions.getVersion(key));
+        }
+        tag.append(':').append(requestUri);
+        tag.append(':').append(remoteUser);
+        tag.append(':').append(uid);
+        return new EntityTag(digest(tag.toString()), true);
+    }
+
+    /**
+     * Replaces each "{name}" in the keys with the path, or else the query, parameter of that name
+     */
+    static List<String> resolve(String[] templates, UriInfo uriInfo) {
+        return resolve(templates, uriInfo.getPathParameters(), uriInfo.getQueryParameters());
+    }
+
+    /**
+     * Replaces each "{name}" in the keys with the path, or else the query, parameter of that name. Parameters that
+     * are missing resolve to an empty string.
+     */
+    public static List<String> resolve(String[] templates, MultivaluedMap<String, String> pathParameters,
+                                       MultivaluedMap<String, String> queryParameters) {
+        List<String> keys = new ArrayList<String>(templates.length);
+        for(String template : templates) {
+            int open = template.indexOf('{');
+            if(open == -1) {
+                keys.add(template);
+                continue;
+            }
+            StringBuilder key = new StringBuilder(template.length());
+            int start = 0;
+            while(open != -1) {
+                int close = template.indexOf('}', open);
+                if(close == -1) {
+                    break;
+                }
+                String name = template.substring(open + 1, close);
+                String value = pathParameters.getFirst(name);
+                if(value == null) {
+                    value = queryParameters.getFirst(name);
+                }
+                if(value == null) {
+                    log.debug("No parameter {} to resolve version key {}", name, template);
+                    value = "";
+                }
+                key.append(template, start, open).append(value);
+                start = close + 1;
+                open = template.indexOf('{', start);
+            }
+            keys.add(key.append(template.substring(start)).toString());
+        }
+        return keys;
+    }
+
+    private static String digest(String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return new BigInteger(1, md.digest(value.getBytes(StandardCharsets.UTF_8))).toString(16);
+        } catch(NoSuchAlgorithmException e) {
+            // Every JRE has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.IOException;
+import java.security.Principal;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.ext.Provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.dataaccess.UserIdentity;
+import edu.mit.ll.em.api.util.RequestIdentity;
+
+/**
+ * Resolves the user identified by the X-Remote-User header, or the older CUSTOM-uid header, once per request. The
+ * resulting {@link UserIdentity} is made available to services through {@link RequestIdentity}, the
+ * {@link #IDENTITY_PROPERTY} request property, and as the principal of the request's SecurityContext. When the
+ * request names a workspace, through a {@link #WORKSPACE_ID_PARAM} path parameter, the user's org memberships in it
+ * are resolved along with the identity, so the service's checks don't query them.
+ * <p>
+ * Identities come from {@link EntityCacheMgr}, so repeated requests of the same user don't hit the database. A request
+ * whose user can't be resolved is passed on without an identity; the services decide how to respond to it.
+ */
+@Provider
+public class IdentityRequestFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(IdentityRequestFilter.class);
+
+    public static final String REMOTE_USER_HEADER = "X-Remote-User";
+
+    public static final String CUSTOM_UID_HEADER = "CUSTOM-uid";
+
+    public static final String IDENTITY_PROPERTY = "em.api.identity";
+
+    public static final String WORKSPACE_ID_PARAM = "workspaceId";
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        // Container threads are pooled, never let a previous request's identity leak into this one
+        RequestIdentity.clear();
+
+        String username = requestContext.getHeaderString(REMOTE_USER_HEADER);
+        if(username == null || username.trim().isEmpty()) {
+            username = requestContext.getHeaderString(CUSTOM_UID_HEADER);
+        }
+        if(username == null || username.trim().isEmpty()) {
+            return;
+        }
+
+        final UserIdentity identity;
+        try {
+            identity = EntityCacheMgr.getInstance().getUserIdentity(username.trim());
+        } catch(ICSDatastoreException e) {
+            log.warn("Failed to resolve identity of {}: {}", username, e.getMessage());
+            return;
+        }
+        if(identity == null) {
+            log.debug("No user found for requesting user {}", username);
+            return;
+        }
+
+        RequestIdentity.set(identity);
+        requestContext.setProperty(IDENTITY_PROPERTY, identity);
+        resolveOrgs(requestContext, identity);
+
+        final SecurityContext original = requestContext.getSecurityContext();
+        requestContext.setSecurityContext(new SecurityContext() {
+            @Override
+            public Principal getUserPrincipal() {
+                return identity;
+            }
+
+            @Override
+            public boolean isUserInRole(String role) {
+                // Roles are the SADisplayConstants system role ids
+                try {
+                    return identity.hasSystemRole(Integer.parseInt(role));
+                } catch(NumberFormatException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public boolean isSecure() {
+                return original != null && original.isSecure();
+            }
+
+            @Override
+            public String getAuthenticationScheme() {
+                return original == null ? null : original.getAuthenticationScheme();
+            }
+        });
+    }
+
+    /**
+     * Resolves the orgs of identity in the workspace of the request, if it names one. A failure is left for the
+     * service to run into, if it needs them.
+     */
+    private static void resolveOrgs(ContainerRequestContext requestContext, UserIdentity identity) {
+        String workspaceId = requestContext.getUriInfo().getPathParameters().getFirst(WORKSPACE_ID_PARAM);
+        if(workspaceId == null) {
+            return;
+        }
+        try {
+            identity.getOrgs(Integer.parseInt(workspaceId.trim()));
+        } catch(NumberFormatException e) {
+            log.debug("Not resolving orgs in workspace {}, not a workspace id", workspaceId);
+        } catch(RuntimeException e) {
+            log.warn("Failed to resolve orgs of {} in workspace {}: {}", identity.getUsername(), workspaceId,
+                    e.getMessage());
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+            throws IOException {
+        RequestIdentity.clear();
+    }
+}
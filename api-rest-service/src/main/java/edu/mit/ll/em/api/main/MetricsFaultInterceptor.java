@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+
+import edu.mit.ll.em.api.metrics.EndpointMetrics;
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+
+/**
+ * Completes the metrics of a request that ended in an exception no mapper turned into a response. CXF sends those down
+ * the fault chain, past the JAX-RS response filters, where {@link MetricsFilter} would have completed it; they are
+ * recorded as the 500 CXF answers them with, and no longer counted in flight.
+ */
+public class MetricsFaultInterceptor extends AbstractPhaseInterceptor<Message> {
+
+    private final RequestMetrics metrics;
+
+    public MetricsFaultInterceptor() {
+        this(RequestMetrics.getInstance());
+    }
+
+    /**
+     * @param metrics whose current endpoint is cleared along with the request
+     */
+    public MetricsFaultInterceptor(RequestMetrics metrics) {
+        super(Phase.SETUP);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handleMessage(Message message) throws Fault {
+        Exchange exchange = message.getExchange();
+        EndpointMetrics.Request request = exchange == null ? null : exchange.get(EndpointMetrics.Request.class);
+        if(request != null) {
+            exchange.remove(EndpointMetrics.Request.class.getName());
+            request.complete(500, -1);
+            metrics.setCurrent(null);
+        }
+    }
+}
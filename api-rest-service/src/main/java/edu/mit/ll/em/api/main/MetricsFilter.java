@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+import javax.annotation.Priority;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+
+import edu.mit.ll.em.api.metrics.EndpointMetrics;
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+
+/**
+ * Records the latency, status and response size of every request against its resource method, see
+ * {@link RequestMetrics}, and sets the endpoint cache loads on the request's thread are timed against.
+ * <p>
+ * It runs before the other providers and is the outermost writer interceptor, so a request is timed from before its
+ * identity is resolved until its body, compressed or not, has been written, and response sizes are bytes sent. Requests
+ * ending in an exception no mapper turned into a response skip the response filters, and are completed by the
+ * {@link MetricsFaultInterceptor}.
+ */
+@Provider
+@Priority(Priorities.AUTHENTICATION - 100)
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+    private static final String REQUEST_PROPERTY = "em.api.metrics.request";
+
+    private static final String STATUS_PROPERTY = "em.api.metrics.status";
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    private final RequestMetrics metrics = RequestMetrics.getInstance();
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        if(!metrics.isEnabled()) {
+            return;
+        }
+        EndpointMetrics endpoint = metrics.getEndpoint(getEndpointName());
+        EndpointMetrics.Request request = endpoint.requestStarted();
+        requestContext.setProperty(REQUEST_PROPERTY, request);
+        Message message = PhaseInterceptorChain.getCurrentMessage();
+        if(message != null && message.getExchange() != null) {
+            message.getExchange().put(EndpointMetrics.Request.class, request);
+        }
+        metrics.setCurrent(endpoint);
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+            throws IOException {
+        EndpointMetrics.Request request = (EndpointMetrics.Request) requestContext.getProperty(REQUEST_PROPERTY);
+        if(request == null) {
+            return;
+        }
+        metrics.setCurrent(null);
+
+        if(responseContext.hasEntity() && !HttpMethod.HEAD.equals(requestContext.getMethod())) {
+            // Completed once the body is written, see aroundWriteTo
+            requestContext.setProperty(STATUS_PROPERTY, responseContext.getStatus());
+            return;
+        }
+        requestContext.removeProperty(REQUEST_PROPERTY);
+        request.complete(responseContext.getStatus(), -1);
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        EndpointMetrics.Request request = (EndpointMetrics.Request) context.getProperty(REQUEST_PROPERTY);
+        Integer status = (Integer) context.getProperty(STATUS_PROPERTY);
+        if(request == null || status == null) {
+            context.proceed();
+            return;
+        }
+        context.removeProperty(REQUEST_PROPERTY);
+
+        CountingOutputStream counter = new CountingOutputStream(context.getOutputStream());
+        context.setOutputStream(counter);
+        try {
+            context.proceed();
+        } finally {
+            request.complete(status, counter.count);
+        }
+    }
+
+    private String getEndpointName() {
+        Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+        if(method == null) {
+            return RequestMetrics.UNMATCHED;
+        }
+        Class<?> resourceClass = resourceInfo.getResourceClass();
+        return (resourceClass == null ? method.getDeclaringClass() : resourceClass).getSimpleName() +
+                "." + method.getName();
+    }
+
+    /**
+     * Counts the bytes written through it
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.rs.RateLimited;
+import edu.mit.ll.em.api.util.RateLimit;
+import edu.mit.ll.em.api.util.RateLimits;
+
+/**
+ * Rate limits the {@link RateLimited} endpoints, such as track, log and presence posts, per requesting user, or per
+ * user and device, see {@link RateLimits}. A refused request is answered 429 with a Retry-After, before it costs any
+ * database write or message bus publish; the responses of those let through carry the limit and the requests left.
+ * <p>
+ * Limits per user are checked before the identity lookup, limits per device once the request body naming the device has
+ * been read. A request limited per device is also checked against the limit of all its user's devices, see
+ * {@link RateLimits#getUserLimit(RateLimit)}. Requests without a requesting user aren't limited.
+ */
+@Provider
+@Priority(Priorities.AUTHENTICATION - 75)
+public class RateLimitFilter implements ContainerRequestFilter, ContainerResponseFilter, ReaderInterceptor {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(RateLimitFilter.class);
+
+    private static final String USER_PROPERTY = "em.api.ratelimit.user";
+
+    private static final String DEVICE_PROPERTY = "em.api.ratelimit.device";
+
+    private static final String LIMIT_PROPERTY = "em.api.ratelimit.limit";
+
+    private static final String DECISION_PROPERTY = "em.api.ratelimit.decision";
+
+    /**
+     * Binding of methods without a limit, as ConcurrentHashMap holds no null values
+     */
+    private static final Binding NONE = new Binding(null, null, "");
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    private final RateLimits rateLimits = RateLimits.getInstance();
+
+    private final ConcurrentMap<Method, Binding> bindings = new ConcurrentHashMap<Method, Binding>();
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        if(!rateLimits.isEnabled()) {
+            return;
+        }
+        Binding binding = getBinding();
+        if(binding == NONE) {
+            return;
+        }
+        String user = requestContext.getHeaderString(IdentityRequestFilter.REMOTE_USER_HEADER);
+        if(user == null || user.trim().isEmpty()) {
+            user = requestContext.getHeaderString(IdentityRequestFilter.CUSTOM_UID_HEADER);
+        }
+        if(user == null || user.trim().isEmpty()) {
+            return;
+        }
+
+        if(binding.device.isEmpty()) {
+            RateLimit.Decision decision = acquire(requestContext, binding.limit, user.trim());
+            if(!decision.isAllowed()) {
+                requestContext.abortWith(rateLimits.tooManyRequests(binding.limit, decision));
+            }
+        } else {
+            // Checked once the body is read, see aroundReadFrom
+            requestContext.setProperty(USER_PROPERTY, user.trim());
+            requestContext.setProperty(DEVICE_PROPERTY, binding);
+        }
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException, WebApplicationException {
+        Object entity = context.proceed();
+        Binding binding = (Binding) context.getProperty(DEVICE_PROPERTY);
+        if(binding == null) {
+            return entity;
+        }
+        context.removeProperty(DEVICE_PROPERTY);
+
+        String user = (String) context.getProperty(USER_PROPERTY);
+        RateLimit.Decision userDecision = binding.userLimit.acquire(user);
+        if(!userDecision.isAllowed()) {
+            log.debug("Rate limit {} reached by {}", binding.userLimit.getName(), user);
+            throw new WebApplicationException(rateLimits.tooManyRequests(binding.userLimit, userDecision));
+        }
+
+        String key = user;
+        String device = binding.getDevice(entity);
+        if(device != null && !device.isEmpty()) {
+            key += "/" + device;
+        }
+        RateLimit.Decision decision = binding.limit.acquire(key);
+        if(!decision.isAllowed()) {
+            log.debug("Rate limit {} reached by {}", binding.limit.getName(), key);
+            throw new WebApplicationException(rateLimits.tooManyRequests(binding.limit, decision));
+        }
+        context.setProperty(LIMIT_PROPERTY, binding.limit);
+        context.setProperty(DECISION_PROPERTY, decision);
+        return entity;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+            throws IOException {
+        RateLimit limit = (RateLimit) requestContext.getProperty(LIMIT_PROPERTY);
+        RateLimit.Decision decision = (RateLimit.Decision) requestContext.getProperty(DECISION_PROPERTY);
+        if(limit == null || decision == null || !decision.isAllowed() ||
+                responseContext.getHeaders().containsKey(RateLimits.LIMIT_HEADER)) {
+            return;
+        }
+        responseContext.getHeaders().putSingle(RateLimits.LIMIT_HEADER, limit.getBurst());
+        responseContext.getHeaders().putSingle(RateLimits.REMAINING_HEADER, decision.getRemaining());
+    }
+
+    private RateLimit.Decision acquire(ContainerRequestContext requestContext, RateLimit limit, String key) {
+        RateLimit.Decision decision = limit.acquire(key);
+        if(decision.isAllowed()) {
+            requestContext.setProperty(LIMIT_PROPERTY, limit);
+            requestContext.setProperty(DECISION_PROPERTY, decision);
+        } else {
+            log.debug("Rate limit {} reached by {}", limit.getName(), key);
+        }
+        return decision;
+    }
+
+    /**
+     * @return the limit of the resource method handling the request, {@link #NONE} if it has none
+     */
+    private Binding getBinding() {
+        Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+        if(method == null) {
+            return NONE;
+        }
+        Binding binding = bindings.get(method);
+        if(binding == null) {
+            RateLimited annotation = ResourceAnnotations.find(resourceInfo.getResourceClass(), method,
+                    RateLimited.class);
+            if(annotation == null) {
+                binding = NONE;
+            } else {
+                RateLimit limit = rateLimits.getLimit(annotation.value());
+                binding = new Binding(limit, annotation.device().isEmpty() ? null : rateLimits.getUserLimit(limit),
+                        annotation.device());
+            }
+            bindings.put(method, binding);
+        }
+        return binding;
+    }
+
+    /**
+     * A method's limit, and the body property naming the device, if it is limited per device
+     */
+    private static class Binding {
+
+        private final RateLimit limit;
+
+        // Limit of all of a user's devices, null unless limited per device
+        private final RateLimit userLimit;
+
+        private final String device;
+
+        private final ConcurrentMap<Class<?>, Method> getters = new ConcurrentHashMap<Class<?>, Method>();
+
+        Binding(RateLimit limit, RateLimit userLimit, String device) {
+            this.limit = limit;
+            this.userLimit = userLimit;
+            this.device = device;
+        }
+
+        /**
+         * @return the device id held by entity, or null if it has none
+         */
+        String getDevice(Object entity) {
+            if(entity == null) {
+                return null;
+            }
+            Method getter = getters.get(entity.getClass());
+            try {
+                if(getter == null) {
+                    getter = entity.getClass().getMethod(
+                            "get" + Character.toUpperCase(device.charAt(0)) + device.substring(1));
+                    getters.put(entity.getClass(), getter);
+                }
+                Object value = getter.invoke(entity);
+                return value == null ? null : value.toString();
+            } catch(NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                log.warn("No device id {} on {}, limiting by user only", device, entity.getClass().getName());
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+/**
+ * Looks up the annotations the filters bind to resource methods. The resource interfaces carry the JAX-RS
+ * annotations, so the annotations are looked for on the interface methods a resource method implements as well as on
+ * the method itself.
+ */
+public final class ResourceAnnotations {
+
+    private ResourceAnnotations() {
+    }
+
+    /**
+     * Looks for the annotation on method, then on the methods it implements.
+     *
+     * @param resourceClass the class of the resource, or null to use the method's declaring class
+     * @param method the resource method
+     * @param type the annotation
+     * @return the annotation, or null if there is none
+     */
+    public static <A extends Annotation> A find(Class<?> resourceClass, Method method, Class<A> type) {
+        A annotation = method.getAnnotation(type);
+        for(Class<?> c = classOf(resourceClass, method); annotation == null && c != null; c = c.getSuperclass()) {
+            for(Class<?> resourceInterface : c.getInterfaces()) {
+                try {
+                    annotation = resourceInterface.getMethod(method.getName(), method.getParameterTypes())
+                            .getAnnotation(type);
+                } catch(NoSuchMethodException e) {
+                    continue;
+                }
+                if(annotation != null) {
+                    break;
+                }
+            }
+        }
+        return annotation;
+    }
+
+    /**
+     * Looks for the annotation as {@link #find(Class, Method, Class)} does, then on the resource class, its
+     * superclasses and their interfaces.
+     *
+     * @param resourceClass the class of the resource, or null to use the method's declaring class
+     * @param method the resource method
+     * @param type the annotation
+     * @return the annotation, or null if there is none
+     */
+    public static <A extends Annotation> A findOnMethodOrClass(Class<?> resourceClass, Method method,
+                                                               Class<A> type) {
+        A annotation = find(resourceClass, method, type);
+        for(Class<?> c = classOf(resourceClass, method); annotation == null && c != null; c = c.getSuperclass()) {
+            annotation = c.getAnnotation(type);
+            for(Class<?> resourceInterface : c.getInterfaces()) {
+                if(annotation != null) {
+                    break;
+                }
+                annotation = resourceInterface.getAnnotation(type);
+            }
+        }
+        return annotation;
+    }
+
+    private static Class<?> classOf(Class<?> resourceClass, Method method) {
+        return resourceClass == null ? method.getDeclaringClass() : resourceClass;
+    }
+}
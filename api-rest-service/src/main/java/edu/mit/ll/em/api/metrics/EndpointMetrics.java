@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one resource method: latency, requests in flight, responses by status, response sizes, and the entity
+ * cache loads made while handling its requests.
+ */
+public class EndpointMetrics implements EndpointMetricsMBean {
+
+    private final String endpoint;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<Integer, LongAdder>();
+
+    private final LongAdder responseBytes = new LongAdder();
+
+    private final LongAdder responsesWithBody = new LongAdder();
+
+    private final ConcurrentMap<String, LatencyHistogram> cacheLoads =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    EndpointMetrics(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return the request, to complete once its response is written or it fails
+     */
+    public Request requestStarted() {
+        inFlight.incrementAndGet();
+        return new Request(this);
+    }
+
+    private void requestCompleted(int status, long nanos, long bytes) {
+        inFlight.decrementAndGet();
+        latency.record(nanos);
+        LongAdder count = statuses.get(status);
+        if(count == null) {
+            LongAdder added = new LongAdder();
+            count = statuses.putIfAbsent(status, added);
+            if(count == null) {
+                count = added;
+            }
+        }
+        count.increment();
+        if(bytes >= 0) {
+            responseBytes.add(bytes);
+            responsesWithBody.increment();
+        }
+    }
+
+    public void cacheLoadCompleted(String cache, long nanos) {
+        LatencyHistogram histogram = cacheLoads.get(cache);
+        if(histogram == null) {
+            LatencyHistogram added = new LatencyHistogram();
+            histogram = cacheLoads.putIfAbsent(cache, added);
+            if(histogram == null) {
+                histogram = added;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Ends the current window, see {@link LatencyHistogram#rotate()}
+     */
+    public void rotate() {
+        latency.rotate();
+        for(LatencyHistogram histogram : cacheLoads.values()) {
+            histogram.rotate();
+        }
+    }
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    long getResponsesWithBody() {
+        return responsesWithBody.sum();
+    }
+
+    /**
+     * @return response counts by status, in status order
+     */
+    Map<Integer, Long> getStatusCounts() {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for(Map.Entry<Integer, LongAdder> entry : statuses.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    /**
+     * @return the cache load histograms by cache, in name order
+     */
+    Map<String, LatencyHistogram> getCacheLoads() {
+        return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(cacheLoads));
+    }
+
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = latency.getCount();
+        return count == 0 ? 0 : latency.getSumMicros() / 1000.0 / count;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return percentileMillis(50);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return percentileMillis(99);
+    }
+
+    @Override
+    public double getP999Millis() {
+        return percentileMillis(99.9);
+    }
+
+    @Override
+    public long getClientErrorCount() {
+        return countStatuses(400);
+    }
+
+    @Override
+    public long getServerErrorCount() {
+        return countStatuses(500);
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    @Override
+    public long getCacheLoadCount() {
+        long count = 0;
+        for(LatencyHistogram histogram : cacheLoads.values()) {
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public double getCacheLoadMillis() {
+        long micros = 0;
+        for(LatencyHistogram histogram : cacheLoads.values()) {
+            micros += histogram.getSumMicros();
+        }
+        return micros / 1000.0;
+    }
+
+    private double percentileMillis(double percentile) {
+        long micros = latency.getValueAtPercentile(percentile);
+        return micros < 0 ? Double.NaN : micros / 1000.0;
+    }
+
+    private long countStatuses(int classStart) {
+        long count = 0;
+        for(Map.Entry<Integer, LongAdder> entry : statuses.entrySet()) {
+            if(entry.getKey() >= classStart && entry.getKey() < classStart + 100) {
+                count += entry.getValue().sum();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A request in flight on the endpoint. Only its first completion is recorded, whether from the response filter,
+     * the writer interceptor or the fault chain.
+     */
+    public static final class Request {
+
+        private final EndpointMetrics endpoint;
+
+        private final long start = System.nanoTime();
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private Request(EndpointMetrics endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public EndpointMetrics getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @param status the response status
+         * @param bytes bytes of response body written, -1 if there was no body
+         */
+        public void complete(int status, long bytes) {
+            if(completed.compareAndSet(false, true)) {
+                endpoint.requestCompleted(status, System.nanoTime() - start, bytes);
+            }
+        }
+    }
+}
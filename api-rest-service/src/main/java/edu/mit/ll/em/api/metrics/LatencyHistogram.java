@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latencies of one kind of call. They are counted and summed since startup, and recorded in an HdrHistogram whose
+ * percentiles cover the last completed window, see {@link RequestMetrics}. Values are kept in microseconds.
+ */
+public class LatencyHistogram {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sumMicros = new LongAdder();
+
+    // The last completed window, null until the first one ends
+    private Histogram window;
+
+    // The window before that, handed back to the recorder to be reused
+    private Histogram recycled;
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        recorder.recordValue(micros);
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    /**
+     * Ends the current window, whose percentiles are reported until the next one ends. Called by
+     * {@link RequestMetrics} as each window ends.
+     */
+    public synchronized void rotate() {
+        Histogram ended = recorder.getIntervalHistogram(recycled);
+        recycled = window;
+        window = ended;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the latency at percentile in the last window, in microseconds, or -1 if there were no calls in it
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if(window == null || window.getTotalCount() == 0) {
+            return -1;
+        }
+        return window.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * @return the number of calls since startup
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the total latency of the calls since startup, in microseconds
+     */
+    public long getSumMicros() {
+        return sumMicros.sum();
+    }
+}
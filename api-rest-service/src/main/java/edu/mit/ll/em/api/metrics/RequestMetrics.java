@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.cache.EntityCacheFactory;
+import edu.mit.ll.em.api.dataaccess.cache.LoadObserver;
+import edu.mit.ll.em.api.msgbus.MsgBusQueue;
+import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionMgr;
+import edu.mit.ll.em.api.msgbus.NotificationOutbox;
+import edu.mit.ll.em.api.msgbus.OutboxRelay;
+import edu.mit.ll.em.api.msgbus.PublishPipeline;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
+import edu.mit.ll.em.api.msgbus.SubscriptionSession;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.BulkheadCompartment;
+import edu.mit.ll.em.api.util.Bulkheads;
+import edu.mit.ll.em.api.util.RateLimit;
+import edu.mit.ll.em.api.util.RateLimits;
+
+/**
+ * Per endpoint metrics of the API, recorded by {@link edu.mit.ll.em.api.main.MetricsFilter}. An endpoint is a resource
+ * method, named after its class and method.
+ * <p>
+ * Latencies go into HdrHistograms. Counts and sums are kept since startup, percentiles over a window, the last
+ * {@link APIConfig#METRICS_WINDOWSECONDS} seconds that ended. Entity cache loads, the DAO calls made through an
+ * {@link EntityCacheFactory} cache, are timed against the endpoint handling the request on the current thread, so an
+ * endpoint missing the caches on many loads per request shows up. Loads made outside of a request are put under
+ * {@link #BACKGROUND}. DAO calls the services make directly, without a cache, are not timed.
+ * <p>
+ * The metrics are written in the Prometheus text format by {@link #writePrometheus(Writer)}, along with the state of
+ * the {@link Bulkheads}, {@link RateLimits}, {@link PublishPipeline}, {@link NotificationOutbox} and the message bus
+ * subscriptions of the {@link MsgBusSubscriptionMgr}, and each endpoint is registered as an {@link EndpointMetricsMBean}.
+ */
+public final class RequestMetrics {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(RequestMetrics.class);
+
+    /**
+     * Endpoint of requests that matched no resource method
+     */
+    public static final String UNMATCHED = "unmatched";
+
+    /**
+     * Endpoint of cache loads made outside of a request
+     */
+    public static final String BACKGROUND = "background";
+
+    private static final String JMX_DOMAIN = "edu.mit.ll.em.api";
+
+    private static final String PREFIX = "emapi_";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+
+    // Histograms kept elsewhere whose windows end with the endpoints'
+    private final List<LatencyHistogram> histograms = new CopyOnWriteArrayList<LatencyHistogram>();
+
+    private final ThreadLocal<EndpointMetrics> current = new ThreadLocal<EndpointMetrics>();
+
+    private final boolean enabled;
+
+    private final Timer rotator;
+
+    // Lazy-initialization Holder class idiom.
+    private static class Holder {
+        public static final RequestMetrics instance = new RequestMetrics();
+    }
+
+    public static RequestMetrics getInstance() {
+        return Holder.instance;
+    }
+
+    private RequestMetrics() {
+        this(APIConfig.getInstance().getConfiguration());
+    }
+
+    /**
+     * @param config settings of the metrics, see {@link APIConfig#METRICS_ENABLED}
+     */
+    public RequestMetrics(Configuration config) {
+        this.enabled = config.getBoolean(APIConfig.METRICS_ENABLED, true);
+        long windowMillis = Math.max(1, config.getLong(APIConfig.METRICS_WINDOWSECONDS, 60)) * 1000;
+
+        this.rotator = new Timer("RequestMetrics", true);
+        if(enabled) {
+            rotator.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    for(EndpointMetrics endpoint : endpoints.values()) {
+                        endpoint.rotate();
+                    }
+                    for(LatencyHistogram histogram : histograms) {
+                        histogram.rotate();
+                    }
+                }
+            }, windowMillis, windowMillis);
+
+            EntityCacheFactory.setLoadObserver(new LoadObserver() {
+                @Override
+                public void loaded(String cacheName, long nanos) {
+                    cacheLoadCompleted(cacheName, nanos);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return a histogram whose percentiles cover the same window as the endpoints'
+     */
+    public LatencyHistogram newLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param endpoint the endpoint's name
+     * @return the endpoint's metrics, created and registered with JMX on first use
+     */
+    public EndpointMetrics getEndpoint(String endpoint) {
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if(metrics == null) {
+            EndpointMetrics added = new EndpointMetrics(endpoint);
+            metrics = endpoints.putIfAbsent(endpoint, added);
+            if(metrics == null) {
+                metrics = added;
+                register(added);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Sets the endpoint cache loads made on this thread are timed against, null for none
+     */
+    public void setCurrent(EndpointMetrics endpoint) {
+        if(endpoint == null) {
+            current.remove();
+        } else {
+            current.set(endpoint);
+        }
+    }
+
+    public EndpointMetrics getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Times a cache load against the endpoint of the request handled on this thread
+     *
+     * @param cache the name of the cache, see {@link edu.mit.ll.em.api.dataaccess.cache.CacheSettings}
+     * @param nanos how long the load took
+     */
+    public void cacheLoadCompleted(String cache, long nanos) {
+        if(!enabled) {
+            return;
+        }
+        EndpointMetrics endpoint = current.get();
+        if(endpoint == null) {
+            endpoint = getEndpoint(BACKGROUND);
+        }
+        endpoint.cacheLoadCompleted(cache, nanos);
+    }
+
+    /**
+     * Writes every endpoint's metrics in the Prometheus text exposition format, version 0.0.4
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        Map<String, EndpointMetrics> sorted = new TreeMap<String, EndpointMetrics>();
+        for(EndpointMetrics endpoint : endpoints.values()) {
+            // Leaves out BACKGROUND, and anything else with only cache loads, from the request metrics
+            if(endpoint.getRequestCount() > 0 || endpoint.getInFlight() > 0) {
+                sorted.put(endpoint.getEndpoint(), endpoint);
+            }
+        }
+
+        writeHeader(out, "request_duration_seconds", "summary", "Request latency by endpoint");
+        for(EndpointMetrics endpoint : sorted.values()) {
+            writeSummary(out, "request_duration_seconds", label("endpoint", endpoint.getEndpoint()),
+                    endpoint.getLatency());
+        }
+
+        writeHeader(out, "requests_in_flight", "gauge", "Requests being handled by endpoint");
+        for(EndpointMetrics endpoint : sorted.values()) {
+            writeSample(out, "requests_in_flight", label("endpoint", endpoint.getEndpoint()),
+                    String.valueOf(endpoint.getInFlight()));
+        }
+
+        writeHeader(out, "responses_total", "counter", "Responses by endpoint and status");
+        for(EndpointMetrics endpoint : sorted.values()) {
+            for(Map.Entry<Integer, Long> status : endpoint.getStatusCounts().entrySet()) {
+                writeSample(out, "responses_total", label("endpoint", endpoint.getEndpoint()) + "," +
+                        label("status", String.valueOf(status.getKey())), String.valueOf(status.getValue()));
+            }
+        }
+
+        writeHeader(out, "response_size_bytes", "summary", "Bytes of response body written by endpoint");
+        for(EndpointMetrics endpoint : sorted.values()) {
+            String labels = label("endpoint", endpoint.getEndpoint());
+            writeSample(out, "response_size_bytes_sum", labels, String.valueOf(endpoint.getResponseBytes()));
+            writeSample(out, "response_size_bytes_count", labels, String.valueOf(endpoint.getResponsesWithBody()));
+        }
+
+        writeHeader(out, "cache_load_duration_seconds", "summary",
+                "Entity cache load latency by endpoint and cache, cache hits and uncached DAO calls not included");
+        for(EndpointMetrics endpoint : new TreeMap<String, EndpointMetrics>(endpoints).values()) {
+            for(Map.Entry<String, LatencyHistogram> load : endpoint.getCacheLoads().entrySet()) {
+                writeSummary(out, "cache_load_duration_seconds", label("endpoint", endpoint.getEndpoint()) + "," +
+                        label("cache", load.getKey()), load.getValue());
+            }
+        }
+
+        writeBulkheads(out);
+        writeRateLimits(out);
+        writePublisher(out);
+        writeOutbox(out);
+        writeSubscriptions(out);
+        out.flush();
+    }
+
+    private static void writeBulkheads(Writer out) throws IOException {
+        Map<String, BulkheadCompartment> compartments = Bulkheads.getInstance().getCompartments();
+
+        writeHeader(out, "bulkhead_in_use", "gauge", "Requests being handled by bulkhead");
+        for(BulkheadCompartment compartment : compartments.values()) {
+            writeSample(out, "bulkhead_in_use", label("bulkhead", compartment.getName()),
+                    String.valueOf(compartment.getInUse()));
+        }
+
+        writeHeader(out, "bulkhead_waiting", "gauge", "Requests waiting for a place by bulkhead");
+        for(BulkheadCompartment compartment : compartments.values()) {
+            writeSample(out, "bulkhead_waiting", label("bulkhead", compartment.getName()),
+                    String.valueOf(compartment.getWaiting()));
+        }
+
+        writeHeader(out, "bulkhead_max_concurrent", "gauge", "Requests a bulkhead handles at once");
+        for(BulkheadCompartment compartment : compartments.values()) {
+            writeSample(out, "bulkhead_max_concurrent", label("bulkhead", compartment.getName()),
+                    String.valueOf(compartment.getMaxConcurrent()));
+        }
+
+        writeHeader(out, "bulkhead_admitted_total", "counter", "Requests let through by bulkhead");
+        for(BulkheadCompartment compartment : compartments.values()) {
+            writeSample(out, "bulkhead_admitted_total", label("bulkhead", compartment.getName()),
+                    String.valueOf(compartment.getAdmittedCount()));
+        }
+
+        writeHeader(out, "bulkhead_rejections_total", "counter", "Requests turned away by bulkhead and reason");
+        for(BulkheadCompartment compartment : compartments.values()) {
+            String labels = label("bulkhead", compartment.getName());
+            writeSample(out, "bulkhead_rejections_total", labels + "," + label("reason", "queue_full"),
+                    String.valueOf(compartment.getQueueFullCount()));
+            writeSample(out, "bulkhead_rejections_total", labels + "," + label("reason", "timeout"),
+                    String.valueOf(compartment.getTimedOutCount()));
+        }
+    }
+
+    private static void writeRateLimits(Writer out) throws IOException {
+        Map<String, RateLimit> limits = RateLimits.getInstance().getLimits();
+
+        writeHeader(out, "ratelimit_allowed_total", "counter", "Requests let through by rate limit");
+        for(RateLimit limit : limits.values()) {
+            writeSample(out, "ratelimit_allowed_total", label("limit", limit.getName()),
+                    String.valueOf(limit.getAllowedCount()));
+        }
+
+        writeHeader(out, "ratelimit_limited_total", "counter", "Requests refused by rate limit");
+        for(RateLimit limit : limits.values()) {
+            writeSample(out, "ratelimit_limited_total", label("limit", limit.getName()),
+                    String.valueOf(limit.getLimitedCount()));
+        }
+
+        writeHeader(out, "ratelimit_untracked_total", "counter",
+                "Requests limited by the shared overflow bucket while the limit tracked as many keys as it may");
+        for(RateLimit limit : limits.values()) {
+            writeSample(out, "ratelimit_untracked_total", label("limit", limit.getName()),
+                    String.valueOf(limit.getUntrackedCount()));
+        }
+
+        writeHeader(out, "ratelimit_tracked_keys", "gauge", "Users or devices tracked by rate limit");
+        for(RateLimit limit : limits.values()) {
+            writeSample(out, "ratelimit_tracked_keys", label("limit", limit.getName()),
+                    String.valueOf(limit.getTrackedKeys()));
+        }
+    }
+
+    /**
+     * Stops the window timer and unregisters the MBeans
+     */
+    public void freeResources() {
+        rotator.cancel();
+        EntityCacheFactory.setLoadObserver(null);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(String endpoint : endpoints.keySet()) {
+            try {
+                ObjectName name = objectName(endpoint);
+                if(server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch(JMException e) {
+                log.warn("Failed to unregister the metrics MBean of {}: {}", endpoint, e.getMessage());
+            }
+        }
+    }
+
+    private void register(EndpointMetrics endpoint) {
+        try {
+            ObjectName name = objectName(endpoint.getEndpoint());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(!server.isRegistered(name)) {
+                server.registerMBean(endpoint, name);
+            }
+        } catch(JMException e) {
+            log.warn("Failed to register the metrics MBean of {}: {}", endpoint.getEndpoint(), e.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String endpoint) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=Endpoint,name=" + ObjectName.quote(endpoint));
+    }
+
+    private static void writePublisher(Writer out) throws IOException {
+        PublishPipeline pipeline = RabbitPublisher.getInstance().getPipeline();
+        if(pipeline == null) {
+            return;
+        }
+
+        writeHeader(out, "publish_queue_depth", "gauge", "Notifications queued to be published");
+        writeSample(out, "publish_queue_depth", "", String.valueOf(pipeline.getQueueDepth()));
+
+        writeHeader(out, "publish_queue_capacity", "gauge", "Notifications the publish queue holds");
+        writeSample(out, "publish_queue_capacity", "", String.valueOf(pipeline.getQueueCapacity()));
+
+        writeHeader(out, "publish_spill_backlog", "gauge", "Notifications spilled to disk and not yet published");
+        writeSample(out, "publish_spill_backlog", "", String.valueOf(pipeline.getSpillBacklog()));
+
+        writeHeader(out, "publish_total", "counter", "Notifications by publish outcome, retries counted again");
+        writeSample(out, "publish_total", label("outcome", "confirmed"), String.valueOf(pipeline.getConfirmedCount()));
+        writeSample(out, "publish_total", label("outcome", "nacked"), String.valueOf(pipeline.getNackedCount()));
+        writeSample(out, "publish_total", label("outcome", "failed"), String.valueOf(pipeline.getFailedCount()));
+        writeSample(out, "publish_total", label("outcome", "dropped"), String.valueOf(pipeline.getDroppedCount()));
+        writeSample(out, "publish_total", label("outcome", "spilled"), String.valueOf(pipeline.getSpilledCount()));
+        writeSample(out, "publish_total", label("outcome", "lost"), String.valueOf(pipeline.getLostCount()));
+
+        writeHeader(out, "publish_confirm_duration_seconds", "summary",
+                "Time from publishing a batch of notifications to the broker confirming it");
+        writeSummary(out, "publish_confirm_duration_seconds", label("overflow", pipeline.getOverflow()),
+                pipeline.getConfirmLatency());
+    }
+
+    private static void writeOutbox(Writer out) throws IOException {
+        NotificationOutbox outbox = NotificationOutbox.getInstance();
+        OutboxRelay relay = outbox.getRelay();
+        if(relay == null) {
+            return;
+        }
+
+        writeHeader(out, "outbox_written_total", "counter", "Notifications written to the outbox");
+        writeSample(out, "outbox_written_total", "", String.valueOf(outbox.getWrittenCount()));
+
+        writeHeader(out, "outbox_relayed_total", "counter", "Notifications published from the outbox by this node");
+        writeSample(out, "outbox_relayed_total", "", String.valueOf(relay.getRelayedCount()));
+
+        writeHeader(out, "outbox_relay_failures_total", "counter", "Outbox batches that failed and were retried");
+        writeSample(out, "outbox_relay_failures_total", "", String.valueOf(relay.getFailureCount()));
+    }
+
+    private static void writeSubscriptions(Writer out) throws IOException {
+        MsgBusSubscriptionMgr mgr = MsgBusSubscriptionMgr.getInstance();
+        Map<Long, SubscriptionSession> sessions = mgr.getSessions();
+
+        writeHeader(out, "msgbus_sessions", "gauge", "Open message bus subscriptions");
+        writeSample(out, "msgbus_sessions", "", String.valueOf(sessions.size()));
+
+        writeHeader(out, "msgbus_sessions_ended_total", "counter", "Message bus subscriptions ended by reason");
+        writeSample(out, "msgbus_sessions_ended_total", label("reason", "expired"),
+                String.valueOf(mgr.getExpiredCount()));
+        writeSample(out, "msgbus_sessions_ended_total", label("reason", "disconnected"),
+                String.valueOf(mgr.getDisconnectedCount()));
+
+        writeHeader(out, "msgbus_queue_depth", "gauge", "Messages waiting by subscriber");
+        for(SubscriptionSession session : sessions.values()) {
+            writeSample(out, "msgbus_queue_depth", subscriberLabel(session),
+                    String.valueOf(session.getQueue().size()));
+        }
+
+        writeHeader(out, "msgbus_queue_bytes", "gauge", "Estimated bytes of the messages waiting by subscriber");
+        for(SubscriptionSession session : sessions.values()) {
+            writeSample(out, "msgbus_queue_bytes", subscriberLabel(session),
+                    String.valueOf(session.getQueue().getBytes()));
+        }
+
+        writeHeader(out, "msgbus_queue_max_depth", "gauge", "Most messages waiting at once by subscriber");
+        for(SubscriptionSession session : sessions.values()) {
+            writeSample(out, "msgbus_queue_max_depth", subscriberLabel(session),
+                    String.valueOf(session.getQueue().getMaxDepth()));
+        }
+
+        writeHeader(out, "msgbus_messages_total", "counter", "Messages by subscriber and what became of them");
+        for(SubscriptionSession session : sessions.values()) {
+            MsgBusQueue queue = session.getQueue();
+            String labels = subscriberLabel(session);
+            writeSample(out, "msgbus_messages_total", labels + "," + label("outcome", "posted"),
+                    String.valueOf(queue.getPostedCount()));
+            writeSample(out, "msgbus_messages_total", labels + "," + label("outcome", "delivered"),
+                    String.valueOf(queue.getDeliveredCount()));
+            writeSample(out, "msgbus_messages_total", labels + "," + label("outcome", "dropped"),
+                    String.valueOf(queue.getDroppedCount()));
+            writeSample(out, "msgbus_messages_total", labels + "," + label("outcome", "coalesced"),
+                    String.valueOf(queue.getCoalescedCount()));
+        }
+    }
+
+    private static String subscriberLabel(SubscriptionSession session) {
+        return label("subscriber", String.valueOf(session.getSubscriberId()));
+    }
+
+    private static void writeHeader(Writer out, String metric, String type, String help) throws IOException {
+        out.write("# HELP " + PREFIX + metric + " " + help + "\n");
+        out.write("# TYPE " + PREFIX + metric + " " + type + "\n");
+    }
+
+    private static void writeSummary(Writer out, String metric, String labels, LatencyHistogram histogram)
+            throws IOException {
+        for(double quantile : QUANTILES) {
+            long micros = histogram.getValueAtPercentile(quantile * 100);
+            writeSample(out, metric, labels + "," + label("quantile", String.valueOf(quantile)),
+                    micros < 0 ? "NaN" : String.valueOf(micros / 1e6));
+        }
+        writeSample(out, metric + "_sum", labels, String.valueOf(histogram.getSumMicros() / 1e6));
+        writeSample(out, metric + "_count", labels, String.valueOf(histogram.getCount()));
+    }
+
+    private static void writeSample(Writer out, String metric, String labels, String value) throws IOException {
+        out.write(PREFIX + metric + "{" + labels + "} " + value + "\n");
+    }
+
+    private static String label(String name, String value) {
+        StringBuilder sb = new StringBuilder(name).append("=\"");
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if(c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
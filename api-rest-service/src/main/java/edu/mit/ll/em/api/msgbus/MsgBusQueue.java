@@ -29,16 +29,39 @@
  */
 package edu.mit.ll.em.api.msgbus;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.util.APIConfig;
 
-
+/**
+ * Messages waiting to be picked up by a subscriber. A get waits, up to the time it was given, for messages to arrive,
+ * so a subscriber can long-poll rather than ask again and again. Once closed, waiting gets return and messages posted
+ * are dropped.
+ * <p>
+ * A get can also wait without a thread, as a {@link Waiter} parked on the queue. The post that finds it parked takes
+ * its messages and resumes it, and whoever gave up waiting for it, say on a timeout, cancels it.
+ * <p>
+ * The queue holds at most {@link APIConfig#MSGBUS_QUEUE_MAXMESSAGES} messages and
+ * {@link APIConfig#MSGBUS_QUEUE_MAXBYTES} bytes, estimated from their lengths, so a subscriber that stops getting
+ * can't run the node out of memory. What happens to a message that doesn't fit is the {@link Overflow} policy.
+ * Messages are kept in a ring that grows as needed, with their sizes alongside, so posting allocates nothing per
+ * message besides its key when coalescing.
+ */
 public class MsgBusQueue {
 
     /**
@@ -46,35 +69,598 @@ public class MsgBusQueue {
      */
     private static final Logger log = LoggerFactory.getLogger(MsgBusQueue.class);
 
+    /**
+     * What a post does when the queue is full
+     */
+    public enum Overflow {
+        /** Drop the oldest messages to make room */
+        DROP_OLDEST,
+        /**
+         * Replace the waiting message of the same type and {@link MsgEnvelope#getMsgTopic() topic} with the new one, in
+         * its place, or else drop the oldest. A subscriber behind on an entity gets its latest message. Messages
+         * without a topic are never replaced, as they may be about different entities.
+         */
+        COALESCE,
+        /** Close the queue, ending the subscription, so the subscriber starts over with a fresh one */
+        DISCONNECT
+    }
+
+    /**
+     * A get parked on the queue until messages are posted, see {@link #get(Waiter)}. It is resumed exactly once: with
+     * the messages taken for it, or with none once it is cancelled or the queue is closed.
+     */
+    public abstract static class Waiter {
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private int maxBatch;
+
+        // The queue it is parked on, set before it is parked
+        private volatile MsgBusQueue queue;
+
+        // Taken for it under the queue's lock, and resumed with once the lock is released
+        private List<MsgEnvelope> taken;
+
+        // Run once it was resumed, by the session it waits on
+        private volatile Runnable onResumed;
+
+        /**
+         * @param maxBatch most messages to take
+         */
+        protected Waiter(int maxBatch) {
+            this.maxBatch = Math.max(1, maxBatch);
+        }
+
+        /**
+         * Takes the messages of the get. Called on the thread that posted them, cancelled the waiter or closed the
+         * queue, so it mustn't block.
+         *
+         * @param msgs the messages taken, empty if none came before it was cancelled or the queue closed
+         */
+        protected abstract void resume(Collection<MsgEnvelope> msgs);
+
+        /**
+         * Stops waiting, resuming the get with no messages, unless it was resumed already
+         *
+         * @return false if it was resumed already
+         */
+        public boolean cancel() {
+            if(!done.compareAndSet(false, true)) {
+                return false;
+            }
+            MsgBusQueue parkedOn = queue;
+            if(parkedOn != null) {
+                parkedOn.unpark(this);
+            }
+            complete(new ArrayList<MsgEnvelope>(0));
+            return true;
+        }
+
+        public boolean isDone() {
+            return done.get();
+        }
+
+        int getMaxBatch() {
+            return maxBatch;
+        }
+
+        void limitBatch(int limit) {
+            maxBatch = Math.max(1, Math.min(maxBatch, limit));
+        }
+
+        void setOnResumed(Runnable onResumed) {
+            this.onResumed = onResumed;
+        }
+
+        private void complete(List<MsgEnvelope> msgs) {
+            logObtained(msgs);
+            try {
+                resume(msgs);
+            } finally {
+                Runnable resumed = onResumed;
+                if(resumed != null) {
+                    resumed.run();
+                }
+            }
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Estimated bytes of a message besides its strings
+    private static final int MESSAGE_OVERHEAD = 64;
+
+    private final int maxMessages;
+
+    private final long maxBytes;
+
+    private final Overflow overflow;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    // Gets parked until messages are posted, in the order they came
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+    // Ring of messages, their sizes and coalescing keys, from head for count messages; the length is a power of two
+    private MsgEnvelope[] messages = new MsgEnvelope[INITIAL_CAPACITY];
+
+    private int[] sizes = new int[INITIAL_CAPACITY];
+
+    private String[] keys;
+
+    private int head;
+
+    private int count;
+
+    // Sequence number of the message at head, each message posted takes the next one
+    private long headSequence;
+
+    private long bytes;
+
+    // Sequence number of the last message of each coalescing key, only when coalescing
+    private final Map<String, Long> lastOfKey;
+
+    private boolean closed;
+
+    private boolean overflowed;
+
+    private int maxDepth;
+
+    private long postedCount;
+
+    private long deliveredCount;
+
+    private long droppedCount;
+
+    private long coalescedCount;
+
     public MsgBusQueue() {
+        this(APIConfig.getInstance().getConfiguration());
+    }
 
+    /**
+     * @param config the {@link APIConfig#MSGBUS_QUEUE_MAXMESSAGES queue settings}
+     */
+    public MsgBusQueue(Configuration config) {
+        this(config.getInt(APIConfig.MSGBUS_QUEUE_MAXMESSAGES, 10000),
+                config.getLong(APIConfig.MSGBUS_QUEUE_MAXBYTES, 8L * 1024 * 1024),
+                Overflow.valueOf(config.getString(APIConfig.MSGBUS_QUEUE_OVERFLOW, "drop-oldest")
+                        .trim().toUpperCase(Locale.ROOT).replace('-', '_')));
     }
 
-    private ConcurrentLinkedDeque<MsgEnvelope> queue = new ConcurrentLinkedDeque<MsgEnvelope>();
+    public MsgBusQueue(int maxMessages, long maxBytes, Overflow overflow) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.overflow = overflow;
+        this.lastOfKey = overflow == Overflow.COALESCE ? new HashMap<String, Long>() : null;
+        this.keys = overflow == Overflow.COALESCE ? new String[INITIAL_CAPACITY] : null;
+    }
 
-    public void put(MsgEnvelope msg) {
-        log.debug("Message posted to subscription : Type: {} Payload: {}",
-                msg.getMsgType(), msg.getMsgPayload());
-        queue.add(msg);
+    /**
+     * @return false if the message was refused, as the queue is closed or was just closed by overflowing
+     */
+    public boolean put(MsgEnvelope msg) {
+        if(log.isDebugEnabled()) {
+            log.debug("Message posted to subscription : Type: {} Payload: {}",
+                    msg.getMsgType(), msg.getMsgPayload());
+        }
+        boolean added;
+        List<Waiter> served;
+        lock.lock();
+        try {
+            added = add(msg);
+            served = serveWaiters();
+            if(count > 0) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        resumeAll(served);
+        return added;
     }
 
-    public void put(Collection<MsgEnvelope> msgs) {
-        for(MsgEnvelope me : msgs) {
-            log.debug("Message posted to subscription: Type: {} Payload: {}",
-                    me.getMsgType(), me.getMsgPayload());
+    /**
+     * @return false if the messages, or some of them, were refused, as the queue is closed or overflowed meanwhile
+     */
+    public boolean put(Collection<MsgEnvelope> msgs) {
+        if(log.isDebugEnabled()) {
+            for(MsgEnvelope me : msgs) {
+                log.debug("Message posted to subscription: Type: {} Payload: {}",
+                        me.getMsgType(), me.getMsgPayload());
+            }
         }
-        queue.addAll(msgs);
+        boolean added = true;
+        List<Waiter> served;
+        lock.lock();
+        try {
+            for(MsgEnvelope me : msgs) {
+                if(!add(me)) {
+                    added = false;
+                    break;
+                }
+            }
+            served = serveWaiters();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        resumeAll(served);
+        return added;
     }
 
+    /**
+     * @return every message waiting, without waiting for any
+     */
     public Collection<MsgEnvelope> get() {
-        Collection<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>();
-        while(!queue.isEmpty()) {
-            msgs.add(queue.remove());
+        return get(Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Waits up to maxWaitMillis for a message, then takes what is waiting
+     *
+     * @param maxBatch most messages to take
+     * @param maxWaitMillis how long to wait for one, 0 not to wait
+     * @return the messages taken, empty if none came in time, the queue was closed or the thread interrupted
+     */
+    public Collection<MsgEnvelope> get(int maxBatch, long maxWaitMillis) {
+        List<MsgEnvelope> msgs;
+        lock.lock();
+        try {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            while(count == 0 && !closed && waitNanos > 0) {
+                waitNanos = notEmpty.awaitNanos(waitNanos);
+            }
+            msgs = take(maxBatch);
+            // Another getter may take the rest
+            if(count > 0) {
+                notEmpty.signal();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<MsgEnvelope>(0);
+        } finally {
+            lock.unlock();
+        }
+        logObtained(msgs);
+        return msgs;
+    }
+
+    /**
+     * Resumes waiter with the messages waiting, or if there are none, parks it until some are posted, the queue is
+     * closed or it is cancelled. A waiter cancelled already is left as is.
+     */
+    public void get(Waiter waiter) {
+        lock.lock();
+        try {
+            if(count == 0 && !closed) {
+                waiter.queue = this;
+                waiters.add(waiter);
+                // Cancelled meanwhile, before it could see the queue to unpark from
+                if(waiter.isDone()) {
+                    waiters.remove(waiter);
+                }
+                return;
+            }
+            if(!waiter.done.compareAndSet(false, true)) {
+                return;
+            }
+            waiter.taken = take(waiter.getMaxBatch());
+        } finally {
+            lock.unlock();
+        }
+        waiter.complete(waiter.taken);
+    }
+
+    /**
+     * @return the gets parked waiting for messages
+     */
+    public int getWaiterCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the messages waiting and wakes the gets waiting for more
+     */
+    public void close() {
+        List<Waiter> served;
+        lock.lock();
+        try {
+            closeLocked();
+            served = serveWaiters();
+        } finally {
+            lock.unlock();
         }
-        for(MsgEnvelope me : msgs) {
-            log.debug("Obtained msg from subscription: Type: {} Payload: {}",
-                    me.getMsgType(), me.getMsgPayload());
+        resumeAll(served);
+    }
+
+    private void unpark(Waiter waiter) {
+        lock.lock();
+        try {
+            waiters.remove(waiter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the messages for the parked waiters, or none for each once closed, to resume them with once the lock is
+     * released
+     *
+     * @return the waiters to resume, null if none
+     */
+    private List<Waiter> serveWaiters() {
+        List<Waiter> served = null;
+        while(!waiters.isEmpty() && (count > 0 || closed)) {
+            Waiter waiter = waiters.poll();
+            // One cancelled meanwhile resumes itself
+            if(waiter.done.compareAndSet(false, true)) {
+                waiter.taken = take(waiter.getMaxBatch());
+                if(served == null) {
+                    served = new ArrayList<Waiter>(1);
+                }
+                served.add(waiter);
+            }
+        }
+        return served;
+    }
+
+    private static void resumeAll(List<Waiter> served) {
+        if(served == null) {
+            return;
+        }
+        for(Waiter waiter : served) {
+            try {
+                waiter.complete(waiter.taken);
+            } catch(RuntimeException e) {
+                log.error("Failed to resume a get waiting for messages", e);
+            }
         }
+    }
+
+    private List<MsgEnvelope> take(int maxBatch) {
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(Math.min(maxBatch, count));
+        while(msgs.size() < maxBatch && count > 0) {
+            msgs.add(removeFirst());
+        }
+        deliveredCount += msgs.size();
         return msgs;
     }
+
+    private static void logObtained(List<MsgEnvelope> msgs) {
+        if(log.isDebugEnabled()) {
+            for(MsgEnvelope me : msgs) {
+                log.debug("Obtained msg from subscription: Type: {} Payload: {}",
+                        me.getMsgType(), me.getMsgPayload());
+            }
+        }
+    }
+
+    private boolean add(MsgEnvelope msg) {
+        if(closed) {
+            return false;
+        }
+        postedCount++;
+        int size = sizeOf(msg);
+        String key = lastOfKey == null ? null : keyOf(msg);
+
+        if(count + 1 > maxMessages || bytes + size > maxBytes) {
+            if(overflow == Overflow.DISCONNECT) {
+                overflowed = true;
+                closeLocked();
+                return false;
+            }
+            if(key != null && coalesce(msg, size, key)) {
+                return true;
+            }
+            // A message larger than the queue is still taken, alone
+            while(count > 0 && (count + 1 > maxMessages || bytes + size > maxBytes)) {
+                removeFirst();
+                droppedCount++;
+            }
+        }
+
+        if(count == messages.length) {
+            grow();
+        }
+        int index = (head + count) & (messages.length - 1);
+        messages[index] = msg;
+        sizes[index] = size;
+        count++;
+        bytes += size;
+        if(key != null) {
+            keys[index] = key;
+            lastOfKey.put(key, headSequence + count - 1);
+        }
+        maxDepth = Math.max(maxDepth, count);
+        return true;
+    }
+
+    /**
+     * Puts msg in place of the waiting message of its key, if it fits there
+     *
+     * @return false if no message of its key is waiting, or msg is too much larger than it
+     */
+    private boolean coalesce(MsgEnvelope msg, int size, String key) {
+        Long sequence = lastOfKey.get(key);
+        if(sequence == null) {
+            return false;
+        }
+        int index = (int) ((head + (sequence - headSequence)) & (messages.length - 1));
+        if(bytes - sizes[index] + size > maxBytes) {
+            return false;
+        }
+        bytes += size - sizes[index];
+        messages[index] = msg;
+        sizes[index] = size;
+        coalescedCount++;
+        return true;
+    }
+
+    /**
+     * @return the type and topic of msg, or null if it has neither, so it is never coalesced
+     */
+    private static String keyOf(MsgEnvelope msg) {
+        if(msg.getMsgType() == null || msg.getMsgTopic() == null) {
+            return null;
+        }
+        return msg.getMsgType() + ' ' + msg.getMsgTopic();
+    }
+
+    private MsgEnvelope removeFirst() {
+        MsgEnvelope msg = messages[head];
+        messages[head] = null;
+        bytes -= sizes[head];
+        if(keys != null && keys[head] != null) {
+            Long last = lastOfKey.get(keys[head]);
+            if(last != null && last == headSequence) {
+                lastOfKey.remove(keys[head]);
+            }
+            keys[head] = null;
+        }
+        head = (head + 1) & (messages.length - 1);
+        headSequence++;
+        count--;
+        return msg;
+    }
+
+    private void grow() {
+        int capacity = messages.length << 1;
+        MsgEnvelope[] grown = new MsgEnvelope[capacity];
+        int[] grownSizes = new int[capacity];
+        String[] grownKeys = keys == null ? null : new String[capacity];
+        for(int i = 0; i < count; i++) {
+            int index = (head + i) & (messages.length - 1);
+            grown[i] = messages[index];
+            grownSizes[i] = sizes[index];
+            if(grownKeys != null) {
+                grownKeys[i] = keys[index];
+            }
+        }
+        messages = grown;
+        sizes = grownSizes;
+        keys = grownKeys;
+        head = 0;
+    }
+
+    private void closeLocked() {
+        closed = true;
+        while(count > 0) {
+            removeFirst();
+        }
+        messages = new MsgEnvelope[INITIAL_CAPACITY];
+        sizes = new int[INITIAL_CAPACITY];
+        if(keys != null) {
+            keys = new String[INITIAL_CAPACITY];
+        }
+        head = 0;
+        notEmpty.signalAll();
+    }
+
+    private static int sizeOf(MsgEnvelope msg) {
+        return MESSAGE_OVERHEAD + 2 * (length(msg.getMsgType()) + length(msg.getMsgPayload()) +
+                length(msg.getMsgTimestamp()) + length(msg.getMsgTopic()));
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return whether the queue was closed by overflowing, under {@link Overflow#DISCONNECT}
+     */
+    public boolean isOverflowed() {
+        lock.lock();
+        try {
+            return overflowed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return estimated bytes of the messages waiting
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the most messages that were waiting at once
+     */
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPostedCount() {
+        lock.lock();
+        try {
+            return postedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDeliveredCount() {
+        lock.lock();
+        try {
+            return deliveredCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the messages dropped to make room
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the messages that replaced a waiting one of their type and topic
+     */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalescedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
 }
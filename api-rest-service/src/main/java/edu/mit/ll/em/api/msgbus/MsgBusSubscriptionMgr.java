@@ -31,15 +31,33 @@ package edu.mit.ll.em.api.msgbus;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 import edu.mit.ll.em.api.rs.StringConstant;
+import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.MapUtil;
 
+/**
+ * Subscriptions of clients that long-poll for messages. A get waits up to {@link APIConfig#MSGBUS_MAXWAITMILLIS} for
+ * messages and takes at most {@link APIConfig#MSGBUS_MAXBATCHSIZE} of them, so an idle client costs one waiting
+ * request rather than a stream of empty ones. Gets through {@link #getFromSubscription(long, MsgBusQueue.Waiter)} wait
+ * as a {@link MsgBusQueue.Waiter} parked on the subscription's queue, holding no thread until messages are posted.
+ * <p>
+ * Sessions unused for their timeout are expired and terminated. They are kept on a {@link TimingWheel} ticked every
+ * {@link APIConfig#MSGBUS_TICKMILLIS}; using a session only records the time, and a session found to have been used
+ * when its slot comes up is put back for its new expiry. Sessions whose bounded queue overflowed under the disconnect
+ * policy are dropped, see {@link MsgBusQueue}.
+ */
 public class MsgBusSubscriptionMgr {
 
     /**
@@ -47,9 +65,27 @@ public class MsgBusSubscriptionMgr {
      */
     private static final Logger log = LoggerFactory.getLogger(MsgBusSubscriptionMgr.class);
 
+    private static final int WHEEL_SLOTS = 512;
+
     private ConcurrentHashMap<Long, SubscriptionSession> sessions =
             new ConcurrentHashMap<Long, SubscriptionSession>(500);
 
+    private final Configuration config;
+
+    private final int maxBatchSize;
+
+    private final long maxWaitMillis;
+
+    private final long tickNanos;
+
+    private final TimingWheel<SubscriptionSession> expiries;
+
+    private final Timer ticker;
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private final AtomicLong disconnectedCount = new AtomicLong();
+
     // Lazy-initialization Holder class idiom.
     private static class Holder {
         public static MsgBusSubscriptionMgr instance = new MsgBusSubscriptionMgr();
@@ -79,23 +115,33 @@ public class MsgBusSubscriptionMgr {
         String timeoutSecsStr = MapUtil.getDefault(
                 StringConstant.URIOPT_TIMEOUT, attrs, "600");
 
-        // Subscribe.		
+        // Subscribe, replacing what a subscriber that started over left behind.
         SubscriptionSession ss = SubscriptionSession.create(
-                subscriberIdStr, topics, timeoutSecsStr);
-        sessions.putIfAbsent(ss.getSubscriberId(), ss);
+                subscriberIdStr, topics, timeoutSecsStr, new MsgBusQueue(config));
+        SubscriptionSession abandoned = sessions.put(ss.getSubscriberId(), ss);
+        if(abandoned != null) {
+            abandoned.terminate();
+        }
+        if(ss.getExpiryNanos() != Long.MAX_VALUE) {
+            expiries.schedule(ss, ss.getExpiryNanos());
+        }
 
         log.debug("beginSubscription() - End.");
     }
 
-    public void endSubscription(long sid) throws
+    /**
+     * @return false if there is no such subscription
+     */
+    public boolean endSubscription(long sid) throws
             MsgBusSubscriptionException {
         SubscriptionSession ss = sessions.remove(sid);
         if(ss != null) {
             ss.terminate();
             log.debug("Subscription ID terminated: {}", sid);
-        } else {
-            log.warn("Unsubscribe failed. Subscription ID not found: {}", sid);
+            return true;
         }
+        log.warn("Unsubscribe failed. Subscription ID not found: {}", sid);
+        return false;
     }
 
     public void postToSubscription(long sid, MsgEnvelope msg) throws
@@ -103,6 +149,7 @@ public class MsgBusSubscriptionMgr {
         SubscriptionSession ss = sessions.get(sid);
         if(ss != null) {
             ss.post(msg);
+            removeIfDisconnected(ss);
             log.debug("Subscription ID {} posted messages.", sid);
         } else {
             log.warn("Post failed. Subscription ID not found: {}", sid);
@@ -114,6 +161,7 @@ public class MsgBusSubscriptionMgr {
         SubscriptionSession ss = sessions.get(sid);
         if(ss != null) {
             ss.post(msgs);
+            removeIfDisconnected(ss);
             log.debug("Subscription ID {} posted messages.", sid);
         } else {
             log.warn("Post failed. Subscription ID not found: {}", sid);
@@ -129,14 +177,159 @@ public class MsgBusSubscriptionMgr {
             msgs = ss.get();
             log.debug("Subscription ID {} obtained messages.", sid);
         } else {
-            log.warn("Post failed. Subscription ID not found: {}", sid);
+            log.warn("Get failed. Subscription ID not found: {}", sid);
+        }
+
+        return msgs;
+    }
+
+    /**
+     * Long-polls a subscription: waits for messages to be posted, unless some already are
+     *
+     * @param maxBatch most messages to take, capped by {@link APIConfig#MSGBUS_MAXBATCHSIZE}
+     * @param waitMillis how long to wait, capped by {@link APIConfig#MSGBUS_MAXWAITMILLIS}
+     * @return the messages taken, empty if none came in time or the subscription ended meanwhile, or null if there is
+     * no such subscription
+     */
+    public Collection<MsgEnvelope> getFromSubscription(long sid, int maxBatch, long waitMillis) throws
+            MsgBusSubscriptionException {
+
+        Collection<MsgEnvelope> msgs = null;
+        SubscriptionSession ss = sessions.get(sid);
+        if(ss != null) {
+            msgs = ss.get(Math.max(1, Math.min(maxBatch, maxBatchSize)),
+                    Math.max(0, Math.min(waitMillis, maxWaitMillis)));
+            log.debug("Subscription ID {} obtained {} messages.", sid, msgs.size());
+        } else {
+            log.warn("Get failed. Subscription ID not found: {}", sid);
         }
 
         return msgs;
     }
 
+    /**
+     * Long-polls a subscription without holding a thread: waiter is resumed with the messages waiting, right away if
+     * there are any, or else once some are posted or the subscription ends. The caller cancels waiter once it has
+     * waited long enough, see {@link #limitWaitMillis(long)}.
+     *
+     * @param waiter takes at most {@link APIConfig#MSGBUS_MAXBATCHSIZE} messages
+     * @return false, leaving waiter as is, if there is no such subscription
+     */
+    public boolean getFromSubscription(long sid, MsgBusQueue.Waiter waiter) throws
+            MsgBusSubscriptionException {
+        SubscriptionSession ss = sessions.get(sid);
+        if(ss == null) {
+            log.warn("Get failed. Subscription ID not found: {}", sid);
+            return false;
+        }
+        waiter.limitBatch(maxBatchSize);
+        ss.get(waiter);
+        return true;
+    }
+
+    /**
+     * @return how long a get may wait for messages, waitMillis capped by {@link APIConfig#MSGBUS_MAXWAITMILLIS}
+     */
+    public long limitWaitMillis(long waitMillis) {
+        return Math.max(0, Math.min(waitMillis, maxWaitMillis));
+    }
+
+    /**
+     * Forgets a subscription whose queue overflowed, so its subscriber's next get finds it gone and subscribes again
+     */
+    private void removeIfDisconnected(SubscriptionSession ss) {
+        if(ss.isDisconnected() && sessions.remove(ss.getSubscriberId(), ss)) {
+            disconnectedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the open subscriptions by subscriber ID
+     */
+    public Map<Long, SubscriptionSession> getSessions() {
+        return new TreeMap<Long, SubscriptionSession>(sessions);
+    }
+
+    /**
+     * @return the subscriptions open
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the subscriptions expired since startup
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return the subscriptions ended by their queue overflowing since startup
+     */
+    public long getDisconnectedCount() {
+        return disconnectedCount.get();
+    }
+
+    /**
+     * Terminates the sessions whose expiry came up and that went unused since, and puts back the others
+     */
+    private void expireIdleSessions() {
+        long now = System.nanoTime();
+        for(SubscriptionSession ss : expiries.advance(now)) {
+            if(ss.isTerminated()) {
+                continue;
+            }
+            long expiry = ss.getExpiryNanos();
+            if(ss.isWaiting() || expiry - now > 0) {
+                expiries.schedule(ss, ss.isWaiting() ? now + tickNanos : expiry);
+            } else if(sessions.remove(ss.getSubscriberId(), ss)) {
+                ss.terminate();
+                expiredCount.incrementAndGet();
+                log.info("Subscription ID {} expired after {}s unused", ss.getSubscriberId(), ss.getTimeout());
+            }
+        }
+    }
+
+    /**
+     * Stops expiring sessions, and terminates them all
+     */
+    public void freeResources() {
+        ticker.cancel();
+        for(SubscriptionSession ss : sessions.values()) {
+            ss.terminate();
+        }
+        sessions.clear();
+    }
+
     // Hide the default constructor.
-    @SuppressWarnings("unused")
-    private void SubscritionMgr() {
+    private MsgBusSubscriptionMgr() {
+        this(APIConfig.getInstance().getConfiguration());
+    }
+
+    /**
+     * Starts the timer expiring idle sessions, stopped by {@link #freeResources()}
+     *
+     * @param config the {@link APIConfig#MSGBUS_MAXWAITMILLIS long-poll}, expiry and queue settings
+     */
+    public MsgBusSubscriptionMgr(Configuration config) {
+        this.config = config;
+        this.maxBatchSize = Math.max(1, config.getInt(APIConfig.MSGBUS_MAXBATCHSIZE, 500));
+        this.maxWaitMillis = Math.max(0, config.getLong(APIConfig.MSGBUS_MAXWAITMILLIS, 30000));
+        long tickMillis = Math.max(10, config.getLong(APIConfig.MSGBUS_TICKMILLIS, 1000));
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.expiries = new TimingWheel<SubscriptionSession>(tickNanos, WHEEL_SLOTS, System.nanoTime());
+
+        this.ticker = new Timer("MsgBusSubscriptionMgr", true);
+        ticker.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    expireIdleSessions();
+                } catch(RuntimeException e) {
+                    log.error("Failed to expire idle subscriptions", e);
+                }
+            }
+        }, tickMillis, tickMillis);
     }
 }
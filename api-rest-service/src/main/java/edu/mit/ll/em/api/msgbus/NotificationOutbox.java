@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.rabbitmq.client.AlreadyClosedException;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Transactional outbox of change notifications. Inside a transaction begun by {@link #execute(Callable)},
+ * {@link #produce(String, String)} inserts the notification into the em_api_outbox table instead of publishing it, so
+ * it is committed or rolled back along with the change it announces, and an {@link OutboxRelay} publishes it once
+ * committed. The nics-dao DAOs write through Spring's JdbcTemplate on the same JNDI connection pool, and JdbcTemplate
+ * takes its connection from DataSourceUtils, which hands out the one bound to the transaction.
+ * <p>
+ * The outbox is off unless {@link APIConfig#OUTBOX_ENABLED} is set. Its table is only created, if missing, when it is
+ * on. Outside of a transaction, or when the outbox is disabled or its table can't be created, notifications go
+ * straight to the {@link RabbitPublisher} as before.
+ */
+public final class NotificationOutbox {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(NotificationOutbox.class);
+
+    static final String TABLE = "em_api_outbox";
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS " + TABLE + " (id bigserial PRIMARY KEY, topic text NOT NULL, " +
+                    "body text NOT NULL, created timestamp NOT NULL DEFAULT now(), sent timestamp)",
+            "CREATE INDEX IF NOT EXISTS " + TABLE + "_unsent ON " + TABLE + " (id) WHERE sent IS NULL"
+    };
+
+    private static final String INSERT = "INSERT INTO " + TABLE + " (topic, body) VALUES (?, ?)";
+
+    // Null when disabled
+    private final DataSource dataSource;
+
+    private final DataSourceTransactionManager transactionManager;
+
+    private final RabbitPublisher publisher;
+
+    private final OutboxRelay relay;
+
+    private final LongAdder written = new LongAdder();
+
+    // Lazy-initialization Holder class idiom.
+    private static class Holder {
+        public static final NotificationOutbox instance = new NotificationOutbox();
+    }
+
+    public static NotificationOutbox getInstance() {
+        return Holder.instance;
+    }
+
+    private NotificationOutbox() {
+        this(APIConfig.getInstance().getConfiguration(), lookupDataSource(), RabbitPublisher.getInstance());
+    }
+
+    /**
+     * @param config the {@link APIConfig#OUTBOX_ENABLED outbox settings}, disabled unless set
+     * @param dataSource the connection pool the DAOs write to, null to publish notifications directly
+     * @param publisher publishes notifications outside of transactions, and the relay's
+     */
+    public NotificationOutbox(Configuration config, DataSource dataSource, RabbitPublisher publisher) {
+        this.publisher = publisher;
+        DataSource outboxDataSource = null;
+        if(dataSource != null && config.getBoolean(APIConfig.OUTBOX_ENABLED, false)) {
+            try {
+                createTable(dataSource);
+                outboxDataSource = dataSource;
+            } catch(SQLException e) {
+                log.error("Notification outbox unavailable, publishing notifications directly: {}", e.getMessage());
+            }
+        }
+
+        this.dataSource = outboxDataSource;
+        if(outboxDataSource != null) {
+            this.transactionManager = new DataSourceTransactionManager(outboxDataSource);
+            this.relay = new OutboxRelay(outboxDataSource, publisher, config);
+            relay.start();
+        } else {
+            this.transactionManager = null;
+            this.relay = null;
+        }
+    }
+
+    private static DataSource lookupDataSource() {
+        try {
+            return (DataSource) new InitialContext().lookup(APIConfig.DATASOURCE_JNDI_NAME);
+        } catch(NamingException e) {
+            log.error("Notification outbox unavailable, publishing notifications directly: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static void createTable(DataSource dataSource) throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                for(String sql : SCHEMA) {
+                    statement.execute(sql);
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return dataSource != null;
+    }
+
+    /**
+     * Runs work in a transaction bound to the current thread, which the DAOs and {@link #produce(String, String)}
+     * join. The transaction is committed if work returns, and rolled back if it throws. It holds a pooled connection
+     * until then, so work should be the DAO writes and the notifications announcing them, not the parsing of uploads,
+     * or calls to other services. Work run inside another transaction joins it.
+     *
+     * @param work the writes and notifications to commit together
+     * @return what work returned
+     * @throws Exception what work threw, after rolling back
+     * @throws TransactionException if the commit failed, in which case the transaction was rolled back
+     */
+    public <T> T execute(Callable<T> work) throws Exception {
+        if(transactionManager == null || TransactionSynchronizationManager.hasResource(dataSource)) {
+            return work.call();
+        }
+
+        TransactionStatus transaction = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        T result;
+        try {
+            result = work.call();
+        } catch(Exception | Error e) {
+            rollback(transaction);
+            throw e;
+        }
+        transactionManager.commit(transaction);
+        return result;
+    }
+
+    private void rollback(TransactionStatus transaction) {
+        try {
+            transactionManager.rollback(transaction);
+        } catch(TransactionException e) {
+            log.error("Failed to roll back a transaction", e);
+        }
+    }
+
+    /**
+     * Writes message to the outbox when in a transaction begun by {@link #execute(Callable)}, otherwise publishes it
+     *
+     * @param topic the routing key
+     * @param message the message body
+     * @throws IOException if the message couldn't be written to the outbox, or published
+     * @throws TimeoutException see {@link RabbitPublisher#produce(String, String)}
+     * @throws AlreadyClosedException see {@link RabbitPublisher#produce(String, String)}
+     */
+    public void produce(String topic, String message) throws IOException, TimeoutException, AlreadyClosedException {
+        if(dataSource == null || !TransactionSynchronizationManager.hasResource(dataSource)) {
+            publisher.produce(topic, message);
+            return;
+        }
+
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            PreparedStatement statement = connection.prepareStatement(INSERT);
+            try {
+                statement.setString(1, topic);
+                statement.setString(2, message);
+                statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch(SQLException e) {
+            throw new IOException("Failed to write a notification on " + topic + " to the outbox", e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+        written.increment();
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                relay.wakeUp();
+            }
+        });
+    }
+
+    /**
+     * @return the notifications written to the outbox by this node
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return the relay publishing the outbox, or null if the outbox is disabled
+     */
+    public OutboxRelay getRelay() {
+        return relay;
+    }
+
+    /**
+     * Stops the relay, whatever is left in the outbox is published after the next start
+     */
+    public void freeResources() {
+        if(relay != null) {
+            relay.shutdown();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Publishes the notifications committed to the {@link NotificationOutbox}. A thread reads up to
+ * {@link APIConfig#OUTBOX_BATCHSIZE} unsent rows in id order, publishes them on a channel in confirm mode, and marks
+ * them sent once the broker confirms the lot, all in one transaction. Batches are serialized across nodes on a
+ * database advisory lock, so notifications on a topic go out in the order they were written. A row is only marked
+ * sent once published, so after an outage of the broker or the database whatever piled up is published then; a batch
+ * published but not marked sent is published again.
+ * <p>
+ * The thread wakes when a transaction writing to the outbox commits on this node, and every
+ * {@link APIConfig#OUTBOX_POLLMILLIS} for rows written by other nodes. Sent rows are deleted after
+ * {@link APIConfig#OUTBOX_RETAINHOURS}.
+ */
+public final class OutboxRelay {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(OutboxRelay.class);
+
+    // First key of the advisory lock taken here, the second is 0
+    private static final int LOCK_NAMESPACE = 0x4f555458;
+
+    private static final long MIN_BACKOFF_MILLIS = 500;
+
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private static final long PURGE_INTERVAL_MILLIS = 60000;
+
+    private static final String LOCK = "SELECT pg_try_advisory_xact_lock(?, 0)";
+
+    private static final String SELECT = "SELECT id, topic, body FROM " + NotificationOutbox.TABLE +
+            " WHERE sent IS NULL ORDER BY id LIMIT ?";
+
+    private static final String MARK_SENT = "UPDATE " + NotificationOutbox.TABLE +
+            " SET sent = now() WHERE id = ANY(?)";
+
+    private static final String PURGE = "DELETE FROM " + NotificationOutbox.TABLE + " WHERE sent < ?";
+
+    private final DataSource dataSource;
+
+    private final RabbitPublisher publisher;
+
+    private final int batchSize;
+
+    private final long pollMillis;
+
+    private final long confirmTimeoutMillis;
+
+    private final long retainMillis;
+
+    private final Semaphore wakeUps = new Semaphore(0);
+
+    private final Thread thread;
+
+    private final LongAdder relayed = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private volatile boolean stopping;
+
+    // Only used by the relay thread
+    private Channel channel;
+
+    private long lastPurge;
+
+    /**
+     * @param dataSource the connection pool holding the outbox table
+     * @param publisher opens the channels the rows are published on
+     * @param config the {@link APIConfig#OUTBOX_BATCHSIZE outbox settings}
+     */
+    public OutboxRelay(DataSource dataSource, RabbitPublisher publisher, Configuration config) {
+        this.dataSource = dataSource;
+        this.publisher = publisher;
+        this.batchSize = Math.max(1, config.getInt(APIConfig.OUTBOX_BATCHSIZE, 500));
+        this.pollMillis = Math.max(10, config.getLong(APIConfig.OUTBOX_POLLMILLIS, 1000));
+        this.confirmTimeoutMillis = Math.max(1, config.getLong(APIConfig.RABBIT_PUBLISH_CONFIRMTIMEOUTMILLIS, 5000));
+        this.retainMillis = TimeUnit.HOURS.toMillis(Math.max(0, config.getLong(APIConfig.OUTBOX_RETAINHOURS, 24)));
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                relayLoop();
+            }
+        }, "outbox-relay");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Has the relay look for unsent rows now, rather than at its next poll
+     */
+    public void wakeUp() {
+        if(wakeUps.availablePermits() == 0) {
+            wakeUps.release();
+        }
+    }
+
+    private void relayLoop() {
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while(!stopping) {
+            try {
+                int relayedCount;
+                do {
+                    relayedCount = relayBatch();
+                } while(relayedCount == batchSize && !stopping);
+                purge();
+                backoffMillis = MIN_BACKOFF_MILLIS;
+            } catch(SQLException | IOException | TimeoutException | ShutdownSignalException e) {
+                failures.increment();
+                log.warn("Failed to relay outbox notifications, retrying in {}ms: {}", backoffMillis, e.getMessage());
+                closeChannel();
+                if(!sleep(backoffMillis)) {
+                    break;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                continue;
+            } catch(InterruptedException e) {
+                break;
+            }
+
+            try {
+                wakeUps.tryAcquire(pollMillis, TimeUnit.MILLISECONDS);
+                wakeUps.drainPermits();
+            } catch(InterruptedException e) {
+                break;
+            }
+        }
+        closeChannel();
+    }
+
+    /**
+     * Publishes the oldest unsent rows, unless another node is
+     *
+     * @return the number of rows published
+     */
+    private int relayBatch() throws SQLException, IOException, TimeoutException, InterruptedException {
+        Connection connection = dataSource.getConnection();
+        try {
+            connection.setAutoCommit(false);
+            try {
+                if(!tryLock(connection)) {
+                    connection.rollback();
+                    return 0;
+                }
+
+                List<Long> ids = new ArrayList<Long>(batchSize);
+                List<OutboundMessage> messages = new ArrayList<OutboundMessage>(batchSize);
+                PreparedStatement select = connection.prepareStatement(SELECT);
+                try {
+                    select.setInt(1, batchSize);
+                    ResultSet rows = select.executeQuery();
+                    while(rows.next()) {
+                        ids.add(rows.getLong(1));
+                        messages.add(new OutboundMessage(rows.getString(2), rows.getString(3)));
+                    }
+                } finally {
+                    select.close();
+                }
+                if(ids.isEmpty()) {
+                    connection.rollback();
+                    return 0;
+                }
+
+                publish(messages);
+
+                PreparedStatement markSent = connection.prepareStatement(MARK_SENT);
+                try {
+                    Array idArray = connection.createArrayOf("bigint", ids.toArray());
+                    markSent.setArray(1, idArray);
+                    markSent.executeUpdate();
+                } finally {
+                    markSent.close();
+                }
+                connection.commit();
+                relayed.add(ids.size());
+                return ids.size();
+            } catch(SQLException | IOException | TimeoutException | InterruptedException | RuntimeException e) {
+                rollbackQuietly(connection);
+                throw e;
+            }
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    private static boolean tryLock(Connection connection) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(LOCK);
+        try {
+            statement.setInt(1, LOCK_NAMESPACE);
+            ResultSet result = statement.executeQuery();
+            return result.next() && result.getBoolean(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void publish(List<OutboundMessage> messages) throws IOException, TimeoutException, InterruptedException {
+        if(channel == null || !channel.isOpen()) {
+            channel = publisher.openConfirmChannel();
+        }
+        for(OutboundMessage message : messages) {
+            channel.basicPublish(publisher.getExchange(), message.getTopic(), null,
+                    message.getBody().getBytes(StandardCharsets.UTF_8));
+        }
+        if(!channel.waitForConfirms(confirmTimeoutMillis)) {
+            throw new IOException("Broker nacked " + messages.size() + " outbox notifications");
+        }
+    }
+
+    /**
+     * Deletes rows sent longer ago than they are kept, at most once a minute
+     */
+    private void purge() throws SQLException {
+        long now = System.currentTimeMillis();
+        if(now - lastPurge < PURGE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastPurge = now;
+        Connection connection = dataSource.getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement(PURGE);
+            try {
+                statement.setTimestamp(1, new Timestamp(now - retainMillis));
+                int purged = statement.executeUpdate();
+                if(purged > 0) {
+                    log.debug("Purged {} sent notifications from the outbox", purged);
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch(InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void closeChannel() {
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch(IOException | TimeoutException | ShutdownSignalException e) {
+                log.debug("Failed to close RabbitMQ channel: {}", e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    private static void rollbackQuietly(Connection connection) {
+        try {
+            connection.rollback();
+        } catch(SQLException e) {
+            log.warn("Failed to roll back an outbox batch: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return the notifications published from the outbox by this node
+     */
+    public long getRelayedCount() {
+        return relayed.sum();
+    }
+
+    /**
+     * @return the times relaying failed and was retried
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Stops the relay thread, waiting for the batch it is publishing
+     */
+    public void shutdown() {
+        stopping = true;
+        wakeUp();
+        try {
+            thread.join(confirmTimeoutMillis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Still backing off, or stuck on the database
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import edu.mit.ll.em.api.metrics.LatencyHistogram;
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Publishes notifications off the request threads. {@link RabbitPublisher#produce(String, String)} puts the message on
+ * a bounded queue and returns; {@link APIConfig#RABBIT_PUBLISH_THREADS} publisher threads, each with a channel of its
+ * own in confirm mode, take up to {@link APIConfig#RABBIT_PUBLISH_BATCHSIZE} messages at a time, publish them and wait
+ * for the broker to confirm the lot. A batch that is nacked, times out or fails is published again once the channel is
+ * reopened, backing off while the broker is unreachable, so a message may be delivered twice but isn't lost while the
+ * node runs.
+ * <p>
+ * Each thread has a queue of its own, {@link APIConfig#RABBIT_PUBLISH_QUEUESIZE} split between them, and topics are
+ * spread over the queues by hash, so the notifications of a topic are published in the order they were produced.
+ * <p>
+ * What happens when a queue is full is the {@link Overflow} policy. On shutdown the threads are given
+ * {@link APIConfig#RABBIT_PUBLISH_SHUTDOWNMILLIS} to empty the queues; what is left is spilled if spilling, or logged
+ * as lost.
+ */
+public final class PublishPipeline implements PublishPipelineMBean {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(PublishPipeline.class);
+
+    /**
+     * What a publish does when the queue is full
+     */
+    public enum Overflow {
+        /** Wait up to {@link APIConfig#RABBIT_PUBLISH_BLOCKMILLIS} for room, then fail with a TimeoutException */
+        BLOCK,
+        /** Drop the oldest message of the queue to make room */
+        DROP_OLDEST,
+        /**
+         * Append to a file under {@link APIConfig#RABBIT_PUBLISH_SPILLDIR}, published in order once the queues empty.
+         * Messages keep going to the file until it is empty, so they aren't reordered.
+         */
+        SPILL
+    }
+
+    private static final String JMX_NAME = "edu.mit.ll.em.api:type=Publisher,name=\"rabbitmq\"";
+
+    private static final String SPILL_FILE = "publish.spill";
+
+    private static final long MIN_BACKOFF_MILLIS = 500;
+
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    // How long an idle publisher thread waits on its queue before checking the spill file and whether to stop
+    private static final long POLL_MILLIS = 100;
+
+    private final RabbitPublisher publisher;
+
+    private final Overflow overflow;
+
+    // A queue per publisher thread, topics spread over them by hash
+    private final List<BlockingQueue<OutboundMessage>> queues = new ArrayList<BlockingQueue<OutboundMessage>>();
+
+    private final int batchSize;
+
+    private final long confirmTimeoutMillis;
+
+    private final long blockMillis;
+
+    private final long shutdownMillis;
+
+    // Null unless spilling
+    private final SpillFile spill;
+
+    // Held by the thread publishing from the spill file, so batches are read and dropped from it one at a time
+    private final Lock replaying = new ReentrantLock();
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private final LongAdder confirmed = new LongAdder();
+
+    private final LongAdder nacked = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder spilled = new LongAdder();
+
+    private final LongAdder lost = new LongAdder();
+
+    private final LatencyHistogram confirmLatency;
+
+    private volatile boolean stopping;
+
+    // System.nanoTime() by which the threads give up on what is left, once stopping
+    private volatile long stopDeadline;
+
+    PublishPipeline(RabbitPublisher publisher, Configuration config, RequestMetrics metrics) throws IOException {
+        this.publisher = publisher;
+        this.overflow = Overflow.valueOf(config.getString(APIConfig.RABBIT_PUBLISH_OVERFLOW, "block")
+                .trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        this.batchSize = Math.max(1, config.getInt(APIConfig.RABBIT_PUBLISH_BATCHSIZE, 100));
+        this.confirmTimeoutMillis = Math.max(1, config.getLong(APIConfig.RABBIT_PUBLISH_CONFIRMTIMEOUTMILLIS, 5000));
+        this.blockMillis = Math.max(0, config.getLong(APIConfig.RABBIT_PUBLISH_BLOCKMILLIS, 1000));
+        this.shutdownMillis = Math.max(0, config.getLong(APIConfig.RABBIT_PUBLISH_SHUTDOWNMILLIS, 10000));
+        this.confirmLatency = metrics.newLatencyHistogram();
+
+        if(overflow == Overflow.SPILL) {
+            File dir = new File(config.getString(APIConfig.RABBIT_PUBLISH_SPILLDIR,
+                    new File(System.getProperty("java.io.tmpdir"), "em-api-spill").getPath()));
+            this.spill = new SpillFile(new File(dir, SPILL_FILE));
+            if(!spill.isEmpty()) {
+                log.info("Publishing {} notifications spilled to {} before the last shutdown", spill.size(),
+                        spill.getFile());
+            }
+        } else {
+            this.spill = null;
+        }
+
+        int count = Math.max(1, config.getInt(APIConfig.RABBIT_PUBLISH_THREADS, 2));
+        int queueSize = Math.max(1, config.getInt(APIConfig.RABBIT_PUBLISH_QUEUESIZE, 10000) / count);
+        for(int i = 0; i < count; i++) {
+            final BlockingQueue<OutboundMessage> queue = new ArrayBlockingQueue<OutboundMessage>(queueSize);
+            queues.add(queue);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    publishLoop(queue);
+                }
+            }, "rabbitmq-publisher-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        register();
+    }
+
+    /**
+     * Queues message to be published
+     *
+     * @throws TimeoutException if blocking and the queue stayed full
+     * @throws IOException if the pipeline is shut down, or spilling and the message couldn't be written
+     */
+    void enqueue(OutboundMessage message) throws IOException, TimeoutException {
+        if(stopping) {
+            throw new IOException("RabbitMQ publisher is shut down");
+        }
+        BlockingQueue<OutboundMessage> queue = queues.get((message.getTopic().hashCode() & Integer.MAX_VALUE) %
+                queues.size());
+        switch(overflow) {
+            case BLOCK:
+                try {
+                    if(!queue.offer(message, blockMillis, TimeUnit.MILLISECONDS)) {
+                        throw new TimeoutException("Publish queue stayed full for " + blockMillis + "ms");
+                    }
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for room on the publish queue");
+                }
+                break;
+            case DROP_OLDEST:
+                while(!queue.offer(message)) {
+                    if(queue.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                break;
+            case SPILL:
+                if(!spill.isEmpty() || !queue.offer(message)) {
+                    spill.append(message);
+                    spilled.increment();
+                }
+                break;
+        }
+    }
+
+    private void publishLoop(BlockingQueue<OutboundMessage> queue) {
+        Channel channel = null;
+        List<OutboundMessage> batch = new ArrayList<OutboundMessage>(batchSize);
+        try {
+            while(!stopping || (!queue.isEmpty() && System.nanoTime() < stopDeadline)) {
+                OutboundMessage first;
+                try {
+                    first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch(InterruptedException e) {
+                    break;
+                }
+                if(first == null) {
+                    // Spilled messages are newer than the queued ones of their topic
+                    if(spill != null && !stopping && isQueueEmpty()) {
+                        channel = replaySpill(channel, batch);
+                    }
+                    continue;
+                }
+
+                batch.clear();
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                channel = publish(channel, batch);
+                if(channel == null) {
+                    abandon(batch);
+                }
+            }
+        } finally {
+            if(channel != null) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    /**
+     * Publishes the oldest spilled messages, if no other thread is, dropping them from the file once confirmed
+     */
+    private Channel replaySpill(Channel channel, List<OutboundMessage> batch) {
+        if(!replaying.tryLock()) {
+            return channel;
+        }
+        try {
+            SpillFile.Batch spilledBatch = spill.read(batchSize);
+            if(spilledBatch == null) {
+                return channel;
+            }
+            batch.clear();
+            batch.addAll(spilledBatch.getMessages());
+            channel = publish(channel, batch);
+            // Left in the file if shut down first, to be published on the next start
+            if(channel != null) {
+                spill.commit(spilledBatch);
+            }
+            return channel;
+        } catch(IOException e) {
+            log.error("Failed to read spilled notifications from {}", spill.getFile(), e);
+            return channel;
+        } finally {
+            replaying.unlock();
+        }
+    }
+
+    /**
+     * Publishes batch and waits for it to be confirmed, retrying until it is or the shutdown grace period is over
+     *
+     * @return the channel to publish the next batch on, or null if the batch was given up
+     */
+    private Channel publish(Channel channel, List<OutboundMessage> batch) {
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while(true) {
+            try {
+                if(channel == null || !channel.isOpen()) {
+                    channel = publisher.openConfirmChannel();
+                }
+                long start = System.nanoTime();
+                for(OutboundMessage message : batch) {
+                    channel.basicPublish(publisher.getExchange(), message.getTopic(), null,
+                            message.getBody().getBytes(StandardCharsets.UTF_8));
+                }
+                if(channel.waitForConfirms(confirmTimeoutMillis)) {
+                    confirmLatency.record(System.nanoTime() - start);
+                    confirmed.add(batch.size());
+                    return channel;
+                }
+                nacked.add(batch.size());
+                log.warn("Broker nacked a batch of {} notifications, publishing it again", batch.size());
+            } catch(IOException | TimeoutException | ShutdownSignalException e) {
+                failed.add(batch.size());
+                log.warn("Failed to publish a batch of {} notifications, retrying in {}ms: {}", batch.size(),
+                        backoffMillis, e.getMessage());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+
+            // Unconfirmed messages can't be told apart on the channel, so it is replaced
+            if(channel != null) {
+                closeQuietly(channel);
+                channel = null;
+            }
+            if(stopping && System.nanoTime() >= stopDeadline) {
+                return null;
+            }
+            try {
+                Thread.sleep(backoffMillis);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Deals with messages that couldn't be published before shutting down
+     */
+    private void abandon(List<OutboundMessage> messages) {
+        if(messages.isEmpty()) {
+            return;
+        }
+        if(spill != null) {
+            try {
+                for(OutboundMessage message : messages) {
+                    spill.append(message);
+                    spilled.increment();
+                }
+                return;
+            } catch(IOException e) {
+                log.error("Failed to spill notifications to {}", spill.getFile(), e);
+            }
+        }
+        lost.add(messages.size());
+        log.warn("Shut down without publishing {} notifications", messages.size());
+    }
+
+    /**
+     * Stops taking messages and waits for the publisher threads to publish those queued, up to the shutdown grace
+     * period
+     */
+    void shutdown() {
+        stopDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownMillis);
+        stopping = true;
+        for(Thread thread : threads) {
+            try {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(stopDeadline - System.nanoTime())));
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for(Thread thread : threads) {
+            thread.interrupt();
+        }
+        for(Thread thread : threads) {
+            try {
+                thread.join(MIN_BACKOFF_MILLIS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        List<OutboundMessage> left = new ArrayList<OutboundMessage>();
+        for(BlockingQueue<OutboundMessage> queue : queues) {
+            queue.drainTo(left);
+        }
+        abandon(left);
+        if(spill != null) {
+            try {
+                spill.close();
+            } catch(IOException e) {
+                log.warn("Failed to close {}: {}", spill.getFile(), e.getMessage());
+            }
+        }
+        unregister();
+    }
+
+    public LatencyHistogram getConfirmLatency() {
+        return confirmLatency;
+    }
+
+    @Override
+    public String getOverflow() {
+        return overflow.name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        int capacity = 0;
+        for(BlockingQueue<OutboundMessage> queue : queues) {
+            capacity += queue.size() + queue.remainingCapacity();
+        }
+        return capacity;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for(BlockingQueue<OutboundMessage> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    private boolean isQueueEmpty() {
+        for(BlockingQueue<OutboundMessage> queue : queues) {
+            if(!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long getSpillBacklog() {
+        return spill == null ? 0 : spill.size();
+    }
+
+    @Override
+    public long getConfirmedCount() {
+        return confirmed.sum();
+    }
+
+    @Override
+    public long getNackedCount() {
+        return nacked.sum();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getSpilledCount() {
+        return spilled.sum();
+    }
+
+    @Override
+    public long getLostCount() {
+        return lost.sum();
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_NAME);
+            if(!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch(JMException e) {
+            log.warn("Failed to register the MBean of the publish pipeline: {}", e.getMessage());
+        }
+    }
+
+    private void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_NAME);
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch(JMException e) {
+            log.warn("Failed to unregister the MBean of the publish pipeline: {}", e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch(IOException | TimeoutException | ShutdownSignalException e) {
+            log.debug("Failed to close RabbitMQ channel: {}", e.getMessage());
+        }
+    }
+}
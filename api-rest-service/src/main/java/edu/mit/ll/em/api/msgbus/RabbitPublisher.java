@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Publishes the change notifications of every service to the NICS RabbitMQ topic exchange, over one connection per
+ * node.
+ * <p>
+ * Channels aren't thread safe, so each publish borrows one from a pool, opening it if none is idle, and returns it
+ * afterwards; at most {@link APIConfig#RABBIT_CHANNELS} are open at once, sized to the request threads that publish, and
+ * a publish waits up to {@link APIConfig#RABBIT_CHANNELWAITMILLIS} for one. A channel that fails is closed rather than
+ * returned.
+ * <p>
+ * The connection is opened on first use and recovers by itself, reopening the pooled channels. While it is down,
+ * publishing throws an {@link AlreadyClosedException}, as the per service producers this replaces did.
+ * <p>
+ * Unless {@link APIConfig#RABBIT_PUBLISH_ASYNC} is off, messages are instead handed to a {@link PublishPipeline}, which
+ * publishes them with confirms on threads of its own, so a request returns once its change is committed.
+ */
+public final class RabbitPublisher {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(RabbitPublisher.class);
+
+    private static final int DEFAULT_CHANNELS = 32;
+
+    private static final long DEFAULT_CHANNELWAITMILLIS = 5000;
+
+    private final String host;
+
+    private final String exchange;
+
+    private final ConnectionFactory factory;
+
+    private final long channelWaitMillis;
+
+    // A permit per channel that may be open, whether idle or borrowed
+    private final Semaphore channels;
+
+    private final BlockingQueue<Channel> idle = new LinkedBlockingQueue<Channel>();
+
+    // Null when publishing synchronously
+    private final PublishPipeline pipeline;
+
+    private volatile Connection connection;
+
+    private volatile boolean closed;
+
+    // Lazy-initialization Holder class idiom.
+    private static class Holder {
+        public static final RabbitPublisher instance = new RabbitPublisher();
+    }
+
+    public static RabbitPublisher getInstance() {
+        return Holder.instance;
+    }
+
+    private RabbitPublisher() {
+        this(APIConfig.getInstance().getConfiguration(), new ConnectionFactory(), RequestMetrics.getInstance());
+    }
+
+    /**
+     * @param config settings of the publisher, see {@link APIConfig#RABBIT_CHANNELS}
+     * @param factory opens the connection, once set up here with the host and credentials of config
+     * @param metrics where the confirm latency of the {@link PublishPipeline} is kept
+     */
+    public RabbitPublisher(Configuration config, ConnectionFactory factory, RequestMetrics metrics) {
+        this.host = config.getString(APIConfig.RABBIT_HOSTNAME_KEY);
+        this.exchange = config.getString(APIConfig.RABBIT_EXCHANGENAME_KEY);
+        this.factory = factory;
+        factory.setHost(host);
+        factory.setUsername(config.getString(APIConfig.RABBIT_USERNAME_KEY));
+        factory.setPassword(config.getString(APIConfig.RABBIT_USERPWD_KEY));
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setTopologyRecoveryEnabled(true);
+        this.channels = new Semaphore(Math.max(1, config.getInt(APIConfig.RABBIT_CHANNELS, DEFAULT_CHANNELS)));
+        this.channelWaitMillis = config.getLong(APIConfig.RABBIT_CHANNELWAITMILLIS, DEFAULT_CHANNELWAITMILLIS);
+        this.pipeline = createPipeline(config, metrics);
+    }
+
+    private PublishPipeline createPipeline(Configuration config, RequestMetrics metrics) {
+        if(!config.getBoolean(APIConfig.RABBIT_PUBLISH_ASYNC, true)) {
+            return null;
+        }
+        try {
+            return new PublishPipeline(this, config, metrics);
+        } catch(IOException | IllegalArgumentException e) {
+            log.error("Failed to start the publish pipeline, publishing on request threads instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the pipeline publishing asynchronously, or null if publishing synchronously
+     */
+    public PublishPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Publishes message to the exchange, or queues it to be published when publishing asynchronously
+     *
+     * @param topic the routing key
+     * @param message the message body
+     * @throws IOException if the broker can't be reached, or the publish fails
+     * @throws TimeoutException if connecting timed out, no channel came free in time, or the publish queue stayed full
+     * @throws AlreadyClosedException if the connection is down and recovering
+     */
+    public void produce(String topic, String message) throws IOException, TimeoutException, AlreadyClosedException {
+        if(pipeline != null) {
+            pipeline.enqueue(new OutboundMessage(topic, message));
+            return;
+        }
+        Channel channel = borrow();
+        boolean healthy = false;
+        try {
+            channel.basicPublish(exchange, topic, null, message.getBytes(StandardCharsets.UTF_8));
+            healthy = true;
+        } finally {
+            giveBack(channel, healthy);
+        }
+    }
+
+    private Channel borrow() throws IOException, TimeoutException {
+        if(closed) {
+            throw new IOException("RabbitMQ publisher is shut down");
+        }
+        try {
+            if(!channels.tryAcquire(channelWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("No RabbitMQ channel came free within " + channelWaitMillis + "ms");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a RabbitMQ channel");
+        }
+
+        boolean borrowed = false;
+        try {
+            Channel channel = idle.poll();
+            while(channel != null && !channel.isOpen()) {
+                closeQuietly(channel);
+                channel = idle.poll();
+            }
+            if(channel == null) {
+                channel = getConnection().createChannel();
+            }
+            borrowed = true;
+            return channel;
+        } finally {
+            if(!borrowed) {
+                channels.release();
+            }
+        }
+    }
+
+    private void giveBack(Channel channel, boolean healthy) {
+        if(healthy && !closed && channel.isOpen()) {
+            idle.offer(channel);
+        } else {
+            closeQuietly(channel);
+        }
+        channels.release();
+    }
+
+    String getExchange() {
+        return exchange;
+    }
+
+    /**
+     * Opens a channel in confirm mode, for a publisher thread of the pipeline to keep
+     */
+    Channel openConfirmChannel() throws IOException, TimeoutException {
+        if(closed) {
+            throw new IOException("RabbitMQ publisher is shut down");
+        }
+        Channel channel = getConnection().createChannel();
+        channel.confirmSelect();
+        return channel;
+    }
+
+    private Connection getConnection() throws IOException, TimeoutException {
+        Connection current = connection;
+        if(current == null) {
+            synchronized(this) {
+                current = connection;
+                if(current == null) {
+                    current = factory.newConnection("em-api publisher");
+                    connection = current;
+                    log.info("Connected to RabbitMQ on {} to publish to {}", host, exchange);
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Publishes what is queued, then closes the pooled channels and the connection
+     */
+    public void freeResources() {
+        if(pipeline != null) {
+            pipeline.shutdown();
+        }
+        closed = true;
+        Channel channel;
+        while((channel = idle.poll()) != null) {
+            closeQuietly(channel);
+        }
+        synchronized(this) {
+            if(connection != null) {
+                try {
+                    connection.close();
+                } catch(IOException | AlreadyClosedException e) {
+                    log.warn("Failed to close RabbitMQ connection: {}", e.getMessage());
+                }
+                connection = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch(IOException | TimeoutException | AlreadyClosedException e) {
+            log.debug("Failed to close RabbitMQ channel: {}", e.getMessage());
+        }
+    }
+}
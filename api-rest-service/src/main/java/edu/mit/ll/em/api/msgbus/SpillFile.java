@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages spilled to disk when the publish queue is full, read back in the order they were written. Reading doesn't
+ * consume: a batch is only skipped over once {@link #commit(Batch)} says it was published. The file outlives the
+ * process, so messages spilled before a shutdown are published after the next start.
+ * <p>
+ * The file starts with a header holding where the first record not yet published starts, rewritten on each commit but
+ * not synced, so after a crash the last batches committed may be published again; after a clean shutdown, none are.
+ * The committed records ahead of it are dropped once the file is empty, or compacted away once they are over
+ * compactBytes and outweigh the records left, by copying those to the front.
+ * <p>
+ * Records are the topic and the body, each as a length prefixed UTF-8 string. A record cut short by a crash ends the
+ * file.
+ */
+public final class SpillFile {
+
+    /**
+     * Committed bytes over which the file is compacted, by default
+     */
+    public static final long DEFAULT_COMPACTBYTES = 1 << 20;
+
+    // Length of the header, the read position
+    private static final long HEADER = 8;
+
+    private final File file;
+
+    private final RandomAccessFile data;
+
+    private final long compactBytes;
+
+    // Where the next record to publish starts
+    private long readPosition;
+
+    private long count;
+
+    public SpillFile(File file) throws IOException {
+        this(file, DEFAULT_COMPACTBYTES);
+    }
+
+    /**
+     * @param file the file, created if need be, or reopened with what an earlier run left in it
+     * @param compactBytes committed bytes over which the file is compacted
+     */
+    public SpillFile(File file, long compactBytes) throws IOException {
+        File dir = file.getParentFile();
+        if(dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        this.file = file;
+        this.compactBytes = compactBytes;
+        this.data = new RandomAccessFile(file, "rw");
+
+        if(data.length() < HEADER) {
+            data.setLength(0);
+            writeReadPosition(HEADER);
+        } else {
+            data.seek(0);
+            readPosition = data.readLong();
+            // Past the end only if a compaction was cut short once it had moved the records to the front
+            if(readPosition < HEADER || readPosition > data.length()) {
+                writeReadPosition(HEADER);
+            }
+        }
+
+        // Counts what an earlier run left unpublished, dropping a partly written record at the end
+        long position = readPosition;
+        while(position < data.length()) {
+            data.seek(position);
+            try {
+                skipString();
+                skipString();
+            } catch(EOFException e) {
+                data.setLength(position);
+                break;
+            }
+            position = data.getFilePointer();
+            count++;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the messages spilled and not yet published
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * @return the length of the file, header and committed records included
+     */
+    public synchronized long length() throws IOException {
+        return data.length();
+    }
+
+    public synchronized void append(OutboundMessage message) throws IOException {
+        data.seek(data.length());
+        writeString(message.getTopic());
+        writeString(message.getBody());
+        count++;
+    }
+
+    /**
+     * @param max most messages to read
+     * @return the oldest messages not yet published, or null if there are none
+     */
+    public synchronized Batch read(int max) throws IOException {
+        if(count == 0) {
+            return null;
+        }
+        data.seek(readPosition);
+        List<OutboundMessage> messages = new ArrayList<OutboundMessage>((int) Math.min(count, max));
+        while(messages.size() < max && data.getFilePointer() < data.length()) {
+            String topic = readString();
+            messages.add(new OutboundMessage(topic, readString()));
+        }
+        return new Batch(messages, data.getFilePointer());
+    }
+
+    /**
+     * Skips over the batch, as it has been published. It must be the last batch read, and nothing may have been
+     * committed since it was.
+     */
+    public synchronized void commit(Batch batch) throws IOException {
+        count -= batch.messages.size();
+        if(count <= 0 || batch.end >= data.length()) {
+            count = 0;
+            data.setLength(HEADER);
+            writeReadPosition(HEADER);
+        } else if(batch.end - HEADER > compactBytes && batch.end - HEADER > data.length() - batch.end) {
+            compact(batch.end);
+        } else {
+            writeReadPosition(batch.end);
+        }
+    }
+
+    /**
+     * Moves the records from start on to the front. They are shorter than what they are moved over, so they are copied
+     * whole before the file is cut, and the header is only pointed at them once it has been; see the constructor for
+     * a compaction cut short between the two.
+     */
+    private void compact(long start) throws IOException {
+        long live = data.length() - start;
+        byte[] buffer = new byte[(int) Math.min(live, 64 * 1024)];
+        for(long copied = 0; copied < live; ) {
+            data.seek(start + copied);
+            int read = data.read(buffer, 0, (int) Math.min(buffer.length, live - copied));
+            if(read < 0) {
+                throw new EOFException("Spill file " + file + " ended while compacting it");
+            }
+            data.seek(HEADER + copied);
+            data.write(buffer, 0, read);
+            copied += read;
+        }
+        data.getFD().sync();
+        data.setLength(HEADER + live);
+        writeReadPosition(HEADER);
+        data.getFD().sync();
+    }
+
+    public synchronized void close() throws IOException {
+        data.close();
+    }
+
+    private void writeReadPosition(long position) throws IOException {
+        data.seek(0);
+        data.writeLong(position);
+        readPosition = position;
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void skipString() throws IOException {
+        int length = data.readInt();
+        if(length < 0 || data.getFilePointer() + length > data.length()) {
+            throw new EOFException();
+        }
+        data.seek(data.getFilePointer() + length);
+    }
+
+    /**
+     * Messages read from the file, and where they end
+     */
+    public static final class Batch {
+
+        private final List<OutboundMessage> messages;
+
+        private final long end;
+
+        private Batch(List<OutboundMessage> messages, long end) {
+            this.messages = messages;
+            this.end = end;
+        }
+
+        public List<OutboundMessage> getMessages() {
+            return messages;
+        }
+    }
+}
@@ -30,12 +30,19 @@
 package edu.mit.ll.em.api.msgbus;
 
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 
+/**
+ * A subscriber's queue of messages. The session expires once it goes unused for its timeout, in seconds; a get waiting
+ * for messages counts as use. A timeout of 0 or less never expires. A session whose queue overflows under
+ * {@link MsgBusQueue.Overflow#DISCONNECT} terminates.
+ */
 public class SubscriptionSession {
 
     /**
@@ -49,11 +56,39 @@ public class SubscriptionSession {
 
     private int timeout = -1;   // Never, by default.
 
-    private MsgBusQueue msgbusQueue = new MsgBusQueue();
+    private final MsgBusQueue msgbusQueue;
+
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    // Gets waiting for messages
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private volatile boolean terminated;
+
+    public SubscriptionSession() {
+        this(new MsgBusQueue());
+    }
+
+    /**
+     * @param msgbusQueue holds the messages posted until the subscriber gets them
+     */
+    public SubscriptionSession(MsgBusQueue msgbusQueue) {
+        this.msgbusQueue = msgbusQueue;
+    }
 
     public static SubscriptionSession create(String subscriberIdStr,
                                              String[] topicList, String timeoutStr) throws
             MsgBusSubscriptionException {
+        return create(subscriberIdStr, topicList, timeoutStr, new MsgBusQueue());
+    }
+
+    /**
+     * @param msgbusQueue the queue of the session, see {@link #SubscriptionSession(MsgBusQueue)}
+     */
+    public static SubscriptionSession create(String subscriberIdStr,
+                                             String[] topicList, String timeoutStr,
+                                             MsgBusQueue msgbusQueue) throws
+            MsgBusSubscriptionException {
         long subscriberId = -1;
         try {
             subscriberId = Long.parseLong(subscriberIdStr);
@@ -76,7 +111,7 @@ public class SubscriptionSession {
             throw ex;
         }
 
-        SubscriptionSession s = new SubscriptionSession();
+        SubscriptionSession s = new SubscriptionSession(msgbusQueue);
         s.setSubscriberId(subscriberId);
         s.setTopicList(topicList);
         s.setTimeout(timeoutSecs);
@@ -107,20 +142,100 @@ public class SubscriptionSession {
         this.timeout = timeout;
     }
 
+    /**
+     * Drops the messages waiting, ends the gets waiting for more, and ignores what is posted from now on
+     */
     public void terminate() {
-        // TODO: Implementation.
+        terminated = true;
+        msgbusQueue.close();
         log.info("Subscription terminated: {}", this.getSubscriberId());
     }
 
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * @return System.nanoTime() the session expires at if left unused, or Long.MAX_VALUE if it never does
+     */
+    public long getExpiryNanos() {
+        if(timeout <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return lastUsedNanos + TimeUnit.SECONDS.toNanos(timeout);
+    }
+
+    /**
+     * @return whether a get is waiting for messages, which keeps the session from expiring
+     */
+    public boolean isWaiting() {
+        return waiting.get() > 0 || msgbusQueue.getWaiterCount() > 0;
+    }
+
     public void post(MsgEnvelope msg) {
-        msgbusQueue.put(msg);
+        if(!msgbusQueue.put(msg)) {
+            disconnectIfOverflowed();
+        }
     }
 
     public void post(Collection<MsgEnvelope> msgs) {
-        msgbusQueue.put(msgs);
+        if(!msgbusQueue.put(msgs)) {
+            disconnectIfOverflowed();
+        }
+    }
+
+    private void disconnectIfOverflowed() {
+        if(!terminated && msgbusQueue.isOverflowed()) {
+            log.warn("Subscription {} fell too far behind, its queue overflowed after {} messages, disconnecting it",
+                    subscriberId, msgbusQueue.getMaxDepth());
+            terminate();
+        }
+    }
+
+    /**
+     * @return whether the subscription was ended by its queue overflowing
+     */
+    public boolean isDisconnected() {
+        return msgbusQueue.isOverflowed();
+    }
+
+    /**
+     * @return the queue, for its metrics
+     */
+    public MsgBusQueue getQueue() {
+        return msgbusQueue;
     }
 
     public Collection<MsgEnvelope> get() {
+        lastUsedNanos = System.nanoTime();
         return msgbusQueue.get();
     }
+
+    /**
+     * @see MsgBusQueue#get(int, long)
+     */
+    public Collection<MsgEnvelope> get(int maxBatch, long maxWaitMillis) {
+        lastUsedNanos = System.nanoTime();
+        waiting.incrementAndGet();
+        try {
+            return msgbusQueue.get(maxBatch, maxWaitMillis);
+        } finally {
+            lastUsedNanos = System.nanoTime();
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * @see MsgBusQueue#get(MsgBusQueue.Waiter)
+     */
+    public void get(MsgBusQueue.Waiter waiter) {
+        lastUsedNanos = System.nanoTime();
+        waiter.setOnResumed(new Runnable() {
+            @Override
+            public void run() {
+                lastUsedNanos = System.nanoTime();
+            }
+        });
+        msgbusQueue.get(waiter);
+    }
 }
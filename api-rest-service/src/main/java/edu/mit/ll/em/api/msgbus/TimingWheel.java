@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel: items are put in the slot of the tick they are due at, and {@link #advance(long)} collects those
+ * due by walking the slots of the ticks that passed. Scheduling and expiring are O(1) however many items there are,
+ * at the cost of firing up to one tick late. An item due more than a turn of the wheel away stays in its slot until
+ * the turn it is due.
+ * <p>
+ * Items can't be cancelled; whoever handles an expired item checks whether it is still due, and schedules it again if
+ * it was pushed back in the meantime.
+ */
+public final class TimingWheel<T> {
+
+    private static final class Entry<T> {
+        final T item;
+        final long dueTick;
+
+        Entry(T item, long dueTick) {
+            this.item = item;
+            this.dueTick = dueTick;
+        }
+    }
+
+    private final long tickNanos;
+
+    private final List<Entry<T>>[] slots;
+
+    private final int mask;
+
+    private final long startNanos;
+
+    // The last tick advanced past
+    private long currentTick;
+
+    private int size;
+
+    /**
+     * @param tickNanos resolution of the wheel
+     * @param slotCount slots in the wheel, rounded up to a power of two
+     * @param nowNanos System.nanoTime() the wheel starts at
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickNanos, int slotCount, long nowNanos) {
+        int count = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.slots = new List[count];
+        for(int i = 0; i < count; i++) {
+            slots[i] = new ArrayList<Entry<T>>();
+        }
+        this.mask = count - 1;
+        this.startNanos = nowNanos;
+    }
+
+    /**
+     * Schedules item to be returned by the first {@link #advance(long)} at or after dueNanos
+     */
+    public synchronized void schedule(T item, long dueNanos) {
+        // Rounded up, and never into a tick already passed
+        long dueTick = Math.max(currentTick + 1, (dueNanos - startNanos + tickNanos - 1) / tickNanos);
+        slots[(int) (dueTick & mask)].add(new Entry<T>(item, dueTick));
+        size++;
+    }
+
+    /**
+     * @return the items due by nowNanos, removed from the wheel
+     */
+    public synchronized List<T> advance(long nowNanos) {
+        List<T> due = new ArrayList<T>();
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+        // Past a full turn every slot has been walked, later ticks would only walk them again
+        long lastTick = Math.min(nowTick, currentTick + slots.length);
+        for(long tick = currentTick + 1; tick <= lastTick; tick++) {
+            Iterator<Entry<T>> entries = slots[(int) (tick & mask)].iterator();
+            while(entries.hasNext()) {
+                Entry<T> entry = entries.next();
+                if(entry.dueTick <= nowTick) {
+                    due.add(entry.item);
+                    entries.remove();
+                    size--;
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+        return due;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
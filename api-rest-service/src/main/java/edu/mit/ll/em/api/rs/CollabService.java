@@ -126,6 +126,7 @@ public interface CollabService {
     @Path("/{collabroomId}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
+    @RateLimited("presence")
     Response postCollabRoomPresence(
             @PathParam("incidentId") int incidentId,
             @PathParam("collabroomId") int collabroomId,
@@ -36,17 +36,19 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
 
 
 @Path("/collab/export")
+@Bulkhead("export")
 public interface DatalayerExport {
 
     @GET
     @Path(value = "/{collabroomId}/incident/{incidentId}/user/{userId}/type/{exportType}/format/{exportFormat}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    Response getDatalayer(
+    void getDatalayer(
             @PathParam("userId") long userId,
             @PathParam("collabroomId") int collabroomId,
             @PathParam("incidentId") int incidentId,
@@ -54,14 +56,16 @@ public interface DatalayerExport {
             @PathParam("exportFormat") String exportFormat,
             @QueryParam("lat") Double latitude,
             @QueryParam("lon") Double longitude,
-            @HeaderParam("X-Remote-User") String username);
+            @HeaderParam("X-Remote-User") String username,
+            @Suspended AsyncResponse asyncResponse);
 
     @GET
     @Path(value = "/incident/{incidentId}/user/{userId}/format/{exportFormat}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    Response getCapabilities(
+    void getCapabilities(
             @PathParam("userId") int userId,
             @PathParam("incidentId") int incidentId,
-            @PathParam("exportFormat") String exportFormat);
+            @PathParam("exportFormat") String exportFormat,
+            @Suspended AsyncResponse asyncResponse);
 
 }
\ No newline at end of file
@@ -32,6 +32,8 @@ package edu.mit.ll.em.api.rs;
 import java.util.ArrayList;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -41,6 +43,7 @@ import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.Multipart;
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.nics.common.entity.datalayer.Datalayer;
 import edu.mit.ll.nics.common.entity.datalayer.Datasource;
 
@@ -50,6 +53,7 @@ public interface DatalayerService {
     @GET
     @Path("/{folderId}")
     @Produces(MediaType.APPLICATION_JSON)
+    @Versioned(ResourceVersions.DATALAYERS)
     Response getDatalayers(@PathParam("folderId") String folderId);
 
     @GET
@@ -80,6 +84,7 @@ public interface DatalayerService {
     @Path("/sources/{dataSourceId}/layer")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     public Response postDataLayer(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("dataSourceId") String dataSourceId,
@@ -90,6 +95,7 @@ public interface DatalayerService {
     @Path("/sources/{dataSourceId}/tracking/layer")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     public Response postTrackingLayer(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("dataSourceId") String dataSourceId,
@@ -98,6 +104,7 @@ public interface DatalayerService {
     @DELETE
     @Path("/sources/{dataSourceId}/layer")
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     Response deleteDataLayer(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("dataSourceId") String dataSourceId);
@@ -106,6 +113,7 @@ public interface DatalayerService {
     @Path("/sources/layer/update")
     @Produces(MediaType.APPLICATION_JSON)
     @Consumes(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     Response updateDataLayer(
             @PathParam("workspaceId") int workspaceId,
             Datalayer datalayer);
@@ -115,6 +123,8 @@ public interface DatalayerService {
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.APPLICATION_JSON)
 
+    @Changes(ResourceVersions.DATALAYERS)
+    @Bulkhead("layerimport")
     public Response postDataLayerDocument(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("dataSourceId") String dataSourceId,
@@ -133,6 +143,7 @@ public interface DatalayerService {
     @Path("/sources/{dataSourceId}/georss/{userOrgId}/{usersessionId}")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     public Response postGeorssDataLayerDocument(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("dataSourceId") String dataSourceId,
@@ -148,18 +159,23 @@ public interface DatalayerService {
     @Path("/shapefile")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.APPLICATION_JSON)
-    Response postShapeDataLayer(
+    @Changes(ResourceVersions.DATALAYERS)
+    @Bulkhead("layerimport")
+    void postShapeDataLayer(
             @PathParam("workspaceId") int workspaceId,
             @Multipart("displayName") String displayName,
             MultipartBody body,
             @HeaderParam("X-Remote-User") String username,
-            @Multipart("folderid") String folderId);
+            @Multipart("folderid") String folderId,
+            @Suspended AsyncResponse asyncResponse);
 
     @POST
     @Path("/geotiff")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.APPLICATION_JSON)
-    Response postGeotiffDataLayer(
+    @Changes(ResourceVersions.DATALAYERS)
+    @Bulkhead("layerimport")
+    void postGeotiffDataLayer(
             @PathParam("workspaceId") int workspaceId,
             @Multipart("displayName") String displayName,
             @Multipart("filename") String fileName,
@@ -167,12 +183,15 @@ public interface DatalayerService {
             @QueryParam("isMosaic") boolean isMosaic,
             MultipartBody body,
             @HeaderParam("X-Remote-User") String username,
-            @Multipart("folderid") String folderId);
+            @Multipart("folderid") String folderId,
+            @Suspended AsyncResponse asyncResponse);
 
     @POST
     @Path("/georss")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
+    @Bulkhead("layerimport")
     public Response postGeorssDataLayer(
             @PathParam("workspaceId") int workspaceId,
             @Multipart("displayName") String displayName,
@@ -186,6 +205,8 @@ public interface DatalayerService {
     @Path("/image")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
+    @Bulkhead("layerimport")
     Response postImageDataLayer(
             @PathParam("workspaceId") int workspaceId,
             @Multipart("id") String id,
@@ -196,13 +217,16 @@ public interface DatalayerService {
     @Path("/image/finish")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    Response finishImageLayer(
+    @Changes(ResourceVersions.DATALAYERS)
+    @Bulkhead("layerimport")
+    void finishImageLayer(
             @QueryParam("cancel") boolean cancel,
             @PathParam("workspaceId") int workspaceId,
             @QueryParam("id") String id,
             @QueryParam("title") String title,
             @QueryParam("usersessionid") int usersessionId,
-            @QueryParam("folderId") String folderId);
+            @QueryParam("folderId") String folderId,
+            @Suspended AsyncResponse asyncResponse);
 
 
     @GET
@@ -242,6 +266,7 @@ public interface DatalayerService {
     @DELETE
     @Path("/datasource/{dataSourceId}")
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     Response deleteDatasource(
             @PathParam("dataSourceId") String dataSourceId,
             @HeaderParam("X-Remote-User") String username);
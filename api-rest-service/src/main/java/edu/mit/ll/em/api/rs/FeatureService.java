@@ -46,6 +46,7 @@ import javax.ws.rs.core.Response;
 
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.nics.common.entity.FeatureComment;
 
 
@@ -56,6 +57,7 @@ public interface FeatureService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/update/collabroom/{collabRoomId}")
+    @Changes(ResourceVersions.COLLABROOM_FEATURES + "{collabRoomId}")
     public Response updateFeature(
             @PathParam("collabRoomId") int collabRoomId,
             @DefaultValue("3857") @QueryParam("geoType") int geoType,
@@ -66,6 +68,7 @@ public interface FeatureService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/collabroom/{collabRoomId}")
+    @Changes(ResourceVersions.COLLABROOM_FEATURES + "{collabRoomId}")
     Response postCollabRoomFeature(
             @PathParam("collabRoomId") int collabRoomId,
             @DefaultValue("3857") @QueryParam("geoType") int geoType,
@@ -76,6 +79,7 @@ public interface FeatureService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/remove/collabroom/{featureId}")
+    @Changes(ResourceVersions.COLLABROOM_FEATURES + "{collabRoomId}")
     Response deleteCollabRoomFeature(
             @QueryParam("collabRoomId") int collabRoomId,
             @PathParam("featureId") long featureId,
@@ -85,6 +89,7 @@ public interface FeatureService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/update/user")
+    @Changes(ResourceVersions.FEATURES)
     Response updateUserFeature(
             String feature);
 
@@ -102,6 +107,7 @@ public interface FeatureService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/remove/user/{featureId}")
+    @Changes(ResourceVersions.FEATURES)
     Response deleteUserFeature(
             @PathParam("featureId") long featureId);
 
@@ -109,6 +115,8 @@ public interface FeatureService {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/collabroom/{collabRoomId}")
+    @Versioned({ResourceVersions.COLLABROOM_FEATURES + "{collabRoomId}",
+            ResourceVersions.COLLABROOM_PERMISSIONS + "{collabRoomId}", ResourceVersions.FEATURES})
     Response getCollabroomFeatures(
             @PathParam("collabRoomId") int collabRoomId,
             @QueryParam("userId") long userId,
@@ -121,6 +129,7 @@ public interface FeatureService {
     @Path(value = "/user/{userId}")
     Response getUserFeatures(
             @PathParam("userId") int userId,
+            @QueryParam("fields") String fields,
             @HeaderParam("X-Remote-User") String username);
 
     @GET
@@ -158,6 +167,7 @@ public interface FeatureService {
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/{featureId}/document")
+    @Changes(ResourceVersions.FEATURES)
     public Response postFeatureDocument(
             @PathParam("featureId") long featureId,
             @QueryParam("usersessionId") int usersessionId,
@@ -169,6 +179,7 @@ public interface FeatureService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/{featureId}/document")
+    @Changes(ResourceVersions.FEATURES)
     public Response postFeatureDocument(
             @PathParam("featureId") long featureId,
             @QueryParam("documentId") String documentId,
@@ -186,6 +197,7 @@ public interface FeatureService {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/user/{userId}/share")
+    @Changes(ResourceVersions.COLLABROOM_FEATURES + "{collabRoomId}")
     Response shareWorkspace(
             @PathParam("userId") int userId,
             @QueryParam("collabRoomId") int collabRoomId,
@@ -194,6 +206,7 @@ public interface FeatureService {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/user/{userId}/unshare")
+    @Changes(ResourceVersions.COLLABROOM_FEATURES + "{collabRoomId}")
     Response unshareWorkspace(
             @PathParam("userId") int userId,
             @QueryParam("collabRoomId") int collabRoomId,
@@ -203,6 +216,7 @@ public interface FeatureService {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/user/{userId}/copy")
+    @Changes(ResourceVersions.COLLABROOM_FEATURES + "{collabRoomId}")
     Response copyWorkspace(
             @PathParam("userId") int userId,
             @QueryParam("collabRoomId") int collabRoomId,
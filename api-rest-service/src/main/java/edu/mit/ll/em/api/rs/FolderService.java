@@ -33,6 +33,7 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.nics.common.entity.datalayer.Folder;
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.Multipart;
@@ -76,6 +77,7 @@ public interface FolderService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
 
+    @Changes(ResourceVersions.DATALAYERS)
     public Response postFolder(
             @PathParam("workspaceId") int workspaceId,
             Folder folder);
@@ -147,6 +149,7 @@ public interface FolderService {
     @Path(value = "/update")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     Response updateFolder(
             @PathParam("workspaceId") int workspaceId,
             Folder folder);
@@ -154,6 +157,7 @@ public interface FolderService {
     @DELETE
     @Path(value = "/{folderId}")
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     Response deleteFolder(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("folderId") String folderId);
@@ -161,6 +165,7 @@ public interface FolderService {
     @POST
     @Path(value = "/move/{parentFolderId}")
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.DATALAYERS)
     Response moveFolder(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("parentFolderId") String parentFolderId,
@@ -48,6 +48,7 @@ import javax.ws.rs.core.Response;
 
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.em.api.exception.DuplicateCollabRoomException;
 import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.nics.common.entity.IncidentOrg;
@@ -56,13 +57,16 @@ import edu.mit.ll.nics.common.entity.IncidentOrg;
 public interface IncidentService {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
+    @Versioned({ResourceVersions.INCIDENTS, ResourceVersions.ORGS, ResourceVersions.USERORGS})
     Response getIncidents(
             @PathParam("workspaceId") Integer workspaceId,
-            @QueryParam("accessibleByUserId") Integer userId);
+            @QueryParam("accessibleByUserId") Integer userId,
+            @QueryParam("fields") String fields);
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/getincidenttree")
+    @Versioned({ResourceVersions.INCIDENTS, ResourceVersions.ORGS, ResourceVersions.USERORGS})
     Response getIncidentsTree(
             @PathParam("workspaceId") Integer workspaceId,
             @QueryParam("accessibleByUserId") Integer userId);
@@ -115,6 +119,7 @@ public interface IncidentService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/update")
+    @Changes(ResourceVersions.INCIDENTS)
     Response updateIncident(
             @PathParam("workspaceId") Integer workspaceId,
             Incident incident,
@@ -124,6 +129,7 @@ public interface IncidentService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/archive/{incidentId}/{folderId}")
+    @Changes(ResourceVersions.INCIDENTS)
     public Response archiveIncident(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("incidentId") int incidentId,
@@ -134,6 +140,7 @@ public interface IncidentService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path(value = "/activate/{incidentId}")
+    @Changes(ResourceVersions.INCIDENTS)
     Response activateIncident(
             @PathParam("workspaceId") int workspaceId,
             @PathParam("incidentId") int incidentId,
@@ -153,6 +160,7 @@ public interface IncidentService {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.INCIDENTS)
     Response postIncident(
             @PathParam("workspaceId") Integer workspaceId,
             @QueryParam("orgId") Integer orgId,
@@ -186,6 +194,7 @@ public interface IncidentService {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/orgs/{incidentId}")
+    @Changes(ResourceVersions.INCIDENTS)
     Response postIncidentOrgs(List<IncidentOrg> incidentOrgs,
                               @PathParam("incidentId") Integer incidentId,
                               @HeaderParam("X-Remote-User") String requestingUser,
@@ -204,6 +213,7 @@ public interface IncidentService {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/orgs/remove/{incidentId}")
+    @Changes(ResourceVersions.INCIDENTS)
     Response deleteIncidentOrgs(List<IncidentOrg> incidentOrgs,
                                 @PathParam("incidentId") Integer incidentId,
                                 @HeaderParam("X-Remote-User") String requestingUser,
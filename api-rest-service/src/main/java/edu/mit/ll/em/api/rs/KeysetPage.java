@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.nics.nicsdao.query.QueryConstraint;
+
+/**
+ * A page of rows read in (time, id) order, with the opaque cursor the client passes back to read the next page.
+ * <p>
+ * Paging by offset makes the database read and throw away every row before the page, and pages shift as rows are
+ * added. Here the next page is read from where the last one ended instead: the cursor holds the time and id of the
+ * last row returned, the query is narrowed to rows from that time on (up to it, when newest first), and rows sharing
+ * that time are told apart by id. The DAOs only take a date range, so the rows at the boundary time are read again and
+ * dropped here.
+ * <p>
+ * One row more than the page is asked for, to tell whether there is a next page. When the query comes back full, the
+ * rows sharing the time of its last row may only be partly read, so the page ends before them.
+ * <p>
+ * Only requests carrying a cursor are paged this way; an empty cursor asks for the first page. The query must honor
+ * its row limit, or every page reads the whole remainder of the rows.
+ */
+public class KeysetPage<T> {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(KeysetPage.class);
+
+    /**
+     * Reads the time and id of a row
+     */
+    public interface RowKey<T> {
+
+        long getTime(T row);
+
+        long getId(T row);
+    }
+
+    /**
+     * Reads at most maxRows rows in the given date range and order, see {@link #dateRange} and {@link #orderBy} to
+     * build the DAO constraints
+     */
+    public interface Query<T> {
+
+        /**
+         * @param fromDate   earliest time to read, null for the whole range
+         * @param toDate     latest time to read, null for no bound
+         * @param descending whether to read newest first
+         * @param maxRows    most rows to read
+         */
+        List<T> fetch(Long fromDate, Long toDate, boolean descending, int maxRows);
+    }
+
+    private static final String ASCENDING = "a";
+
+    private static final String DESCENDING = "d";
+
+    private static final String SEPARATOR = ":";
+
+    private final List<T> rows;
+
+    private final String nextCursor;
+
+    private KeysetPage(List<T> rows, String nextCursor) {
+        this.rows = rows;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return the rows of this page, in order
+     */
+    public List<T> getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the cursor of the next page, null if this is the last one
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Whether a request is paged by cursor rather than by offset: it carries a cursor, empty for the first page, and
+     * is not sorted or ranged on a column other than dateColumn. Requests without a cursor keep offset paging, whether
+     * or not they have a limit.
+     *
+     * @param opts the request's query options
+     * @param dateColumn the column the rows are paged on
+     */
+    public static boolean isKeysetRequest(QueryConstraintParms opts, String dateColumn) {
+        if(opts == null) {
+            return false;
+        }
+        if(opts.getCursor() == null) {
+            return false;
+        }
+        return (opts.getSortByColumn() == null || dateColumn.equalsIgnoreCase(opts.getSortByColumn())) &&
+                (opts.getDateColumn() == null || dateColumn.equalsIgnoreCase(opts.getDateColumn()));
+    }
+
+    /**
+     * Reads the page the request asks for. The sort order is taken from the request, the page size from its limit,
+     * and its fromDate and toDate still bound the rows.
+     *
+     * @param opts the request's query options
+     * @param dateColumn the column the rows are paged on, the one key reads the time from
+     * @param maxRows the largest page size allowed
+     * @param key reads the time and id of a row
+     * @param query reads the rows
+     * @return the page
+     * @throws IllegalArgumentException if the cursor is not one this sort order handed out
+     */
+    public static <T> KeysetPage<T> read(QueryConstraintParms opts, String dateColumn, int maxRows,
+            RowKey<T> key, Query<T> query) {
+        boolean descending = QueryConstraint.OrderByType.DESC.toString().equalsIgnoreCase(opts.getSortOrder());
+        int limit = (opts.getLimit() == null || opts.getLimit() > maxRows) ? maxRows : Math.max(1, opts.getLimit());
+
+        long[] after = null;
+        if(opts.getCursor() != null && !opts.getCursor().trim().isEmpty()) {
+            after = decode(opts.getCursor(), descending);
+        }
+
+        Long[] range = makeDateRange(opts, after, descending);
+        Comparator<T> order = new KeyComparator<T>(key, descending);
+
+        // The last row of the previous page is read again, so it doesn't count against the page
+        int fetchSize = after == null ? limit + 1 : limit + 2;
+        while(true) {
+            List<T> fetched = query.fetch(range[0], range[1], descending, fetchSize);
+            boolean full = fetched.size() >= fetchSize;
+
+            List<T> kept = new ArrayList<T>(fetched.size());
+            for(T row : fetched) {
+                if(after == null || isPast(key, row, after, descending)) {
+                    kept.add(row);
+                }
+            }
+            Collections.sort(kept, order);
+
+            if(!full) {
+                if(kept.size() > limit) {
+                    return page(kept, limit, key, descending);
+                }
+                return new KeysetPage<T>(kept, null);
+            }
+
+            // Rows at the time of the last one read may not all have been read, leave them to the next page
+            int complete = kept.size();
+            if(complete > 0) {
+                long lastTime = key.getTime(kept.get(complete - 1));
+                while(complete > 0 && key.getTime(kept.get(complete - 1)) == lastTime) {
+                    complete--;
+                }
+            }
+            if(complete > 0) {
+                return page(kept, Math.min(limit, complete), key, descending);
+            }
+            if(fetchSize >= limit + maxRows) {
+                log.warn("More than {} rows share the time {} on {}, paging past them",
+                        fetchSize, kept.isEmpty() ? null : key.getTime(kept.get(0)), dateColumn);
+                return page(kept, Math.min(limit, kept.size()), key, descending);
+            }
+            fetchSize = Math.min(fetchSize * 2, limit + maxRows);
+        }
+    }
+
+    private static <T> KeysetPage<T> page(List<T> rows, int size, RowKey<T> key, boolean descending) {
+        if(size == 0) {
+            return new KeysetPage<T>(new ArrayList<T>(), null);
+        }
+        List<T> pageRows = new ArrayList<T>(rows.subList(0, size));
+        T last = pageRows.get(size - 1);
+        return new KeysetPage<T>(pageRows, encode(key.getTime(last), key.getId(last), descending));
+    }
+
+    /**
+     * @return the DAO date range from fromDate to toDate, or null for the whole range when fromDate is null
+     */
+    public static QueryConstraint.UTCRange dateRange(String dateColumn, Long fromDate, Long toDate) {
+        return fromDate == null ? null : new QueryConstraint.UTCRange(dateColumn, fromDate, toDate);
+    }
+
+    /**
+     * @return the DAO order of dateColumn
+     */
+    public static QueryConstraint.OrderBy orderBy(String dateColumn, boolean descending) {
+        return new QueryConstraint.OrderBy(dateColumn,
+                descending ? QueryConstraint.OrderByType.DESC : QueryConstraint.OrderByType.ASC);
+    }
+
+    /**
+     * The request's date range, narrowed to start at the cursor. The range reaches a millisecond past the cursor's
+     * time, the rows at that time are sorted out by id once read.
+     *
+     * @return the from and to dates, from null for the whole range
+     */
+    private static Long[] makeDateRange(QueryConstraintParms opts, long[] after, boolean descending) {
+        Long fromDate = opts.getFromDate();
+        Long toDate = opts.getToDate();
+        if(after != null) {
+            if(descending) {
+                toDate = (toDate == null) ? after[0] + 1 : Math.min(toDate, after[0] + 1);
+                if(fromDate == null) {
+                    fromDate = 0L;
+                }
+            } else {
+                fromDate = (fromDate == null) ? after[0] - 1 : Math.max(fromDate, after[0] - 1);
+            }
+        }
+        if(fromDate == null) {
+            return new Long[]{null, null};
+        }
+        return new Long[]{fromDate, toDate};
+    }
+
+    private static <T> boolean isPast(RowKey<T> key, T row, long[] after, boolean descending) {
+        int cmp = compare(key.getTime(row), key.getId(row), after[0], after[1]);
+        return descending ? cmp < 0 : cmp > 0;
+    }
+
+    private static int compare(long time, long id, long otherTime, long otherId) {
+        if(time != otherTime) {
+            return time < otherTime ? -1 : 1;
+        }
+        return id < otherId ? -1 : (id == otherId ? 0 : 1);
+    }
+
+    /**
+     * @return the cursor of the row with the given time and id
+     */
+    public static String encode(long time, long id, boolean descending) {
+        String cursor = (descending ? DESCENDING : ASCENDING) + SEPARATOR + time + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the time and id the cursor holds
+     * @throws IllegalArgumentException if it is not a cursor, or one handed out for the other sort order
+     */
+    public static long[] decode(String cursor, boolean descending) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8)
+                    .split(SEPARATOR);
+        } catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        if(parts.length != 3 || !(descending ? DESCENDING : ASCENDING).equals(parts[0])) {
+            throw new IllegalArgumentException("Invalid cursor for this sort order: " + cursor);
+        }
+        try {
+            return new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /**
+     * Orders rows by time, then id, newest first when descending
+     */
+    private static class KeyComparator<T> implements Comparator<T> {
+
+        private final RowKey<T> key;
+
+        private final boolean descending;
+
+        KeyComparator(RowKey<T> key, boolean descending) {
+            this.key = key;
+            this.descending = descending;
+        }
+
+        @Override
+        public int compare(T row, T other) {
+            int cmp = KeysetPage.compare(key.getTime(row), key.getId(row), key.getTime(other), key.getId(other));
+            return descending ? -cmp : cmp;
+        }
+    }
+}
@@ -52,6 +52,8 @@ import javax.ws.rs.core.Response;
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.Multipart;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
+
 /**
  * Language Service Interface for managing country language translations.
  */
@@ -130,6 +132,7 @@ public interface LanguageTranslationService {
         @ApiResponse(code = 200, message = "Successfully retrieved Language Translations"),
         @ApiResponse(code = 500, message = "Error retrieving Language Translation")
     })
+    @Versioned(ResourceVersions.TRANSLATIONS)
     Response getAllLanguageTranslations();
 
     /**
@@ -143,6 +146,7 @@ public interface LanguageTranslationService {
         @ApiResponse(code = 500, message = "Error retrieving Language Translation codes")
     })
     @Path("/codes")
+    @Versioned(ResourceVersions.TRANSLATIONS)
     Response getLanguageTranslationCodes();
 
     /**
@@ -157,6 +161,7 @@ public interface LanguageTranslationService {
         @ApiResponse(code = 500, message = "Error creating Language")
     })
     @Path("/codes/{code}")
+    @Versioned(ResourceVersions.TRANSLATIONS)
     Response getLanguageTranslationByCode(@PathParam(PARAM_LANGUAGECODE) String code);
 
     /**
@@ -177,6 +182,7 @@ public interface LanguageTranslationService {
         @ApiResponse(code = 500, message = "Error creating Language")
     })
     @Path("/{code}")
+    @Changes(ResourceVersions.TRANSLATIONS)
     Response updateTranslation(@PathParam(PARAM_LANGUAGECODE) String code,
                                LanguageTranslationRequest translation,
                                @HeaderParam(IDENTITY_HEADER) String requestingUser);
@@ -197,6 +203,7 @@ public interface LanguageTranslationService {
         @ApiResponse(code = 500, message = "Error creating Language")
     })
     @Path("/")
+    @Changes(ResourceVersions.TRANSLATIONS)
     Response createLanguage(LanguageTranslationRequest translation,
                             @HeaderParam(IDENTITY_HEADER) String requestingUser);
 }
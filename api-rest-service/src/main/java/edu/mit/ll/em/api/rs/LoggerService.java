@@ -56,6 +56,7 @@ public interface LoggerService {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
+    @RateLimited("remotelog")
     Response postLog(@HeaderParam("X-Remote-User") String username, RemoteLog logEntity);
 
 
@@ -39,6 +39,7 @@ import javax.ws.rs.core.Response;
  * Interface for the MobileDeviceTrackService.
  */
 @Path("/mdtracks")
+@Bulkhead("mdtracks")
 public interface MobileDeviceTrackService {
 
     /**
@@ -53,6 +54,7 @@ public interface MobileDeviceTrackService {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{workspaceId}")
+    @RateLimited(value = "mdtracks", device = "deviceId")
     Response postMDTrack(MobileDeviceTrack mobileDeviceTrack,
                          @PathParam("workspaceId") Integer workspaceId,
                          @HeaderParam("X-Remote-User") String username);
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Message bus subscriptions, long-polled for the messages posted to them.
+ */
+@Path("/msgbus/subscriptions")
+public interface MsgBusService {
+
+    /**
+     * Subscribes to topics, ending an earlier subscription of the same subscriber
+     *
+     * @param subscriberId   the ID the subscriber gets its messages with
+     * @param topics         the topics, separated by '+'
+     * @param timeoutSeconds how long the subscription lasts unused, 0 or less for ever
+     * @return a Response of 200 once subscribed, or 400 if the subscription could not be made
+     */
+    @POST
+    @Path("/{subscriberId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    Response subscribe(@PathParam("subscriberId") long subscriberId,
+                       @QueryParam("topics") String topics,
+                       @DefaultValue("600") @QueryParam("timeout") int timeoutSeconds);
+
+    /**
+     * Long-polls a subscription. Returns at once if messages are waiting, and otherwise once some are posted or
+     * waitMillis is up, without holding a request thread meanwhile.
+     *
+     * @param subscriberId  the ID the subscriber subscribed with
+     * @param maxBatch      most messages to return, capped by em.api.msgbus.maxbatchsize
+     * @param waitMillis    how long to wait for messages, capped by em.api.msgbus.maxwaitmillis
+     * @param asyncResponse resumed with the messages, an empty list if none came in time, or 404 if there is no
+     *                      such subscription, say it expired, and the subscriber has to subscribe again
+     */
+    @GET
+    @Path("/{subscriberId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    void getMessages(@PathParam("subscriberId") long subscriberId,
+                     @DefaultValue("500") @QueryParam("maxBatch") int maxBatch,
+                     @DefaultValue("30000") @QueryParam("waitMillis") long waitMillis,
+                     @Suspended AsyncResponse asyncResponse);
+
+    /**
+     * Ends a subscription, and the long-polls waiting on it
+     *
+     * @param subscriberId the ID the subscriber subscribed with
+     * @return a Response of 200, or 404 if there is no such subscription
+     */
+    @DELETE
+    @Path("/{subscriberId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    Response unsubscribe(@PathParam("subscriberId") long subscriberId);
+}
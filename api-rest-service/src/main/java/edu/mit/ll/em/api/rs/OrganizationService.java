@@ -35,6 +35,7 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.nics.common.entity.Org;
 import edu.mit.ll.nics.common.entity.OrgIncidentType;
 
@@ -42,16 +43,19 @@ import edu.mit.ll.nics.common.entity.OrgIncidentType;
 public interface OrganizationService {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
+    @Versioned({ResourceVersions.ORGS, ResourceVersions.USERORGS})
     Response getOrganizations(@PathParam("workspaceId") Integer workspaceId, @QueryParam("userId") Integer userId);
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/admin")
+    @Versioned({ResourceVersions.ORGS, ResourceVersions.USERORGS})
     Response getAdminOrgs(@PathParam("workspaceId") Integer workspaceId, @QueryParam("userId") Integer userId);
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/all")
+    @Versioned(ResourceVersions.ORGS)
     Response getAllOrganizations();
 
     @GET
@@ -87,6 +91,7 @@ public interface OrganizationService {
 
     @POST
     @Produces(MediaType.APPLICATION_JSON)
+    @Changes(ResourceVersions.ORGS)
     Response postOrganization(Org org,
                               @HeaderParam("X-Remote-User") String requestingUser,
                               @PathParam("workspaceId") Integer workspaceId);
@@ -94,6 +99,7 @@ public interface OrganizationService {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/orgtype/add/{orgId}/{orgTypeId}")
+    @Changes(ResourceVersions.ORGS)
     Response postOrgOrgType(
             @PathParam("orgId") int orgId,
             @PathParam("orgTypeId") int orgTypeId);
@@ -101,6 +107,7 @@ public interface OrganizationService {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/orgtype/remove/{orgId}/{orgTypeId}")
+    @Changes(ResourceVersions.ORGS)
     Response removeOrgOrgType(
             @PathParam("orgId") int orgId,
             @PathParam("orgTypeId") int orgTypeId);
@@ -29,7 +29,6 @@
  */
 package edu.mit.ll.em.api.rs;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -80,13 +79,24 @@ public class QueryConstraintHelper {
     }
 
     public static Set<String> makeColumnSelectionSet(QueryConstraintParms opts) {
-        Set<String> ret = null;
-        String s = opts.getFields();
-        if(s == null || s.isEmpty()) {
-            ret = new LinkedHashSet<String>();
-        } else {
-            String fieldsArray[] = org.apache.commons.lang.StringUtils.split(s, ",");
-            ret = new LinkedHashSet<String>(Arrays.asList(fieldsArray));
+        return makeColumnSelectionSet(opts == null ? null : opts.getFields());
+    }
+
+    /**
+     * Parses a fields parameter, a comma separated list of field names
+     *
+     * @param fields the parameter, may be null
+     * @return the field names, empty if all fields were asked for
+     */
+    public static Set<String> makeColumnSelectionSet(String fields) {
+        Set<String> ret = new LinkedHashSet<String>();
+        if(fields != null && !fields.isEmpty()) {
+            String fieldsArray[] = org.apache.commons.lang.StringUtils.split(fields, ",");
+            for(String field : fieldsArray) {
+                if(!field.trim().isEmpty()) {
+                    ret.add(field.trim());
+                }
+            }
         }
         return ret;
     }
@@ -78,6 +78,13 @@ public class QueryConstraintParms {
     private String fields;
 
 
+    /*
+     * Where to pick up paging by key, see KeysetPage. Opaque to clients, it is handed out as the nextCursor of the
+     * previous page; an empty cursor asks for the first page.
+     */
+    private String cursor;
+
+
     public Long getFromDate() {
         return fromDate;
     }
@@ -141,4 +148,12 @@ public class QueryConstraintParms {
     public void setFields(String fields) {
         this.fields = fields;
     }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.util.JsonSerialization;
+
+/**
+ * Writes a service response envelope, such as a {@link FeatureServiceResponse}, with its list of rows written one row
+ * at a time instead of serializing the envelope in one go.
+ * <p>
+ * The envelope is written as Jackson would write it, with the rows in place of its listProperty, so clients see the
+ * same JSON. Each row is written straight to the response stream, so the response is never built up as one large
+ * String or tree. The rows themselves are still loaded as a list by the caller.
+ * <p>
+ * Given a set of fields, as parsed by {@link QueryConstraintHelper#makeColumnSelectionSet}, only those properties of
+ * each row are written. The values of the selected properties, and the rest of the envelope, are written whole. Fields
+ * name a row's own properties, not paths into them, and names a row doesn't have are ignored.
+ * <p>
+ * The status and headers are sent before the rows are written, so a failure part way through can only cut the response
+ * short.
+ */
+public class StreamingListOutput<T> implements StreamingOutput {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(StreamingListOutput.class);
+
+    private static final ObjectMapper mapper = JsonSerialization.getMapper();
+
+    // Flushing after every row would send a chunk per row
+    private static final ObjectWriter writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    // Puts every bean through the FieldSelectionFilter, so rows of any type can be narrowed. The filter only narrows
+    // the rows themselves, so beans nested in them are written as the unfiltered writer would.
+    private static final ObjectMapper filteringMapper =
+            mapper.copy().addMixIn(Object.class, FieldSelectionMixIn.class);
+
+    private final Object envelope;
+
+    private final String listProperty;
+
+    private final List<T> rows;
+
+    private final Set<String> fields;
+
+    /**
+     * @param envelope     the response bean, with its list left empty
+     * @param listProperty the JSON name of the envelope's list property, e.g. "features"
+     * @param rows         the rows to write as that property
+     * @param fields       the properties of each row to write, all of them if null or empty
+     */
+    public StreamingListOutput(Object envelope, String listProperty, List<T> rows, Set<String> fields) {
+        this.envelope = envelope;
+        this.listProperty = listProperty;
+        this.rows = rows;
+        this.fields = fields;
+    }
+
+    /**
+     * @return a 200 OK JSON response writing the envelope with the rows as its listProperty
+     */
+    public static <T> Response ok(Object envelope, String listProperty, List<T> rows) {
+        return ok(envelope, listProperty, rows, null);
+    }
+
+    /**
+     * @return a 200 OK JSON response writing the envelope with the given fields of the rows as its listProperty
+     */
+    public static <T> Response ok(Object envelope, String listProperty, List<T> rows, Set<String> fields) {
+        return Response.ok(new StreamingListOutput<T>(envelope, listProperty, rows, fields),
+                MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        ObjectNode fields = mapper.valueToTree(envelope);
+
+        JsonGenerator generator = mapper.getFactory().createGenerator(output);
+        // The container closes the response stream
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        try {
+            generator.writeStartObject();
+            boolean rowsWritten = false;
+            Iterator<Map.Entry<String, JsonNode>> it = fields.fields();
+            while(it.hasNext()) {
+                Map.Entry<String, JsonNode> field = it.next();
+                generator.writeFieldName(field.getKey());
+                if(listProperty.equals(field.getKey())) {
+                    writeRows(generator);
+                    rowsWritten = true;
+                } else {
+                    writer.writeValue(generator, field.getValue());
+                }
+            }
+            if(!rowsWritten) {
+                generator.writeFieldName(listProperty);
+                writeRows(generator);
+            }
+            generator.writeEndObject();
+        } catch(IOException | RuntimeException e) {
+            log.error("Failed to write {} of {}", listProperty, envelope.getClass().getSimpleName(), e);
+            throw e;
+        } finally {
+            generator.close();
+        }
+    }
+
+    private void writeRows(JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        if(rows != null) {
+            ObjectWriter rowWriter = writer;
+            if(fields != null && !fields.isEmpty()) {
+                rowWriter = filteringMapper.writer(new SimpleFilterProvider().addFilter(FieldSelectionFilter.ID,
+                        new FieldSelectionFilter(fields, generator.getOutputContext())))
+                        .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            }
+
+            for(T row : rows) {
+                rowWriter.writeValue(generator, row);
+            }
+        }
+        generator.writeEndArray();
+    }
+
+    @JsonFilter(FieldSelectionFilter.ID)
+    private static class FieldSelectionMixIn {
+    }
+
+    /**
+     * Writes only the selected properties of the rows. Beans nested in a row are written whole.
+     */
+    private static class FieldSelectionFilter extends SimpleBeanPropertyFilter {
+
+        static final String ID = "em.api.fieldSelection";
+
+        private final Set<String> fields;
+
+        // The array the rows are written in
+        private final JsonStreamContext rowsContext;
+
+        FieldSelectionFilter(Set<String> fields, JsonStreamContext rowsContext) {
+            this.fields = fields;
+            this.rowsContext = rowsContext;
+        }
+
+        @Override
+        public void serializeAsField(Object pojo, JsonGenerator gen, SerializerProvider provider,
+                                     PropertyWriter writer) throws Exception {
+            if(gen.getOutputContext().getParent() != rowsContext || fields.contains(writer.getName())) {
+                writer.serializeAsField(pojo, gen, provider);
+            } else if(!gen.canOmitFields()) {
+                writer.serializeAsOmittedField(pojo, gen, provider);
+            }
+        }
+    }
+}
@@ -53,12 +53,13 @@ public interface UserService {
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    Response getUsers(@PathParam("workspaceId") int workspaceId);
+    Response getUsers(@PathParam("workspaceId") int workspaceId, @QueryParam("fields") String fields);
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/org/{orgId}")
-    Response getUsers(@PathParam("workspaceId") int workspaceId, @PathParam("orgId") int orgId);
+    Response getUsers(@PathParam("workspaceId") int workspaceId, @PathParam("orgId") int orgId,
+                      @QueryParam("fields") String fields);
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -29,13 +29,12 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
 import edu.mit.ll.em.api.rs.AlertService;
 import edu.mit.ll.em.api.rs.AlertServiceResponse;
-import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
 import edu.mit.ll.nics.common.entity.Alert;
 import edu.mit.ll.nics.common.entity.AlertUser;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.impl.AlertDAOImpl;
 
 import java.io.IOException;
@@ -46,7 +45,6 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.rabbitmq.client.AlreadyClosedException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.json.JSONException;
 import org.slf4j.Logger;
@@ -68,11 +66,6 @@ public class AlertServiceImpl implements AlertService {
      */
     private static final Logger LOG = LoggerFactory.getLogger(AlertServiceImpl.class);
 
-    /**
-     * Rabbit Producer for publishing alerts.
-     */
-    private RabbitPubSubProducer rabbitProducer;
-
     /**
      * AlertDAO instance.
      */
@@ -196,28 +189,8 @@ public class AlertServiceImpl implements AlertService {
      * @throws JSONException
      */
     private void notifyAlert(Alert alert, String topic) throws IOException, TimeoutException, AlreadyClosedException {
-        ObjectMapper mapper = new ObjectMapper();
-        String message = mapper.writeValueAsString(alert);
-
-        getRabbitProducer().produce(topic, message);
-    }
+        String message = JsonSerialization.toJson(alert);
 
-    /**
-     * Gets initialized Rabbit producer to send messages.
-     *
-     * @return an initialized rabbit producer
-     *
-     * @throws IOException      if there's an issue connecting to rabbitmq
-     * @throws TimeoutException if there's an issue connecting to rabbitmq
-     */
-    private RabbitPubSubProducer getRabbitProducer() throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-        }
-        return rabbitProducer;
+        RabbitPublisher.getInstance().produce(topic, message);
     }
 }
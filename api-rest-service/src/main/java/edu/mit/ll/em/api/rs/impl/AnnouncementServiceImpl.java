@@ -29,12 +29,12 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.rs.AnnouncementService;
 import edu.mit.ll.em.api.rs.LogServiceResponse;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.Log;
 import edu.mit.ll.nics.nicsdao.impl.LogDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -59,11 +59,6 @@ public class AnnouncementServiceImpl implements AnnouncementService {
      */
     private static final Logger LOG = LoggerFactory.getLogger(AnnouncementServiceImpl.class);
 
-    /**
-     * UserOrgDAO instance.
-     */
-    private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
-
     /**
      * LogDAO instance.
      */
@@ -86,8 +81,8 @@ public class AnnouncementServiceImpl implements AnnouncementService {
         AnnouncementServiceImpl.LOG.debug("User {} posting announcement to workspaceId {}:\n{}",
                 username, workspaceId, log.getMessage());
 
-        if(userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID)
-                || userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID)) {
+        if(EntityCacheMgr.getInstance().hasAnyUserRole(username,
+                SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.SUPER_ROLE_ID)) {
 
             if(logDao.postLog(workspaceId, log)) {
                 return Response.status(Status.OK).entity(Status.OK.getReasonPhrase()).build();
@@ -134,8 +129,8 @@ public class AnnouncementServiceImpl implements AnnouncementService {
         LOG.debug("User {} requesting deletion of announcement with logId {} in workspace {}",
                 username, logId, workspaceId);
 
-        if(userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID)
-                || userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID)) {
+        if(EntityCacheMgr.getInstance().hasAnyUserRole(username,
+                SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.SUPER_ROLE_ID)) {
             if(logDao.deleteLog(logId)) {
                 return Response.status(Status.OK).entity(Status.OK.getReasonPhrase()).build();
             } else {
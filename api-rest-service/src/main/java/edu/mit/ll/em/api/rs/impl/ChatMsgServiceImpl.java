@@ -39,12 +39,12 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.rabbitmq.client.AlreadyClosedException;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
+import edu.mit.ll.em.api.util.RequestIdentity;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,12 +52,12 @@ import org.slf4j.LoggerFactory;
 import edu.mit.ll.em.api.rs.ChatMsgService;
 import edu.mit.ll.em.api.rs.ChatMsgServiceResponse;
 import edu.mit.ll.em.api.rs.ChatOptionalParams;
+import edu.mit.ll.em.api.rs.KeysetPage;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
+import edu.mit.ll.em.api.rs.StreamingListOutput;
 import edu.mit.ll.nics.common.entity.Chat;
 import edu.mit.ll.nics.nicsdao.ChatDAO;
 import edu.mit.ll.nics.nicsdao.impl.ChatDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.OrderBy;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.ResultSetPage;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.UTCRange;
@@ -73,23 +73,28 @@ public class ChatMsgServiceImpl implements ChatMsgService {
     private static final ChatDAO chatDao = new ChatDAOImpl();
 
     /**
-     * CollabRoom DAO
+     * Logger
      */
-    private static final CollabRoomDAOImpl collabDao = new CollabRoomDAOImpl();
+    private static final Logger log = LoggerFactory.getLogger(ChatMsgServiceImpl.class);
 
-    /**
-     * CollabRoom DAO
-     */
-    private static final UserDAOImpl userDao = new UserDAOImpl();
+    private static String ERROR_PERSISTING = "Unhandled exception while persisting Chat.";
 
     /**
-     * Logger
+     * Column chat messages are paged on, by cursor
      */
-    private static final Logger log = LoggerFactory.getLogger(ChatMsgServiceImpl.class);
+    private static final String CHAT_DATE_COLUMN = "created";
 
-    private static String ERROR_PERSISTING = "Unhandled exception while persisting Chat.";
+    private static final KeysetPage.RowKey<Chat> CHAT_KEY = new KeysetPage.RowKey<Chat>() {
+        @Override
+        public long getTime(Chat chat) {
+            return chat.getCreated().getTime();
+        }
 
-    private RabbitPubSubProducer rabbitProducer;
+        @Override
+        public long getId(Chat chat) {
+            return chat.getChatid();
+        }
+    };
 
 
     /**
@@ -101,26 +106,47 @@ public class ChatMsgServiceImpl implements ChatMsgService {
      *
      * @See ChatMsgServiceResponse
      */
-    public Response getChatMsgs(int collabroomId, ChatOptionalParams optionalParams, String requestingUser) {
+    public Response getChatMsgs(final int collabroomId, ChatOptionalParams optionalParams, String requestingUser) {
         String incidentMap = APIConfig.getInstance().getConfiguration().getString(
                 APIConfig.INCIDENT_MAP, SADisplayConstants.INCIDENT_MAP);
 
-        if(!collabDao.hasPermissions(userDao.getUserId(requestingUser), collabroomId, incidentMap)) {
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(requestingUser), collabroomId, incidentMap)) {
             return getInvalidResponse();
         }
 
-        UTCRange dateRange = QueryConstraintHelper.makeDateRange(optionalParams);
-        OrderBy orderBy = QueryConstraintHelper.makeOrderBy(optionalParams);
-        ResultSetPage pageRange = QueryConstraintHelper.makeResultSetRange(optionalParams);
-
-        List<Chat> chats = chatDao.getChatMessages(collabroomId, dateRange, orderBy, pageRange);
-
         ChatMsgServiceResponse chatMsgResponse = new ChatMsgServiceResponse();
+        List<Chat> chats;
+        if(KeysetPage.isKeysetRequest(optionalParams, CHAT_DATE_COLUMN)) {
+            int maxRows = APIConfig.getInstance().getConfiguration().getInt(APIConfig.DB_MAX_ROWS, 1000);
+            KeysetPage<Chat> page;
+            try {
+                page = KeysetPage.read(optionalParams, CHAT_DATE_COLUMN, maxRows, CHAT_KEY,
+                        new KeysetPage.Query<Chat>() {
+                            @Override
+                            public List<Chat> fetch(Long fromDate, Long toDate, boolean descending, int rows) {
+                                return chatDao.getChatMessages(collabroomId,
+                                        KeysetPage.dateRange(CHAT_DATE_COLUMN, fromDate, toDate),
+                                        KeysetPage.orderBy(CHAT_DATE_COLUMN, descending), new ResultSetPage(0, rows));
+                            }
+                        });
+            } catch(IllegalArgumentException e) {
+                chatMsgResponse.setMessage(e.getMessage());
+                return Response.ok(chatMsgResponse).status(Status.BAD_REQUEST).build();
+            }
+            chats = page.getRows();
+            chatMsgResponse.setNextCursor(page.getNextCursor());
+        } else {
+            UTCRange dateRange = QueryConstraintHelper.makeDateRange(optionalParams);
+            OrderBy orderBy = QueryConstraintHelper.makeOrderBy(optionalParams);
+            ResultSetPage pageRange = QueryConstraintHelper.makeResultSetRange(optionalParams);
+
+            chats = chatDao.getChatMessages(collabroomId, dateRange, orderBy, pageRange);
+        }
+
         chatMsgResponse.setMessage(Status.OK.getReasonPhrase());
-        chatMsgResponse.setChats(chats);
         chatMsgResponse.setCount(chats.size());
-        Response response = Response.ok(chatMsgResponse).status(Status.OK).build();
-        return response;
+        return StreamingListOutput.ok(chatMsgResponse, "chats", chats,
+                QueryConstraintHelper.makeColumnSelectionSet(optionalParams));
     }
 
 
@@ -133,7 +159,7 @@ public class ChatMsgServiceImpl implements ChatMsgService {
      */
     public Response postChatMsg(int collabroomId, Chat chat, String requestingUser) {
 
-        if(!collabDao.hasPermissions(userDao.getUserId(requestingUser), collabroomId)) {
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(requestingUser), collabroomId)) {
             return getInvalidResponse();
         }
 
@@ -177,21 +203,9 @@ public class ChatMsgServiceImpl implements ChatMsgService {
     private void notifyChange(Chat chat) throws IOException, TimeoutException, AlreadyClosedException {
         if(chat != null) {
             String topic = String.format("iweb.NICS.collabroom.%s.chat", chat.getCollabroomid());
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(chat);
-            getRabbitProducer().produce(topic, message);
-        }
-    }
-
-    private RabbitPubSubProducer getRabbitProducer() throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
+            String message = JsonSerialization.toJson(chat);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
-        return rabbitProducer;
     }
 
     private Response getInvalidResponse() {
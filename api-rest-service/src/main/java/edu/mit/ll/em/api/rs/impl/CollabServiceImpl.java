@@ -39,6 +39,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeoutException;
@@ -47,11 +48,12 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.rabbitmq.client.AlreadyClosedException;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.msgbus.NotificationOutbox;
 import edu.mit.ll.em.api.util.APIConfig;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
+import edu.mit.ll.em.api.util.JsonSerialization;
+import edu.mit.ll.em.api.util.RequestIdentity;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
@@ -91,8 +93,6 @@ public class CollabServiceImpl implements CollabService {
 
     private static final Logger log = LoggerFactory.getLogger(CollabServiceImpl.class);
 
-    private RabbitPubSubProducer rabbitProducer;
-
     private static final int EXPECTED_ROOMS = 20;
     private static final int EXPECTED_PARTICIPANTS = 20;
     private static final String SECURE_ROOMS_ERROR = "One or more users failed to be added to the collaboration room";
@@ -104,7 +104,6 @@ public class CollabServiceImpl implements CollabService {
     private static final String UNHANDLED_EXCEPTION = "Unhandled Exception";
     private static final String ACCESS_DENIED = "Access Denied";
     private static final String UNSECURE_ERROR = "There was an error unsecuring the room.";
-    private static final String RENAME_MESSAGE_NOT_SENT = "There was an error notifying users of collaboration room name change.";
 
     private static final String LAYER_CREATION_ERROR =
             "There was an error creating a layer in geoserver for the new collaboration room.";
@@ -209,8 +208,8 @@ public class CollabServiceImpl implements CollabService {
      * @return a Response containing the CollabRoom entity that was created if successful,
      *         or an appropriate error response if not
      */
-    public Response postCollabRoom(int userOrgId, int orgId,
-                                   int workspaceId, int incidentId, CollabRoom collabroom, String username) {
+    public Response postCollabRoom(int userOrgId, int orgId, int workspaceId,
+                                   final int incidentId, final CollabRoom collabroom, String username) {
         Response response = null;
         CollabServiceResponse collabResponse = new CollabServiceResponse();
         CollabRoom newCollabRoom = null;
@@ -230,11 +229,19 @@ public class CollabServiceImpl implements CollabService {
         }
 
         try {
-            newCollabRoom = this.createCollabRoom(incidentId, collabroom);
+            newCollabRoom = NotificationOutbox.getInstance().execute(new Callable<CollabRoom>() {
+                @Override
+                public CollabRoom call() throws Exception {
+                    CollabRoom room = createCollabRoom(incidentId, collabroom);
+
+                    //Not adding the incident object to the response from the DB
+                    //Use incident past from the UI
+                    room.setIncident(collabroom.getIncident());
 
-            //Not adding the incident object to the response from the DB
-            //Use incident past from the UI
-            newCollabRoom.setIncident(collabroom.getIncident());
+                    notifyChange(room);
+                    return room;
+                }
+            });
 
             boolean layerCreated = this.createGeoserverLayer(newCollabRoom);
 
@@ -261,16 +268,6 @@ public class CollabServiceImpl implements CollabService {
             response = Response.ok(collabResponse).status(Status.INTERNAL_SERVER_ERROR).build();
         }
 
-        if(Status.OK.getStatusCode() == response.getStatus()) {
-            try {
-                notifyChange(newCollabRoom);
-            } catch(IOException | TimeoutException | AlreadyClosedException e) {
-                log.error("Failed to publish CollabServiceImpl collabroom event", e);
-            } catch(Exception e) {
-                log.error("Failed to publish CollabServiceImpl collabroom event", e);
-            }
-        }
-
         return response;
     }
 
@@ -286,11 +283,11 @@ public class CollabServiceImpl implements CollabService {
      * 
      */
     @Override
-    public Response postCollabRooms(int userOrgId, int workspaceId, int incidentId,
+    public Response postCollabRooms(int userOrgId, int workspaceId, final int incidentId,
                                     List<CollabRoom> collabrooms, String username) {
 
         Response response = null;
-        Collection<CollabRoom> createdRooms = new ArrayList<>();
+        final Collection<CollabRoom> createdRooms = new ArrayList<>();
         CollabServiceResponse collabResponse = new CollabServiceResponse();
 
         if(collabrooms == null || collabrooms.isEmpty()) {
@@ -413,11 +410,16 @@ public class CollabServiceImpl implements CollabService {
 
         if(createdRooms.size() > 0) {
             // send out for mass notification? Can we even? Or does it go to ONLY org topics :/
+            // The rooms are committed already, the outbox still keeps the notification through a broker outage
             try {
-                batchNotify(incidentId, createdRooms);
-            } catch(IOException e) {
-                e.printStackTrace();
-            } catch(TimeoutException e) {
+                NotificationOutbox.getInstance().execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        batchNotify(incidentId, createdRooms);
+                        return null;
+                    }
+                });
+            } catch(Exception e) {
                 e.printStackTrace();
             }
         }
@@ -441,26 +443,37 @@ public class CollabServiceImpl implements CollabService {
     }
 
 
-    public Response postCollabRoomWithPermissions(int incidentId, int orgId, int workspaceId,
-                                                  CollabRoom collabroom, boolean notify) {
+    public Response postCollabRoomWithPermissions(final int incidentId, final int orgId, final int workspaceId,
+                                                  final CollabRoom collabroom, final boolean notify) {
 
         Response response = null;
         CollabRoom newCollabRoom = null;
         CollabRoomPermissionResponse collabResponse = new CollabRoomPermissionResponse();
         try {
-            newCollabRoom = this.createCollabRoom(incidentId, collabroom);
+            collabResponse = NotificationOutbox.getInstance().execute(new Callable<CollabRoomPermissionResponse>() {
+                @Override
+                public CollabRoomPermissionResponse call() throws Exception {
+                    CollabRoom room = createCollabRoom(incidentId, collabroom);
 
-            collabResponse =
-                    this.secureRoom(newCollabRoom.getCollabRoomId(),
+                    CollabRoomPermissionResponse permissions = secureRoom(room.getCollabRoomId(),
                             orgId, workspaceId,
                             collabroom.getAdminUsers(), collabroom.getReadWriteUsers(),
                             collabroom.getReadOnlyUsers());
 
-            newCollabRoom.setAdminUsers(collabResponse.getAdminUsers());
-            newCollabRoom.setReadWriteUsers(collabResponse.getReadWriteUsers());
-            newCollabRoom.setReadOnlyUsers(collabResponse.getReadOnlyUsers());
+                    room.setAdminUsers(permissions.getAdminUsers());
+                    room.setReadWriteUsers(permissions.getReadWriteUsers());
+                    room.setReadOnlyUsers(permissions.getReadOnlyUsers());
 
-            newCollabRoom.setIncident(collabroom.getIncident());
+                    room.setIncident(collabroom.getIncident());
+                    permissions.setResults(Arrays.asList(room));
+
+                    if(notify) {
+                        notifyChange(room);
+                    }
+                    return permissions;
+                }
+            });
+            newCollabRoom = (CollabRoom) collabResponse.getResults().iterator().next();
 
             boolean layerCreated = this.createGeoserverLayer(newCollabRoom);
 
@@ -469,7 +482,6 @@ public class CollabServiceImpl implements CollabService {
             } else {
                 collabResponse.setMessage(Status.OK.getReasonPhrase());
             }
-            collabResponse.setResults(Arrays.asList(newCollabRoom));
             response = Response.ok(collabResponse).status(Status.OK).build();
         } catch(DataAccessException e) {
             collabResponse.setMessage(DATA_ACCESS_ERROR);
@@ -483,16 +495,6 @@ public class CollabServiceImpl implements CollabService {
             response = Response.ok(collabResponse).status(Status.INTERNAL_SERVER_ERROR).build();
         }
 
-        if(Status.OK.getStatusCode() == response.getStatus() && notify) {
-            try {
-                notifyChange(newCollabRoom);
-            } catch(IOException | TimeoutException | AlreadyClosedException e) {
-                log.error("Failed to publish CollabServiceImpl collabroom event", e);
-            } catch(Exception e) {
-                log.error("Failed to publish CollabServiceImpl collabroom event", e);
-            }
-        }
-
         return response;
     }
 
@@ -583,10 +585,10 @@ public class CollabServiceImpl implements CollabService {
 
         Response response = null;
         CollabRoomPermissionResponse collabResponse = new CollabRoomPermissionResponse();
-        long userId = userDao.getUserId(username);
+        long userId = RequestIdentity.getUserId(username);
 
         //verify the user has permissions
-        if(collabDao.hasPermissions(userId, collabRoomId, incidentMap)) { //Everyone can susbscribe to the incidentmap
+        if(EntityCacheMgr.getInstance().hasCollabRoomPermission(userId, collabRoomId, incidentMap)) { //Everyone can susbscribe to the incidentmap
             response = Response.ok(collabResponse).status(Status.OK).build();
         } else {
             response = Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
@@ -595,52 +597,78 @@ public class CollabServiceImpl implements CollabService {
         return response;
     }
 
-    public Response updateCollabRoomPermission(FieldMapResponse secureUsers, int collabRoomId, long userId,
-                                               int orgId, int workspaceId, String username) {
-        if(userDao.getUserId(username) != userId) {
+    public Response updateCollabRoomPermission(FieldMapResponse secureUsers, final int collabRoomId, long userId,
+                                               final int orgId, final int workspaceId, String username) {
+        if(RequestIdentity.getUserId(username) != userId) {
             return Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
         }
 
         //TODO: Check for permissions
 
-        //Remove current security if there is any...
-        collabDao.unsecureRoom(collabRoomId);
-        List<Integer> adminUsers = (List<Integer>) secureUsers.getData().get(0).get("admin");
-        List<Integer> readWriteUsers = (List<Integer>) secureUsers.getData().get(0).get("readWrite");
-        List<Integer> readOnlyUsers = (List<Integer>) secureUsers.getData().get(0).get("readOnly");
-
-        CollabRoomPermissionResponse collabResponse = this.secureRoom(
-                collabRoomId, orgId, workspaceId, adminUsers, readWriteUsers,
-                readOnlyUsers);
+        final List<Integer> adminUsers = (List<Integer>) secureUsers.getData().get(0).get("admin");
+        final List<Integer> readWriteUsers = (List<Integer>) secureUsers.getData().get(0).get("readWrite");
+        final List<Integer> readOnlyUsers = (List<Integer>) secureUsers.getData().get(0).get("readOnly");
 
+        CollabRoomPermissionResponse collabResponse;
         try {
-            CollabRoom room = collabDao.getCollabRoomById(collabRoomId);
-            room.setAdminUsers(collabResponse.getAdminUsers());
-            room.setReadWriteUsers(collabResponse.getReadWriteUsers());
-            room.setReadOnlyUsers(collabResponse.getReadOnlyUsers());
-            notifyUpdateChange(room);
-        } catch(IOException | AlreadyClosedException e) {
-            log.error("Failed to publish CollabServiceImpl collabroom event", e);
-        } catch(DataAccessException e) {
-            log.error("Failed to publish CollabServiceImpl collabroom event", e);
+            collabResponse = NotificationOutbox.getInstance().execute(new Callable<CollabRoomPermissionResponse>() {
+                @Override
+                public CollabRoomPermissionResponse call() throws Exception {
+                    //Remove current security if there is any...
+                    collabDao.unsecureRoom(collabRoomId);
+                    EntityCacheMgr.getInstance().invalidateCollabRoomPermissions(collabRoomId);
+
+                    CollabRoomPermissionResponse permissions = secureRoom(
+                            collabRoomId, orgId, workspaceId, adminUsers, readWriteUsers,
+                            readOnlyUsers);
+
+                    CollabRoom room = collabDao.getCollabRoomById(collabRoomId);
+                    room.setAdminUsers(permissions.getAdminUsers());
+                    room.setReadWriteUsers(permissions.getReadWriteUsers());
+                    room.setReadOnlyUsers(permissions.getReadOnlyUsers());
+                    notifyUpdateChange(room);
+                    return permissions;
+                }
+            });
         } catch(Exception e) {
-            log.error("Failed to publish CollabServiceImpl collabroom event", e);
+            log.error("Failed to update the permissions of collabroom {}", collabRoomId, e);
+            collabResponse = new CollabRoomPermissionResponse();
+            collabResponse.setMessage(UNHANDLED_EXCEPTION);
+            return Response.ok(collabResponse).status(Status.INTERNAL_SERVER_ERROR).build();
         }
 
         return Response.ok(collabResponse).status(Status.OK).build();
     }
 
-    public Response unsecureRoom(long collabRoomId, long userId, String username) {
+    public Response unsecureRoom(final long collabRoomId, long userId, String username) {
         Response response = null;
         CollabRoomPermissionResponse collabResponse = new CollabRoomPermissionResponse();
 
-        if(userDao.getUserId(username) != userId) {
+        if(RequestIdentity.getUserId(username) != userId) {
             return Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
         }
 
         //verify the user has permissions
-        if(collabDao.hasPermissions(userId, collabRoomId)) {
-            if(collabDao.unsecureRoom(collabRoomId)) {
+        if(EntityCacheMgr.getInstance().hasCollabRoomPermission(userId, collabRoomId)) {
+            boolean unsecured;
+            try {
+                unsecured = NotificationOutbox.getInstance().execute(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if(!collabDao.unsecureRoom(collabRoomId)) {
+                            return false;
+                        }
+                        EntityCacheMgr.getInstance().invalidateCollabRoomPermissions(collabRoomId);
+                        notifyUpdateChange(collabDao.getCollabRoomById(collabRoomId));
+                        return true;
+                    }
+                });
+            } catch(Exception e) {
+                log.error("Failed to unsecure collabroom {}", collabRoomId, e);
+                unsecured = false;
+            }
+
+            if(unsecured) {
                 collabResponse.setMessage(Status.OK.getReasonPhrase());
                 response = Response.ok(collabResponse).status(Status.OK).build();
             } else {
@@ -652,17 +680,6 @@ public class CollabServiceImpl implements CollabService {
             response = Response.ok(collabResponse).status(Status.INTERNAL_SERVER_ERROR).build();
         }
 
-        if(Status.OK.getStatusCode() == response.getStatus()) {
-            try {
-                notifyUpdateChange(collabDao.getCollabRoomById(collabRoomId));
-            } catch(IOException | AlreadyClosedException e) {
-                log.error("Failed to publish CollabServiceImpl collabroom event", e);
-            } catch(DataAccessException e) {
-                log.error("Failed to publish CollabServiceImpl collabroom event", e);
-            } catch(Exception e) {
-                log.error("Failed to publish CollabServiceImpl collabroom event", e);
-            }
-        }
         return response;
     }
 
@@ -710,6 +727,9 @@ public class CollabServiceImpl implements CollabService {
             }
         } catch(Exception e) {
             collabResponse.setMessage(UNHANDLED_EXCEPTION);
+        } finally {
+            // Even a partially applied ACL invalidates the cached decisions
+            EntityCacheMgr.getInstance().invalidateCollabRoomPermissions(collabRoomId);
         }
         return collabResponse;
     }
@@ -717,7 +737,7 @@ public class CollabServiceImpl implements CollabService {
     public Response getCollabRoomSecureUsers(int collabRoomId, String username) {
         Response response = null;
 
-        if(collabDao.hasPermissions(userDao.getUserId(username), collabRoomId)) {
+        if(EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(username), collabRoomId)) {
             FieldMapResponse dataResponse = new FieldMapResponse();
             dataResponse.setData(collabDao.getCollabRoomSecureUsers(collabRoomId));
 
@@ -735,7 +755,7 @@ public class CollabServiceImpl implements CollabService {
         Response response = null;
         FieldMapResponse dataResponse = new FieldMapResponse();
 
-        if(collabRoomId != -1 && collabDao.hasPermissions(userDao.getUserId(username), collabRoomId)) {
+        if(collabRoomId != -1 && EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(username), collabRoomId)) {
             dataResponse.setData(collabDao.getUsersWithoutPermission(collabRoomId, orgId, workspaceId));
 
             dataResponse.setMessage(Status.OK.getReasonPhrase());
@@ -752,25 +772,35 @@ public class CollabServiceImpl implements CollabService {
         return response;
     }
 
-    public Response updateCollabRoomName(CollabRoom collabroom, String username){
+    public Response updateCollabRoomName(final CollabRoom collabroom, String username){
         CollabServiceResponse collabResponse = new CollabServiceResponse();
-        int collabRoomId = collabroom.getCollabRoomId();
+        final int collabRoomId = collabroom.getCollabRoomId();
+
+        if(EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(username), collabRoomId)) {
+            int count;
+            try {
+                count = NotificationOutbox.getInstance().execute(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int updated = collabDao.updateCollabRoomName(collabRoomId, collabroom.getName());
+                        if(updated == 1) {
+                            notifyRenameChange(collabroom);
+                        }
+                        return updated;
+                    }
+                });
+            } catch(Exception e) {
+                // Rolled back along with the notification
+                collabResponse.setMessage(UPDATE_ROOM_NAME_ERROR);
+                log.error(e.getMessage());
+                return Response.ok(collabResponse).status(Status.INTERNAL_SERVER_ERROR).build();
+            }
 
-        if(collabDao.hasPermissions(userDao.getUserId(username), collabRoomId)) {
-            int count = collabDao.updateCollabRoomName(collabRoomId, collabroom.getName());
             if (count != 1) {
                 collabResponse.setMessage(UPDATE_ROOM_NAME_ERROR);
                 return Response.ok(collabResponse).status(Status.INTERNAL_SERVER_ERROR).build();
             } else {
-                try {
-                    this.notifyRenameChange(collabroom);
-                    collabResponse.setMessage(Status.OK.toString());
-                }catch(Exception e){
-                    collabResponse.setMessage(RENAME_MESSAGE_NOT_SENT);
-                    log.error(e.getMessage());
-                    return Response.ok(collabResponse).status(Status.EXPECTATION_FAILED).build();
-                }
-
+                collabResponse.setMessage(Status.OK.toString());
                 return Response.ok(collabResponse).status(Status.OK).build();
             }
         }
@@ -823,9 +853,8 @@ public class CollabServiceImpl implements CollabService {
     private void notifyChange(CollabRoom collabroom) throws IOException, TimeoutException, AlreadyClosedException {
         if(collabroom != null) {
             String topic = String.format("iweb.NICS.incident.%s.newcollabroom", collabroom.getIncidentid());
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(collabroom);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(collabroom);
+            NotificationOutbox.getInstance().produce(topic, message);
         }
     }
 
@@ -834,9 +863,8 @@ public class CollabServiceImpl implements CollabService {
 
         if(collabRooms != null && !collabRooms.isEmpty()) {
             String topic = String.format("iweb.NICS.incident.%s.newcollabrooms", incidentId);
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(collabRooms);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(collabRooms);
+            NotificationOutbox.getInstance().produce(topic, message);
         }
 
     }
@@ -845,9 +873,8 @@ public class CollabServiceImpl implements CollabService {
             throws IOException, TimeoutException, AlreadyClosedException {
         if(collabroom != null) {
             String topic = String.format("iweb.NICS.incident.%s.updatedcollabroom", collabroom.getIncidentid());
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(collabroom);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(collabroom);
+            NotificationOutbox.getInstance().produce(topic, message);
         }
     }
 
@@ -855,9 +882,8 @@ public class CollabServiceImpl implements CollabService {
             throws IOException, TimeoutException, AlreadyClosedException {
         if(collabroom != null) {
             String topic = String.format("iweb.NICS.incident.%s.renamecollabroom", collabroom.getIncidentid());
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(collabroom);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(collabroom);
+            NotificationOutbox.getInstance().produce(topic, message);
         }
     }
 
@@ -865,21 +891,9 @@ public class CollabServiceImpl implements CollabService {
             throws IOException, TimeoutException, AlreadyClosedException {
         if(status != null) {
             String topic = String.format("iweb.NICS.collabroom.%s.presence", collabroomId);
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(status);
-            getRabbitProducer().produce(topic, message);
-        }
-    }
-
-    private RabbitPubSubProducer getRabbitProducer() throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
+            String message = JsonSerialization.toJson(status);
+            NotificationOutbox.getInstance().produce(topic, message);
         }
-        return rabbitProducer;
     }
 }
 
@@ -29,12 +29,11 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
 import edu.mit.ll.em.api.rs.CountryServiceResponse;
 import edu.mit.ll.em.api.rs.CountryService;
-import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
 import edu.mit.ll.nics.common.entity.Region;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.impl.CountryDAOImpl;
 
 import java.io.IOException;
@@ -45,7 +44,6 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.rabbitmq.client.AlreadyClosedException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.json.JSONException;
 import org.slf4j.Logger;
@@ -67,11 +65,6 @@ public class CountryServiceImpl implements CountryService {
      */
     private static final Logger LOG = LoggerFactory.getLogger(AlertServiceImpl.class);
 
-    /**
-     * Rabbit Producer for publishing alerts.
-     */
-    private RabbitPubSubProducer rabbitProducer;
-
     /**
      * CountryDAO instance.
      */
@@ -203,10 +196,9 @@ public class CountryServiceImpl implements CountryService {
      */
     private void notifyNewRegion(Region region) throws IOException,
             TimeoutException, AlreadyClosedException {
-        ObjectMapper mapper = new ObjectMapper();
-        String message = mapper.writeValueAsString(region);
+        String message = JsonSerialization.toJson(region);
 
-        getRabbitProducer().produce("iweb.nics.country.region.new", message);
+        RabbitPublisher.getInstance().produce("iweb.nics.country.region.new", message);
     }
 
     /**
@@ -219,28 +211,8 @@ public class CountryServiceImpl implements CountryService {
      */
     private void notifyDeleteRegion(int regionId) throws IOException,
             TimeoutException, AlreadyClosedException {
-        ObjectMapper mapper = new ObjectMapper();
-        String message = mapper.writeValueAsString(regionId);
-
-        getRabbitProducer().produce("iweb.nics.country.region.delete", message);
-    }
+        String message = JsonSerialization.toJson(regionId);
 
-    /**
-     * Gets initialized Rabbit producer to send messages.
-     *
-     * @return an initialized rabbit producer
-     *
-     * @throws IOException      if there's an issue connecting to rabbitmq
-     * @throws TimeoutException if there's an issue connecting to rabbitmq
-     */
-    private RabbitPubSubProducer getRabbitProducer() throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-        }
-        return rabbitProducer;
+        RabbitPublisher.getInstance().produce("iweb.nics.country.region.delete", message);
     }
 }
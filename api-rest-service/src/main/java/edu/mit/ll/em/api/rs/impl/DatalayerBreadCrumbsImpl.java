@@ -31,6 +31,7 @@ package edu.mit.ll.em.api.rs.impl;
 
 import org.locationtech.jts.geom.Envelope;
 
+import edu.mit.ll.em.api.dataaccess.GeoServerLayerCache;
 import edu.mit.ll.em.api.rs.DatalayerBreadCrumbs;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.nics.common.geoserver.api.GeoServer;
@@ -73,9 +74,16 @@ public class DatalayerBreadCrumbsImpl implements DatalayerBreadCrumbs {
         String layername = id.replace("-", "_").replace(" ", "_") + "_" + interval.replace(" ", "_");
 
         log.debug("LAYERNAME: {}", layername);
-        if(this.geoserver.getLayer(layername, "text/plain") == null) {
-            //Build the requested layer
-            this.createLayer(layername, id, table, interval);
+        GeoServerLayerCache knownLayers = GeoServerLayerCache.getInstance();
+        if(!knownLayers.isKnownLayer(layername)) {
+            if(this.geoserver.getLayer(layername, "text/plain") == null) {
+                //Build the requested layer
+                if(this.createLayer(layername, id, table, interval)) {
+                    knownLayers.layerAdded(layername);
+                }
+            } else {
+                knownLayers.layerAdded(layername);
+            }
         }
         return Response.ok(layername).status(Status.OK).build();
     }
@@ -32,9 +32,12 @@ package edu.mit.ll.em.api.rs.impl;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import org.locationtech.jts.geom.Envelope;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.GeoServerLayerCache;
 import edu.mit.ll.em.api.rs.DatalayerExport;
 import edu.mit.ll.em.api.rs.export.DatalayerExportFile;
 import edu.mit.ll.em.api.rs.export.GeoJsonExportFile;
@@ -44,6 +47,8 @@ import edu.mit.ll.em.api.rs.export.ShapeExportFile;
 import edu.mit.ll.em.api.rs.export.WFSGetCapabilitiesExport;
 import edu.mit.ll.em.api.rs.export.WMSGetCapabilitiesExport;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.AsyncRequestExecutors;
+import edu.mit.ll.em.api.util.RequestIdentity;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.nics.common.entity.IncidentIncidentType;
@@ -52,6 +57,7 @@ import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -101,6 +107,23 @@ public class DatalayerExportImpl implements DatalayerExport {
         this.loadConfig();
     }
 
+    /**
+     * Runs {@link #getDatalayer(long, int, int, String, String, Double, Double, String)} on the export executor, see
+     * {@link AsyncRequestExecutors}
+     */
+    public void getDatalayer(final long userId, final int collabRoomId, final int incidentId, final String type,
+                             final String format, final Double latitude, final Double longitude,
+                             final String requestingUser, AsyncResponse asyncResponse) {
+        AsyncRequestExecutors.getInstance().submit(AsyncRequestExecutors.EXPORT, asyncResponse,
+                new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        return getDatalayer(userId, collabRoomId, incidentId, type, format, latitude, longitude,
+                                requestingUser);
+                    }
+                });
+    }
+
     /**
      * getDatalayer - end point for returning a KML or Shape document
      *
@@ -119,7 +142,7 @@ public class DatalayerExportImpl implements DatalayerExport {
         File response = null;
         Response.Status status = Response.Status.OK;
 
-        if(userDao.getUserId(requestingUser) != userId) {
+        if(RequestIdentity.getUserId(requestingUser) != userId) {
             //Export Error
             status = Response.Status.BAD_REQUEST;
             response = this.getErrorReport(PERMISSION_ERROR).getTextFile();
@@ -131,11 +154,18 @@ public class DatalayerExportImpl implements DatalayerExport {
                 //Check to see if layer exists
                 String layername = this.buildLayername(collabRoomId, type);
 
-                String layer = this.geoserver.getLayer(layername, "text/plain");
-                if(layer == null || layer.startsWith(NO_SUCH_LAYER)) {
-                    //Build the requested layer
-                    this.createLayer(layername, type, collabRoomId);
-                    // TODO: should still verify if it actually was successful being created
+                GeoServerLayerCache knownLayers = GeoServerLayerCache.getInstance();
+                if(!knownLayers.isKnownLayer(layername)) {
+                    String layer = this.geoserver.getLayer(layername, "text/plain");
+                    if(layer == null || layer.startsWith(NO_SUCH_LAYER)) {
+                        //Build the requested layer
+                        if(this.createLayer(layername, type, collabRoomId)) {
+                            knownLayers.layerAdded(layername);
+                        }
+                        // TODO: should still verify if it actually was successful being created
+                    } else {
+                        knownLayers.layerAdded(layername);
+                    }
                 }
 
                 response = this.getExportFile(layername, collabRoomId, incidentId, type, format, latitude, longitude);
@@ -158,6 +188,20 @@ public class DatalayerExportImpl implements DatalayerExport {
                 .build();
     }
 
+    /**
+     * Runs {@link #getCapabilities(int, int, String)} on the export executor, see {@link AsyncRequestExecutors}
+     */
+    public void getCapabilities(final int userId, final int incidentId, final String exportFormat,
+                                AsyncResponse asyncResponse) {
+        AsyncRequestExecutors.getInstance().submit(AsyncRequestExecutors.EXPORT, asyncResponse,
+                new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        return getCapabilities(userId, incidentId, exportFormat);
+                    }
+                });
+    }
+
     /**
      * getCapabilities - end point for returning the capabilities for a specific incident
      *
@@ -458,7 +502,7 @@ public class DatalayerExportImpl implements DatalayerExport {
 			}*/
 
             //Allows users to export the Incident Map
-            return collabDao.hasPermissions(userId, collabRoomId, incidentMap);
+            return EntityCacheMgr.getInstance().hasCollabRoomPermission(userId, collabRoomId, incidentMap);
 
         } catch(Exception e) {
             return false;
@@ -46,6 +46,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -56,6 +57,7 @@ import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.client.Invocation.Builder;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -70,7 +72,6 @@ import org.apache.commons.io.IOUtils;
 
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
 import org.geotools.data.simple.SimpleFeatureSource;
@@ -81,20 +82,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.lang3.StringUtils;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.GeoServerLayerCache;
+import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
 import edu.mit.ll.em.api.dataaccess.ShapefileDAO;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
 import edu.mit.ll.em.api.rs.DatalayerDocumentServiceResponse;
 import edu.mit.ll.em.api.rs.DatalayerService;
 import edu.mit.ll.em.api.rs.DatalayerServiceResponse;
 import edu.mit.ll.em.api.rs.FieldMapResponse;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.AsyncRequestExecutors;
 import edu.mit.ll.em.api.util.FileUtil;
 import edu.mit.ll.em.api.util.ImageLayerGenerator;
+import edu.mit.ll.em.api.util.JsonSerialization;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.common.entity.UserOrg;
 import edu.mit.ll.nics.common.geoserver.api.GeoServer;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.DatalayerDAO;
 import edu.mit.ll.nics.nicsdao.DocumentDAO;
 import edu.mit.ll.nics.nicsdao.FolderDAO;
@@ -103,7 +108,6 @@ import edu.mit.ll.nics.nicsdao.impl.DatalayerDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.DocumentDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.FolderDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserSessionDAOImpl;
 import edu.mit.ll.nics.tools.image_processing.ImageProcessor;
 import com.drew.lang.GeoLocation;
@@ -141,7 +145,6 @@ public class DatalayerServiceImpl implements DatalayerService {
     private static final FolderDAO folderDao = new FolderDAOImpl();
     private static final DocumentDAO documentDao = new DocumentDAOImpl();
     private static final UserDAO userDao = new UserDAOImpl();
-    private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
     private static final UserSessionDAOImpl usersessionDao = new UserSessionDAOImpl();
 
     private static final String FAILED_TO_RETRIEVE = "Failed to retrieve data layers.";
@@ -166,8 +169,6 @@ public class DatalayerServiceImpl implements DatalayerService {
     private static String geoserverDatastore;
     private static String webserverURL;
 
-    private RabbitPubSubProducer rabbitProducer;
-
     private final Client jerseyClient;
 
     public DatalayerServiceImpl() {
@@ -435,11 +436,25 @@ public class DatalayerServiceImpl implements DatalayerService {
         return response;
     }
 
+    /**
+     * Runs {@link #postShapeDataLayer(int, String, MultipartBody, String, String)} on the layer import executor,
+     * see {@link AsyncRequestExecutors}
+     */
+    public void postShapeDataLayer(final int workspaceId, final String displayName, final MultipartBody body,
+                                   final String username, final String folderId, AsyncResponse asyncResponse) {
+        AsyncRequestExecutors.getInstance().submit(AsyncRequestExecutors.LAYER_IMPORT, asyncResponse,
+                new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        return postShapeDataLayer(workspaceId, displayName, body, username, folderId);
+                    }
+                });
+    }
+
     public Response postShapeDataLayer(int workspaceId, String displayName, MultipartBody body,
                                        String username, String folderId) {
-        if(!userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID) &&
-                !userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID) &&
-                !userOrgDao.isUserRole(username, SADisplayConstants.GIS_ROLE_ID)) {
+        if(!EntityCacheMgr.getInstance().hasAnyUserRole(username,
+                SADisplayConstants.SUPER_ROLE_ID, SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.GIS_ROLE_ID)) {
             return getInvalidResponse();
         }
 
@@ -506,6 +521,7 @@ public class DatalayerServiceImpl implements DatalayerService {
             } catch(IOException e) { /* bury */}
             throw new WebApplicationException("Failed to create features " + layerName);
         }
+        GeoServerLayerCache.getInstance().layerAdded(layerName);
 
         //apply styling default or custom sld
         String defaultStyleName = "defaultShapefileStyle";
@@ -626,6 +642,23 @@ public class DatalayerServiceImpl implements DatalayerService {
     }
 
 
+    /**
+     * Runs {@link #postGeotiffDataLayer(int, String, String, Attachment, boolean, MultipartBody, String, String)} on
+     * the layer import executor, see {@link AsyncRequestExecutors}
+     */
+    public void postGeotiffDataLayer(final int workspaceId, final String displayName, final String fileName,
+                                     final Attachment uploadedFile, final boolean isMosaic, final MultipartBody body,
+                                     final String username, final String folderId, AsyncResponse asyncResponse) {
+        AsyncRequestExecutors.getInstance().submit(AsyncRequestExecutors.LAYER_IMPORT, asyncResponse,
+                new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        return postGeotiffDataLayer(workspaceId, displayName, fileName, uploadedFile, isMosaic, body,
+                                username, folderId);
+                    }
+                });
+    }
+
     /**
      * Auto-creates a coverage store and adds the specified geotiff file to it, as well as creates the layer in
      * GeoServer.
@@ -811,6 +844,7 @@ public class DatalayerServiceImpl implements DatalayerService {
                 addSuccess.contains("'status':'success'")) {
 
             log.debug("\n!!!Successfully added to GeoServer!!!\n{}", addSuccess);
+            GeoServerLayerCache.getInstance().layerAdded(displayName);
 
             Response result = finishGeotiffLayer(usersessionid, workspaceId, displayName, folderId);
             DatalayerServiceResponse dlResponse;
@@ -867,9 +901,8 @@ public class DatalayerServiceImpl implements DatalayerService {
                                         String feedUrl, MultipartBody body, String username,
                                         String folderId) {
 
-        if(!userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID) &&
-                !userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID) &&
-                !userOrgDao.isUserRole(username, SADisplayConstants.GIS_ROLE_ID)) {
+        if(!EntityCacheMgr.getInstance().hasAnyUserRole(username,
+                SADisplayConstants.SUPER_ROLE_ID, SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.GIS_ROLE_ID)) {
             return getInvalidResponse();
         }
 
@@ -934,7 +967,7 @@ public class DatalayerServiceImpl implements DatalayerService {
     public Response finishGeotiffLayer(int usersessionId, int workspaceId, String layerName,
                                        String folderId) {
 
-        String datasourceId = datalayerDao.getDatasourceId(
+        String datasourceId = getDatasourceId(
                 APIConfig.getInstance().getConfiguration().getString(APIConfig.IMPORT_GEOTIFF_DATASOURCE_URL));
 
         if(datasourceId == null) {
@@ -1044,6 +1077,21 @@ public class DatalayerServiceImpl implements DatalayerService {
         return Response.ok(datalayerResponse).status(responseStatus).build();
     }
 
+    /**
+     * Runs {@link #finishImageLayer(boolean, int, String, String, int, String)} on the layer import executor, see
+     * {@link AsyncRequestExecutors}
+     */
+    public void finishImageLayer(final boolean cancel, final int workspaceId, final String id, final String title,
+                                 final int usersessionId, final String folderId, AsyncResponse asyncResponse) {
+        AsyncRequestExecutors.getInstance().submit(AsyncRequestExecutors.LAYER_IMPORT, asyncResponse,
+                new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        return finishImageLayer(cancel, workspaceId, id, title, usersessionId, folderId);
+                    }
+                });
+    }
+
     public Response finishImageLayer(boolean cancel, int workspaceId, String id,
                                      String title, int usersessionId, String folderId) {
 
@@ -1061,7 +1109,7 @@ public class DatalayerServiceImpl implements DatalayerService {
             log.debug("Layer Created : {}", layerCreated);
 
             if(layerCreated) {
-                String datasourceId = datalayerDao.getDatasourceId(
+                String datasourceId = getDatasourceId(
                         APIConfig.getInstance().getConfiguration().getString(APIConfig.IMAGE_LAYER_DATASOURCE_URL));
 
                 Datalayer datalayer = new Datalayer();
@@ -1630,13 +1678,14 @@ public class DatalayerServiceImpl implements DatalayerService {
     public Response deleteDatasource(String dataSourceId, String username){
         DatalayerServiceResponse datalayerResponse = new DatalayerServiceResponse();
 
-        if(!(userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID) ||
-                userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID))){
+        if(!EntityCacheMgr.getInstance().hasAnyUserRole(username,
+                SADisplayConstants.SUPER_ROLE_ID, SADisplayConstants.ADMIN_ROLE_ID)){
             datalayerResponse.setMessage(FAILED_PERMIISSION_DATASOURCE);
             return Response.ok(datalayerResponse).status(Status.FORBIDDEN).build();
         }
         if(dataSourceId != null) {
             int rowCount = datalayerDao.deleteDatasource(dataSourceId);
+            EntityCacheMgr.getInstance().invalidateDatasources();
             if (rowCount > 0) {
                 datalayerResponse.setCount(rowCount);
                 datalayerResponse.setMessage(Status.OK.toString());
@@ -1702,18 +1751,7 @@ public class DatalayerServiceImpl implements DatalayerService {
         }
         String wmsMapserverURL = mapserverPublicURL.concat("/wms");
 
-        String datasourceId = datalayerDao.getDatasourceId(wmsMapserverURL);
-        if(datasourceId == null) {
-            int datasourcetypeid = datalayerDao.getDatasourceTypeId("wms");
-            if(datasourcetypeid != -1) {
-                Datasource ds = new Datasource();
-                ds.setInternalurl(wmsMapserverURL);
-                ds.setDatasourcetypeid(datasourcetypeid);
-                ds.setDisplayname("NICS WMS Server");
-                datasourceId = datalayerDao.insertDataSource(ds);
-            }
-        }
-        return datasourceId;
+        return getOrCreateDatasourceId(wmsMapserverURL, "wms", "NICS WMS Server");
     }
 
     private String getFileDatasourceId(String fileExt) {
@@ -1722,17 +1760,7 @@ public class DatalayerServiceImpl implements DatalayerService {
         }
         String webServerURL = webserverURL.concat("/" + fileExt + "/");
 
-        String datasourceId = datalayerDao.getDatasourceId(webServerURL);
-        if(datasourceId == null) {
-            int datasourcetypeid = datalayerDao.getDatasourceTypeId(fileExt);
-            if(datasourcetypeid != -1) {
-                Datasource ds = new Datasource();
-                ds.setInternalurl(webServerURL);
-                ds.setDatasourcetypeid(datasourcetypeid);
-                datasourceId = datalayerDao.insertDataSource(ds);
-            }
-        }
-        return datasourceId;
+        return getOrCreateDatasourceId(webServerURL, fileExt, null);
     }
 
     private String getGeorssDatasourceId(String fileExt, String feedUrl) {
@@ -1741,17 +1769,25 @@ public class DatalayerServiceImpl implements DatalayerService {
 
         }
 
-        String datasourceId = datalayerDao.getDatasourceId(feedUrl);
-        if(datasourceId == null) {
-            int datasourcetypeid = datalayerDao.getDatasourceTypeId(fileExt);
-            if(datasourcetypeid != -1) {
-                Datasource ds = new Datasource();
-                ds.setInternalurl(feedUrl);
-                ds.setDatasourcetypeid(datasourcetypeid);
-                datasourceId = datalayerDao.insertDataSource(ds);
-            }
+        return getOrCreateDatasourceId(feedUrl, fileExt, null);
+    }
+
+    private String getDatasourceId(String url) {
+        try {
+            return EntityCacheMgr.getInstance().getDatasourceId(url);
+        } catch(ICSDatastoreException e) {
+            log.error("Failed to find datasource {}", url, e);
+            return null;
+        }
+    }
+
+    private String getOrCreateDatasourceId(String url, String type, String displayName) {
+        try {
+            return EntityCacheMgr.getInstance().getOrCreateDatasourceId(url, type, displayName);
+        } catch(ICSDatastoreException e) {
+            log.error("Failed to find/create {} datasource {}", type, url, e);
+            return null;
         }
-        return datasourceId;
     }
 
     private GeoServer getGeoServer(Configuration config) {
@@ -1778,9 +1814,8 @@ public class DatalayerServiceImpl implements DatalayerService {
             TimeoutException {
         if(datalayerfolder != null) {
             String topic = String.format("iweb.NICS.%s.datalayer.new", workspaceId);
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(datalayerfolder);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(datalayerfolder);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
 
@@ -1788,9 +1823,8 @@ public class DatalayerServiceImpl implements DatalayerService {
             throws IOException, TimeoutException, AlreadyClosedException {
         if(dataSourceId != null) {
             String topic = String.format("iweb.NICS.datalayer.delete");
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(dataSourceId);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(dataSourceId);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
 
@@ -1798,9 +1832,8 @@ public class DatalayerServiceImpl implements DatalayerService {
             throws IOException, TimeoutException, AlreadyClosedException {
         if(datalayer != null) {
             String topic = String.format("iweb.NICS.datalayer.update");
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(datalayer);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(datalayer);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
 
@@ -1809,9 +1842,8 @@ public class DatalayerServiceImpl implements DatalayerService {
         if(collabroomDatalayer != null) {
             String topic = String.format("iweb.NICS.collabroom.%d.datalayer.new",
                     collabroomDatalayer.getCollabroomid());
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(collabroomDatalayer);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(collabroomDatalayer);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
 
@@ -1820,9 +1852,8 @@ public class DatalayerServiceImpl implements DatalayerService {
         if(collabroomDatalayers != null) {
             String topic = String.format("iweb.NICS.collabroom.%d.datalayer.delete",
                     collabroomDatalayers.get(0).getCollabroomid());
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(collabroomDatalayers);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(collabroomDatalayers);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
 
@@ -1831,24 +1862,11 @@ public class DatalayerServiceImpl implements DatalayerService {
         if(collabroomDatalayer != null) {
             String topic = String.format("iweb.NICS.collabroom.%d.datalayer.update",
                     collabroomDatalayer.getCollabroomid());
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(collabroomDatalayer);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(collabroomDatalayer);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
 
-    private RabbitPubSubProducer getRabbitProducer()
-            throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-        }
-        return rabbitProducer;
-    }
-
     private Response getInvalidResponse() {
         return Response.status(Status.BAD_REQUEST).entity(
                 Status.FORBIDDEN.getReasonPhrase()).build();
@@ -32,20 +32,23 @@ package edu.mit.ll.em.api.rs.impl;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AlreadyClosedException;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.msgbus.NotificationOutbox;
 import edu.mit.ll.em.api.rs.FeatureService;
 import edu.mit.ll.em.api.rs.FeatureServiceResponse;
 import edu.mit.ll.em.api.rs.MultipartFeatureResponse;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.rs.QueryConstraintParms;
+import edu.mit.ll.em.api.rs.StreamingListOutput;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
+import edu.mit.ll.em.api.util.RequestIdentity;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.CollabroomFeature;
 import edu.mit.ll.nics.common.entity.Feature;
 import edu.mit.ll.nics.common.entity.FeatureComment;
 import edu.mit.ll.nics.common.entity.UserFeature;
 import edu.mit.ll.nics.common.entity.datalayer.Document;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.CollabRoomDAO;
 import edu.mit.ll.nics.nicsdao.DocumentDAO;
 import edu.mit.ll.nics.nicsdao.FeatureDAO;
@@ -85,6 +88,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -128,19 +132,17 @@ public class FeatureServiceImpl implements FeatureService {
 
     private static final String UE_PERSISTING_FEATURE = "Unhandled exception while persisting Feature change.";
     private static final String PERMISSION_DENIED = "Permission denied to view this room.";
-    private static final String PUBLISH_COLLABROOM_ERROR =
-            "Failed to publish a collaboration room Feature Change message event.";
     private static final String UE_PERSISTING_USER_FEATURE = "Unhandled exception while persisting User Feature.";
     private static final String ERROR_REMOVING_FROM_THE_MAP =
             "The feature was not successfully removed from the user map.";
-    private static final String ERROR_PUBLISH_DELETE = "Failed to publish a Delete CollabRoom Feature message event.";
     private static final String NO_FILE_ATTACHMENT = "No file attachment found.";
     private static final Object INVALID_PERMISSIONS = "You do not have permissions to perform this function.";
     private static final String FEATURE_COMMENT_NEW = "new";
     private static final String FEATURE_COMMENT_UPDATE = "update";
     private static final String FEATURE_COMMENT_DELETE = "delete";
 
-    private RabbitPubSubProducer rabbitProducer;
+    // FeatureServiceResponse property the features are streamed as
+    private static final String FEATURES_PROPERTY = "features";
 
     private final String fileUploadPath;
     private final String fileUploadUrl;
@@ -169,17 +171,18 @@ public class FeatureServiceImpl implements FeatureService {
 
         UTCRange dateRange = QueryConstraintHelper.makeDateRange(optionalParams);
 
-        if(userDao.getUserId(requestingUser) == userId &&
-                collabRoomDao.hasPermissions(userId, collabroomId, incidentMap)) {
+        if(RequestIdentity.getUserId(requestingUser) == userId &&
+                EntityCacheMgr.getInstance().hasCollabRoomPermission(userId, collabroomId, incidentMap)) {
             List<Feature> features = featureDao.getFeatureState(collabroomId, dateRange, geoType);
             buildDocumentUrls(features);
+            Set<String> fields = QueryConstraintHelper.makeColumnSelectionSet(optionalParams);
 
             if(dateRange != null) {
                 log.debug("Get deleted features");
                 return this.buildGetResponse(features,
-                        featureDao.getDeletedFeatures(collabroomId, dateRange));
+                        featureDao.getDeletedFeatures(collabroomId, dateRange), fields);
             } else {
-                return this.buildGetResponse(features);
+                return this.buildGetResponse(features, fields);
             }
         } else {
             FeatureServiceResponse featureResponse = new FeatureServiceResponse();
@@ -192,15 +195,16 @@ public class FeatureServiceImpl implements FeatureService {
      * Retrieve features for a user
      *
      * @param userId
+     * @param fields comma separated feature properties to return, all of them if null
      * @return Response FeatureServiceResponse containing features
      *
      * @See FeatureServiceResponse
      */
-    public Response getUserFeatures(int userId, String requestingUser) {
-        if(userDao.getUserId(requestingUser) == userId) {
+    public Response getUserFeatures(int userId, String fields, String requestingUser) {
+        if(RequestIdentity.getUserId(requestingUser) == userId) {
             List<Feature> features = featureDao.getUserFeatureState(userId);
             this.buildDocumentUrls(features);
-            return this.buildGetResponse(features);
+            return this.buildGetResponse(features, QueryConstraintHelper.makeColumnSelectionSet(fields));
         } else {
             return getAccessDeniedResponse();
         }
@@ -216,7 +220,7 @@ public class FeatureServiceImpl implements FeatureService {
      * @See FeatureServiceResponse
      */
     public Response getFeatureComments(long featureId, String requestingUser) {
-        if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser),
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(requestingUser),
                 collabRoomDao.getCollabRoomId(featureId))) {
             return getAccessDeniedResponse();
         }
@@ -238,39 +242,39 @@ public class FeatureServiceImpl implements FeatureService {
      *
      * @See FeatureServiceResponse
      */
-    public Response updateFeature(int collabRoomId, int geoType, String feature, String requestingUser) {
+    public Response updateFeature(final int collabRoomId, final int geoType, final String feature,
+                                  String requestingUser) {
         Response response;
-        Long featureId = null;
         FeatureServiceResponse featureResponse = new FeatureServiceResponse();
 
-        if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)) {
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(requestingUser), collabRoomId)) {
             return getAccessDeniedResponse();
         }
 
         try {
-            featureId = this.persistFeatureChange(feature, geoType);
-            featureDao.setCollabroomFeatureDeleted(featureId, false);
+            NotificationOutbox.getInstance().execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    long featureId = persistFeatureChange(feature, geoType);
+                    featureDao.setCollabroomFeatureDeleted(featureId, false);
+
+                    Feature newFeature = featureDao.getFeature(featureId);
+                    buildDocumentUrls(Arrays.asList(newFeature));
+                    notifyNewFeature(newFeature,
+                            String.format("iweb.NICS.collabroom.%s.changefeature", collabRoomId));
+                    return null;
+                }
+            });
 
             featureResponse.setMessage(Status.OK.getReasonPhrase());
 
             response = Response.ok(featureResponse).status(Status.OK).build();
         } catch(Exception e) {
+            log.error("Failed to update a CollabRoom Feature", e);
             featureResponse.setMessage(UE_PERSISTING_FEATURE);
             response = Response.ok(featureResponse).status(Status.INTERNAL_SERVER_ERROR).build();
         }
 
-        if(Status.OK.getStatusCode() == response.getStatus()) {
-            try {
-                Feature newFeature = featureDao.getFeature(featureId);
-                this.buildDocumentUrls(Arrays.asList(newFeature));
-                notifyNewFeature(newFeature,
-                        String.format("iweb.NICS.collabroom.%s.changefeature", collabRoomId));
-            } catch(Exception e) {
-                featureResponse.setMessage(PUBLISH_COLLABROOM_ERROR);
-                log.error("Failed to publish a CollabRoom Feature Change message event", e);
-            }
-        }
-
         return response;
     }
 
@@ -307,45 +311,44 @@ public class FeatureServiceImpl implements FeatureService {
      *
      * {@link FeatureServiceResponse}
      */
-    public Response postCollabRoomFeature(int collabRoomId, int geoType, String feature, String requestingUser) {
+    public Response postCollabRoomFeature(final int collabRoomId, final int geoType, final String feature,
+                                          String requestingUser) {
 
-        if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)) {
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(requestingUser), collabRoomId)) {
             return getAccessDeniedResponse();
         }
 
         Response response;
-        Feature newFeature = null;
         FeatureServiceResponse featureResponse = new FeatureServiceResponse();
         try {
-            newFeature = this.addNewFeature(feature, geoType);
-            if(newFeature != null) {
-                //Add CollabRoom Feature
-                CollabroomFeature collabroomFeature = new CollabroomFeature();
-                collabroomFeature.setFeatureId(newFeature.getFeatureId());
-                collabroomFeature.setCollabroomid(collabRoomId);
-
-                featureDao.addCollabroomFeature(collabroomFeature);
-            }
-            this.buildDocumentUrls(Arrays.asList(newFeature));
+            Feature newFeature = NotificationOutbox.getInstance().execute(new Callable<Feature>() {
+                @Override
+                public Feature call() throws Exception {
+                    Feature added = addNewFeature(feature, geoType);
+                    if(added != null) {
+                        //Add CollabRoom Feature
+                        CollabroomFeature collabroomFeature = new CollabroomFeature();
+                        collabroomFeature.setFeatureId(added.getFeatureId());
+                        collabroomFeature.setCollabroomid(collabRoomId);
+
+                        featureDao.addCollabroomFeature(collabroomFeature);
+                    }
+                    buildDocumentUrls(Arrays.asList(added));
+
+                    String topic = String.format("iweb.NICS.collabroom.%s.feature", collabRoomId);
+                    notifyNewFeature(added, topic);
+                    return added;
+                }
+            });
             this.updatePostResponse(featureResponse, newFeature);
 
             response = Response.ok(featureResponse).status(Status.OK).build();
         } catch(Exception e) {
+            log.error(UE_PERSISTING_FEATURE, e);
             featureResponse.setMessage(UE_PERSISTING_FEATURE);
             response = Response.ok(featureResponse).status(Status.INTERNAL_SERVER_ERROR).build();
         }
 
-        if(Status.OK.getStatusCode() == response.getStatus()) {
-            try {
-                String topic = String.format("iweb.NICS.collabroom.%s.feature", collabRoomId);
-                notifyNewFeature(newFeature, topic);
-            } catch(Exception e) {
-                featureResponse.setMessage(PUBLISH_COLLABROOM_ERROR);
-                log.error(PUBLISH_COLLABROOM_ERROR, e);
-
-            }
-        }
-
         return response;
     }
 
@@ -358,7 +361,7 @@ public class FeatureServiceImpl implements FeatureService {
      */
     public Response postUserFeature(long userId, String feature, String requestingUser) {
 
-        if(userDao.getUserId(requestingUser) != userId) {
+        if(RequestIdentity.getUserId(requestingUser) != userId) {
             return getAccessDeniedResponse();
         }
 
@@ -414,35 +417,34 @@ public class FeatureServiceImpl implements FeatureService {
      * @param featureId
      * @return Response A FeatureServiceResponse
      */
-    public Response deleteCollabRoomFeature(int collabRoomId, long featureId, String requestingUser) {
+    public Response deleteCollabRoomFeature(final int collabRoomId, final long featureId, String requestingUser) {
 
-        if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)) {
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(requestingUser), collabRoomId)) {
             return getAccessDeniedResponse();
         }
 
         Response response;
         FeatureServiceResponse featureResponse = new FeatureServiceResponse();
         try {
-            featureDao.setCollabroomFeatureDeleted(featureId, true);
+            NotificationOutbox.getInstance().execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    featureDao.setCollabroomFeatureDeleted(featureId, true);
+                    notifyDeletedFeature(featureId,
+                            String.format("iweb.NICS.collabroom.%s.deletefeature", collabRoomId));
+                    return null;
+                }
+            });
 
             this.updatePostResponse(featureResponse, featureId);
 
             response = Response.ok(featureResponse).status(Status.OK).build();
         } catch(Exception e) {
+            log.error(ERROR_REMOVING_FROM_THE_MAP, e);
             featureResponse.setMessage(ERROR_REMOVING_FROM_THE_MAP);
             response = Response.ok(featureResponse).status(Status.INTERNAL_SERVER_ERROR).build();
         }
 
-        if(Status.OK.getStatusCode() == response.getStatus()) {
-            try {
-                notifyDeletedFeature(featureId,
-                        String.format("iweb.NICS.collabroom.%s.deletefeature", collabRoomId));
-            } catch(Exception e) {
-                featureResponse.setMessage(ERROR_PUBLISH_DELETE);
-                log.error(ERROR_PUBLISH_DELETE, e);
-            }
-        }
-
         return response;
     }
 
@@ -496,7 +498,7 @@ public class FeatureServiceImpl implements FeatureService {
             feature.put(PROP_GRAPHIC, relativizeGraphicUrl(feature.getString(PROP_GRAPHIC)));
             log.debug("\tto relative 'graphic': {}", feature.get(PROP_GRAPHIC));
         }
-        ObjectMapper mapper = new ObjectMapper();
+        ObjectMapper mapper = JsonSerialization.getMapper();
 
         List<String> fields = mapper.readValue(
                 feature.names().toString(),
@@ -571,25 +573,32 @@ public class FeatureServiceImpl implements FeatureService {
      * @param userId       The id of the user whose features to share
      * @param collabRoomId The id of the collaboration room to share the feature to
      */
-    public Response shareWorkspace(int userId, int collabRoomId, String username) {
-        if(userDao.getUserId(username) != userId) {
+    public Response shareWorkspace(final int userId, final int collabRoomId, String username) {
+        if(RequestIdentity.getUserId(username) != userId) {
             return getAccessDeniedResponse();
         }
 
-        String topic = String.format("iweb.NICS.collabroom.%s.feature", collabRoomId);
-
-        List<Feature> userFeatures = featureDao.getUserFeatureState(userId);
-        featureDao.deleteSharedFeatures(userId, collabRoomId);
-        featureDao.shareFeatures(userId, collabRoomId);
-        for(Feature userFeature : userFeatures) {
-            //we hijack topic to flag this feature not to be ignored
-            //otherwise a client ignores new features from the current user
-            userFeature.setTopic("share");
-            try {
-                notifyNewFeature(userFeature, topic);
-            } catch(Exception e) {
-                log.error("Failed to publish new feature message", e);
-            }
+        final String topic = String.format("iweb.NICS.collabroom.%s.feature", collabRoomId);
+
+        try {
+            NotificationOutbox.getInstance().execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    List<Feature> userFeatures = featureDao.getUserFeatureState(userId);
+                    featureDao.deleteSharedFeatures(userId, collabRoomId);
+                    featureDao.shareFeatures(userId, collabRoomId);
+                    for(Feature userFeature : userFeatures) {
+                        //we hijack topic to flag this feature not to be ignored
+                        //otherwise a client ignores new features from the current user
+                        userFeature.setTopic("share");
+                        notifyNewFeature(userFeature, topic);
+                    }
+                    return null;
+                }
+            });
+        } catch(Exception e) {
+            log.error("Failed to share the features of user {} with collabroom {}", userId, collabRoomId, e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
         }
         return null;
     }
@@ -600,22 +609,27 @@ public class FeatureServiceImpl implements FeatureService {
      * @param userId       The id of the user whose features to stop sharing
      * @param collabRoomId The id of the collaboration room to stop sharing with
      */
-    public Response unshareWorkspace(int userId, int collabRoomId, String username) {
-        if(userDao.getUserId(username) != userId) {
+    public Response unshareWorkspace(final int userId, final int collabRoomId, String username) {
+        if(RequestIdentity.getUserId(username) != userId) {
             return getAccessDeniedResponse();
         }
 
-        String topic = String.format("iweb.NICS.collabroom.%s.deletefeature", collabRoomId);
+        final String topic = String.format("iweb.NICS.collabroom.%s.deletefeature", collabRoomId);
 
-        List<Long> deletedIds = featureDao.markSharedFeaturesDeleted(userId, collabRoomId);
-        for(Long deletedId : deletedIds) {
-            try {
-                notifyDeletedFeature(deletedId, topic);
-            } catch(IOException | JSONException | TimeoutException | AlreadyClosedException e) {
-                log.error("Failed to publish deleted feature message", e);
-            } catch(Exception e) {
-                log.error("Failed to publish deleted feature message", e);
-            }
+        try {
+            NotificationOutbox.getInstance().execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    List<Long> deletedIds = featureDao.markSharedFeaturesDeleted(userId, collabRoomId);
+                    for(Long deletedId : deletedIds) {
+                        notifyDeletedFeature(deletedId, topic);
+                    }
+                    return null;
+                }
+            });
+        } catch(Exception e) {
+            log.error("Failed to unshare the features of user {} from collabroom {}", userId, collabRoomId, e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
         }
         return null;
     }
@@ -627,32 +641,35 @@ public class FeatureServiceImpl implements FeatureService {
      * @param collabRoomId The id of the collaboration room to copy to
      */
     @Override
-    public Response copyWorkspace(int userId, int collabRoomId, String username) {
-        if(userDao.getUserId(username) != userId) {
+    public Response copyWorkspace(final int userId, final int collabRoomId, String username) {
+        if(RequestIdentity.getUserId(username) != userId) {
             return getAccessDeniedResponse();
         }
 
-        String topic = String.format("iweb.NICS.collabroom.%s.feature", collabRoomId);
+        final String topic = String.format("iweb.NICS.collabroom.%s.feature", collabRoomId);
 
-        List<Feature> userFeatures = Collections.emptyList();
+        List<Feature> userFeatures;
         try {
-            List<Long> newFeatureIds = featureDao.copyFeatures(userId, collabRoomId);
-            if(newFeatureIds.size() > 0) {
-                userFeatures = featureDao.getFeatures(newFeatureIds);
-            }
+            userFeatures = NotificationOutbox.getInstance().execute(new Callable<List<Feature>>() {
+                @Override
+                public List<Feature> call() throws Exception {
+                    List<Feature> copied = Collections.emptyList();
+                    List<Long> newFeatureIds = featureDao.copyFeatures(userId, collabRoomId);
+                    if(newFeatureIds.size() > 0) {
+                        copied = featureDao.getFeatures(newFeatureIds);
+                    }
+                    for(Feature userFeature : copied) {
+                        //we hijack topic to flag this feature not to be ignored
+                        //otherwise a client ignores new features from the current user
+                        userFeature.setTopic("share");
+                        notifyNewFeature(userFeature, topic);
+                    }
+                    return copied;
+                }
+            });
         } catch(Exception e) {
             return Response.status(Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
         }
-        for(Feature userFeature : userFeatures) {
-            //we hijack topic to flag this feature not to be ignored
-            //otherwise a client ignores new features from the current user
-            userFeature.setTopic("share");
-            try {
-                notifyNewFeature(userFeature, topic);
-            } catch(Exception e) {
-                log.error("Failed to publish new feature message", e);
-            }
-        }
 
         FeatureServiceResponse response = new FeatureServiceResponse();
         response.setMessage(Status.OK.getReasonPhrase());
@@ -671,7 +688,7 @@ public class FeatureServiceImpl implements FeatureService {
     }
 
     @Override
-    public Response postFeatureDocument(long featureId, int usersessionId, String username,
+    public Response postFeatureDocument(final long featureId, final int usersessionId, final String username,
                                         List<Attachment> attachments, String requestingUser) {
 
         if(!username.equalsIgnoreCase(requestingUser)) {
@@ -710,26 +727,32 @@ public class FeatureServiceImpl implements FeatureService {
             return Response.status(Status.BAD_REQUEST).entity(NO_FILE_ATTACHMENT).build();
         }
 
+        // The upload is written already, only the metadata update shares a transaction with its notifications
+        Feature newFeature;
         try {
-            JSONObject properties = new JSONObject();
-            properties.put(SADisplayConstants.LAST_UPDATE, new Date());
-            properties.put(SADisplayConstants.USER_NAME, username);
-            properties.put(SADisplayConstants.USERSESSION_ID, usersessionId);
-            featureDao.updateFeature(featureId, properties);
+            newFeature = NotificationOutbox.getInstance().execute(new Callable<Feature>() {
+                @Override
+                public Feature call() throws Exception {
+                    JSONObject properties = new JSONObject();
+                    properties.put(SADisplayConstants.LAST_UPDATE, new Date());
+                    properties.put(SADisplayConstants.USER_NAME, username);
+                    properties.put(SADisplayConstants.USERSESSION_ID, usersessionId);
+                    featureDao.updateFeature(featureId, properties);
+
+                    Feature updated = featureDao.getFeature(featureId);
+                    buildDocumentUrls(Arrays.asList(updated));
+                    List<CollabroomFeature> rooms = featureDao.getCollabroomFeatures(updated.getFeatureId());
+                    for(CollabroomFeature room : rooms) {
+                        notifyNewFeature(updated,
+                                String.format("iweb.NICS.collabroom.%s.changefeature", room.getCollabroomid()));
+                    }
+                    return updated;
+                }
+            });
         } catch(Exception e) {
             log.error("Failed to update feature metadata", e);
-        }
-
-        Feature newFeature = featureDao.getFeature(featureId);
-        buildDocumentUrls(Arrays.asList(newFeature));
-        try {
-            List<CollabroomFeature> rooms = featureDao.getCollabroomFeatures(newFeature.getFeatureId());
-            for(CollabroomFeature room : rooms) {
-                notifyNewFeature(newFeature,
-                        String.format("iweb.NICS.collabroom.%s.changefeature", room.getCollabroomid()));
-            }
-        } catch(Exception e) {
-            log.error("Failed to publish Change Collabroom Feature message event", e);
+            newFeature = featureDao.getFeature(featureId);
+            buildDocumentUrls(Arrays.asList(newFeature));
         }
 
 
@@ -851,7 +874,7 @@ public class FeatureServiceImpl implements FeatureService {
     private FeatureServiceResponse buildFeatureServiceResponse(List<Feature> features) {
         FeatureServiceResponse featureResponse = new FeatureServiceResponse();
         featureResponse.setMessage(Status.OK.getReasonPhrase());
-        featureResponse.setFeatures(features);
+        // The features themselves are streamed, see buildGetResponse
         featureResponse.setCount(features.size());
         return featureResponse;
     }
@@ -860,26 +883,28 @@ public class FeatureServiceImpl implements FeatureService {
      * Create Response object for a get
      *
      * @param features
+     * @param fields the feature properties to return, all of them if empty
      * @return
      */
-    private Response buildGetResponse(List<Feature> features) {
-        return Response.ok(
-                this.buildFeatureServiceResponse(features))
-                .status(Status.OK).build();
+    private Response buildGetResponse(List<Feature> features, Set<String> fields) {
+        return StreamingListOutput.ok(
+                this.buildFeatureServiceResponse(features), FEATURES_PROPERTY, features, fields);
     }
 
     /**
      * Create Response object for a get
      *
      * @param features
+     * @param fields the feature properties to return, all of them if empty
      * @return
      */
     private Response buildGetResponse(
             List<Feature> features,
-            List<Long> deletedFeatures) {
+            List<Long> deletedFeatures,
+            Set<String> fields) {
         FeatureServiceResponse featureResponse = this.buildFeatureServiceResponse(features);
         featureResponse.setDeletedFeature(deletedFeatures);
-        return Response.ok(featureResponse).status(Status.OK).build();
+        return StreamingListOutput.ok(featureResponse, FEATURES_PROPERTY, features, fields);
     }
 
     /**
@@ -891,9 +916,8 @@ public class FeatureServiceImpl implements FeatureService {
      */
     private void notifyNewFeature(Feature feature, String topic) throws Exception {
         if(topic != null && feature != null) {
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(feature);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(feature);
+            NotificationOutbox.getInstance().produce(topic, message);
         } else {
             throw new Exception("Could not notify user of a new feature. Feature/Topic was null.");
         }
@@ -910,26 +934,7 @@ public class FeatureServiceImpl implements FeatureService {
             throws IOException, JSONException, TimeoutException, AlreadyClosedException {
         JSONObject message = new JSONObject();
         message.put(DELETED_FEATURE_ID, featureId);
-        getRabbitProducer().produce(topic, message.toString());
-    }
-
-    /**
-     * Get Rabbit producer to send message
-     *
-     * @return
-     *
-     * @throws IOException
-     */
-    private RabbitPubSubProducer getRabbitProducer()
-            throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-        }
-        return rabbitProducer;
+        NotificationOutbox.getInstance().produce(topic, message.toString());
     }
 
     private Response getAccessDeniedResponse() {
@@ -938,15 +943,27 @@ public class FeatureServiceImpl implements FeatureService {
     }
 
     @Override
-    public Response deleteFeatureComment(long featureId, long featureCommentId, String username) {
-        if(!collabRoomDao.hasPermissions(userDao.getUserId(username),
+    public Response deleteFeatureComment(final long featureId, final long featureCommentId, String username) {
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(username),
                 collabRoomDao.getCollabRoomId(featureId))) {
             return getAccessDeniedResponse();
         }
 
         FeatureServiceResponse featureResponse = new FeatureServiceResponse();
         try {
-            if(featureDao.deleteFeatureComment(featureCommentId) == 1) {
+            int deleted = NotificationOutbox.getInstance().execute(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int count = featureDao.deleteFeatureComment(featureCommentId);
+
+                    FeatureComment featureComment = new FeatureComment();
+                    featureComment.setFeatureCommentId(featureCommentId);
+                    featureComment.setFeatureId(featureId);
+                    notifyChange(featureComment, FEATURE_COMMENT_DELETE);
+                    return count;
+                }
+            });
+            if(deleted == 1) {
                 featureResponse.setMessage(Status.OK.toString());
             } else {
                 featureResponse.setMessage(
@@ -954,11 +971,6 @@ public class FeatureServiceImpl implements FeatureService {
                                 featureCommentId));
             }
 
-            FeatureComment featureComment = new FeatureComment();
-            featureComment.setFeatureCommentId(featureCommentId);
-            featureComment.setFeatureId(featureId);
-            this.notifyChange(featureComment, FEATURE_COMMENT_DELETE);
-
             return Response.ok(featureResponse).status(Status.OK).build();
         } catch(Exception e) {
             log.debug(e.getMessage());
@@ -969,19 +981,27 @@ public class FeatureServiceImpl implements FeatureService {
     }
 
     @Override
-    public Response postFeatureComment(FeatureComment featureComment, String username) {
-        if(!collabRoomDao.hasPermissions(userDao.getUserId(username),
+    public Response postFeatureComment(final FeatureComment featureComment, String username) {
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(username),
                 collabRoomDao.getCollabRoomId(featureComment.getFeatureId()))) {
             return getAccessDeniedResponse();
         }
 
         FeatureServiceResponse featureResponse = new FeatureServiceResponse();
         try {
-            int featureCommentId = featureDao.addFeatureComment(featureComment);
+            int featureCommentId = NotificationOutbox.getInstance().execute(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int id = featureDao.addFeatureComment(featureComment);
+                    if(id > -1) {
+                        featureComment.setFeatureCommentId(id);
+                        notifyChange(featureComment, FEATURE_COMMENT_NEW);
+                    }
+                    return id;
+                }
+            });
             if(featureCommentId > -1) {
-                featureComment.setFeatureCommentId(featureCommentId);
                 featureResponse.setMessage(Status.OK.toString());
-                this.notifyChange(featureComment, FEATURE_COMMENT_NEW);
                 return Response.ok(featureResponse).status(Status.OK).build();
             }
         } catch(Exception e) {
@@ -993,17 +1013,26 @@ public class FeatureServiceImpl implements FeatureService {
     }
 
     @Override
-    public Response updateFeatureComment(FeatureComment featureComment, String username) {
-        if(!collabRoomDao.hasPermissions(userDao.getUserId(username),
+    public Response updateFeatureComment(final FeatureComment featureComment, String username) {
+        if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(RequestIdentity.getUserId(username),
                 collabRoomDao.getCollabRoomId(featureComment.getFeatureId()))) {
             return getAccessDeniedResponse();
         }
 
         FeatureServiceResponse featureResponse = new FeatureServiceResponse();
         try {
-            if(featureDao.updateFeatureComment(featureComment) == 1) {
+            int updated = NotificationOutbox.getInstance().execute(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int count = featureDao.updateFeatureComment(featureComment);
+                    if(count == 1) {
+                        notifyChange(featureComment, FEATURE_COMMENT_UPDATE);
+                    }
+                    return count;
+                }
+            });
+            if(updated == 1) {
                 featureResponse.setMessage(Status.OK.toString());
-                this.notifyChange(featureComment, FEATURE_COMMENT_UPDATE);
             } else {
                 featureResponse.setMessage("No comment was updated.");
             }
@@ -1021,9 +1050,8 @@ public class FeatureServiceImpl implements FeatureService {
             throws IOException, TimeoutException, AlreadyClosedException {
         if(featureComment != null) {
             String topic = String.format("iweb.NICS.feature.comment.%s.%s", type, featureComment.getFeatureId());
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(featureComment);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(featureComment);
+            NotificationOutbox.getInstance().produce(topic, message);
         }
     }
 }
@@ -40,6 +40,8 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.rabbitmq.client.AlreadyClosedException;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
 import edu.mit.ll.em.api.util.FileUtil;
 import edu.mit.ll.nics.common.entity.datalayer.*;
 import edu.mit.ll.nics.nicsdao.DocumentDAO;
@@ -48,7 +50,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,10 +57,9 @@ import edu.mit.ll.em.api.rs.FolderDataServiceResponse;
 import edu.mit.ll.em.api.rs.DatalayerDocumentServiceResponse;
 import edu.mit.ll.em.api.rs.FolderService;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
 
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import edu.mit.ll.nics.nicsdao.DatalayerDAO;
 import edu.mit.ll.nics.nicsdao.FolderDAO;
@@ -67,7 +67,6 @@ import edu.mit.ll.nics.nicsdao.IncidentDAO;
 import edu.mit.ll.nics.nicsdao.impl.DatalayerDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.FolderDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 
 /**
  * @AUTHOR st23420
@@ -102,12 +101,8 @@ public class FolderServiceImpl implements FolderService {
 
     private static final DocumentDAO documentDao = new DocumentDAOImpl();
 
-    private RabbitPubSubProducer rabbitProducer;
-
     private static final Log logger = LogFactory.getLog(FolderServiceImpl.class);
 
-    private final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
-
     /**
      * Return Folder items
      *
@@ -474,7 +469,7 @@ public class FolderServiceImpl implements FolderService {
     public Response deleteIncidentDocument(String folderId, String incidentId, String requestingUser){
         DocumentFolder response = new DocumentFolder();
 
-        if(!userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+        if(!EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
             response.setMessage("User not authorized");
             return Response.ok(response).status(Status.UNAUTHORIZED).build();
         }
@@ -500,7 +495,7 @@ public class FolderServiceImpl implements FolderService {
     public Response deleteOrgDocument(String folderId, String orgId, String requestingUser){
         DocumentFolder response = new DocumentFolder();
 
-        if(!userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+        if(!EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
             response.setMessage("User not authorized");
             return Response.ok(response).status(Status.UNAUTHORIZED).build();
         }
@@ -526,7 +521,7 @@ public class FolderServiceImpl implements FolderService {
     public Response deleteCollabroomDocument(String folderId, String collabroomId, String requestingUser){
         DocumentFolder response = new DocumentFolder();
 
-        if(!userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+        if(!EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
             response.setMessage("User not authorized");
             return Response.ok(response).status(Status.UNAUTHORIZED).build();
         }
@@ -678,39 +673,17 @@ public class FolderServiceImpl implements FolderService {
     private void notifyFolder(Object folder, String topic)
             throws IOException, TimeoutException, AlreadyClosedException {
         if(folder != null) {
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(folder);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(folder);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
 
     private void notifyFolderDocument(Object folderDocument, String topic)
             throws IOException, AlreadyClosedException, TimeoutException {
         if(folderDocument != null) {
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(folderDocument);
-            getRabbitProducer().produce(topic, message);
-        }
-    }
-
-    /**
-     * Get Rabbit producer to send message
-     *
-     * @return
-     *
-     * @throws IOException
-     * @throws AlreadyClosedException
-     */
-    private RabbitPubSubProducer getRabbitProducer()
-            throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
+            String message = JsonSerialization.toJson(folderDocument);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
-        return rabbitProducer;
     }
 
 
@@ -29,22 +29,23 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.dataaccess.OrgGraph;
 import edu.mit.ll.nics.common.entity.IncidentOrg;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
 import org.springframework.dao.DataAccessException;
 
 import java.util.*;
 
-import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
-
+/**
+ * Org hierarchy lookups are answered by the cached {@link OrgGraph}, see {@link EntityCacheMgr#getOrgGraph()}.
+ */
 public class IncidentOrgManager {
 
-    private OrgDAOImpl orgDao;
     private IncidentDAOImpl incidentDao;
 
-    public IncidentOrgManager(OrgDAOImpl orgDaoImpl, IncidentDAOImpl incidentDaoImpl) {
-        orgDao = orgDaoImpl;
+    public IncidentOrgManager(IncidentDAOImpl incidentDaoImpl) {
         incidentDao = incidentDaoImpl;
     }
 
@@ -77,7 +78,7 @@ public class IncidentOrgManager {
     }
 
     public List<IncidentOrg> getParentOrgs(List<IncidentOrg> incidentOrgs,
-                                           int incidentId, int userId) {
+                                           int incidentId, int userId) throws ICSDatastoreException {
 
         List<IncidentOrg> parentOrgs = new ArrayList();
 
@@ -97,7 +98,7 @@ public class IncidentOrgManager {
             orgIds.add(inc.getOrgid());
         }
 
-        List<Integer> parentIds = orgDao.getAllParents(orgIds);
+        List<Integer> parentIds = EntityCacheMgr.getInstance().getOrgGraph().getAncestors(orgIds);
         if(parentIds != null && parentIds.size() > 0) {
             for(int parentId : parentIds) {
                 parentOrgs.add(new IncidentOrg(
@@ -111,13 +112,13 @@ public class IncidentOrgManager {
 
     public boolean validateRemoval(IncidentOrg incOrg,
                                    List<Integer> incidentOrgs,
-                                   List<Integer> orgsToBeRemoved) {
-        List<Integer> childIds =
-                orgDao.getAllChildren(Arrays.asList(incOrg.getOrgid()));
+                                   List<Integer> orgsToBeRemoved) throws ICSDatastoreException {
+        OrgGraph orgGraph = EntityCacheMgr.getInstance().getOrgGraph();
 
-        for(int childId : childIds) {
-            if(incidentOrgs.contains(childId) &&
-                    !orgsToBeRemoved.contains(childId)) {
+        // A child org can't keep its access once its parent lost it
+        for(int orgId : incidentOrgs) {
+            if(orgGraph.isDescendant(orgId, incOrg.getOrgid()) &&
+                    !orgsToBeRemoved.contains(orgId)) {
                 return false;
             }
         }
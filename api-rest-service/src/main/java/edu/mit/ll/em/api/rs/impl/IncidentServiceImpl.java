@@ -29,15 +29,22 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AlreadyClosedException;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.dataaccess.UserIdentity;
 import edu.mit.ll.em.api.exception.DuplicateCollabRoomException;
+import edu.mit.ll.em.api.msgbus.NotificationOutbox;
 import edu.mit.ll.em.api.rs.CollabService;
 import edu.mit.ll.em.api.rs.FieldMapResponse;
 import edu.mit.ll.em.api.rs.IncidentService;
 import edu.mit.ll.em.api.rs.IncidentServiceResponse;
+import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.rs.QueryConstraintParms;
+import edu.mit.ll.em.api.rs.StreamingListOutput;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
+import edu.mit.ll.em.api.util.RequestIdentity;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.email.JsonEmail;
 import edu.mit.ll.nics.common.entity.CollabRoom;
@@ -48,13 +55,10 @@ import edu.mit.ll.nics.common.entity.IncidentType;
 import edu.mit.ll.nics.common.entity.Org;
 import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.common.entity.datalayer.Folder;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.FolderDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserSessionDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.WorkspaceDAOImpl;
 import org.slf4j.Logger;
@@ -73,6 +77,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeoutException;
 import org.springframework.dao.DuplicateKeyException;
 
@@ -110,11 +115,6 @@ public class IncidentServiceImpl implements IncidentService {
      */
     private static final UserDAOImpl userDao = new UserDAOImpl();
 
-    /**
-     * The User DAO
-     */
-    private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
-
     /**
      * Folder DAO
      */
@@ -130,9 +130,7 @@ public class IncidentServiceImpl implements IncidentService {
      */
     private static final UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
 
-    private RabbitPubSubProducer rabbitProducer;
-
-    private IncidentOrgManager incOrgManager = new IncidentOrgManager(orgDao, incidentDao);
+    private IncidentOrgManager incOrgManager = new IncidentOrgManager(incidentDao);
 
     /**
      * Gets a list of orgIds the given userId has access to
@@ -141,29 +139,30 @@ public class IncidentServiceImpl implements IncidentService {
      * @return a list of orgIds the user has access to, null if none found or invalid userId
      */
     private List<Integer> getUserAccessibleOrgIds(Integer userId, Integer workspaceId) {
-        User user = null;
-        if(userId == null || (user = userDao.getUserById(userId)) == null) {
+        UserIdentity identity = null;
+        try {
+            if(userId == null || (identity = EntityCacheMgr.getInstance().getUserIdentity(userId)) == null) {
+                return null;
+            }
+        } catch(ICSDatastoreException e) {
+            log.error("Exception getting user {}: {}", userId, e.getMessage());
             return null;
         }
 
         List<Integer> orgIds = new ArrayList<>();
 
-        boolean isSuper = userOrgDao.isUserRole(user.getUsername(), SADisplayConstants.SUPER_ROLE_ID);
-        if(isSuper) {
+        if(identity.isSuperUser()) {
             // TODO: getIncidents already does an isSuper check, so no need to get different orgIds here,
             // TODO: but this may still be useful?
-            orgIds = orgDao.getOrganizationIds(workspaceId);
+            orgIds.addAll(EntityCacheMgr.getInstance().getWorkspaceOrgIds(workspaceId));
 
             return orgIds;
         }
 
         try {
-            List<Org> userOrgs = orgDao.getUserOrgs(userId, workspaceId);
-            for(Org org : userOrgs) {
-                orgIds.add(org.getOrgId());
-            }
-
-            orgIds.addAll(orgDao.getAllChildren(orgIds));
+            // The user's orgs, and all orgs below them
+            orgIds.addAll(EntityCacheMgr.getInstance().getOrgGraph()
+                    .getSelfAndDescendants(identity.getOrgIds(workspaceId)));
 
             log.debug("GOT {} orgIds user is in", orgIds.size());
 
@@ -179,11 +178,12 @@ public class IncidentServiceImpl implements IncidentService {
      *
      * @param workspaceId
      * @param accessibleByUserId
+     * @param fields comma separated incident properties to return, all of them if null
      * @return Response IncidentResponse containing all Incidents with the specified workspace
      *
      * @see IncidentServiceResponse
      */
-    public Response getIncidents(Integer workspaceId, Integer accessibleByUserId) {
+    public Response getIncidents(Integer workspaceId, Integer accessibleByUserId, String fields) {
 
         Response response;
         IncidentServiceResponse incidentResponse = new IncidentServiceResponse();
@@ -197,7 +197,7 @@ public class IncidentServiceImpl implements IncidentService {
 
         try {
             String username = user.getUsername();
-            if(userOrgDao.isUserRole(username,
+            if(EntityCacheMgr.getInstance().isUserRole(username,
                     SADisplayConstants.SUPER_ROLE_ID)) {
                 incidents = incidentDao.getIncidents(workspaceId);
             } else {
@@ -211,10 +211,10 @@ public class IncidentServiceImpl implements IncidentService {
                 incidents = incidentDao.getIncidents(workspaceId, orgIds);
             }
 
-            incidentResponse.setIncidents(incidents);
             incidentResponse.setCount(incidents.size());
             incidentResponse.setMessage(Status.OK.getReasonPhrase());
-            response = Response.ok(incidentResponse).status(Status.OK).build();
+            response = StreamingListOutput.ok(incidentResponse, "incidents", incidents,
+                    QueryConstraintHelper.makeColumnSelectionSet(fields));
         } catch(DataAccessException e) {
 
             incidentResponse.setMessage("Data access failure. Unable to read all incidents.");
@@ -249,7 +249,7 @@ public class IncidentServiceImpl implements IncidentService {
 
         FieldMapResponse mapResponse = new FieldMapResponse();
         try {
-            Long userId = (Long) userDao.getUserId(requestingUser);
+            Long userId = (Long) RequestIdentity.getUserId(requestingUser);
             List<Integer> orgIds = getUserAccessibleOrgIds((userId != null ? userId.intValue() : null), workspaceId);
 
             if(orgPrefix != null) {
@@ -275,20 +275,27 @@ public class IncidentServiceImpl implements IncidentService {
         }
     }
 
-    public Response activateIncident(int workspaceId, int incidentId, String username) {
-        if(userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID) ||
+    public Response activateIncident(final int workspaceId, final int incidentId, String username) {
+        if(EntityCacheMgr.getInstance().isUserRole(username, SADisplayConstants.SUPER_ROLE_ID) ||
                 incidentDao.isAdmin(workspaceId, incidentId, username)) {
 
-            boolean ret = incidentDao.setIncidentActive(incidentId, true, null);
-            if(ret) {
-                String topic = String.format("iweb.NICS.ws.%s.newIncident", workspaceId);
-                try {
-                    this.notifyIncidentRestricted(incidentDao.getIncident(incidentId), topic);
+            try {
+                boolean ret = NotificationOutbox.getInstance().execute(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if(!incidentDao.setIncidentActive(incidentId, true, null)) {
+                            return false;
+                        }
+                        String topic = String.format("iweb.NICS.ws.%s.newIncident", workspaceId);
+                        notifyIncidentRestricted(incidentDao.getIncident(incidentId), topic);
+                        return true;
+                    }
+                });
+                if(ret) {
                     return Response.ok(Status.OK.toString()).status(Status.OK).build();
-                } catch(Exception e) {
-                    return Response.ok("The incident was activated successfully, but there "
-                            + "was an error notifying the users.").status(Status.INTERNAL_SERVER_ERROR).build();
                 }
+            } catch(Exception e) {
+                log.error("Failed to activate incident {}", incidentId, e);
             }
             return Response.ok("There was an error activating the incident").status(Status.INTERNAL_SERVER_ERROR)
                     .build();
@@ -297,19 +304,27 @@ public class IncidentServiceImpl implements IncidentService {
         }
     }
 
-    public Response archiveIncident(int workspaceId, int incidentId, String username, String folderId) {
-        if(userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID) ||
+    public Response archiveIncident(final int workspaceId, final int incidentId, String username,
+                                    final String folderId) {
+        if(EntityCacheMgr.getInstance().isUserRole(username, SADisplayConstants.SUPER_ROLE_ID) ||
                 incidentDao.isAdmin(workspaceId, incidentId, username)) {
-            boolean ret = incidentDao.setIncidentActive(incidentId, false, folderId);
-            if(ret) {
-                String topic = String.format("iweb.NICS.ws.%s.removeIncident", workspaceId);
-                try {
-                    this.notifyIncident(incidentId, topic);
+            try {
+                boolean ret = NotificationOutbox.getInstance().execute(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if(!incidentDao.setIncidentActive(incidentId, false, folderId)) {
+                            return false;
+                        }
+                        String topic = String.format("iweb.NICS.ws.%s.removeIncident", workspaceId);
+                        notifyIncident(incidentId, topic);
+                        return true;
+                    }
+                });
+                if(ret) {
                     return Response.ok(Status.OK.toString()).status(Status.OK).build();
-                } catch(Exception e) {
-                    return Response.ok("The incident was archived successfully, but there "
-                            + "was an error notifying the users.").status(Status.INTERNAL_SERVER_ERROR).build();
                 }
+            } catch(Exception e) {
+                log.error("Failed to archive incident {}", incidentId, e);
             }
             return Response.ok("There was an error archiving the incident").status(Status.INTERNAL_SERVER_ERROR)
                     .build();
@@ -333,7 +348,7 @@ public class IncidentServiceImpl implements IncidentService {
         User user = null;
         FieldMapResponse incidentResponse = new FieldMapResponse();
 
-        if((user = userDao.getUser(requestingUser)) == null) {
+        if((user = RequestIdentity.getUser(requestingUser)) == null) {
             incidentResponse.setMessage("FAILED. Parameter requestingUser not specified, or no user found");
             return Response.ok(incidentResponse).status(Status.PRECONDITION_FAILED).build();
         }
@@ -342,7 +357,7 @@ public class IncidentServiceImpl implements IncidentService {
 
         try {
             String username = user.getUsername();
-            if(userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID)) {
+            if(EntityCacheMgr.getInstance().isUserRole(username, SADisplayConstants.SUPER_ROLE_ID)) {
                 incidents = incidentDao.getActiveIncidents(workspaceId, orgId, active, folderId);
             } else {
                 List<Integer> orgIds = getUserAccessibleOrgIds(user.getUserId(), workspaceId);
@@ -412,7 +427,7 @@ public class IncidentServiceImpl implements IncidentService {
     public Response getIncidentTypes() {
         IncidentServiceResponse incidentResponse = new IncidentServiceResponse();
         try {
-            incidentResponse.setIncidentTypes(this.incidentDao.getIncidentTypes());
+            incidentResponse.setIncidentTypes(EntityCacheMgr.getInstance().getReferenceData().getIncidentTypes());
             incidentResponse.setMessage(Status.OK.toString());
             return Response.ok(incidentResponse).status(Status.OK).build();
         } catch(Exception e) {
@@ -448,7 +463,7 @@ public class IncidentServiceImpl implements IncidentService {
      *
      * @see IncidentServiceResponse
      */
-    public Response updateIncident(Integer workspaceId, Incident incident, String requestingUser) {
+    public Response updateIncident(final Integer workspaceId, final Incident incident, String requestingUser) {
         log.debug("Update Incident");
 
         Response response = null;
@@ -456,7 +471,7 @@ public class IncidentServiceImpl implements IncidentService {
         Incident updatedIncident = null;
 
         List<Integer> incidentIds = incidentDao.getIncidentIdsAccessibleToUser(
-                getUserAccessibleOrgIds(userDao.getUser(requestingUser)
+                getUserAccessibleOrgIds(RequestIdentity.getUser(requestingUser)
                         .getUserId(), workspaceId));
 
         if(!incidentIds.contains(incident.getIncidentid())) {
@@ -477,7 +492,17 @@ public class IncidentServiceImpl implements IncidentService {
         }
 
         try {
-            updatedIncident = incidentDao.updateIncident(workspaceId, incident);
+            updatedIncident = NotificationOutbox.getInstance().execute(new Callable<Incident>() {
+                @Override
+                public Incident call() throws Exception {
+                    Incident updated = incidentDao.updateIncident(workspaceId, incident);
+                    if(updated != null) {
+                        String topic = String.format("iweb.NICS.incident.%d.update", incident.getIncidentid());
+                        notifyIncident(updated, topic);
+                    }
+                    return updated;
+                }
+            });
 
             if(updatedIncident != null) {
                 incidentResponse.setCount(1);
@@ -497,16 +522,6 @@ public class IncidentServiceImpl implements IncidentService {
             response = Response.ok(incidentResponse).status(Status.INTERNAL_SERVER_ERROR).build();
         }
 
-
-        if(Status.OK.getStatusCode() == response.getStatus()) {
-            try {
-                String topic = String.format("iweb.NICS.incident.%d.update", incident.getIncidentid());
-                notifyIncident(updatedIncident, topic);
-            } catch(Exception e) {
-                log.error("Failed to publish a update Incident message event", e);
-            }
-        }
-
         return response;
     }
 
@@ -528,10 +543,10 @@ public class IncidentServiceImpl implements IncidentService {
      * @see IncidentServiceResponse
      */
 
-    public Response postIncident(Integer workspaceId, Integer orgId, Integer userId, Incident incident)
+    public Response postIncident(final Integer workspaceId, Integer orgId, Integer userId, final Incident incident)
             throws DataAccessException, DuplicateCollabRoomException, Exception {
 
-        IncidentServiceResponse incidentResponse = new IncidentServiceResponse();
+        final IncidentServiceResponse incidentResponse = new IncidentServiceResponse();
         Response response = null;
         JsonEmail email = null;
 
@@ -561,11 +576,17 @@ public class IncidentServiceImpl implements IncidentService {
                 incident.getIncidentorgs().add(self);
             }
 
-            Set<IncidentOrg> parents =
-                    incOrgManager.convertToSet(
-                            incOrgManager.getParentOrgs(
-                                    incOrgManager.convertToList(incident.getIncidentorgs()),
-                                    -1, userId));
+            Set<IncidentOrg> parents;
+            try {
+                parents = incOrgManager.convertToSet(
+                        incOrgManager.getParentOrgs(
+                                incOrgManager.convertToList(incident.getIncidentorgs()),
+                                -1, userId));
+            } catch(ICSDatastoreException e) {
+                log.error("Exception getting parent orgs of the incident orgs: {}", e.getMessage());
+                incidentResponse.setMessage("Failed to read the parent orgs of the incident orgs");
+                return Response.ok(incidentResponse).status(Status.INTERNAL_SERVER_ERROR).build();
+            }
 
             incident.getIncidentorgs().addAll(parents);
         }
@@ -573,7 +594,49 @@ public class IncidentServiceImpl implements IncidentService {
         Incident newIncident = null;
         try {
             incident.setCreated(new Date());
-            newIncident = incidentDao.create(incident);
+            newIncident = NotificationOutbox.getInstance().execute(new Callable<Incident>() {
+                @Override
+                public Incident call() throws Exception {
+                    Incident created = incidentDao.create(incident);
+                    if(created == null) {
+                        return null;
+                    }
+
+                    //Create incident folder for datalayers
+                    String parentFolderId = folderDao.getRootFolder("Data", workspaceId).getFolderid();
+                    Folder folder = new Folder();
+                    folder.setFoldername(incident.getIncidentname());
+                    folder.setIndex(folderDao.getNextFolderIndex(parentFolderId));
+                    folder.setParentfolderid(parentFolderId);
+                    folder.setWorkspaceid(workspaceId);
+                    Folder newFolder = folderDao.createFolder(folder);
+                    if(newFolder != null) {
+                        incidentDao.createIncidentFolder(created.getIncidentid(), newFolder.getFolderid());
+                        incidentResponse.setIncidentFolder(newFolder);
+                    }else{
+                        System.out.println("Could not create folder!!");
+                    }
+
+                    //Publish new folder -I'm not sure we have to do this
+                    //String topic = String.format("iweb.NICS.%s.folder.new", workspaceId);
+
+                    String topic = String.format("iweb.NICS.ws.%s.newIncident", workspaceId);
+                    Set<IncidentOrg> incidentOrgs = incident.getIncidentorgs();
+
+                    // If the incident has been locked down to one or more orgs, only send to those orgs
+                    if(incidentOrgs != null && !incidentOrgs.isEmpty()) {
+                        // Notify orgs
+                        notifyIncidentOrgsToOrgs(workspaceId, created, incidentOrgs);
+
+                        // Notify superusers
+                        notifyIncident(created, String.format("iweb.NICS.ws.%d.superuser.incident.add", workspaceId));
+                    } else {
+                        // If it was not restricted, send to everyone as usual
+                        notifyIncident(created, topic);
+                    }
+                    return created;
+                }
+            });
 
             if(newIncident != null) {
                 incidentResponse.getIncidents().add(newIncident);
@@ -587,30 +650,13 @@ public class IncidentServiceImpl implements IncidentService {
                 return response;
             }
         } catch(Exception e) {
+            log.error("Failed to post Incident {}", incident.getIncidentname(), e);
             incidentResponse.setMessage("Post Incident failed.");
             response = Response.ok(incidentResponse).status(Status.INTERNAL_SERVER_ERROR).build();
             return response;
         }
 
-        //Create incident folder for datalayers
-        String parentFolderId = folderDao.getRootFolder("Data", workspaceId).getFolderid();
-        Folder folder = new Folder();
-        folder.setFoldername(incident.getIncidentname());
-        folder.setIndex(folderDao.getNextFolderIndex(parentFolderId));
-        folder.setParentfolderid(parentFolderId);
-        folder.setWorkspaceid(workspaceId);
-        Folder newFolder = folderDao.createFolder(folder);
-        if(newFolder != null) {
-            incidentDao.createIncidentFolder(newIncident.getIncidentid(), newFolder.getFolderid());
-            incidentResponse.setIncidentFolder(newFolder);
-        }else{
-            System.out.println("Could not create folder!!");
-        }
-
-        //Publish new folder -I'm not sure we have to do this
-        //String topic = String.format("iweb.NICS.%s.folder.new", workspaceId);
-
-        // Create default rooms
+        // Create default rooms, each committed with its own notification once the incident is
         CollabRoom incidentMap = createDefaultCollabRoom(newIncident.getUsersessionid(),
                 APIConfig.getInstance().getConfiguration().getString(APIConfig.INCIDENT_MAP,
                         SADisplayConstants.INCIDENT_MAP));
@@ -630,57 +676,34 @@ public class IncidentServiceImpl implements IncidentService {
         workingMap.setIncident(newIncident);
         collabRoomEndpoint.createUnsecureCollabRoom(newIncident.getIncidentid(), workingMap);
 
-        if(Status.OK.getStatusCode() == response.getStatus()) {
-            try {
-                String topic = String.format("iweb.NICS.ws.%s.newIncident", workspaceId);
-                Set<IncidentOrg> incidentOrgs = incident.getIncidentorgs();
-
-                // If the incident has been locked down to one or more orgs, only send to those orgs
-                if(incidentOrgs != null && !incidentOrgs.isEmpty()) {
-                    // Notify orgs
-                    notifyIncidentOrgsToOrgs(workspaceId, newIncident, incidentOrgs);
-
-                    // Notify superusers
-                    notifyIncident(newIncident, String.format("iweb.NICS.ws.%d.superuser.incident.add", workspaceId));
-                } else {
-                    // If it was not restricted, send to everyone as usual
-                    notifyIncident(newIncident, topic);
-                }
-
-                try {
-
-                    String date = new SimpleDateFormat("EEE MMM d HH:mm:ss z yyyy").format(new Date());
-                    String alertTopic = String.format("iweb.nics.email.alert");
-                    String newIncidentUsers =
-                            APIConfig.getInstance().getConfiguration().getString(APIConfig.NEW_INCIDENT_USERS_EMAIL);
-                    String hostname = InetAddress.getLocalHost().getHostName();
-                    User creator = userDao.getUserBySessionId(newIncident.getUsersessionid());
-                    Org org = orgDao.getLoggedInOrg(creator.getUserId());
-                    List<String> disList = orgDao.getOrgAdmins(org.getOrgId());
-                    String toEmails =
-                            disList.toString().substring(1, disList.toString().length() - 1) + ", " + newIncidentUsers;
-                    String siteName = workspaceDao.getWorkspaceName(workspaceId);
-
-                    if(disList.size() > 0) {
-                        email = new JsonEmail(creator.getUsername(), toEmails, "Alert from NewIncident@" + hostname);
-                        email.setBody(
-                                date + "\n\n" + "A new incident has been created: " + newIncident.getIncidentname() +
-                                        "\n" +
-                                        "Creator: " + creator.getUsername() + "\n" +
-                                        "Location: " + newIncident.getLat() + "," + newIncident.getLon() + "\n" +
-                                        "Site: " + siteName);
-
-                        notifyNewIncidentEmail(email.toJsonObject().toString(), alertTopic);
-                    }
-
-                } catch(Exception e) {
-                    log.error("Failed to send new Incident email alerts", e);
-                }
-
+        try {
 
-            } catch(Exception e) {
-                log.error("Failed to publish a new Incident message event", e);
+            String date = new SimpleDateFormat("EEE MMM d HH:mm:ss z yyyy").format(new Date());
+            String alertTopic = String.format("iweb.nics.email.alert");
+            String newIncidentUsers =
+                    APIConfig.getInstance().getConfiguration().getString(APIConfig.NEW_INCIDENT_USERS_EMAIL);
+            String hostname = InetAddress.getLocalHost().getHostName();
+            User creator = userDao.getUserBySessionId(newIncident.getUsersessionid());
+            Org org = orgDao.getLoggedInOrg(creator.getUserId());
+            List<String> disList = orgDao.getOrgAdmins(org.getOrgId());
+            String toEmails =
+                    disList.toString().substring(1, disList.toString().length() - 1) + ", " + newIncidentUsers;
+            String siteName = workspaceDao.getWorkspaceName(workspaceId);
+
+            if(disList.size() > 0) {
+                email = new JsonEmail(creator.getUsername(), toEmails, "Alert from NewIncident@" + hostname);
+                email.setBody(
+                        date + "\n\n" + "A new incident has been created: " + newIncident.getIncidentname() +
+                                "\n" +
+                                "Creator: " + creator.getUsername() + "\n" +
+                                "Location: " + newIncident.getLat() + "," + newIncident.getLon() + "\n" +
+                                "Site: " + siteName);
+
+                notifyNewIncidentEmail(email.toJsonObject().toString(), alertTopic);
             }
+
+        } catch(Exception e) {
+            log.error("Failed to send new Incident email alerts", e);
         }
 
         return response;
@@ -745,21 +768,20 @@ public class IncidentServiceImpl implements IncidentService {
             throws IOException, TimeoutException, AlreadyClosedException {
 
         if(newIncident != null) {
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(newIncident);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(newIncident);
+            NotificationOutbox.getInstance().produce(topic, message);
         }
     }
 
     private void notifyIncident(int incidentId, String topic)
             throws IOException, TimeoutException, AlreadyClosedException {
-        getRabbitProducer().produce(topic, (new Integer(incidentId).toString()));
+        NotificationOutbox.getInstance().produce(topic, (new Integer(incidentId).toString()));
     }
 
     private void notifyNewIncidentEmail(String email, String topic)
             throws IOException, TimeoutException, AlreadyClosedException {
         if(email != null) {
-            getRabbitProducer().produce(topic, email);
+            NotificationOutbox.getInstance().produce(topic, email);
         }
     }
 
@@ -851,13 +873,12 @@ public class IncidentServiceImpl implements IncidentService {
     }
 
     @Override
-    public Response postIncidentOrgs(List<IncidentOrg> incidentOrgs, Integer incidentId,
-                                     String requestingUser, Integer workspaceId) {
+    public Response postIncidentOrgs(final List<IncidentOrg> incidentOrgs, final Integer incidentId,
+                                     final String requestingUser, final Integer workspaceId) {
         Response response;
         IncidentServiceResponse orgIncidentResponse = new IncidentServiceResponse();
 
         Map<String, Object> result = null;
-        List<Integer> currentIncidentOrgs = null;
 
         try {
             if(requestingUser == null || incidentId == null || incidentOrgs == null || incidentOrgs.isEmpty()) {
@@ -865,7 +886,7 @@ public class IncidentServiceImpl implements IncidentService {
                         "and username must be specified");
             }
 
-            User user = getUserByName(requestingUser);
+            final User user = getUserByName(requestingUser);
             if(user == null) {
                 orgIncidentResponse.setMessage("Failed. User with username " + requestingUser + " not found.");
                 return Response.ok(orgIncidentResponse).status(Status.PRECONDITION_FAILED).build();
@@ -873,7 +894,7 @@ public class IncidentServiceImpl implements IncidentService {
 
             //NOTE: I think should be || not && ...
             if(!incidentDao.isAdmin(workspaceId, incidentId, requestingUser) &&
-                    !userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+                    !EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
                 orgIncidentResponse.setMessage("Failed. User must be admin of org owning the incident to make changes");
                 return Response.ok(orgIncidentResponse).status(Status.UNAUTHORIZED).build();
             }
@@ -882,15 +903,23 @@ public class IncidentServiceImpl implements IncidentService {
                     user.getUserId(), incidentId);
 
             try {
-                currentIncidentOrgs = incidentDao.getIncidentOrgIds(incidentId);
+                final List<Integer> currentIncidentOrgs = incidentDao.getIncidentOrgIds(incidentId);
 
                 //Add parent organizations
                 //If the owning orgid is not in the list - it will be added here
                 incidentOrgs.addAll(incOrgManager.getParentOrgs(incidentOrgs, incidentId, user.getUserId()));
 
                 //Add new incident orgs
-                result = incidentDao.addIncidentOrgs(workspaceId, incidentId, requestingUser,
-                        user.getUserId(), incidentOrgs);
+                result = NotificationOutbox.getInstance().execute(new Callable<Map<String, Object>>() {
+                    @Override
+                    public Map<String, Object> call() throws Exception {
+                        Map<String, Object> added = incidentDao.addIncidentOrgs(workspaceId, incidentId,
+                                requestingUser, user.getUserId(), incidentOrgs);
+                        notifyIncidentOrgAdded(workspaceId, incidentId, (List<Integer>) added.get("success"),
+                                currentIncidentOrgs);
+                        return added;
+                    }
+                });
 
             } catch(Exception e) {
                 log.error("Exception adding incidentOrgs", e);
@@ -916,8 +945,6 @@ public class IncidentServiceImpl implements IncidentService {
             orgIncidentResponse.setMessage("Successfully added " + success.size() + " IncidentOrg mappings.");
             orgIncidentResponse.setCount(success.size());
             response = Response.ok(orgIncidentResponse).status(Status.OK).build();
-
-            notifyIncidentOrgAdded(workspaceId, incidentId, success, currentIncidentOrgs);
         } catch(Exception e) {
             response = Response.ok(orgIncidentResponse).status(Status.INTERNAL_SERVER_ERROR).build();
             orgIncidentResponse.setMessage("Failure. Unhandled exception: " + e.getMessage());
@@ -932,7 +959,7 @@ public class IncidentServiceImpl implements IncidentService {
         IncidentServiceResponse incidentServiceResponse = new IncidentServiceResponse();
         Status status = null;
         try {
-            List<IncidentType> incidentTypes = incidentDao.getIncidentTypes();
+            List<IncidentType> incidentTypes = EntityCacheMgr.getInstance().getReferenceData().getIncidentTypes();
             incidentServiceResponse.setMessage("OK");
             incidentServiceResponse.setIncidentTypes(incidentTypes);
             incidentServiceResponse.setCount(incidentTypes.size());
@@ -963,8 +990,8 @@ public class IncidentServiceImpl implements IncidentService {
 
         User user = getUserByName(requestingUser);
         if(user == null ||
-                !(userOrgDao.isUserRole(requestingUser, SADisplayConstants.ADMIN_ROLE_ID) ||
-                userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID))) {
+                !EntityCacheMgr.getInstance().hasAnyUserRole(requestingUser,
+                        SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.SUPER_ROLE_ID)) {
 
             incidentServiceResponse.setMessage("User not authorized.");
             status = Status.UNAUTHORIZED;
@@ -973,6 +1000,7 @@ public class IncidentServiceImpl implements IncidentService {
 
         try {
             IncidentType newIncidentType = incidentDao.createIncidentType(incidentType);
+            EntityCacheMgr.getInstance().refreshReferenceData();
             incidentServiceResponse.setMessage("OK");
             incidentServiceResponse.setIncidentTypes(Arrays.asList(newIncidentType));
             incidentServiceResponse.setCount(1);
@@ -1004,7 +1032,7 @@ public class IncidentServiceImpl implements IncidentService {
         }
 
         User user = getUserByName(requestingUser);
-        if(user == null || !userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+        if(user == null || !EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
             incidentServiceResponse.setMessage("User not authorized.");
             status = Status.UNAUTHORIZED;
             return Response.ok(incidentServiceResponse).status(status).build();
@@ -1012,6 +1040,7 @@ public class IncidentServiceImpl implements IncidentService {
 
         try {
             IncidentType updatedIncidentType = incidentDao.updateIncidentType(incidentType);
+            EntityCacheMgr.getInstance().refreshReferenceData();
 
             if(updatedIncidentType != null) {
                 incidentServiceResponse.setMessage("OK");
@@ -1037,7 +1066,7 @@ public class IncidentServiceImpl implements IncidentService {
         Status status = null;
 
         try {
-            if(!userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+            if(!EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
                 incidentServiceResponse.setMessage("User not authorized");
                 status = Status.UNAUTHORIZED;
                 return Response.ok(incidentServiceResponse).status(status).build();
@@ -1045,6 +1074,7 @@ public class IncidentServiceImpl implements IncidentService {
 
             boolean deleted = incidentDao.deleteIncidentType(incidentTypeId);
             if(deleted) {
+                EntityCacheMgr.getInstance().refreshReferenceData();
                 incidentServiceResponse.setMessage("IncidentType successfully deleted");
                 status = Status.OK;
             } else {
@@ -1062,8 +1092,8 @@ public class IncidentServiceImpl implements IncidentService {
     }
 
     @Override
-    public Response deleteIncidentOrgs(List<IncidentOrg> incidentOrgs, Integer incidentId,
-                                       String requestingUser, Integer workspaceId) {
+    public Response deleteIncidentOrgs(final List<IncidentOrg> incidentOrgs, final Integer incidentId,
+                                       final String requestingUser, final Integer workspaceId) {
 
         Response response;
         IncidentServiceResponse orgIncidentResponse = new IncidentServiceResponse();
@@ -1073,28 +1103,28 @@ public class IncidentServiceImpl implements IncidentService {
                 throw new IllegalArgumentException("Both incidentId and incidentOrgs must be specified");
             }
 
-            User user = getUserByName(requestingUser);
+            final User user = getUserByName(requestingUser);
             if(user == null) {
                 orgIncidentResponse.setMessage("Failed. User " + requestingUser + " not found.");
                 return Response.ok(orgIncidentResponse).status(Status.PRECONDITION_FAILED).build();
             }
 
             if(!incidentDao.isAdmin(workspaceId, incidentId, requestingUser) &&
-                    !userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+                    !EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
                 orgIncidentResponse.setMessage("Failed. User must be admin of org owning the incident to make changes");
                 return Response.ok(orgIncidentResponse).status(Status.UNAUTHORIZED).build();
             }
 
-            List<Integer> currentIncidentOrgs = incidentDao.getIncidentOrgIds(incidentId);
+            final List<Integer> currentIncidentOrgs = incidentDao.getIncidentOrgIds(incidentId);
 
             log.debug("User {} deleting orgIds for incidentId {} org_incident", user.getUserId(), incidentId);
 
             Map<String, Object> result = null;
             try {
+                List<IncidentOrg> orgsToRemove = null;
                 if(currentIncidentOrgs.size() == incidentOrgs.size()) {
                     //remove them all
-                    result = incidentDao.removeIncidentOrgs(workspaceId, incidentId, requestingUser,
-                            user.getUserId(), incidentOrgs);
+                    orgsToRemove = incidentOrgs;
                 } else {
                     if(incOrgManager.isOwningOrgLockedOut(currentIncidentOrgs, incidentOrgs, incidentId)) {
                         orgIncidentResponse.setMessage("Failed. This action would result in the owning organization " +
@@ -1114,12 +1144,24 @@ public class IncidentServiceImpl implements IncidentService {
                     }
 
                     if(validatedOrgs.size() > 0) {
-
-                        result = incidentDao.removeIncidentOrgs(workspaceId, incidentId, requestingUser,
-                                user.getUserId(), validatedOrgs);
-
+                        orgsToRemove = validatedOrgs;
                     }
                 }
+
+                if(orgsToRemove != null) {
+                    final List<IncidentOrg> removing = orgsToRemove;
+                    result = NotificationOutbox.getInstance().execute(new Callable<Map<String, Object>>() {
+                        @Override
+                        public Map<String, Object> call() throws Exception {
+                            Map<String, Object> removed = incidentDao.removeIncidentOrgs(workspaceId, incidentId,
+                                    requestingUser, user.getUserId(), removing);
+                            List<Integer> success = (List<Integer>) removed.get("success");
+                            notifyIncidentOrgRemoved(workspaceId, incidentId,
+                                    success == null ? new ArrayList<Integer>() : success, currentIncidentOrgs);
+                            return removed;
+                        }
+                    });
+                }
             } catch(Exception e) {
                 e.printStackTrace();
 
@@ -1154,8 +1196,6 @@ public class IncidentServiceImpl implements IncidentService {
 
                 orgIncidentResponse.setMessage("Successfully deleted " + success.size() + " OrgIncident mappings");
                 orgIncidentResponse.setCount(success.size());
-
-                notifyIncidentOrgRemoved(workspaceId, incidentId, success, currentIncidentOrgs);
             } else {
                 orgIncidentResponse.setMessage(
                         "Parent organizations cannot be removed when the child organization are still secured to the " +
@@ -1184,14 +1224,13 @@ public class IncidentServiceImpl implements IncidentService {
     private void notifyIncidentToOrgs(Integer workspaceId, Incident incident, List<Integer> orgIds) throws Exception {
         String topicTemplate = "iweb.NICS.ws.%d.incidentorg.%d.add";
         String topic;
-        ObjectMapper mapper = new ObjectMapper();
 
-        String message = mapper.writeValueAsString(incident);
+        String message = JsonSerialization.toJson(incident);
 
         for(Integer orgId : orgIds) {
             topic = String.format(topicTemplate, workspaceId, orgId);
             try {
-                getRabbitProducer().produce(topic, message);
+                NotificationOutbox.getInstance().produce(topic, message);
                 log.debug("Sent to topic: {}\n{}", topic, message);
             } catch(IOException e) {
                 log.warn("Failed to send Incident to topic: {}", topic);
@@ -1213,11 +1252,9 @@ public class IncidentServiceImpl implements IncidentService {
 
         String topic = String.format("iweb.NICS.incident.%d.update", incident.getIncidentid());
 
-        ObjectMapper mapper = new ObjectMapper();
-
-        String message = mapper.writeValueAsString(incident);
+        String message = JsonSerialization.toJson(incident);
         try {
-            getRabbitProducer().produce(topic, message);
+            NotificationOutbox.getInstance().produce(topic, message);
             log.debug("Sent to topic: {}\n{}", topic, message);
         } catch(IOException e) {
             log.warn("Failed to send Incident to topic: {}", topic);
@@ -1259,12 +1296,11 @@ public class IncidentServiceImpl implements IncidentService {
         Map<String, Object> incidentOrgs = new HashMap<>();
         incidentOrgs.put("incidentId", incidentId);
         incidentOrgs.put("orgIds", orgIds);
-        ObjectMapper mapper = new ObjectMapper();
         String message;
 
         topic = String.format(topicTemplate, workspaceId);
-        message = mapper.writeValueAsString(incidentOrgs);
-        getRabbitProducer().produce(topic, message);
+        message = JsonSerialization.toJson(incidentOrgs);
+        NotificationOutbox.getInstance().produce(topic, message);
 
         log.debug("Sent to topic: {}\n{}", topic, message);
     }
@@ -1342,11 +1378,10 @@ public class IncidentServiceImpl implements IncidentService {
             // is it worth the work?)
 
             Incident incident = incidentDao.getIncident(incidentId);
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(incident);
+            String message = JsonSerialization.toJson(incident);
 
             String topic = String.format("iweb.NICS.ws.%d.newIncident", workspaceId);
-            getRabbitProducer().produce(topic, message);
+            NotificationOutbox.getInstance().produce(topic, message);
             log.debug("Sent to topic: {}\n{}", topic, message);
 
         } else if(!latest.isEmpty()) {
@@ -1359,13 +1394,12 @@ public class IncidentServiceImpl implements IncidentService {
             incidentIdToRemove.put("incidentId", incidentId);
             // Include list of orgs with access, so client can check if they have access via another org
             incidentIdToRemove.put("orgIds", latest);
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(incidentIdToRemove);
+            String message = JsonSerialization.toJson(incidentIdToRemove);
 
             for(Integer orgId : orgIdsRemoved) {
                 try {
                     topic = String.format("iweb.NICS.ws.%d.incidentorg.%d.remove", workspaceId, orgId);
-                    getRabbitProducer().produce(topic, message);
+                    NotificationOutbox.getInstance().produce(topic, message);
                     log.debug("Sent to topic: {}\n{}", topic, message);
                 } catch(IOException e) {
                     log.error("Error sending remove incident message", e);
@@ -1380,8 +1414,8 @@ public class IncidentServiceImpl implements IncidentService {
     }
 
     boolean isNotAdminOrSuper(String username) {
-        return !userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID) &&
-                !userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID);
+        return !EntityCacheMgr.getInstance().hasAnyUserRole(username,
+                SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.SUPER_ROLE_ID);
     }
 
     @Override
@@ -1412,8 +1446,8 @@ public class IncidentServiceImpl implements IncidentService {
 
 
     @Override
-    public Response createIncidentTypeFormType(int workspaceId, int incidentTypeId, List<Integer> formTypeIds,
-                                               String requestingUser) {
+    public Response createIncidentTypeFormType(final int workspaceId, final int incidentTypeId,
+                                               final List<Integer> formTypeIds, String requestingUser) {
         Response response = null;
         IncidentServiceResponse serviceResponse = new IncidentServiceResponse();
 
@@ -1432,7 +1466,17 @@ public class IncidentServiceImpl implements IncidentService {
             }
 
             Status createStatus = Status.CREATED;
-            int result = incidentDao.createIncidentTypeReportTypes(workspaceId, incidentTypeId, formTypeIds);
+            int result = NotificationOutbox.getInstance().execute(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int created = incidentDao.createIncidentTypeReportTypes(workspaceId, incidentTypeId, formTypeIds);
+                    if(created >= 1) {
+                        // TODO: send actual formtypes, or just a notification, letting client poll
+                        notifyIncidentTypeFormTypeAdded(incidentTypeId);
+                    }
+                    return created;
+                }
+            });
 
             serviceResponse.setCount(result);
             serviceResponse.setMessage(String.format("Created %d of %d mappings",
@@ -1441,11 +1485,6 @@ public class IncidentServiceImpl implements IncidentService {
             // TODO: see if we want to return the actual mapping id or not?
             response = Response.ok(serviceResponse).status(createStatus).build();
 
-            if(result >= 1) {
-                // TODO: send actual formtypes, or just a notification, letting client poll
-                notifyIncidentTypeFormTypeAdded(incidentTypeId);
-            }
-
         } catch(DuplicateKeyException e) {
             response = Response.ok("That mapping already exists").status(Status.CONFLICT).build();
         } catch(Exception e) {
@@ -1457,11 +1496,10 @@ public class IncidentServiceImpl implements IncidentService {
 
     public void notifyIncidentTypeFormTypeAdded(int incidentTypeId) {
         String topic = "iweb.NICS.incident.incidenttype.formType.added";
-        ObjectMapper mapper = new ObjectMapper();
 
         try {
-            String message = mapper.writeValueAsString(incidentTypeId);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(incidentTypeId);
+            NotificationOutbox.getInstance().produce(topic, message);
             log.debug("Sent to topic: {}\n{}", topic, message);
         } catch(IOException e) {
             log.warn("Failed to send Incident to topic: {}", topic);
@@ -1561,25 +1599,6 @@ public class IncidentServiceImpl implements IncidentService {
         return response;
     }
 
-    /**
-     * Get Rabbit producer to send message
-     *
-     * @return
-     *
-     * @throws IOException
-     */
-    private RabbitPubSubProducer getRabbitProducer()
-            throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-        }
-        return rabbitProducer;
-    }
-
     /**
      * Utility method for getting the user from the username/CUSTOM-uid header param
      *
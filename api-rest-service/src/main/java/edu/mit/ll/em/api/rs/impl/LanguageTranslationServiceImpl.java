@@ -29,6 +29,7 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.rs.LanguageTranslationService;
 import edu.mit.ll.em.api.rs.LanguageTranslationResponse;
 import edu.mit.ll.em.api.rs.LanguageTranslationRequest;
@@ -39,7 +40,6 @@ import edu.mit.ll.em.api.exception.BadConfigException;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.Org;
 import edu.mit.ll.nics.common.entity.UserOrg;
-import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 
 import java.io.*;
 import java.nio.file.Files;
@@ -80,11 +80,6 @@ public class LanguageTranslationServiceImpl implements LanguageTranslationServic
      */
     private static final Logger LOG = LoggerFactory.getLogger(LanguageTranslationServiceImpl.class);
 
-    /**
-     * UserOrg DAO Instance for verifying user roles.
-     */
-    private static final UserOrgDAOImpl userorgDao = new UserOrgDAOImpl();
-
     /**
      * The root language translation path from the em-api configuration.
      */
@@ -342,8 +337,8 @@ public class LanguageTranslationServiceImpl implements LanguageTranslationServic
      * @return true if the user is NOT authorized, false otherwise
      */
     private boolean isNotAuthorized(final String username) {
-        return !userorgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID) &&
-                !userorgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID);
+        return !EntityCacheMgr.getInstance().hasAnyUserRole(username,
+                SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.SUPER_ROLE_ID);
     }
 
     /**
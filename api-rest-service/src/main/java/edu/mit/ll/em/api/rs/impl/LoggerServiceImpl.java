@@ -228,11 +228,16 @@ public class LoggerServiceImpl implements LoggerService {
      */
     @Override
     public Response getLogTypes() {
-        List<RemoteLogType> logTypes = remoteLogDao.getLogTypes();
-
         RemoteLoggerResponse response = new RemoteLoggerResponse();
-        response.setTypes(logTypes);
-        response.setMessage("Retrieved LogTypes");
+        try {
+            List<RemoteLogType> logTypes = EntityCacheMgr.getInstance().getReferenceData().getLogTypes();
+            response.setTypes(logTypes);
+            response.setMessage("Retrieved LogTypes");
+        } catch(ICSDatastoreException e) {
+            log.error("Exception retrieving RemoteLogTypes", e);
+            response.setMessage("Failed to retrieve LogTypes");
+            return Response.ok(response).status(Status.INTERNAL_SERVER_ERROR).build();
+        }
 
         return Response.ok(response).status(Status.OK).build();
     }
@@ -29,22 +29,19 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
-import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.dataaccess.UserIdentity;
 import edu.mit.ll.em.api.rs.MediaStreamResponse;
 import edu.mit.ll.em.api.rs.MediaStreamService;
+import edu.mit.ll.em.api.util.RequestIdentity;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.MediaStream;
-import edu.mit.ll.nics.common.entity.Org;
-import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.nicsdao.impl.MediaStreamDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.Response;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * Implementation of the MediaStreamService interface. Implements CRUD and querying operations on streams.
@@ -95,11 +92,6 @@ public class MediaStreamServiceImpl implements MediaStreamService {
      */
     private static UserServiceImpl userDao = new UserServiceImpl();
 
-    /**
-     * Org DAO
-     */
-    private static OrgDAOImpl orgDao = new OrgDAOImpl();
-
 
     @Override
     public Response readMediaStreams(int workspaceId, String title, String url, String username) {
@@ -314,16 +306,19 @@ public class MediaStreamServiceImpl implements MediaStreamService {
      */
     private boolean userNotAuthorized(int workspaceId, String username) {
 
-        User user = getUserByUsername(username);
-        if(user == null) {
+        UserIdentity identity;
+        try {
+            identity = RequestIdentity.resolve(username);
+        } catch(ICSDatastoreException e) {
+            LOG.error("Datastore exception getting User entity with username {}", username, e);
+            return true;
+        }
+        if(identity == null) {
             return true;
         }
 
-
-        // want to see if they're enabled in this workspace
-        // TODO: must be better way
-        List<Org> userOrgs = orgDao.getUserOrgs(user.getUserId(), workspaceId);
-        if(userOrgs == null || userOrgs.isEmpty()) {
+        // want to see if they're enabled in this workspace, resolved along with the identity
+        if(identity.getOrgs(workspaceId).isEmpty()) {
             return true;
         }
 
@@ -334,20 +329,4 @@ public class MediaStreamServiceImpl implements MediaStreamService {
 
 
     }
-
-    /**
-     * Helper method to get User by username from the EntityCacheMgr.
-     *
-     * @param username the username of the user to fetch
-     * @return the User if found, null otherwise
-     */
-    private User getUserByUsername(String username) {
-        User user = null;
-        try {
-            user = EntityCacheMgr.getInstance().getUserEntityByUsername(username);
-        } catch(ICSDatastoreException e1) {
-            LOG.error("Datastore exception getting User entity with username {}", username, e1);
-        }
-        return user;
-    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs.impl;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import edu.mit.ll.em.api.msgbus.MsgBusQueue;
+import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionException;
+import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionMgr;
+import edu.mit.ll.em.api.rs.MsgBusService;
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.rs.StringConstant;
+
+/**
+ * Service for the subscriptions of the {@link MsgBusSubscriptionMgr}. A long-poll's suspended response is parked on the
+ * subscription's queue, see {@link MsgBusQueue.Waiter}, and resumed by the post bringing its messages or by its
+ * timeout, so idle subscribers hold no threads at all.
+ */
+public class MsgBusServiceImpl implements MsgBusService {
+
+    private static final String NO_SUBSCRIPTION = "No subscription for subscriber ";
+
+    @Override
+    public Response subscribe(long subscriberId, String topics, int timeoutSeconds) {
+        if(topics == null || topics.isEmpty()) {
+            return Response.status(Status.BAD_REQUEST).entity("No topics to subscribe to").build();
+        }
+
+        Map<String, String> attrs = new HashMap<String, String>();
+        attrs.put(StringConstant.URIOPT_SUBSCRIBER_ID, String.valueOf(subscriberId));
+        attrs.put(StringConstant.URIOPT_TOPICS, topics);
+        attrs.put(StringConstant.URIOPT_TIMEOUT, String.valueOf(timeoutSeconds));
+        try {
+            MsgBusSubscriptionMgr.getInstance().beginSubscription(attrs);
+        } catch(MsgBusSubscriptionException e) {
+            return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+        return Response.ok(Status.OK.getReasonPhrase()).build();
+    }
+
+    /**
+     * Parks asyncResponse on the subscription with
+     * {@link MsgBusSubscriptionMgr#getFromSubscription(long, MsgBusQueue.Waiter)}, and resumes it with no messages once
+     * waitMillis is up
+     */
+    @Override
+    public void getMessages(long subscriberId, int maxBatch, long waitMillis, final AsyncResponse asyncResponse) {
+        MsgBusSubscriptionMgr mgr = MsgBusSubscriptionMgr.getInstance();
+        final MsgBusQueue.Waiter waiter = new MsgBusQueue.Waiter(maxBatch) {
+            @Override
+            protected void resume(Collection<MsgEnvelope> msgs) {
+                asyncResponse.resume(Response.ok(msgs).build());
+            }
+        };
+
+        long wait = mgr.limitWaitMillis(waitMillis);
+        if(wait > 0) {
+            // Set before parking, as a post may resume the response right after
+            asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+                @Override
+                public void handleTimeout(AsyncResponse response) {
+                    waiter.cancel();
+                }
+            });
+            asyncResponse.setTimeout(wait, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            if(!mgr.getFromSubscription(subscriberId, waiter)) {
+                asyncResponse.resume(Response.status(Status.NOT_FOUND).entity(NO_SUBSCRIPTION + subscriberId).build());
+                return;
+            }
+        } catch(MsgBusSubscriptionException e) {
+            asyncResponse.resume(Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
+            return;
+        }
+        if(wait == 0) {
+            // Not waiting, answers with no messages unless some were waiting
+            waiter.cancel();
+        }
+    }
+
+    @Override
+    public Response unsubscribe(long subscriberId) {
+        try {
+            if(!MsgBusSubscriptionMgr.getInstance().endSubscription(subscriberId)) {
+                return Response.status(Status.NOT_FOUND).entity(NO_SUBSCRIPTION + subscriberId).build();
+            }
+        } catch(MsgBusSubscriptionException e) {
+            return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+        return Response.ok(Status.OK.getReasonPhrase()).build();
+    }
+}
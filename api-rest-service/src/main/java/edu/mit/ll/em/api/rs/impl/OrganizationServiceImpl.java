@@ -29,15 +29,17 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AlreadyClosedException;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
 import edu.mit.ll.em.api.rs.OrgIncidentTypeServiceResponse;
 import edu.mit.ll.em.api.rs.OrgOrgTypeServiceResponse;
 import edu.mit.ll.em.api.rs.OrganizationService;
 import edu.mit.ll.em.api.rs.OrganizationServiceResponse;
 import edu.mit.ll.em.api.rs.UserService;
-import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
+import edu.mit.ll.em.api.util.RequestIdentity;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.Cap;
 import edu.mit.ll.nics.common.entity.IncidentOrg;
@@ -47,8 +49,6 @@ import edu.mit.ll.nics.common.entity.OrgCap;
 import edu.mit.ll.nics.common.entity.OrgOrgType;
 import edu.mit.ll.nics.common.entity.OrgType;
 import edu.mit.ll.nics.common.entity.OrgIncidentType;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
@@ -93,8 +93,6 @@ public class OrganizationServiceImpl implements OrganizationService {
     private static final String ADD = "add";
     private static final String REMOVE = "remove";
 
-    private RabbitPubSubProducer rabbitProducer;
-
     /**
      * Returns a OrganizationServiceResponse with the organizations list set to all organizations in the database
      *
@@ -212,7 +210,7 @@ public class OrganizationServiceImpl implements OrganizationService {
         List<OrgType> orgTypes = null;
 
         try {
-            orgTypes = orgDao.getOrgTypes();
+            orgTypes = EntityCacheMgr.getInstance().getReferenceData().getOrgTypes();
             if(orgTypes != null && !orgTypes.isEmpty()) {
                 orgTypeResponse.setOrgTypes(orgTypes);
                 orgTypeResponse.setMessage(Status.OK.getReasonPhrase());
@@ -291,6 +289,7 @@ public class OrganizationServiceImpl implements OrganizationService {
 
         try {
             int orgId = orgDao.addOrg(org);
+            EntityCacheMgr.getInstance().invalidateOrg(orgId);
             newOrg = orgDao.getOrganization(orgId);
             newOrg.setOrgTypes(new HashSet<OrgOrgType>(orgDao.getOrgTypes(orgId)));
 
@@ -300,7 +299,7 @@ public class OrganizationServiceImpl implements OrganizationService {
             response = Response.ok(orgResponse).status(Status.OK).build();
 
             UserService userService = new UserServiceImpl();
-            int userId = (new Long(userDao.getUserId(username))).intValue();
+            int userId = (new Long(RequestIdentity.getUserId(username))).intValue();
             userService.addUserToOrg(Arrays.asList(userId), newOrg.getOrgId(), workspaceId);
 
             int userOrgId = userOrgDao.getUserOrgId(newOrg.getOrgId(), userId);
@@ -312,6 +311,7 @@ public class OrganizationServiceImpl implements OrganizationService {
                 e.printStackTrace();
             }
             userOrgDao.setSystemRoleId(userOrgId, SADisplayConstants.ADMIN_ROLE_ID);
+            EntityCacheMgr.getInstance().invalidateUserRoles(userId);
 
         } catch(Exception e) {
             orgResponse.setMessage(PERSISTING_ORG_EXCEPTION);
@@ -339,7 +339,7 @@ public class OrganizationServiceImpl implements OrganizationService {
         //ObjectMapper mapper = new ObjectMapper();
         //String message = mapper.writeValueAsString("Update to userorgworkspace " + userorgWorkspaceId);
         String message = "Update to userorgworkspace " + userorgWorkspaceId;
-        getRabbitProducer().produce(topic, message);
+        RabbitPublisher.getInstance().produce(topic, message);
     }
 
     public Response postOrgOrgType(int orgId, int orgTypeId) {
@@ -738,16 +738,15 @@ public class OrganizationServiceImpl implements OrganizationService {
     }
 
     boolean isNotAdminOrSuper(String username) {
-	    return !userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID) &&
-				!userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID);
+	    return !EntityCacheMgr.getInstance().hasAnyUserRole(username,
+	            SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.SUPER_ROLE_ID);
     }
 
     private void notifyOrgCap(OrgCap orgCap)
             throws IOException, TimeoutException, AlreadyClosedException {
         if(orgCap != null) {
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(orgCap);
-            getRabbitProducer().produce("iweb.nics.orgcaps." + orgCap.getOrgId() + "." +
+            String message = JsonSerialization.toJson(orgCap);
+            RabbitPublisher.getInstance().produce("iweb.nics.orgcaps." + orgCap.getOrgId() + "." +
                     orgCap.getCap().getName(), message);
         }
     }
@@ -757,29 +756,9 @@ public class OrganizationServiceImpl implements OrganizationService {
         if(response != null) {
             String topic = String.format("iweb.NICS.orgincidenttypes.%d.update", orgId);
 
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(response);
-            getRabbitProducer().produce(topic, message);
-        }
-    }
-
-    /**
-     * Get Rabbit producer to send message
-     *
-     * @return
-     *
-     * @throws IOException
-     */
-    private RabbitPubSubProducer getRabbitProducer()
-            throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
+            String message = JsonSerialization.toJson(response);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
-        return rabbitProducer;
     }
 
 }
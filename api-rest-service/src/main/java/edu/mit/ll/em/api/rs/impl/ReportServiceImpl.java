@@ -38,13 +38,13 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeoutException;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AlreadyClosedException;
 
 import org.apache.commons.io.FileUtils;
@@ -69,22 +69,25 @@ import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.common.entity.Image;
 import edu.mit.ll.nics.common.entity.Uxoreport;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
 import edu.mit.ll.em.api.exception.BadContentException;
+import edu.mit.ll.em.api.msgbus.NotificationOutbox;
+import edu.mit.ll.em.api.rs.KeysetPage;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.rs.Report;
 import edu.mit.ll.em.api.rs.ReportOptParms;
 import edu.mit.ll.em.api.rs.ReportService;
 import edu.mit.ll.em.api.rs.ReportServiceResponse;
+import edu.mit.ll.em.api.rs.StreamingListOutput;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 
 
 import edu.mit.ll.nics.nicsdao.impl.*;
+import edu.mit.ll.nics.nicsdao.query.QueryConstraint;
 import org.springframework.dao.DataAccessException;
 
 /**
@@ -109,7 +112,22 @@ public class ReportServiceImpl implements ReportService {
     private static final String INVALID_FORM_TYPE = "Invalid report type.";
     private static final String PERSIST_REPORT_ERROR = "An error occurred while persisting report.";
 
-    private RabbitPubSubProducer rabbitProducer = null;
+    /**
+     * Column reports are paged on, by cursor
+     */
+    private static final String REPORT_DATE_COLUMN = "seqtime";
+
+    private static final KeysetPage.RowKey<Form> FORM_KEY = new KeysetPage.RowKey<Form>() {
+        @Override
+        public long getTime(Form form) {
+            return form.getSeqtime();
+        }
+
+        @Override
+        public long getId(Form form) {
+            return form.getFormid();
+        }
+    };
 
 
     /**
@@ -127,10 +145,10 @@ public class ReportServiceImpl implements ReportService {
         }
         // Provide some reasonable defaults where needed.
         if(optParms.getDateColumn() == null) {
-            optParms.setDateColumn("seqtime");
+            optParms.setDateColumn(REPORT_DATE_COLUMN);
         }
         if(optParms.getSortByColumn() == null) {
-            optParms.setSortByColumn("seqtime");
+            optParms.setSortByColumn(REPORT_DATE_COLUMN);
         }
         if(optParms.getSortOrder() == null) {
             optParms.setSortOrder("DESC");
@@ -142,7 +160,7 @@ public class ReportServiceImpl implements ReportService {
         }
 
         // Collect optional parameters common to all resources.
-        Map<String, Object> queryConstraints = QueryConstraintHelper.parseOptions(optParms);
+        final Map<String, Object> queryConstraints = QueryConstraintHelper.parseOptions(optParms);
         queryConstraints.put(SADisplayConstants.INCIDENT_ID, incidentId);
         queryConstraints.put(SADisplayConstants.COLLAB_ROOM_ID, optParms.getCollabroomId());
 
@@ -159,13 +177,39 @@ public class ReportServiceImpl implements ReportService {
         }
 
         try {
-            List<Integer> formTypeIds = new ArrayList<Integer>();
+            final List<Integer> formTypeIds = new ArrayList<Integer>();
             formTypeIds.add(formTypeId);
-            List<Form> forms = formDao.readForms(formTypeIds, queryConstraints);
-            reportResponse.setReports(forms);
+            List<Form> forms;
+            if(KeysetPage.isKeysetRequest(optParms, REPORT_DATE_COLUMN)) {
+                KeysetPage<Form> page;
+                try {
+                    page = KeysetPage.read(optParms, REPORT_DATE_COLUMN, maxRowsLimit, FORM_KEY,
+                            new KeysetPage.Query<Form>() {
+                                @Override
+                                public List<Form> fetch(Long fromDate, Long toDate, boolean descending, int rows) {
+                                    queryConstraints.put(QueryConstraint.KEY_DATE_RANGE,
+                                            KeysetPage.dateRange(REPORT_DATE_COLUMN, fromDate, toDate));
+                                    queryConstraints.put(QueryConstraint.KEY_ORDER_BY,
+                                            KeysetPage.orderBy(REPORT_DATE_COLUMN, descending));
+                                    queryConstraints.put(QueryConstraint.KEY_RESULTSET_RANGE,
+                                            new QueryConstraint.ResultSetPage(0, rows));
+                                    return formDao.readForms(formTypeIds, queryConstraints);
+                                }
+                            });
+                } catch(IllegalArgumentException e) {
+                    reportResponse.setMessage(e.getMessage());
+                    return Response.ok(reportResponse).status(Status.BAD_REQUEST).build();
+                }
+                forms = page.getRows();
+                reportResponse.setNextCursor(page.getNextCursor());
+            } else {
+                forms = formDao.readForms(formTypeIds, queryConstraints);
+            }
             reportResponse.setMessage(Status.OK.getReasonPhrase());
-            reportResponse.setCount(reportResponse.getReports().size());
-            response = Response.ok(reportResponse).status(Status.OK).build();
+            reportResponse.setCount(forms.size());
+            // The selected fields are also passed to the query, with the rest of the constraints
+            response = StreamingListOutput.ok(reportResponse, "reports", forms,
+                    QueryConstraintHelper.makeColumnSelectionSet(optParms));
         } catch(Exception e) {
             e.printStackTrace();
             reportResponse.setMessage(FAILED_TO_READ_REPORTS);
@@ -279,7 +323,10 @@ public class ReportServiceImpl implements ReportService {
 
             try {
                 form.setSeqtime(Calendar.getInstance().getTimeInMillis());
-                affected = formDao.persistForm(form);
+                // Also send it out to new users, now that persist/create calls to dao return the new fully
+                // formed form, with formid and everything...
+                affected = persistNewReport(form, String.format("iweb.NICS.incident.%d.report.%s.new",
+                        form.getIncidentid(), formType.getFormTypeName()));
             } catch(Exception e) {
                 e.printStackTrace();
                 responseMessage += e.getMessage();
@@ -290,21 +337,6 @@ public class ReportServiceImpl implements ReportService {
                 reportServiceResponse.setCount(1);
                 reportServiceResponse.getReports().add(affected);
                 response = Response.ok(reportServiceResponse).status(Status.OK).build();
-
-                // Since it was successful, also send it out to new users, except now any persist/create calls
-                // to dao need to return the new fully formed form, with formid and everything...
-                try {
-                    String topic = String.format("iweb.NICS.incident.%d.report.%s.new", affected.getIncidentid(),
-                            formType.getFormTypeName());
-                    notifyNewReport(topic, affected);
-                } catch(IOException e) {
-                    log.error("Exception publishing new form with type id: {}",
-                            form.getFormtypeid(), e);
-                } catch(AlreadyClosedException e) {
-                    log.error("Exception RabbitMQ attempting to use a closed channel ", e);
-                } catch(Exception e) {
-                    log.error("Exception RabbitMQ exception occurred.", e);
-                }
             } else {
                 reportServiceResponse.setMessage(PERSIST_REPORT_ERROR);
                 response = Response.ok(reportServiceResponse).status(Status.EXPECTATION_FAILED).build();
@@ -691,25 +723,14 @@ public class ReportServiceImpl implements ReportService {
 
         try {
 
-            Form ret = null;
-            ret = formDao.persistForm(form);
+            Form ret = persistNewReport(form,
+                    String.format("iweb.NICS.incident.%d.report.SR.new", form.getIncidentid()));
 
             if(ret != null) {
                 reportResponse.setCount(1);
                 reportResponse.setMessage(Status.OK.getReasonPhrase());
                 reportResponse.getReports().add(ret);
                 response = Response.ok(reportResponse).status(Status.OK).build();
-                try {
-                    String topic = String.format("iweb.NICS.incident.%d.report.SR.new", form.getIncidentid());
-                    notifyNewReport(topic, ret);
-                } catch(IOException e) {
-                    log.error("Exception publishing new form with type id: {}",
-                            form.getFormtypeid(), e);
-                } catch(AlreadyClosedException e) {
-                    log.error("Exception RabbitMQ attempting to use a closed channel ", e);
-                } catch(Exception e) {
-                    log.error("Exception RabbitMQ exception occurred.", e);
-                }
             } else {
                 reportResponse.setCount(0);
                 reportResponse.setMessage(PERSIST_REPORT_ERROR);
@@ -857,26 +878,14 @@ public class ReportServiceImpl implements ReportService {
 
         try {
 
-            Form ret = formDao.persistForm(form);
+            Form ret = persistNewReport(form,
+                    String.format("iweb.NICS.incident.%d.report.DMGRPT.new", form.getIncidentid()));
 
             if(ret != null) {
                 reportResponse.getReports().add(ret);
                 reportResponse.setCount(1);
                 reportResponse.setMessage("ok");
                 response = Response.ok(reportResponse).status(Status.OK).build();
-
-                try {
-                    String topic = String.format("iweb.NICS.incident.%d.report.DMGRPT.new", form.getIncidentid());
-                    notifyNewReport(topic, ret);
-                } catch(IOException e) {
-                    log.error("Exception publishing new form with type id: {}",
-                            form.getFormtypeid(), e);
-                } catch(AlreadyClosedException e) {
-                    log.error("Exception RabbitMQ attempting to use a closed channel ", e);
-                } catch(Exception e) {
-                    log.error("Exception RabbitMQ exception occurred.", e);
-                }
-
             } else {
                 reportResponse.setCount(0);
                 reportResponse.setMessage(PERSIST_REPORT_ERROR);
@@ -1051,25 +1060,14 @@ public class ReportServiceImpl implements ReportService {
         image.setFullPath(msg.getString("fullPath"));
 
         try {
-            Form ret = null;
-            ret = formDao.persistForm(form);
+            Form ret = persistNewReport(form,
+                    String.format("iweb.NICS.incident.%d.report.EOD.new", form.getIncidentid()));
 
             if(ret != null) {
                 reportResponse.setCount(1);
                 reportResponse.setMessage(Status.OK.getReasonPhrase());
                 reportResponse.getReports().add(ret);
                 response = Response.ok(reportResponse).status(Status.OK).build();
-                try {
-                    String topic = String.format("iweb.NICS.incident.%d.report.EOD.new", form.getIncidentid());
-                    notifyNewReport(topic, ret);
-                } catch(IOException e) {
-                    log.error("Exception publishing new form with type id: {}",
-                            form.getFormtypeid(), e);
-                } catch(AlreadyClosedException e) {
-                    log.error("Exception RabbitMQ attempting to use a closed channel ", e);
-                } catch(Exception e) {
-                    log.error("Exception RabbitMQ exception occurred.", e);
-                }
             } else {
                 reportResponse.setCount(0);
                 reportResponse.setMessage(PERSIST_REPORT_ERROR);
@@ -1214,26 +1212,14 @@ public class ReportServiceImpl implements ReportService {
         image.setFullPath(msg.getString("ur-fullPath"));
 
         try {
-            Form ret = formDao.persistForm(form);
+            Form ret = persistNewReport(form,
+                    String.format("iweb.NICS.incident.%d.report.UXO.new", form.getIncidentid()));
 
             if(ret != null) {
                 reportResponse.getReports().add(ret);
                 reportResponse.setCount(1);
                 reportResponse.setMessage("ok");
                 response = Response.ok(reportResponse).status(Status.OK).build();
-
-                try {
-                    String topic = String.format("iweb.NICS.incident.%d.report.UXO.new", form.getIncidentid());
-                    notifyNewReport(topic, ret);
-                } catch(IOException e) {
-                    log.error("Exception publishing new form with type id: {}",
-                            form.getFormtypeid(), e);
-                } catch(AlreadyClosedException e) {
-                    log.error("Exception RabbitMQ attempting to use a closed channel ", e);
-                } catch(Exception e) {
-                    log.error("Exception RabbitMQ exception occurred.", e);
-                }
-
             } else {
                 reportResponse.setCount(0);
                 reportResponse.setMessage("Did not successfully persist report!");
@@ -1270,34 +1256,34 @@ public class ReportServiceImpl implements ReportService {
         return !(lla.x > 180) && !(lla.x < -180) && !(lla.y > 180) && !(lla.y < -180);
     }
 
-    private void notifyNewReport(String topic, Form form) throws IOException, TimeoutException, AlreadyClosedException {
-        if(form != null) {
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(form);
-            getRabbitProducer().produce(topic, message);
-        }
-    }
-
-
     /**
-     * Get Rabbit producer to send message
-     *
-     * @return
+     * Persists the form, and queues its notification on the given topic in the same transaction
      *
-     * @throws IOException
-     * @throws AlreadyClosedException
+     * @param form the form to persist
+     * @param topic the topic to notify once the form is committed
+     * @return the persisted form, or null if the dao did not persist it
      */
-    private RabbitPubSubProducer getRabbitProducer() throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
+    private Form persistNewReport(final Form form, final String topic) throws Exception {
+        return NotificationOutbox.getInstance().execute(new Callable<Form>() {
+            @Override
+            public Form call() throws Exception {
+                Form persisted = formDao.persistForm(form);
+                if(persisted != null) {
+                    notifyNewReport(topic, persisted);
+                }
+                return persisted;
+            }
+        });
+    }
+
+    private void notifyNewReport(String topic, Form form) throws IOException, TimeoutException, AlreadyClosedException {
+        if(form != null) {
+            String message = JsonSerialization.toJson(form);
+            NotificationOutbox.getInstance().produce(topic, message);
         }
-        return rabbitProducer;
     }
 
+
     @Override
     public Response getReportTypes() {
         Response response = null;
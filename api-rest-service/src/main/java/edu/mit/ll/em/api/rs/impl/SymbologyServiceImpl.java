@@ -29,6 +29,7 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.rs.SymbologyService;
 import edu.mit.ll.em.api.rs.SymbologyServiceResponse;
 import edu.mit.ll.em.api.util.APIConfig;
@@ -36,7 +37,6 @@ import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.OrgSymbology;
 import edu.mit.ll.nics.common.entity.Symbology;
 import edu.mit.ll.nics.nicsdao.impl.SymbologyDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -82,11 +82,6 @@ public class SymbologyServiceImpl implements SymbologyService {
      */
     private static final SymbologyDAOImpl symbologyDao = new SymbologyDAOImpl();
 
-    /**
-     * UserOrg DAO Instance for verifying user roles.
-     */
-    private static final UserOrgDAOImpl userorgDao = new UserOrgDAOImpl();
-
     /**
      * Text denoting a valid Symbology entity.
      */
@@ -1093,8 +1088,8 @@ public class SymbologyServiceImpl implements SymbologyService {
      * @return true if the user is NOT authorized, false otherwise
      */
     private boolean isNotAuthorized(final String username) {
-        return !userorgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID) &&
-                !userorgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID);
+        return !EntityCacheMgr.getInstance().hasAnyUserRole(username,
+                SADisplayConstants.ADMIN_ROLE_ID, SADisplayConstants.SUPER_ROLE_ID);
     }
 
     /**
@@ -1105,6 +1100,6 @@ public class SymbologyServiceImpl implements SymbologyService {
      * @return true if the user is NOT a superuser, false otherwise
      */
     private boolean isNotSuper(final String username) {
-        return !userorgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID);
+        return !EntityCacheMgr.getInstance().isUserRole(username, SADisplayConstants.SUPER_ROLE_ID);
     }
 }
\ No newline at end of file
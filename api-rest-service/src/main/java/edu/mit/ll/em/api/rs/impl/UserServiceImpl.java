@@ -29,9 +29,11 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AlreadyClosedException;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
 import edu.mit.ll.em.api.rs.FieldMapResponse;
 import edu.mit.ll.em.api.rs.GlobalUser;
 import edu.mit.ll.em.api.rs.Login;
@@ -43,7 +45,11 @@ import edu.mit.ll.em.api.rs.UserProfileResponse;
 import edu.mit.ll.em.api.rs.GlobalAdminUserResponse;
 import edu.mit.ll.em.api.rs.UserResponse;
 import edu.mit.ll.em.api.rs.UserService;
+import edu.mit.ll.em.api.rs.StreamingListOutput;
+import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonSerialization;
+import edu.mit.ll.em.api.util.RequestIdentity;
 import edu.mit.ll.em.api.util.UserInfoValidator;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.email.JsonEmail;
@@ -58,8 +64,6 @@ import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.common.entity.UserOrg;
 import edu.mit.ll.nics.common.entity.UserOrgWorkspace;
 import edu.mit.ll.nics.common.entity.Workspace;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
@@ -146,8 +150,6 @@ public class UserServiceImpl implements UserService {
     private final UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
     private final OrgDAOImpl orgDao = new OrgDAOImpl();
 
-    private RabbitPubSubProducer rabbitProducer;
-
 	/**
 	 * Return the User specified by the username in the identity header.
 	 *
@@ -189,13 +191,14 @@ public class UserServiceImpl implements UserService {
     /**
      * Read and return all User items in workspace
      *
+     * @param fields comma separated user properties to return, all of them if null
      * @return Response
      *
      * @see UserResponse
      */
-    public Response getUsers(int workspaceId) {
+    public Response getUsers(int workspaceId, String fields) {
         //Get all users in the workspace
-        return this.getUsers(workspaceId, -1);
+        return this.getUsers(workspaceId, -1, fields);
     }
 
     /**
@@ -205,16 +208,14 @@ public class UserServiceImpl implements UserService {
      *
      * @see UserResponse
      */
-    public Response getUsers(int workspaceId, int orgId) {
+    public Response getUsers(int workspaceId, int orgId, String fields) {
         Response response = null;
         UserResponse userResponse = new UserResponse();
 
         List<edu.mit.ll.nics.common.entity.User> users = null;
         try {
             users = userDao.getEnabledUsersInWorkspace(workspaceId, orgId);
-            if(users != null && users.size() > 0) {
-                userResponse.setUsers(users);
-            } else {
+            if(users == null || users.isEmpty()) {
                 log.debug("No enabled users in workspace with id {}", workspaceId);
             }
 
@@ -231,7 +232,12 @@ public class UserServiceImpl implements UserService {
         }
 
         userResponse.setMessage(Status.OK.toString());
-        response = Response.ok(userResponse).status(Status.OK).build();
+        if(users != null && !users.isEmpty()) {
+            response = StreamingListOutput.ok(userResponse, "users", users,
+                    QueryConstraintHelper.makeColumnSelectionSet(fields));
+        } else {
+            response = Response.ok(userResponse).status(Status.OK).build();
+        }
 
         return response;
     }
@@ -351,6 +357,7 @@ public class UserServiceImpl implements UserService {
 
                     if(userDao.addUserToOrg(userId, Arrays.asList(userorg), getWorkspaceIds())) {
                         users.add(userId);
+                        EntityCacheMgr.getInstance().invalidateUserRoles(userId);
 
 						/*try {
 							notifyUserAddedToOrg(userorg, workspaceId);
@@ -385,7 +392,7 @@ public class UserServiceImpl implements UserService {
         //ObjectMapper mapper = new ObjectMapper();
         //String message = mapper.writeValueAsString("Update to userorgworkspace " + userorgWorkspaceId);
         String message = "Update to userorgworkspace " + userorgWorkspaceId;
-        getRabbitProducer().produce(topic, message);
+        RabbitPublisher.getInstance().produce(topic, message);
     }
 
     /**
@@ -457,6 +464,9 @@ public class UserServiceImpl implements UserService {
 
                 } else {
                     // User was successfully registered with NICS
+                    // Lookups made before registering may have cached that this username doesn't exist
+                    EntityCacheMgr.getInstance().invalidateUsername(registerUser.getEmail());
+
                     // Get the new user, so we have the right id
                     User newUser = userDao.getUser(registerUser.getEmail());
                     if(newUser != null) {
@@ -666,7 +676,13 @@ public class UserServiceImpl implements UserService {
     }
 
     public Response getSystemRoles() {
-        return Response.ok(userOrgDao.getSystemRoles()).status(Status.OK).build();
+        try {
+            return Response.ok(EntityCacheMgr.getInstance().getReferenceData().getSystemRoles())
+                    .status(Status.OK).build();
+        } catch(ICSDatastoreException e) {
+            log.error("Exception retrieving SystemRoles", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
     }
 
     /**
@@ -823,7 +839,7 @@ public class UserServiceImpl implements UserService {
                 return Response.ok(userResponse).status(Status.NOT_FOUND).build();
             }
 
-            if(!userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+            if(!EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
                 userResponse.setMessage("User not authorized");
                 return Response.ok(userResponse).status(Status.UNAUTHORIZED).build();
             }
@@ -894,9 +910,10 @@ public class UserServiceImpl implements UserService {
         int systemRoleId = userOrgDao.getSystemRoleId(requestingUser, userOrgWorkspaceId);
 
         if((systemRoleId == SADisplayConstants.ADMIN_ROLE_ID || systemRoleId == SADisplayConstants.SUPER_ROLE_ID) ||
-                userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+                EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
 
             userDao.setUserActive(userId, active);
+            EntityCacheMgr.getInstance().invalidateUser(userId);
 
             User responseUser = userDao.getUserById(userId);
             userResponse.setUsers(Arrays.asList(responseUser));
@@ -970,11 +987,12 @@ public class UserServiceImpl implements UserService {
 
         if((systemRoleId == SADisplayConstants.ADMIN_ROLE_ID ||
                 systemRoleId == SADisplayConstants.SUPER_ROLE_ID) ||
-                userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+                EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
 
             int count = userOrgDao.setUserOrgEnabled(userOrgWorkspaceId, enabled);
 
             if(count == 1) {
+                EntityCacheMgr.getInstance().invalidateUserRoles(userId);
 
                 User newUser = userDao.getUserById(userId);
                 userResponse.setOrgCount(userOrgDao.hasEnabledOrgs(userId, workspaceId));
@@ -1071,7 +1089,7 @@ public class UserServiceImpl implements UserService {
     }
 
     public Response isSuperUser(String username) {
-        if(userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID)) {
+        if(EntityCacheMgr.getInstance().isUserRole(username, SADisplayConstants.SUPER_ROLE_ID)) {
             return Response.ok().status(Status.OK).build();
         }
 
@@ -1080,12 +1098,12 @@ public class UserServiceImpl implements UserService {
 
     public Response getAdminUsers(String username, int workspaceId){
         GlobalAdminUserResponse response = new GlobalAdminUserResponse();
-        if(userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID)) {
+        if(EntityCacheMgr.getInstance().isUserRole(username, SADisplayConstants.SUPER_ROLE_ID)) {
             List<User> users = userDao.getAllUsers(workspaceId);
             response.setAdminUsers(response.transform(users));
         }else{
             try {
-                int userId = (new Long(userDao.getUserId(username))).intValue();
+                int userId = (new Long(RequestIdentity.getUserId(username))).intValue();
                 response.setAdminUsers(response.transform(userDao.getAdminUsers(userId, workspaceId)));
             }catch(Exception e){
                 response.setMessage("There was an error retrieving the user id.");
@@ -1107,7 +1125,7 @@ public class UserServiceImpl implements UserService {
 
             //Verify the request user is an admin for the organization or a super user for any other organization
             if(requestingUserRole != SADisplayConstants.ADMIN_ROLE_ID &&
-                    !userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+                    !EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
 
                 return Response.status(Status.BAD_REQUEST).entity(
                         Status.FORBIDDEN.getReasonPhrase()).build();
@@ -1150,8 +1168,10 @@ public class UserServiceImpl implements UserService {
             profileResponse.setDescription(userOrg.getDescription());
             profileResponse.setJobTitle(userOrg.getJobTitle());
             profileResponse.setSysRoleId(userOrg.getSystemroleid());
-            profileResponse.setIsSuperUser(userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID));
-            profileResponse.setIsAdminUser(userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID));
+            profileResponse.setIsSuperUser(EntityCacheMgr.getInstance().isUserRole(username,
+                    SADisplayConstants.SUPER_ROLE_ID));
+            profileResponse.setIsAdminUser(EntityCacheMgr.getInstance().isUserRole(username,
+                    SADisplayConstants.ADMIN_ROLE_ID));
             profileResponse.setDefaultLanguage(userOrg.getDefaultLanguage());
             profileResponse.setOrgDefaultLanguage(org.getDefaultlanguage());
             profileResponse.setRestrictIncidents(org.getRestrictincidents());
@@ -1184,7 +1204,7 @@ public class UserServiceImpl implements UserService {
             if((requestingUserRole != SADisplayConstants.SUPER_ROLE_ID &&
                     requestingUserRole != SADisplayConstants.ADMIN_ROLE_ID) &&
                     //Verify the request user is a super user for any other organization
-                    !userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
+                    !EntityCacheMgr.getInstance().isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
 
                 return Response.status(Status.BAD_REQUEST).entity(
                         Status.FORBIDDEN.getReasonPhrase()).build();
@@ -1197,9 +1217,11 @@ public class UserServiceImpl implements UserService {
             UserOrg userOrg = userOrgDao.getUserOrg(user.getUserOrgId());
 
             userDao.updateNames(user.getUserId(), user.getFirstName(), user.getLastName());
+            EntityCacheMgr.getInstance().invalidateUser(user.getUserId());
             userOrgDao.updateUserOrg(user.getUserOrgId(), user.getJobTitle(), user.getRank(), user.getJobDesc(),
                     user.getSysRoleId(),
                     user.getDefaultLanguage());
+            EntityCacheMgr.getInstance().invalidateUserRoles(user.getUserId());
 
             dbUser = userDao.getAllUserInfoById(user.getUserId());
             userOrg = userOrgDao.getUserOrg(user.getUserOrgId());
@@ -1312,7 +1334,7 @@ public class UserServiceImpl implements UserService {
         Response response = null;
         UserResponse userResponse = new UserResponse();
 
-        if(userDao.getUserId(requestingUser) != userId) {
+        if(RequestIdentity.getUserId(requestingUser) != userId) {
             return Response.status(Status.BAD_REQUEST).entity(
                     Status.FORBIDDEN.getReasonPhrase()).build();
         }
@@ -1326,6 +1348,7 @@ public class UserServiceImpl implements UserService {
             if(sessions == null){
                 session = userSessDao.createUserSession(userId, displayName, userorgId, systemRoleId,
                         workspaceId, sessionId, false);
+                EntityCacheMgr.getInstance().invalidateUserSession(userId);
             }else{
                 //Results are ordered by logged in - get the most recent
                 session = sessions.get(0);
@@ -1370,7 +1393,7 @@ public class UserServiceImpl implements UserService {
         try {
             String sessionId = userSessDao.getSessionId(userSessionId);
 
-            int userId = (new Long(userDao.getUserId(username)).intValue());
+            int userId = (new Long(RequestIdentity.getUserId(username)).intValue());
 
             List<CurrentUserSession> sessions = userSessDao.getCurrentUserSession(
                     workspaceId, userId, sessionId);
@@ -1386,6 +1409,7 @@ public class UserServiceImpl implements UserService {
 
             int count = userSessDao.removeUserSession(sessionId);
             if(count != 0) {
+                EntityCacheMgr.getInstance().invalidateUserSession(userId);
                 userResponse.setCount(count);
                 userResponse.setMessage(Status.OK.getReasonPhrase());
                 response = Response.ok(userResponse).status(Status.OK).build();
@@ -1411,7 +1435,7 @@ public class UserServiceImpl implements UserService {
         Status status;
 
         try {
-            userResponse.setContactTypes(userDao.getContactTypes());
+            userResponse.setContactTypes(EntityCacheMgr.getInstance().getReferenceData().getContactTypes());
             userResponse.setMessage("Successfully retrieved ContactTypes");
             status = Status.OK;
         } catch(Exception e) {
@@ -1469,7 +1493,7 @@ public class UserServiceImpl implements UserService {
                     Status.FORBIDDEN.getReasonPhrase()).build();
         }
 
-        int userId = new Long(userDao.getUserId(userName)).intValue();
+        int userId = new Long(RequestIdentity.getUserId(userName)).intValue();
 
         try {
 
@@ -1697,9 +1721,8 @@ public class UserServiceImpl implements UserService {
             throws IOException, TimeoutException, AlreadyClosedException {
         if(user != null) {
             String topic = String.format("iweb.NICS.%d.login", workspaceId);
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(user);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(user);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
 
@@ -1868,7 +1891,7 @@ public class UserServiceImpl implements UserService {
     private void notifyLogout(String sessionId)
             throws IOException, TimeoutException, AlreadyClosedException {
         String topic = String.format("iweb.NICS.%s.logout", sessionId);
-        getRabbitProducer().produce(topic, sessionId);
+        RabbitPublisher.getInstance().produce(topic, sessionId);
     }
 
     //Remove from Active Users table
@@ -1879,7 +1902,7 @@ public class UserServiceImpl implements UserService {
 
         if(currentSessions != null){
             for(String currentSessionId : currentSessions){
-                getRabbitProducer().produce(topic,currentSessionId);
+                RabbitPublisher.getInstance().produce(topic,currentSessionId);
             }
         }
     }
@@ -1887,7 +1910,7 @@ public class UserServiceImpl implements UserService {
     private void notifyNewUserEmail(String email, String topic)
             throws IOException, TimeoutException, AlreadyClosedException {
         if(email != null) {
-            getRabbitProducer().produce(topic, email);
+            RabbitPublisher.getInstance().produce(topic, email);
         }
     }
 
@@ -1908,21 +1931,8 @@ public class UserServiceImpl implements UserService {
 
             log.debug("\n\nSENDING user to topic {}:\n{}", topic, user.get("username"));
 
-            ObjectMapper mapper = new ObjectMapper();
-            String message = mapper.writeValueAsString(user);
-            getRabbitProducer().produce(topic, message);
+            String message = JsonSerialization.toJson(user);
+            RabbitPublisher.getInstance().produce(topic, message);
         }
     }
-
-    private RabbitPubSubProducer getRabbitProducer()
-            throws IOException, TimeoutException, AlreadyClosedException {
-        if(rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-        }
-        return rabbitProducer;
-    }
 }
@@ -48,8 +48,57 @@ public class APIConfig {
     public static final String API_CONFIG_XML = "em-api-config.xml";
     public static final String API_PROPS_FILE = "em-api.properties";
 
+    // JNDI name of the connection pool the nics-dao DAOs use
+    public static final String DATASOURCE_JNDI_NAME = "java:comp/env/jboss/sadisplayDatasource";
+
     public static final String CACHE_USER_REFRESHMINUTES = "em.api.cache.user.refreshminutes";
 
+    // Entity caches, see CacheSettings. Per cache keys are CACHE_PREFIX + cache name + suffix.
+    public static final String CACHE_PREFIX = "em.api.cache.";
+    public static final String CACHE_MAXSIZE_SUFFIX = ".maxsize";
+    public static final String CACHE_EXPIREMINUTES_SUFFIX = ".expireminutes";
+    public static final String CACHE_REFRESHAHEADMINUTES_SUFFIX = ".refreshaheadminutes";
+    public static final String CACHE_POLICY = "em.api.cache.policy";
+    public static final String CACHE_USERNAME_NEGATIVE_TTLSECONDS = "em.api.cache.username.negative.ttlseconds";
+    public static final String CACHE_USERNAME_NEGATIVE_MAXSIZE = "em.api.cache.username.negative.maxsize";
+    public static final String CACHE_INVALIDATION_ENABLED = "em.api.cache.invalidation.enabled";
+    public static final String CACHE_INVALIDATION_EXPIREMINUTES = "em.api.cache.invalidation.expireminutes";
+    public static final String CACHE_PERMISSION_MAXPERROOM = "em.api.cache.permission.maxperroom";
+    public static final String CACHE_REFERENCEDATA_REFRESHMINUTES = "em.api.cache.referencedata.refreshminutes";
+    public static final String CONDITIONAL_GET_ENABLED = "em.api.conditional.enabled";
+    public static final String CONDITIONAL_GET_MAXAGESECONDS = "em.api.conditional.maxageseconds";
+    public static final String COMPRESSION_ENABLED = "em.api.compression.enabled";
+    public static final String COMPRESSION_MINSIZE = "em.api.compression.minsize";
+    public static final String COMPRESSION_LEVEL = "em.api.compression.level";
+    public static final String COMPRESSION_MIMETYPES = "em.api.compression.mimetypes";
+    public static final String COMPRESSION_MAXINFLATEDSIZE = "em.api.compression.maxinflatedsize";
+
+    // Executors of long running requests, see AsyncRequestExecutors. Per executor keys are ASYNC_PREFIX +
+    // executor name + suffix.
+    public static final String ASYNC_PREFIX = "em.api.async.";
+    public static final String ASYNC_THREADS_SUFFIX = ".threads";
+    public static final String ASYNC_QUEUESIZE_SUFFIX = ".queuesize";
+    public static final String ASYNC_TIMEOUTSECONDS_SUFFIX = ".timeoutseconds";
+    public static final String ASYNC_RETRYAFTERSECONDS = "em.api.async.retryafterseconds";
+    public static final String METRICS_ENABLED = "em.api.metrics.enabled";
+    public static final String METRICS_WINDOWSECONDS = "em.api.metrics.windowseconds";
+
+    // Bulkheads, see Bulkheads. Per group keys are BULKHEAD_PREFIX + group name + suffix.
+    public static final String BULKHEAD_ENABLED = "em.api.bulkhead.enabled";
+    public static final String BULKHEAD_PREFIX = "em.api.bulkhead.";
+    public static final String BULKHEAD_MAXCONCURRENT_SUFFIX = ".maxconcurrent";
+    public static final String BULKHEAD_MAXWAITING_SUFFIX = ".maxwaiting";
+    public static final String BULKHEAD_MAXWAITMILLIS_SUFFIX = ".maxwaitmillis";
+    public static final String BULKHEAD_RETRYAFTERSECONDS = "em.api.bulkhead.retryafterseconds";
+
+    // Rate limits, see RateLimits. Per limit keys are RATELIMIT_PREFIX + limit name + suffix.
+    public static final String RATELIMIT_ENABLED = "em.api.ratelimit.enabled";
+    public static final String RATELIMIT_PREFIX = "em.api.ratelimit.";
+    public static final String RATELIMIT_PERSECOND_SUFFIX = ".persecond";
+    public static final String RATELIMIT_BURST_SUFFIX = ".burst";
+    public static final String RATELIMIT_DEVICES_SUFFIX = ".devices";
+    public static final String RATELIMIT_MAXKEYS = "em.api.ratelimit.maxkeys";
+
     public static final String NEW_USER_ALERT_EMAIL = "em.api.user.alert.email";
     public static final String NEW_USER_ENABLED_EMAIL = "em.api.newuser.enabled.email";
     public static final String NEW_USER_BODY_EMAIL = "em.api.newuser.enabled.body";
@@ -65,6 +114,27 @@ public class APIConfig {
     public static final String RABBIT_USERPWD_KEY = "em.api.rabbitmq.userpwd";
     public static final String RABBIT_EXCHANGENAME_KEY = "em.api.rabbitmq.exchange.name";
     public static final String RABBIT_MAX_CONN_TRIES = "em.api.rabbitmq.maxconntries";
+    public static final String RABBIT_CHANNELS = "em.api.rabbitmq.channels";
+    public static final String RABBIT_CHANNELWAITMILLIS = "em.api.rabbitmq.channelwaitmillis";
+    public static final String RABBIT_PUBLISH_ASYNC = "em.api.rabbitmq.publish.async";
+    public static final String RABBIT_PUBLISH_QUEUESIZE = "em.api.rabbitmq.publish.queuesize";
+    public static final String RABBIT_PUBLISH_THREADS = "em.api.rabbitmq.publish.threads";
+    public static final String RABBIT_PUBLISH_BATCHSIZE = "em.api.rabbitmq.publish.batchsize";
+    public static final String RABBIT_PUBLISH_CONFIRMTIMEOUTMILLIS = "em.api.rabbitmq.publish.confirmtimeoutmillis";
+    public static final String RABBIT_PUBLISH_OVERFLOW = "em.api.rabbitmq.publish.overflow";
+    public static final String RABBIT_PUBLISH_BLOCKMILLIS = "em.api.rabbitmq.publish.blockmillis";
+    public static final String RABBIT_PUBLISH_SPILLDIR = "em.api.rabbitmq.publish.spilldir";
+    public static final String RABBIT_PUBLISH_SHUTDOWNMILLIS = "em.api.rabbitmq.publish.shutdownmillis";
+    public static final String OUTBOX_ENABLED = "em.api.outbox.enabled";
+    public static final String OUTBOX_BATCHSIZE = "em.api.outbox.batchsize";
+    public static final String OUTBOX_POLLMILLIS = "em.api.outbox.pollmillis";
+    public static final String OUTBOX_RETAINHOURS = "em.api.outbox.retainhours";
+    public static final String MSGBUS_MAXBATCHSIZE = "em.api.msgbus.maxbatchsize";
+    public static final String MSGBUS_MAXWAITMILLIS = "em.api.msgbus.maxwaitmillis";
+    public static final String MSGBUS_TICKMILLIS = "em.api.msgbus.tickmillis";
+    public static final String MSGBUS_QUEUE_MAXMESSAGES = "em.api.msgbus.queue.maxmessages";
+    public static final String MSGBUS_QUEUE_MAXBYTES = "em.api.msgbus.queue.maxbytes";
+    public static final String MSGBUS_QUEUE_OVERFLOW = "em.api.msgbus.queue.overflow";
     //public static final String RABBIT_MSG_VERSION = "em.api.rabbitmq.msgver";
 
     //public static final String CHAT_STALEMSG_FACTOR_STRING = "em.api.resource.chat.stalemsg.factor.string";
@@ -122,6 +192,7 @@ public class APIConfig {
     public static final String EXPORT_REST_URL = "/rest";
     public static final String EXPORT_WEBSERVER_URL = "em.api.service.export.webserverURL";
     public static final String EXPORT_MAPSERVER_PUBLIC_URL = "em.api.service.export.public.mapserverURL";
+    public static final String GEOSERVER_LAYERS_REFRESHMINUTES = "em.api.geoserver.layers.refreshminutes";
 
     public static final String IMAGE_LAYER_MAPSERVER_URL = "em.api.service.image.layer.mapserver.url";
     public static final String IMAGE_LAYER_MAPSERVER_USERNAME = "em.api.service.image.layer.mapserver.username";
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.UserIdentity;
+import edu.mit.ll.em.api.metrics.EndpointMetrics;
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+
+/**
+ * Runs requests that spend a long time blocked on GeoServer or on files, such as exports and layer uploads, on executors
+ * of their own instead of the container's request threads, so a few slow ones can't hold up chat, features and the
+ * rest of the API.
+ * <p>
+ * Each executor has a fixed number of threads and a bounded queue, configured per executor with the
+ * {@link APIConfig#ASYNC_PREFIX} keys. A request that finds its executor's queue full is answered 503 with a
+ * Retry-After right away, and so is one still queued after the executor's timeout, since it never ran. One that was
+ * already running by then is interrupted and answered 504 without a Retry-After: it may still have done its work, and
+ * uploads are not safe to repeat.
+ * <p>
+ * The identity of the requesting user, see {@link RequestIdentity}, and the endpoint its cache loads are timed against,
+ * see {@link RequestMetrics}, are carried over to the executor's thread.
+ */
+public final class AsyncRequestExecutors {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(AsyncRequestExecutors.class);
+
+    /**
+     * Datalayer exports and capabilities documents
+     */
+    public static final String EXPORT = "export";
+
+    /**
+     * Shapefile, geotiff and image layer uploads
+     */
+    public static final String LAYER_IMPORT = "layerimport";
+
+    private static final int DEFAULT_THREADS = 4;
+
+    private static final int DEFAULT_QUEUESIZE = 16;
+
+    private static final int DEFAULT_TIMEOUTSECONDS = 300;
+
+    private static final int DEFAULT_RETRYAFTERSECONDS = 30;
+
+    private static final long KEEPALIVE_SECONDS = 60;
+
+    // How long freeResources waits for running requests before interrupting them
+    private static final long SHUTDOWN_SECONDS = 10;
+
+    private final Configuration config;
+
+    private final RequestMetrics metrics;
+
+    private final int retryAfterSeconds;
+
+    // Guarded by this
+    private final Map<String, Executor> executors = new HashMap<String, Executor>();
+
+    // Guarded by this, set once the executors are shut down
+    private boolean closed;
+
+    // Lazy-initialization Holder class idiom.
+    private static class Holder {
+        public static final AsyncRequestExecutors instance = new AsyncRequestExecutors();
+    }
+
+    public static AsyncRequestExecutors getInstance() {
+        return Holder.instance;
+    }
+
+    private AsyncRequestExecutors() {
+        this(APIConfig.getInstance().getConfiguration(), RequestMetrics.getInstance());
+    }
+
+    /**
+     * @param config settings of the executors, see {@link APIConfig#ASYNC_PREFIX}
+     * @param metrics whose current endpoint is carried over to the executors' threads
+     */
+    public AsyncRequestExecutors(Configuration config, RequestMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.retryAfterSeconds = config.getInt(APIConfig.ASYNC_RETRYAFTERSECONDS, DEFAULT_RETRYAFTERSECONDS);
+    }
+
+    /**
+     * Runs request on the named executor and resumes asyncResponse with its response, or with the exception it
+     * throws. asyncResponse is resumed with a 503 instead if the executor is saturated, shut down, or the request
+     * times out before it starts, and with a 504 if it times out while running.
+     *
+     * @param name the executor, {@link #EXPORT} or {@link #LAYER_IMPORT}
+     * @param asyncResponse the suspended response of the request
+     * @param request produces the response, as the endpoint would have synchronously
+     */
+    public void submit(String name, final AsyncResponse asyncResponse, final Callable<Response> request) {
+        final Executor executor = getExecutor(name);
+        if(executor == null) {
+            log.debug("The executors are shut down, turning a request away");
+            asyncResponse.resume(unavailable());
+            return;
+        }
+
+        final RequestTask task = new RequestTask(asyncResponse, request, RequestIdentity.current(), metrics,
+                metrics.getCurrent());
+
+        asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+            @Override
+            public void handleTimeout(AsyncResponse timedOut) {
+                if(task.claim()) {
+                    log.warn("Request on the {} executor was still queued after {}s", executor.name,
+                            executor.timeoutSeconds);
+                    executor.pool.remove(task);
+                    timedOut.resume(unavailable());
+                } else {
+                    log.warn("Request on the {} executor timed out after {}s while running", executor.name,
+                            executor.timeoutSeconds);
+                    task.cancel(true);
+                    timedOut.resume(Response.status(Status.GATEWAY_TIMEOUT).build());
+                }
+            }
+        });
+        asyncResponse.setTimeout(executor.timeoutSeconds, TimeUnit.SECONDS);
+
+        try {
+            executor.pool.execute(task);
+        } catch(RejectedExecutionException e) {
+            log.warn("The {} executor is saturated, {} running and {} queued, turning a request away",
+                    name, executor.pool.getActiveCount(), executor.pool.getQueue().size());
+            task.claim();
+            asyncResponse.resume(unavailable());
+        }
+    }
+
+    /**
+     * Shuts the executors down. Queued requests are answered 503, running ones get a few seconds to finish before
+     * they are interrupted. Requests submitted afterwards are answered 503.
+     */
+    public void freeResources() {
+        List<Executor> stopping;
+        synchronized(this) {
+            closed = true;
+            stopping = new ArrayList<Executor>(executors.values());
+            executors.clear();
+        }
+
+        for(Executor executor : stopping) {
+            List<Runnable> queued = new ArrayList<Runnable>();
+            executor.pool.getQueue().drainTo(queued);
+            executor.pool.shutdown();
+            turnAway(queued);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_SECONDS);
+        for(Executor executor : stopping) {
+            try {
+                executor.pool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for(Executor executor : stopping) {
+            turnAway(executor.pool.shutdownNow());
+            if(!executor.pool.isTerminated()) {
+                log.warn("Interrupted the requests still running on the {} executor", executor.name);
+            }
+        }
+    }
+
+    private void turnAway(List<Runnable> queued) {
+        for(Runnable runnable : queued) {
+            RequestTask task = (RequestTask) runnable;
+            if(task.claim()) {
+                task.asyncResponse.resume(unavailable());
+            }
+        }
+    }
+
+    private synchronized Executor getExecutor(String name) {
+        if(closed) {
+            return null;
+        }
+        Executor executor = executors.get(name);
+        if(executor == null) {
+            executor = new Executor(name, config);
+            executors.put(name, executor);
+        }
+        return executor;
+    }
+
+    private Response unavailable() {
+        return Response.status(Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+                .build();
+    }
+
+    /**
+     * A request to run on an executor. Either the executor runs it, or it is answered without running, whichever
+     * claims it first.
+     */
+    private static class RequestTask extends FutureTask<Void> {
+
+        private final AsyncResponse asyncResponse;
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        RequestTask(final AsyncResponse asyncResponse, final Callable<Response> request,
+                    final UserIdentity identity, final RequestMetrics metrics, final EndpointMetrics endpoint) {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    RequestIdentity.set(identity);
+                    metrics.setCurrent(endpoint);
+                    try {
+                        asyncResponse.resume(request.call());
+                    } catch(Exception e) {
+                        asyncResponse.resume(e);
+                    } finally {
+                        RequestIdentity.clear();
+                        metrics.setCurrent(null);
+                    }
+                }
+            }, null);
+            this.asyncResponse = asyncResponse;
+        }
+
+        /**
+         * @return true if the caller gets to decide what becomes of the request, false if it was already claimed
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            if(claim()) {
+                super.run();
+            }
+        }
+    }
+
+    /**
+     * A bounded executor and its settings
+     */
+    private static class Executor {
+
+        private final String name;
+
+        private final ThreadPoolExecutor pool;
+
+        private final int timeoutSeconds;
+
+        Executor(final String name, Configuration config) {
+            String prefix = APIConfig.ASYNC_PREFIX + name;
+            int threads = Math.max(1, config.getInt(prefix + APIConfig.ASYNC_THREADS_SUFFIX, DEFAULT_THREADS));
+            int queueSize = Math.max(1, config.getInt(prefix + APIConfig.ASYNC_QUEUESIZE_SUFFIX, DEFAULT_QUEUESIZE));
+            this.name = name;
+            this.timeoutSeconds = config.getInt(prefix + APIConfig.ASYNC_TIMEOUTSECONDS_SUFFIX,
+                    DEFAULT_TIMEOUTSECONDS);
+
+            this.pool = new ThreadPoolExecutor(threads, threads, KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "em-api-" + name + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.AbortPolicy());
+            this.pool.allowCoreThreadTimeOut(true);
+            log.info("Executor {}: {} threads, queue of {}, {}s timeout", name, threads, queueSize, timeoutSeconds);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One bulkhead group: at most maxConcurrent of its requests are handled at once. A request arriving while they all are
+ * waits, first come first served, for up to maxWaitMillis, but only if fewer than maxWaiting others are already
+ * waiting; otherwise it is turned away immediately.
+ */
+public class BulkheadCompartment implements BulkheadCompartmentMBean {
+
+    private final String name;
+
+    private final int maxConcurrent;
+
+    private final int maxWaiting;
+
+    private final long maxWaitMillis;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final LongAdder admitted = new LongAdder();
+
+    private final LongAdder queueFull = new LongAdder();
+
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * @param name the group
+     * @param maxConcurrent requests handled at once
+     * @param maxWaiting requests that may wait for a place
+     * @param maxWaitMillis how long a request waits for a place
+     */
+    public BulkheadCompartment(String name, int maxConcurrent, int maxWaiting, long maxWaitMillis) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaiting = maxWaiting;
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Takes a place in the compartment, waiting for one if need be and allowed
+     *
+     * @return the place, to be released once the request has been handled, or null if the request was turned away
+     */
+    public Permit enter() {
+        // A timed tryAcquire, unlike tryAcquire(), doesn't barge ahead of requests already waiting
+        try {
+            if(permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return admit();
+            }
+            if(waiting.incrementAndGet() > maxWaiting) {
+                waiting.decrementAndGet();
+                queueFull.increment();
+                return null;
+            }
+            try {
+                if(permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                    return admit();
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timedOut.increment();
+        return null;
+    }
+
+    private Permit admit() {
+        admitted.increment();
+        return new Permit(this);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    @Override
+    public int getMaxWaiting() {
+        return maxWaiting;
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    @Override
+    public int getInUse() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    @Override
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    @Override
+    public long getQueueFullCount() {
+        return queueFull.sum();
+    }
+
+    @Override
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    /**
+     * A request's place in a compartment. Releasing it more than once has no further effect, so every path a request
+     * can end on may release it.
+     */
+    public static final class Permit {
+
+        private final BulkheadCompartment compartment;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(BulkheadCompartment compartment) {
+            this.compartment = compartment;
+        }
+
+        public void release() {
+            if(released.compareAndSet(false, true)) {
+                compartment.permits.release();
+            }
+        }
+    }
+}
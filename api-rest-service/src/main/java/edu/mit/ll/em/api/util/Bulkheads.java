@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The bulkheads of the API, see {@link edu.mit.ll.em.api.main.BulkheadFilter}. Each group gets a
+ * {@link BulkheadCompartment}, created on first use from the {@link APIConfig#BULKHEAD_PREFIX} keys of the group, or of
+ * {@link #DEFAULTS} where the group has none, and registered with JMX under edu.mit.ll.em.api:type=Bulkhead.
+ * <p>
+ * Groups come from {@link edu.mit.ll.em.api.rs.Bulkhead} annotations, or are named after a service bean's class, such as
+ * IncidentServiceImpl; a service bean is only put in a bulkhead of its own if its maxconcurrent is configured.
+ */
+public final class Bulkheads {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(Bulkheads.class);
+
+    /**
+     * Group whose settings apply to any group that doesn't configure its own
+     */
+    public static final String DEFAULTS = "default";
+
+    private static final String JMX_DOMAIN = "edu.mit.ll.em.api";
+
+    private static final int DEFAULT_MAXCONCURRENT = 16;
+
+    private static final int DEFAULT_MAXWAITING = 16;
+
+    private static final long DEFAULT_MAXWAITMILLIS = 1000;
+
+    private static final int DEFAULT_RETRYAFTERSECONDS = 5;
+
+    private final ConcurrentMap<String, BulkheadCompartment> compartments =
+            new ConcurrentHashMap<String, BulkheadCompartment>();
+
+    private final Configuration config;
+
+    private final boolean enabled;
+
+    private final int retryAfterSeconds;
+
+    // Lazy-initialization Holder class idiom.
+    private static class Holder {
+        public static final Bulkheads instance = new Bulkheads();
+    }
+
+    public static Bulkheads getInstance() {
+        return Holder.instance;
+    }
+
+    private Bulkheads() {
+        this.config = APIConfig.getInstance().getConfiguration();
+        this.enabled = config.getBoolean(APIConfig.BULKHEAD_ENABLED, true);
+        this.retryAfterSeconds = config.getInt(APIConfig.BULKHEAD_RETRYAFTERSECONDS, DEFAULT_RETRYAFTERSECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return whether the group has a maxconcurrent of its own
+     */
+    public boolean isConfigured(String group) {
+        return config.containsKey(APIConfig.BULKHEAD_PREFIX + group + APIConfig.BULKHEAD_MAXCONCURRENT_SUFFIX);
+    }
+
+    /**
+     * @param group the group's name
+     * @return the group's compartment, created and registered with JMX on first use
+     */
+    public BulkheadCompartment getCompartment(String group) {
+        BulkheadCompartment compartment = compartments.get(group);
+        if(compartment == null) {
+            BulkheadCompartment added = new BulkheadCompartment(group,
+                    Math.max(1, getInt(group, APIConfig.BULKHEAD_MAXCONCURRENT_SUFFIX, DEFAULT_MAXCONCURRENT)),
+                    Math.max(0, getInt(group, APIConfig.BULKHEAD_MAXWAITING_SUFFIX, DEFAULT_MAXWAITING)),
+                    Math.max(0, getLong(group, APIConfig.BULKHEAD_MAXWAITMILLIS_SUFFIX, DEFAULT_MAXWAITMILLIS)));
+            compartment = compartments.putIfAbsent(group, added);
+            if(compartment == null) {
+                compartment = added;
+                register(added);
+                log.info("Bulkhead {}: {} at once, {} waiting for up to {}ms", group, added.getMaxConcurrent(),
+                        added.getMaxWaiting(), added.getMaxWaitMillis());
+            }
+        }
+        return compartment;
+    }
+
+    /**
+     * @return the compartments created so far, by group
+     */
+    public Map<String, BulkheadCompartment> getCompartments() {
+        return new TreeMap<String, BulkheadCompartment>(compartments);
+    }
+
+    /**
+     * @return the response to a request turned away by a bulkhead
+     */
+    public Response unavailable() {
+        return Response.status(Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+                .build();
+    }
+
+    /**
+     * Unregisters the MBeans
+     */
+    public void freeResources() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(String group : compartments.keySet()) {
+            try {
+                ObjectName name = objectName(group);
+                if(server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch(JMException e) {
+                log.warn("Failed to unregister the MBean of bulkhead {}: {}", group, e.getMessage());
+            }
+        }
+    }
+
+    private int getInt(String group, String suffix, int defaultValue) {
+        return config.getInt(APIConfig.BULKHEAD_PREFIX + group + suffix,
+                config.getInt(APIConfig.BULKHEAD_PREFIX + DEFAULTS + suffix, defaultValue));
+    }
+
+    private long getLong(String group, String suffix, long defaultValue) {
+        return config.getLong(APIConfig.BULKHEAD_PREFIX + group + suffix,
+                config.getLong(APIConfig.BULKHEAD_PREFIX + DEFAULTS + suffix, defaultValue));
+    }
+
+    private void register(BulkheadCompartment compartment) {
+        try {
+            ObjectName name = objectName(compartment.getName());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(!server.isRegistered(name)) {
+                server.registerMBean(compartment, name);
+            }
+        } catch(JMException e) {
+            log.warn("Failed to register the MBean of bulkhead {}: {}", compartment.getName(), e.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String group) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=Bulkhead,name=" + ObjectName.quote(group));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import edu.mit.ll.nics.common.entity.Alert;
+import edu.mit.ll.nics.common.entity.Chat;
+import edu.mit.ll.nics.common.entity.CollabRoom;
+import edu.mit.ll.nics.common.entity.CollabroomDatalayer;
+import edu.mit.ll.nics.common.entity.Feature;
+import edu.mit.ll.nics.common.entity.FeatureComment;
+import edu.mit.ll.nics.common.entity.Form;
+import edu.mit.ll.nics.common.entity.Incident;
+import edu.mit.ll.nics.common.entity.User;
+import edu.mit.ll.nics.common.entity.datalayer.Folder;
+
+/**
+ * The ObjectMapper shared by the JAX-RS JSON provider, message bus notifications and everything else in the API that
+ * reads or writes JSON, so the serializers Jackson builds for a type are built once rather than per message.
+ * <p>
+ * Writers are kept per runtime class, so a value is written exactly as {@link ObjectMapper#writeValueAsString(Object)}
+ * writes it. Writers for the payload types most often published are created, and their serializers built, when this
+ * class is loaded.
+ * <p>
+ * The mapper is shared, never reconfigure it. Use {@link ObjectMapper#copy()} for a differently configured one.
+ */
+public final class JsonSerialization {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final ConcurrentHashMap<Class<?>, ObjectWriter> writers =
+            new ConcurrentHashMap<Class<?>, ObjectWriter>();
+
+    // Types published on the message bus with every change
+    private static final Class<?>[] PAYLOAD_TYPES = {
+            Feature.class, FeatureComment.class, Chat.class, Incident.class, CollabRoom.class,
+            CollabroomDatalayer.class, Folder.class, Alert.class, Form.class, User.class
+    };
+
+    static {
+        for(Class<?> type : PAYLOAD_TYPES) {
+            writers.put(type, mapper.writerFor(type));
+        }
+    }
+
+    private JsonSerialization() {
+    }
+
+    /**
+     * @return the shared ObjectMapper
+     */
+    public static ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return the shared writer for values of exactly the given type
+     */
+    public static ObjectWriter writerFor(Class<?> type) {
+        ObjectWriter writer = writers.get(type);
+        if(writer == null) {
+            writer = mapper.writerFor(type);
+            ObjectWriter existing = writers.putIfAbsent(type, writer);
+            if(existing != null) {
+                writer = existing;
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * Writes a value as a JSON string, using the shared writer for its class
+     *
+     * @param value the value to write, may be null
+     * @return the JSON
+     * @throws JsonProcessingException if the value can't be written
+     */
+    public static String toJson(Object value) throws JsonProcessingException {
+        if(value == null) {
+            return mapper.writeValueAsString(null);
+        }
+        return writerFor(value.getClass()).writeValueAsString(value);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A token bucket rate limit, kept per key: a key may make burst requests at once, and perSecond more every second.
+ * <p>
+ * Each bucket is a single time, the moment it will be full again, moved forward one token's worth per request with a
+ * compare-and-set; taking a token never locks. A bucket that is full again holds nothing a new one wouldn't, so once
+ * maxKeys are tracked the full ones are dropped, at most once a second. Requests of keys that still find no room share
+ * one overflow bucket, and are counted: a flood of new keys is limited as if it were one client, rather than let
+ * through.
+ */
+public class RateLimit implements RateLimitMBean {
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+
+    private final double perSecond;
+
+    private final int burst;
+
+    private final int maxKeys;
+
+    /**
+     * Nanoseconds per token
+     */
+    private final long interval;
+
+    /**
+     * Nanoseconds to fill an empty bucket
+     */
+    private final long capacity;
+
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong overflow = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime() - SWEEP_INTERVAL_NANOS);
+
+    private final LongAdder allowed = new LongAdder();
+
+    private final LongAdder limited = new LongAdder();
+
+    private final LongAdder untracked = new LongAdder();
+
+    /**
+     * @param name the limit
+     * @param perSecond tokens added to a bucket every second
+     * @param burst tokens a bucket holds
+     * @param maxKeys keys given a bucket of their own
+     */
+    public RateLimit(String name, double perSecond, int burst, int maxKeys) {
+        this.name = name;
+        this.perSecond = perSecond;
+        this.burst = burst;
+        this.maxKeys = maxKeys;
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.capacity = interval * burst;
+    }
+
+    /**
+     * Takes a token from key's bucket if it has one
+     *
+     * @param key identifies the client, such as its username
+     * @return whether the request may go ahead, and how many tokens are left or how long until the next
+     */
+    public Decision acquire(String key) {
+        return acquire(key, System.nanoTime());
+    }
+
+    /**
+     * @param key identifies the client, such as its username
+     * @param now the {@link System#nanoTime()} of the request
+     * @return whether the request may go ahead, and how many tokens are left or how long until the next
+     */
+    public Decision acquire(String key, long now) {
+        AtomicLong bucket = getBucket(key, now);
+        if(bucket == null) {
+            untracked.increment();
+            bucket = overflow;
+        }
+
+        while(true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + interval;
+            long debt = next - now;
+            if(debt > capacity) {
+                limited.increment();
+                return new Decision(false, 0, debt - capacity);
+            }
+            if(bucket.compareAndSet(full, next)) {
+                allowed.increment();
+                return new Decision(true, (int) ((capacity - debt) / interval), 0);
+            }
+        }
+    }
+
+    private AtomicLong getBucket(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if(bucket != null) {
+            return bucket;
+        }
+        if(buckets.size() >= maxKeys) {
+            sweep(now);
+            if(buckets.size() >= maxKeys) {
+                return null;
+            }
+        }
+        AtomicLong added = new AtomicLong(now);
+        bucket = buckets.putIfAbsent(key, added);
+        return bucket == null ? added : bucket;
+    }
+
+    /**
+     * Drops the buckets that are full again
+     */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if(now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for(Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+            if(it.next().getValue().get() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    @Override
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public int getTrackedKeys() {
+        return buckets.size();
+    }
+
+    @Override
+    public long getAllowedCount() {
+        return allowed.sum();
+    }
+
+    @Override
+    public long getLimitedCount() {
+        return limited.sum();
+    }
+
+    @Override
+    public long getUntrackedCount() {
+        return untracked.sum();
+    }
+
+    /**
+     * Outcome of {@link #acquire(String)}
+     */
+    public static final class Decision {
+
+        private final boolean allowed;
+
+        private final int remaining;
+
+        private final long waitNanos;
+
+        Decision(boolean allowed, int remaining, long waitNanos) {
+            this.allowed = allowed;
+            this.remaining = remaining;
+            this.waitNanos = waitNanos;
+        }
+
+        public boolean isAllowed() {
+            return allowed;
+        }
+
+        /**
+         * @return tokens left in the bucket
+         */
+        public int getRemaining() {
+            return remaining;
+        }
+
+        /**
+         * @return whole seconds until a refused request would be let through, at least 1
+         */
+        public long getRetryAfterSeconds() {
+            return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The rate limits of the API, see {@link edu.mit.ll.em.api.main.RateLimitFilter}. Each limit named by a
+ * {@link edu.mit.ll.em.api.rs.RateLimited} annotation gets a {@link RateLimit}, created on first use from the
+ * {@link APIConfig#RATELIMIT_PREFIX} keys of the limit, or of {@link #DEFAULTS} where the limit has none, and
+ * registered with JMX under edu.mit.ll.em.api:type=RateLimit.
+ * <p>
+ * A limit kept per user and device also has a limit per user, see {@link #getUserLimit(RateLimit)}, so a user can't
+ * get past it by naming a new device on every request.
+ */
+public final class RateLimits {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(RateLimits.class);
+
+    /**
+     * Limit whose settings apply to any limit that doesn't configure its own
+     */
+    public static final String DEFAULTS = "default";
+
+    public static final String LIMIT_HEADER = "X-RateLimit-Limit";
+
+    public static final String REMAINING_HEADER = "X-RateLimit-Remaining";
+
+    /**
+     * Appended to the name of a device limit to name the limit of its users
+     */
+    public static final String USER_SUFFIX = ".user";
+
+    private static final String JMX_DOMAIN = "edu.mit.ll.em.api";
+
+    private static final double DEFAULT_PERSECOND = 2;
+
+    private static final int DEFAULT_BURST = 10;
+
+    private static final int DEFAULT_MAXKEYS = 10000;
+
+    private static final int DEFAULT_DEVICES = 4;
+
+    private final ConcurrentMap<String, RateLimit> limits = new ConcurrentHashMap<String, RateLimit>();
+
+    private final Configuration config;
+
+    private final boolean enabled;
+
+    // Lazy-initialization Holder class idiom.
+    private static class Holder {
+        public static final RateLimits instance = new RateLimits();
+    }
+
+    public static RateLimits getInstance() {
+        return Holder.instance;
+    }
+
+    private RateLimits() {
+        this(APIConfig.getInstance().getConfiguration());
+    }
+
+    /**
+     * @param config settings of the limits, see {@link APIConfig#RATELIMIT_PREFIX}
+     */
+    public RateLimits(Configuration config) {
+        this.config = config;
+        this.enabled = config.getBoolean(APIConfig.RATELIMIT_ENABLED, true);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param name the limit's name
+     * @return the limit, created and registered with JMX on first use
+     */
+    public RateLimit getLimit(String name) {
+        RateLimit limit = limits.get(name);
+        if(limit == null) {
+            String prefix = APIConfig.RATELIMIT_PREFIX + name;
+            String defaults = APIConfig.RATELIMIT_PREFIX + DEFAULTS;
+            double perSecond = config.getDouble(prefix + APIConfig.RATELIMIT_PERSECOND_SUFFIX,
+                    config.getDouble(defaults + APIConfig.RATELIMIT_PERSECOND_SUFFIX, DEFAULT_PERSECOND));
+            int burst = config.getInt(prefix + APIConfig.RATELIMIT_BURST_SUFFIX,
+                    config.getInt(defaults + APIConfig.RATELIMIT_BURST_SUFFIX, DEFAULT_BURST));
+            limit = add(name, perSecond > 0 ? perSecond : DEFAULT_PERSECOND, Math.max(1, burst));
+        }
+        return limit;
+    }
+
+    /**
+     * @param deviceLimit a limit kept per user and device
+     * @return the limit of all of a user's devices together, named after deviceLimit with {@link #USER_SUFFIX}: the
+     * {@link APIConfig#RATELIMIT_DEVICES_SUFFIX} setting of deviceLimit times its rate and burst. Created and
+     * registered with JMX on first use.
+     */
+    public RateLimit getUserLimit(RateLimit deviceLimit) {
+        String name = deviceLimit.getName() + USER_SUFFIX;
+        RateLimit limit = limits.get(name);
+        if(limit == null) {
+            int devices = Math.max(1, config.getInt(
+                    APIConfig.RATELIMIT_PREFIX + deviceLimit.getName() + APIConfig.RATELIMIT_DEVICES_SUFFIX,
+                    config.getInt(APIConfig.RATELIMIT_PREFIX + DEFAULTS + APIConfig.RATELIMIT_DEVICES_SUFFIX,
+                            DEFAULT_DEVICES)));
+            limit = add(name, deviceLimit.getPerSecond() * devices, deviceLimit.getBurst() * devices);
+        }
+        return limit;
+    }
+
+    private RateLimit add(String name, double perSecond, int burst) {
+        RateLimit added = new RateLimit(name, perSecond, burst,
+                Math.max(1, config.getInt(APIConfig.RATELIMIT_MAXKEYS, DEFAULT_MAXKEYS)));
+        RateLimit limit = limits.putIfAbsent(name, added);
+        if(limit == null) {
+            limit = added;
+            register(added);
+            log.info("Rate limit {}: {} per second, bursts of {}", name, added.getPerSecond(), added.getBurst());
+        }
+        return limit;
+    }
+
+    /**
+     * @return the limits created so far, by name
+     */
+    public Map<String, RateLimit> getLimits() {
+        return new TreeMap<String, RateLimit>(limits);
+    }
+
+    /**
+     * @return the response to a request refused by limit
+     */
+    public Response tooManyRequests(RateLimit limit, RateLimit.Decision decision) {
+        return Response.status(Status.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, decision.getRetryAfterSeconds())
+                .header(LIMIT_HEADER, limit.getBurst())
+                .header(REMAINING_HEADER, 0)
+                .build();
+    }
+
+    /**
+     * Unregisters the MBeans
+     */
+    public void freeResources() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(String name : limits.keySet()) {
+            try {
+                ObjectName objectName = objectName(name);
+                if(server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch(JMException e) {
+                log.warn("Failed to unregister the MBean of rate limit {}: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    private void register(RateLimit limit) {
+        try {
+            ObjectName name = objectName(limit.getName());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(!server.isRegistered(name)) {
+                server.registerMBean(limit, name);
+            }
+        } catch(JMException e) {
+            log.warn("Failed to register the MBean of rate limit {}: {}", limit.getName(), e.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=RateLimit,name=" + ObjectName.quote(name));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.dataaccess.UserIdentity;
+import edu.mit.ll.nics.common.entity.User;
+import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
+
+/**
+ * Holds the {@link UserIdentity} of the user making the request being handled on the current thread, as resolved by
+ * {@link edu.mit.ll.em.api.main.IdentityRequestFilter}. Services use it to look up the requesting user instead of
+ * querying the database on every call.
+ */
+public final class RequestIdentity {
+
+    /**
+     * Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(RequestIdentity.class);
+
+    private static final ThreadLocal<UserIdentity> current = new ThreadLocal<UserIdentity>();
+
+    private static final UserDAOImpl userDao = new UserDAOImpl();
+
+    private RequestIdentity() {
+    }
+
+    public static void set(UserIdentity identity) {
+        current.set(identity);
+    }
+
+    public static void clear() {
+        current.remove();
+    }
+
+    /**
+     * @return the identity of the requesting user, or null if the request didn't identify a known user
+     */
+    public static UserIdentity current() {
+        return current.get();
+    }
+
+    /**
+     * @param username username to resolve, usually the X-Remote-User of the request
+     * @return the identity of username, or null if there is no such user
+     *
+     * @throws ICSDatastoreException if the user could not be read
+     */
+    public static UserIdentity resolve(String username) throws ICSDatastoreException {
+        UserIdentity identity = current.get();
+        if(identity != null && username != null && identity.getUsername().equals(username.trim())) {
+            return identity;
+        }
+        return EntityCacheMgr.getInstance().getUserIdentity(username);
+    }
+
+    /**
+     * Drop-in replacement for UserDAOImpl.getUserId, answered from the request identity or the entity caches.
+     *
+     * @param username username to resolve
+     * @return the userId of username, or -1 if there is no such user
+     */
+    public static long getUserId(String username) {
+        try {
+            UserIdentity identity = resolve(username);
+            return identity == null ? -1 : identity.getUserId();
+        } catch(ICSDatastoreException e) {
+            log.warn("Failed to resolve user {} through the cache, querying directly: {}", username, e.getMessage());
+            return userDao.getUserId(username);
+        }
+    }
+
+    /**
+     * Drop-in replacement for UserDAOImpl.getUser for read-only use, see {@link EntityCacheMgr}.
+     *
+     * @param username username to look up
+     * @return the User, or null if there is no such user
+     */
+    public static User getUser(String username) {
+        try {
+            return EntityCacheMgr.getInstance().getUserEntityByUsername(username);
+        } catch(ICSDatastoreException e) {
+            log.warn("Failed to read user {} through the cache, querying directly: {}", username, e.getMessage());
+            return userDao.getUser(username);
+        }
+    }
+}
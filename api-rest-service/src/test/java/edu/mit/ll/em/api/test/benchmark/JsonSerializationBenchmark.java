@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.benchmark;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.mit.ll.em.api.util.JsonSerialization;
+import edu.mit.ll.nics.common.entity.Chat;
+
+/**
+ * Compares writing message bus payloads with a new ObjectMapper per message, as the notify methods used to, against the
+ * shared writers of {@link JsonSerialization}.
+ * <p>
+ * Not part of the test suite. Run the main method from the IDE, or after "mvn test-compile" with
+ * java -cp target/test-classes:&lt;test classpath&gt; org.openjdk.jmh.Main JsonSerializationBenchmark
+ * Add "-prof gc" to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSerializationBenchmark {
+
+    private Chat chat;
+
+    private Map<String, Object> incidentOrgs;
+
+    @Setup
+    public void setup() {
+        chat = new Chat();
+        chat.setChatid(1234);
+        chat.setCollabroomid(56);
+        chat.setCreated(new Date());
+
+        // As published by IncidentServiceImpl when orgs are added to an incident
+        incidentOrgs = new HashMap<String, Object>();
+        incidentOrgs.put("incidentId", 789);
+        incidentOrgs.put("orgIds", Arrays.asList(1, 2, 3, 5, 8, 13));
+    }
+
+    @Benchmark
+    public String chatNewMapper() throws JsonProcessingException {
+        return new ObjectMapper().writeValueAsString(chat);
+    }
+
+    @Benchmark
+    public String chatSharedWriter() throws JsonProcessingException {
+        return JsonSerialization.toJson(chat);
+    }
+
+    @Benchmark
+    public String incidentOrgsNewMapper() throws JsonProcessingException {
+        return new ObjectMapper().writeValueAsString(incidentOrgs);
+    }
+
+    @Benchmark
+    public String incidentOrgsSharedWriter() throws JsonProcessingException {
+        return JsonSerialization.toJson(incidentOrgs);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(JsonSerializationBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.cache.CacheInvalidator;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.em.api.dataaccess.cache.EntityLoader;
+import edu.mit.ll.em.api.dataaccess.cache.InProcessInvalidationBus;
+import edu.mit.ll.em.api.dataaccess.cache.LruEntityCache;
+
+/**
+ * Unit tests for {@link CacheInvalidator}. Two nodes, each with its own cache, share an
+ * {@link InProcessInvalidationBus} standing in for the RabbitMQ exchange.
+ */
+public class CacheInvalidatorTest {
+
+    private static final String CACHE = "incident";
+
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final EntityLoader<Integer, String> LOADER = new EntityLoader<Integer, String>() {
+        @Override
+        public String load(Integer key) {
+            return "value-" + key;
+        }
+    };
+
+    private InProcessInvalidationBus bus;
+    private LruEntityCache<Integer, String> cacheA;
+    private LruEntityCache<Integer, String> cacheB;
+    private CacheInvalidator nodeA;
+    private CacheInvalidator nodeB;
+
+    private LruEntityCache<Integer, String> newCache() {
+        return new LruEntityCache<Integer, String>(
+                new CacheSettings(CACHE, 10, 60, 0, CacheSettings.Policy.LRU), LOADER, null,
+                LruEntityCache.SYSTEM_TICKER, SAME_THREAD);
+    }
+
+    private CacheInvalidator newNode(LruEntityCache<Integer, String> cache) throws Exception {
+        CacheInvalidator node = new CacheInvalidator(bus);
+        node.addRule("iweb.NICS.incident.*.update", CACHE, CacheInvalidator.topicWord(3));
+        node.addRule("iweb.NICS.ws.*.removeIncident", CACHE, CacheInvalidator.messageBody());
+        node.addRule("iweb.NICS.incident.*.updatedcollabroom", CACHE, node.jsonField("incidentid"));
+        node.registerTarget(CACHE, CacheInvalidator.integerKeys(cache));
+        node.start();
+        return node;
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        bus = new InProcessInvalidationBus();
+        cacheA = newCache();
+        cacheB = newCache();
+        nodeA = newNode(cacheA);
+        nodeB = newNode(cacheB);
+        for(int id = 1; id <= 3; id++) {
+            cacheA.get(id);
+            cacheB.get(id);
+        }
+    }
+
+    @Test
+    public void testTopicMatching() {
+        assertTrue(InProcessInvalidationBus.topicMatches("iweb.NICS.incident.*.update", "iweb.NICS.incident.5.update"));
+        assertFalse(InProcessInvalidationBus.topicMatches("iweb.NICS.incident.*.update",
+                "iweb.NICS.incident.5.report.update"));
+        assertTrue(InProcessInvalidationBus.topicMatches("iweb.NICS.cache.invalidate.#", "iweb.NICS.cache.invalidate"));
+        assertTrue(InProcessInvalidationBus.topicMatches("iweb.NICS.cache.invalidate.#",
+                "iweb.NICS.cache.invalidate.user.entity"));
+        assertTrue(InProcessInvalidationBus.topicMatches("iweb.#.update", "iweb.NICS.datalayer.update"));
+        assertFalse(InProcessInvalidationBus.topicMatches("iweb.#.update", "iweb.NICS.datalayer.delete"));
+    }
+
+    @Test
+    public void testChangeTopicEvictsOnlyAffectedKeyOnEveryNode() {
+        bus.publish("iweb.NICS.incident.2.update", "{}");
+
+        assertNull(cacheA.getIfPresent(2));
+        assertNull(cacheB.getIfPresent(2));
+        assertEquals(cacheA.size(), 2);
+        assertEquals(cacheB.size(), 2);
+    }
+
+    @Test
+    public void testKeyFromBodyAndJson() {
+        bus.publish("iweb.NICS.ws.1.removeIncident", "1");
+        bus.publish("iweb.NICS.incident.3.updatedcollabroom", "{\"collabroomid\": 7, \"incidentid\": 3}");
+
+        assertNull(cacheB.getIfPresent(1));
+        assertNull(cacheB.getIfPresent(3));
+        assertEquals(cacheB.getIfPresent(2), "value-2");
+    }
+
+    @Test
+    public void testTargetedInvalidationReachesOtherNodes() {
+        nodeA.invalidate(CACHE, Arrays.asList(1, 3));
+
+        assertNull(cacheA.getIfPresent(1));
+        assertNull(cacheB.getIfPresent(1));
+        assertNull(cacheB.getIfPresent(3));
+        assertEquals(cacheB.getIfPresent(2), "value-2");
+        // Applied locally when sent, and skipped when node A receives its own message
+        assertEquals(nodeA.getKeysInvalidated(), 2);
+        assertEquals(nodeB.getKeysInvalidated(), 2);
+    }
+
+    @Test
+    public void testInvalidationInTransactionWaitsForItsEnd() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            nodeA.invalidate(CACHE, Arrays.asList(1));
+            nodeA.invalidateAll(CACHE);
+
+            // Not yet, another request could reload the rows being changed
+            assertEquals(cacheA.size(), 3);
+            assertEquals(cacheB.size(), 3);
+
+            for(TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        assertEquals(cacheA.size(), 0);
+        assertEquals(cacheB.size(), 0);
+    }
+
+    @Test
+    public void testTargetedInvalidateAll() {
+        nodeB.invalidateAll(CACHE);
+
+        assertEquals(cacheA.size(), 0);
+        assertEquals(cacheB.size(), 0);
+    }
+
+    @Test
+    public void testMalformedMessageIsCountedAndIgnored() {
+        bus.publish("iweb.NICS.incident.3.updatedcollabroom", "not json");
+
+        assertEquals(nodeA.getMessageFailures(), 1);
+        assertEquals(cacheA.size(), 3);
+    }
+
+    @Test
+    public void testResubscribeFlushesEverything() {
+        bus.resubscribeAll();
+
+        assertEquals(cacheA.size(), 0);
+        assertEquals(cacheB.size(), 0);
+    }
+}
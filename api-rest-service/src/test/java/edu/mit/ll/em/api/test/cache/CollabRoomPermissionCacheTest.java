@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.CollabRoomPermissionCache;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
+
+/**
+ * Unit tests for {@link CollabRoomPermissionCache}, over a DAO granting the rooms listed in its ACL.
+ */
+public class CollabRoomPermissionCacheTest {
+
+    private static class AclDAO extends CollabRoomDAOImpl {
+        // "userId/collabRoomId" of each member
+        final Set<String> acl = new HashSet<String>();
+        final AtomicInteger checks = new AtomicInteger();
+
+        @Override
+        public boolean hasPermissions(long userId, long collabRoomId) {
+            checks.incrementAndGet();
+            return acl.contains(userId + "/" + collabRoomId);
+        }
+
+        @Override
+        public boolean hasPermissions(long userId, long collabRoomId, String incidentMap) {
+            checks.incrementAndGet();
+            return "IncidentMap".equals(incidentMap) || acl.contains(userId + "/" + collabRoomId);
+        }
+    }
+
+    private AclDAO dao;
+
+    private CollabRoomPermissionCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        dao = new AclDAO();
+        dao.acl.add("1/10");
+        cache = new CollabRoomPermissionCache(
+                new CacheSettings(CollabRoomPermissionCache.CACHE_NAME, 100, 1, 0, CacheSettings.Policy.LRU), 3, dao);
+    }
+
+    @Test
+    public void testDecisionIsCached() {
+        assertTrue(cache.hasPermissions(1, 10));
+        assertTrue(cache.hasPermissions(1, 10));
+        assertFalse(cache.hasPermissions(2, 10));
+        assertFalse(cache.hasPermissions(2, 10));
+
+        assertEquals(dao.checks.get(), 2);
+        assertEquals(cache.stats().getHitCount(), 2);
+    }
+
+    @Test
+    public void testModesAreDecidedSeparately() {
+        assertFalse(cache.hasPermissions(2, 10));
+        assertTrue(cache.hasPermissions(2, 10, "IncidentMap"));
+        assertFalse(cache.hasPermissions(2, 10));
+
+        assertEquals(dao.checks.get(), 2);
+    }
+
+    @Test
+    public void testInvalidatingRoomDropsItsDecisions() {
+        assertFalse(cache.hasPermissions(2, 10));
+        assertFalse(cache.hasPermissions(1, 11));
+        dao.acl.add("2/10");
+
+        cache.invalidate(10);
+
+        assertTrue(cache.hasPermissions(2, 10));
+        assertEquals(dao.checks.get(), 3);
+        // Other rooms keep theirs
+        assertFalse(cache.hasPermissions(1, 11));
+        assertEquals(dao.checks.get(), 3);
+    }
+
+    @Test
+    public void testInvalidateAllDropsEveryDecision() {
+        cache.hasPermissions(1, 10);
+        cache.hasPermissions(1, 11);
+
+        cache.invalidateAll();
+        cache.hasPermissions(1, 10);
+        cache.hasPermissions(1, 11);
+
+        assertEquals(dao.checks.get(), 4);
+    }
+
+    @Test
+    public void testDecisionsBeyondTheRoomLimitAreNotStored() {
+        for(int userId = 1; userId <= 3; userId++) {
+            cache.hasPermissions(userId, 10);
+        }
+        assertEquals(dao.checks.get(), 3);
+
+        // The room holds 3 decisions, so the 4th user is checked every time
+        assertFalse(cache.hasPermissions(4, 10));
+        assertFalse(cache.hasPermissions(4, 10));
+        assertEquals(dao.checks.get(), 5);
+
+        // While the first 3 are still answered from the cache
+        assertTrue(cache.hasPermissions(1, 10));
+        assertEquals(dao.checks.get(), 5);
+
+        // Another room has its own limit
+        cache.hasPermissions(4, 11);
+        cache.hasPermissions(4, 11);
+        assertEquals(dao.checks.get(), 6);
+    }
+
+    @Test
+    public void testFailedCheckIsNotCached() {
+        CollabRoomPermissionCache failing = new CollabRoomPermissionCache(
+                new CacheSettings(CollabRoomPermissionCache.CACHE_NAME, 100, 1, 0, CacheSettings.Policy.LRU), 3,
+                new CollabRoomDAOImpl() {
+                    private boolean failed;
+
+                    @Override
+                    public boolean hasPermissions(long userId, long collabRoomId) {
+                        if(!failed) {
+                            failed = true;
+                            throw new IllegalStateException("database down");
+                        }
+                        return true;
+                    }
+                });
+        try {
+            failing.hasPermissions(1, 10);
+            fail("The failure of the check should reach the caller");
+        } catch(IllegalStateException e) {
+            assertEquals(failing.stats().getLoadFailureCount(), 1);
+        }
+
+        assertTrue(failing.hasPermissions(1, 10));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.DatasourceCache;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.nics.common.entity.datalayer.Datasource;
+import edu.mit.ll.nics.nicsdao.impl.DatalayerDAOImpl;
+
+/**
+ * Tests that {@link DatasourceCache} creates a missing datasource exactly once when lookups and creates of its url
+ * overlap. Without a connection pool to lock with, as here, that holds for a single node.
+ */
+public class DatasourceCacheTest {
+
+    private static final String URL = "http://geoserver/wms";
+
+    private static final String UPLOAD = "http://geoserver/upload";
+
+    /**
+     * Holds datasources by url. Its first lookup waits until {@link #release} counts down, so other calls can pile up
+     * behind it.
+     */
+    private static class DatasourceDAO extends DatalayerDAOImpl {
+        final ConcurrentHashMap<String, String> ids = new ConcurrentHashMap<String, String>();
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicInteger inserts = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String getDatasourceId(String url) {
+            if(lookups.incrementAndGet() == 1) {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return ids.get(url);
+        }
+
+        @Override
+        public int getDatasourceTypeId(String type) {
+            return "wms".equals(type) ? 3 : -1;
+        }
+
+        @Override
+        public String insertDataSource(Datasource ds) {
+            String datasourceId = "ds-" + inserts.incrementAndGet();
+            ids.put(ds.getInternalurl(), datasourceId);
+            return datasourceId;
+        }
+    }
+
+    private DatasourceDAO dao;
+
+    private DatasourceCache cache;
+
+    private ExecutorService callers;
+
+    @BeforeMethod
+    public void setUp() {
+        dao = new DatasourceDAO();
+        cache = new DatasourceCache(
+                new CacheSettings(DatasourceCache.CACHE_NAME, 100, 60, 0, CacheSettings.Policy.LRU), dao);
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void testExistingDatasourceIsLookedUpOnce() throws Exception {
+        dao.ids.put(URL, "ds-0");
+        dao.release.countDown();
+
+        assertEquals(cache.getDatasourceId(URL), "ds-0");
+        assertEquals(cache.getOrCreateDatasourceId(URL, "wms", null), "ds-0");
+
+        assertEquals(dao.lookups.get(), 1);
+        assertEquals(dao.inserts.get(), 0);
+    }
+
+    @Test
+    public void testLookupDoesNotCreate() throws Exception {
+        dao.release.countDown();
+
+        assertNull(cache.getDatasourceId(URL));
+
+        assertEquals(dao.inserts.get(), 0);
+    }
+
+    @Test
+    public void testUnknownTypeIsNotCreated() throws Exception {
+        dao.release.countDown();
+
+        assertNull(cache.getOrCreateDatasourceId(URL, "kml", null));
+
+        assertEquals(dao.inserts.get(), 0);
+    }
+
+    @Test
+    public void testCreateOverlappingLookupCreates() throws Exception {
+        Future<String> lookup = callers.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return cache.getDatasourceId(URL);
+            }
+        });
+        assertTrue(dao.entered.await(5, TimeUnit.SECONDS));
+        // Joins the lookup-only load in flight, which finds nothing and creates nothing
+        Future<String> create = create(URL);
+        Thread.sleep(100);
+        dao.release.countDown();
+
+        assertNull(lookup.get(5, TimeUnit.SECONDS));
+        assertEquals(create.get(5, TimeUnit.SECONDS), "ds-1");
+        assertEquals(dao.inserts.get(), 1);
+        // The id created is cached for lookups too
+        int lookups = dao.lookups.get();
+        assertEquals(cache.getDatasourceId(URL), "ds-1");
+        assertEquals(dao.lookups.get(), lookups);
+    }
+
+    @Test
+    public void testOverlappingCreatesCreateOnce() throws Exception {
+        Future<String> first = create(URL);
+        assertTrue(dao.entered.await(5, TimeUnit.SECONDS));
+        Future<String> second = create(URL);
+        Future<String> third = create(URL);
+        Thread.sleep(100);
+        dao.release.countDown();
+
+        assertEquals(first.get(5, TimeUnit.SECONDS), "ds-1");
+        assertEquals(second.get(5, TimeUnit.SECONDS), "ds-1");
+        assertEquals(third.get(5, TimeUnit.SECONDS), "ds-1");
+        assertEquals(dao.inserts.get(), 1);
+    }
+
+    @Test
+    public void testOtherUrlIsNotHeldUp() throws Exception {
+        Future<String> first = create(URL);
+        assertTrue(dao.entered.await(5, TimeUnit.SECONDS));
+
+        assertEquals(create(UPLOAD).get(5, TimeUnit.SECONDS), "ds-1");
+
+        dao.release.countDown();
+        assertEquals(first.get(5, TimeUnit.SECONDS), "ds-2");
+    }
+
+    private Future<String> create(final String url) {
+        return callers.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return cache.getOrCreateDatasourceId(url, "wms", "WMS");
+            }
+        });
+    }
+}
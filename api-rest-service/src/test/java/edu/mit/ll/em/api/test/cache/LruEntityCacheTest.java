@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.em.api.dataaccess.cache.EntityLoader;
+import edu.mit.ll.em.api.dataaccess.cache.LruEntityCache;
+import edu.mit.ll.em.api.dataaccess.cache.RemovalListener;
+
+/**
+ * Unit tests for {@link LruEntityCache}. Time is driven by a manual ticker, and refreshes run on the calling thread.
+ */
+public class LruEntityCacheTest {
+
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class ManualTicker implements LruEntityCache.Ticker {
+        final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advanceMinutes(long minutes) {
+            nanos.addAndGet(TimeUnit.MINUTES.toNanos(minutes));
+        }
+    }
+
+    private static class CountingLoader implements EntityLoader<Integer, String> {
+        final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        public String load(Integer key) throws Exception {
+            return "value-" + key + "-" + loads.incrementAndGet();
+        }
+    }
+
+    private static CacheSettings settings(long maxSize, long expireMinutes, long refreshMinutes) {
+        return new CacheSettings("test", maxSize, expireMinutes, refreshMinutes, CacheSettings.Policy.LRU);
+    }
+
+    @Test
+    public void testHitDoesNotReload() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(10, 60, 0), loader, null, new ManualTicker(), SAME_THREAD);
+
+        assertEquals(cache.get(1), "value-1-1");
+        assertEquals(cache.get(1), "value-1-1");
+        assertEquals(loader.loads.get(), 1);
+        assertEquals(cache.stats().getHitCount(), 1);
+        assertEquals(cache.stats().getMissCount(), 1);
+    }
+
+    @Test
+    public void testEntryExpiresAfterWrite() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        CountingLoader loader = new CountingLoader();
+        LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(10, 60, 0), loader, null, ticker, SAME_THREAD);
+
+        cache.get(1);
+        ticker.advanceMinutes(59);
+        assertEquals(cache.getIfPresent(1), "value-1-1");
+        ticker.advanceMinutes(1);
+        assertNull(cache.getIfPresent(1));
+        assertEquals(cache.get(1), "value-1-2");
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(2, 60, 0), new CountingLoader(), null, new ManualTicker(), SAME_THREAD);
+
+        cache.get(1);
+        cache.get(2);
+        cache.get(1);
+        cache.get(3);
+
+        assertEquals(cache.size(), 2);
+        assertNull(cache.getIfPresent(2));
+        assertEquals(cache.stats().getEvictionCount(), 1);
+    }
+
+    @Test
+    public void testRefreshAheadServesStaleValueAndReloads() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        CountingLoader loader = new CountingLoader();
+        LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(10, 60, 30), loader, null, ticker, SAME_THREAD);
+
+        cache.get(1);
+        ticker.advanceMinutes(31);
+        assertEquals(cache.get(1), "value-1-1");
+        assertEquals(cache.getIfPresent(1), "value-1-2");
+    }
+
+    @Test
+    public void testNullIsNotCached() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(10, 60, 0), new EntityLoader<Integer, String>() {
+            @Override
+            public String load(Integer key) {
+                loads.incrementAndGet();
+                return null;
+            }
+        }, null, new ManualTicker(), SAME_THREAD);
+
+        assertNull(cache.get(1));
+        assertNull(cache.get(1));
+        assertEquals(loads.get(), 2);
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        final CountDownLatch loaderEntered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(10, 60, 0), new EntityLoader<Integer, String>() {
+            @Override
+            public String load(Integer key) throws Exception {
+                loads.incrementAndGet();
+                loaderEntered.countDown();
+                release.await();
+                return "value";
+            }
+        }, null, new ManualTicker(), SAME_THREAD);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] futures = new Future<?>[8];
+            for(int i = 0; i < futures.length; i++) {
+                futures[i] = pool.submit(new java.util.concurrent.Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return cache.get(42);
+                    }
+                });
+            }
+            loaderEntered.await(5, TimeUnit.SECONDS);
+            // Give the other callers a chance to pile up behind the first load.
+            Thread.sleep(100);
+            release.countDown();
+            for(Future<?> future : futures) {
+                assertEquals(future.get(5, TimeUnit.SECONDS), "value");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(loads.get(), 1);
+    }
+
+    @Test
+    public void testInvalidateDuringLoadDoesNotStoreStaleValue() throws Exception {
+        final LruEntityCache<Integer, String>[] holder = new LruEntityCache[1];
+        holder[0] = new LruEntityCache<Integer, String>(
+                settings(10, 60, 0), new EntityLoader<Integer, String>() {
+            @Override
+            public String load(Integer key) {
+                holder[0].invalidate(key);
+                return "stale";
+            }
+        }, null, new ManualTicker(), SAME_THREAD);
+
+        assertEquals(holder[0].get(1), "stale");
+        assertNull(holder[0].getIfPresent(1));
+    }
+
+    @Test
+    public void testInvalidateOfAnotherKeyDuringLoadStillStores() throws Exception {
+        final LruEntityCache<Integer, String>[] holder = new LruEntityCache[1];
+        holder[0] = new LruEntityCache<Integer, String>(
+                settings(10, 60, 0), new EntityLoader<Integer, String>() {
+            @Override
+            public String load(Integer key) {
+                holder[0].invalidate(key + 1);
+                return "value-" + key;
+            }
+        }, null, new ManualTicker(), SAME_THREAD);
+
+        assertEquals(holder[0].get(1), "value-1");
+        assertEquals(holder[0].getIfPresent(1), "value-1");
+    }
+
+    @Test
+    public void testInvalidateAllDuringLoadDoesNotStoreStaleValue() throws Exception {
+        final LruEntityCache<Integer, String>[] holder = new LruEntityCache[1];
+        holder[0] = new LruEntityCache<Integer, String>(
+                settings(10, 60, 0), new EntityLoader<Integer, String>() {
+            @Override
+            public String load(Integer key) {
+                holder[0].invalidateAll();
+                return "stale";
+            }
+        }, null, new ManualTicker(), SAME_THREAD);
+
+        assertEquals(holder[0].get(1), "stale");
+        assertNull(holder[0].getIfPresent(1));
+        // The invalidation only affects loads that were running when it happened.
+        holder[0].put(2, "fresh");
+        assertEquals(holder[0].getIfPresent(2), "fresh");
+    }
+
+    @Test
+    public void testRefreshReturningNullIsRetried() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        final AtomicInteger loads = new AtomicInteger();
+        LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(10, 60, 30), new EntityLoader<Integer, String>() {
+            @Override
+            public String load(Integer key) {
+                return loads.incrementAndGet() == 1 ? "value" : null;
+            }
+        }, null, ticker, SAME_THREAD);
+
+        cache.get(1);
+        ticker.advanceMinutes(31);
+        assertEquals(cache.get(1), "value");
+        assertEquals(cache.get(1), "value");
+        assertEquals(loads.get(), 3);
+    }
+
+    @Test
+    public void testRejectedRefreshIsRetried() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        final AtomicInteger attempts = new AtomicInteger();
+        CountingLoader loader = new CountingLoader();
+        LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(10, 60, 30), loader, null, ticker, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if(attempts.incrementAndGet() == 1) {
+                    throw new RejectedExecutionException("full");
+                }
+                command.run();
+            }
+        });
+
+        cache.get(1);
+        ticker.advanceMinutes(31);
+        assertEquals(cache.get(1), "value-1-1");
+        assertEquals(cache.get(1), "value-1-1");
+        assertEquals(cache.getIfPresent(1), "value-1-2");
+    }
+
+    @Test
+    public void testRemovalListenerSeesEvictionExpiryAndInvalidation() throws Exception {
+        final List<Integer> removed = new ArrayList<Integer>();
+        ManualTicker ticker = new ManualTicker();
+        LruEntityCache<Integer, String> cache = new LruEntityCache<Integer, String>(
+                settings(2, 60, 0), new CountingLoader(), new RemovalListener<Integer, String>() {
+            @Override
+            public void onRemoval(Integer key, String value) {
+                removed.add(key);
+            }
+        }, ticker, SAME_THREAD);
+
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+        assertEquals(removed.size(), 1);
+        assertEquals(removed.get(0), Integer.valueOf(1));
+
+        cache.invalidate(2);
+        assertEquals(removed.get(1), Integer.valueOf(2));
+
+        ticker.advanceMinutes(60);
+        assertNull(cache.getIfPresent(3));
+        assertEquals(removed.get(2), Integer.valueOf(3));
+        assertEquals(removed.size(), 3);
+    }
+}
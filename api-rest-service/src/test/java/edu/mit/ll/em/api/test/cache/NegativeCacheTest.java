@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.cache.LruEntityCache;
+import edu.mit.ll.em.api.dataaccess.cache.NegativeCache;
+
+/**
+ * Unit tests for {@link NegativeCache}.
+ */
+public class NegativeCacheTest {
+
+    private static class ManualTicker implements LruEntityCache.Ticker {
+        final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advanceSeconds(long seconds) {
+            nanos.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+        }
+    }
+
+    @Test
+    public void testKeyExpires() {
+        ManualTicker ticker = new ManualTicker();
+        NegativeCache<String> cache = new NegativeCache<String>(30, 10, ticker);
+
+        cache.add("nobody");
+        ticker.advanceSeconds(29);
+        assertTrue(cache.contains("nobody"));
+        ticker.advanceSeconds(1);
+        assertFalse(cache.contains("nobody"));
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testFullCacheMakesRoomFromExpiredKeysOnly() {
+        ManualTicker ticker = new ManualTicker();
+        NegativeCache<String> cache = new NegativeCache<String>(30, 2, ticker);
+
+        cache.add("a");
+        cache.add("b");
+        cache.add("c");
+        assertFalse(cache.contains("c"));
+
+        ticker.advanceSeconds(30);
+        cache.add("c");
+        assertTrue(cache.contains("c"));
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void testZeroTtlDisables() {
+        NegativeCache<String> cache = new NegativeCache<String>(0, 10, new ManualTicker());
+        cache.add("nobody");
+        assertFalse(cache.contains("nobody"));
+    }
+}
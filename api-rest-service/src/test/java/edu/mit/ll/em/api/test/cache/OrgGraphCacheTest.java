@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.OrgGraph;
+import edu.mit.ll.em.api.dataaccess.OrgGraphCache;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.nics.common.entity.Org;
+import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
+
+/**
+ * Unit tests for {@link OrgGraphCache}: a failed reload keeps the previous graph without querying again on every read,
+ * and the workspace org ids expire along with the graph.
+ */
+public class OrgGraphCacheTest {
+
+    /**
+     * Holds two orgs, 2 a child of 1, and fails its reads while {@link #failing} is set
+     */
+    private static class OrgDAO extends OrgDAOImpl {
+        final AtomicInteger orgReads = new AtomicInteger();
+        final AtomicInteger workspaceReads = new AtomicInteger();
+        volatile boolean failing;
+
+        @Override
+        public List<Org> getOrganizations() {
+            orgReads.incrementAndGet();
+            if(failing) {
+                throw new IllegalStateException("database down");
+            }
+            return new ArrayList<Org>(Arrays.asList(org(1, null), org(2, 1)));
+        }
+
+        @Override
+        public List<Integer> getOrganizationIds(int workspaceId) {
+            workspaceReads.incrementAndGet();
+            return new ArrayList<Integer>(Arrays.asList(1, 2));
+        }
+
+        private static Org org(int orgId, Integer parentOrgId) {
+            Org org = new Org();
+            org.setOrgId(orgId);
+            org.setParentorgid(parentOrgId);
+            return org;
+        }
+    }
+
+    private static OrgGraphCache cache(OrgDAO dao, int expireMinutes) {
+        return new OrgGraphCache(
+                new CacheSettings(OrgGraphCache.CACHE_NAME, 0, expireMinutes, 0, CacheSettings.Policy.LRU), dao);
+    }
+
+    @Test
+    public void testGraphLoadedOnce() {
+        OrgDAO dao = new OrgDAO();
+        OrgGraphCache cache = cache(dao, 10);
+
+        OrgGraph graph = cache.getGraph();
+        assertSame(cache.getGraph(), graph);
+
+        assertTrue(graph.isDescendant(2, 1));
+        assertEquals(dao.orgReads.get(), 1);
+    }
+
+    @Test
+    public void testExpiredGraphReloaded() {
+        OrgDAO dao = new OrgDAO();
+        // Expires as soon as it is loaded
+        OrgGraphCache cache = cache(dao, 0);
+
+        cache.getGraph();
+        cache.getGraph();
+
+        assertEquals(dao.orgReads.get(), 2);
+    }
+
+    @Test
+    public void testFailedReloadServesPreviousGraphUntilRetry() {
+        OrgDAO dao = new OrgDAO();
+        OrgGraphCache cache = cache(dao, 0);
+        OrgGraph graph = cache.getGraph();
+
+        dao.failing = true;
+        for(int i = 0; i < 10; i++) {
+            assertSame(cache.getGraph(), graph);
+        }
+
+        // One failed reload, then the previous graph until the retry is due
+        assertEquals(dao.orgReads.get(), 2);
+        assertEquals(cache.stats().getLoadFailureCount(), 1);
+        assertEquals(cache.stats().getSize(), 2);
+    }
+
+    @Test
+    public void testFailedFirstLoadThrowsAndRetries() {
+        OrgDAO dao = new OrgDAO();
+        OrgGraphCache cache = cache(dao, 10);
+
+        dao.failing = true;
+        try {
+            cache.getGraph();
+            fail("expected the load to fail");
+        } catch(IllegalStateException e) {
+            // With no graph to fall back on, the failure is the caller's
+        }
+
+        dao.failing = false;
+        assertTrue(cache.getGraph().contains(2));
+        assertEquals(dao.orgReads.get(), 2);
+    }
+
+    @Test
+    public void testInvalidateAllReloadsDuringRetry() {
+        OrgDAO dao = new OrgDAO();
+        OrgGraphCache cache = cache(dao, 0);
+        cache.getGraph();
+        dao.failing = true;
+        cache.getGraph();
+
+        dao.failing = false;
+        cache.invalidateAll();
+        cache.getGraph();
+
+        assertEquals(dao.orgReads.get(), 3);
+    }
+
+    @Test
+    public void testWorkspaceOrgIdsCached() {
+        OrgDAO dao = new OrgDAO();
+        OrgGraphCache cache = cache(dao, 10);
+
+        assertEquals(cache.getWorkspaceOrgIds(1), Arrays.asList(1, 2));
+        assertEquals(cache.getWorkspaceOrgIds(1), Arrays.asList(1, 2));
+
+        assertEquals(dao.workspaceReads.get(), 1);
+    }
+
+    @Test
+    public void testWorkspaceOrgIdsExpireWithoutGraphReads() {
+        OrgDAO dao = new OrgDAO();
+        OrgGraphCache cache = cache(dao, 0);
+
+        cache.getWorkspaceOrgIds(1);
+        cache.getWorkspaceOrgIds(1);
+
+        assertEquals(dao.workspaceReads.get(), 2);
+        assertEquals(dao.orgReads.get(), 0);
+    }
+
+    @Test
+    public void testWorkspaceOrgIdsClearedOnInvalidateAll() {
+        OrgDAO dao = new OrgDAO();
+        OrgGraphCache cache = cache(dao, 10);
+        cache.getWorkspaceOrgIds(1);
+
+        cache.invalidateAll();
+        cache.getWorkspaceOrgIds(1);
+
+        assertEquals(dao.workspaceReads.get(), 2);
+    }
+}
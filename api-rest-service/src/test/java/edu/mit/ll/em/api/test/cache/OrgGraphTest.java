@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.OrgGraph;
+
+/**
+ * Unit tests for {@link OrgGraph}.
+ */
+public class OrgGraphTest {
+
+    //      1          5
+    //    /   \        |
+    //   2     3       6
+    //   |
+    //   4
+    private static OrgGraph sampleGraph() {
+        return OrgGraph.build(new int[]{4, 3, 2, 1, 5, 6}, new int[]{2, 1, 1, 0, 0, 5});
+    }
+
+    @Test
+    public void testClosure() {
+        OrgGraph graph = sampleGraph();
+
+        assertEquals(graph.getDescendants(Arrays.asList(1)), Arrays.asList(4, 3, 2));
+        assertEquals(graph.getDescendants(Arrays.asList(2, 6)), Arrays.asList(4));
+        assertEquals(graph.getAncestors(Arrays.asList(4, 6)), Arrays.asList(2, 1, 5));
+        assertEquals(graph.getSelfAndDescendants(Arrays.asList(2, 1, 99)), Arrays.asList(2, 1, 99, 4, 3));
+        assertTrue(graph.isDescendant(4, 1));
+        assertFalse(graph.isDescendant(1, 4));
+        assertFalse(graph.isDescendant(1, 1));
+        assertFalse(graph.isDescendant(6, 1));
+    }
+
+    @Test
+    public void testWithOrgLeavesOriginalUnchanged() {
+        OrgGraph graph = sampleGraph();
+        OrgGraph updated = graph.withOrg(7, 4);
+
+        assertEquals(updated.getAncestors(Arrays.asList(7)), Arrays.asList(4, 2, 1));
+        assertTrue(updated.isDescendant(7, 1));
+        assertEquals(updated.size(), 7);
+        assertFalse(graph.contains(7));
+        assertEquals(graph.getDescendants(Arrays.asList(1)), Arrays.asList(4, 3, 2));
+        assertTrue(updated.withOrg(7, 5) == updated);
+    }
+
+    @Test
+    public void testCycleDoesNotHang() {
+        OrgGraph graph = OrgGraph.build(new int[]{1, 2, 3}, new int[]{3, 1, 2});
+
+        assertEquals(graph.getAncestors(Collections.singletonList(1)).size(), 2);
+        assertTrue(graph.isDescendant(2, 1));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.ReferenceData;
+import edu.mit.ll.nics.common.entity.FormType;
+import edu.mit.ll.nics.common.entity.RemoteLogType;
+
+/**
+ * Unit tests for the lookups of a {@link ReferenceData} snapshot.
+ */
+public class ReferenceDataTest {
+
+    @Test
+    public void testFormTypesAreFoundByIdAndNameInAnyCase() {
+        FormType sitrep = formType(1, "SITREP");
+        FormType report = formType(2, "Report");
+        ReferenceData data = referenceData(Arrays.asList(sitrep, report), null);
+
+        assertSame(data.getFormTypeById(1), sitrep);
+        assertSame(data.getFormTypeByName("sitrep"), sitrep);
+        assertSame(data.getFormTypeByName("REPORT"), report);
+        assertNull(data.getFormTypeByName("ROC"));
+        assertNull(data.getFormTypeById(3));
+        assertEquals(new ArrayList<String>(data.getFormTypeNames()), Arrays.asList("SITREP", "Report"));
+    }
+
+    @Test
+    public void testFirstOfDuplicatesWins() {
+        FormType first = formType(1, "SITREP");
+        FormType byName = formType(2, "sitrep");
+        FormType byId = formType(1, "Other");
+        ReferenceData data = referenceData(Arrays.asList(first, byName, byId), null);
+
+        assertSame(data.getFormTypeByName("Sitrep"), first);
+        assertSame(data.getFormTypeById(1), first);
+        assertSame(data.getFormTypeById(2), byName);
+        assertEquals(new ArrayList<String>(data.getFormTypeNames()), Arrays.asList("SITREP", "Other"));
+    }
+
+    @Test
+    public void testLogTypesAreFoundByIdAndName() {
+        RemoteLogType mobile = logType(4, "mobile");
+        ReferenceData data = referenceData(null, Arrays.asList(mobile, logType(5, null)));
+
+        assertSame(data.getLogTypeById(4), mobile);
+        assertSame(data.getLogTypeByName("MOBILE"), mobile);
+        assertEquals(data.getLogTypes().size(), 2);
+    }
+
+    @Test
+    public void testTablesNotReadAreEmpty() {
+        ReferenceData data = new ReferenceData(null, null, null, null, null, null);
+
+        assertTrue(data.getFormTypes().isEmpty());
+        assertTrue(data.getFormTypeNames().isEmpty());
+        assertTrue(data.getIncidentTypes().isEmpty());
+        assertTrue(data.getSystemRoles().isEmpty());
+    }
+
+    @Test
+    public void testSnapshotIsNotChangedByItsSource() {
+        List<FormType> source = new ArrayList<FormType>(Arrays.asList(formType(1, "SITREP")));
+        ReferenceData data = referenceData(source, null);
+
+        source.add(formType(2, "ROC"));
+
+        assertEquals(data.getFormTypes().size(), 1);
+        try {
+            data.getFormTypes().add(formType(3, "ABC"));
+            fail("A snapshot is shared by all readers");
+        } catch(UnsupportedOperationException e) {
+            assertEquals(data.getFormTypes().size(), 1);
+        }
+    }
+
+    private static ReferenceData referenceData(List<FormType> formTypes, List<RemoteLogType> logTypes) {
+        return new ReferenceData(formTypes, logTypes, null, null, null, null);
+    }
+
+    private static FormType formType(int id, String name) {
+        FormType formType = new FormType();
+        formType.setFormTypeId(id);
+        formType.setFormTypeName(name);
+        return formType;
+    }
+
+    private static RemoteLogType logType(int id, String name) {
+        RemoteLogType logType = new RemoteLogType();
+        logType.setId(id);
+        logType.setName(name);
+        return logType;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.SystemRoleCache;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
+
+/**
+ * Unit tests for {@link SystemRoleCache}, over a DAO granting the roles listed for each username.
+ */
+public class SystemRoleCacheTest {
+
+    private static class RoleDAO extends UserOrgDAOImpl {
+        // "username/systemRoleId" of each role held
+        final Set<String> roles = new HashSet<String>();
+        final List<String> checks = new ArrayList<String>();
+
+        @Override
+        public boolean isUserRole(String username, int systemRoleId) {
+            checks.add(username + "/" + systemRoleId);
+            return roles.contains(username + "/" + systemRoleId);
+        }
+    }
+
+    private RoleDAO dao;
+
+    private SystemRoleCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        dao = new RoleDAO();
+        dao.roles.add("bob/0");
+        dao.roles.add("bob/63");
+        cache = new SystemRoleCache(
+                new CacheSettings(SystemRoleCache.CACHE_NAME, 100, 5, 0, CacheSettings.Policy.LRU), dao);
+    }
+
+    @Test
+    public void testRoleHeldAndNotHeldAreBothRemembered() {
+        assertTrue(cache.hasRole(1, "bob", 0));
+        assertFalse(cache.hasRole(1, "bob", 1));
+
+        assertTrue(cache.hasRole(1, "bob", 0));
+        assertFalse(cache.hasRole(1, "bob", 1));
+        assertEquals(dao.checks.size(), 2);
+        assertEquals(cache.stats().getHitCount(), 2);
+    }
+
+    @Test
+    public void testHighestBitIsKeptApartFromTheOthers() {
+        assertTrue(cache.hasRole(1, "bob", 63));
+        assertFalse(cache.hasRole(1, "bob", 62));
+
+        assertTrue(cache.hasRole(1, "bob", 63));
+        assertFalse(cache.hasRole(1, "bob", 62));
+        // Knowing role 63 says nothing about role 0
+        assertTrue(cache.hasRole(1, "bob", 0));
+        assertEquals(dao.checks.size(), 3);
+    }
+
+    @Test
+    public void testRolesOutsideTheMaskAreAlwaysChecked() {
+        dao.roles.add("bob/64");
+
+        assertTrue(cache.hasRole(1, "bob", 64));
+        assertTrue(cache.hasRole(1, "bob", 64));
+        assertFalse(cache.hasRole(1, "bob", -1));
+
+        assertEquals(dao.checks.size(), 3);
+    }
+
+    @Test
+    public void testUsersAreKeptApart() {
+        dao.roles.add("alice/1");
+
+        assertFalse(cache.hasRole(1, "bob", 1));
+        assertTrue(cache.hasRole(2, "alice", 1));
+        assertFalse(cache.hasRole(2, "alice", 0));
+        assertTrue(cache.hasRole(1, "bob", 0));
+
+        assertEquals(dao.checks.size(), 4);
+    }
+
+    @Test
+    public void testInvalidateForgetsTheRolesOfTheUser() {
+        dao.roles.add("alice/1");
+        assertFalse(cache.hasRole(1, "bob", 1));
+        assertTrue(cache.hasRole(2, "alice", 1));
+        dao.roles.add("bob/1");
+
+        cache.invalidate(1);
+
+        assertTrue(cache.hasRole(1, "bob", 1));
+        assertTrue(cache.hasRole(2, "alice", 1));
+        assertEquals(dao.checks.size(), 3);
+    }
+
+    @Test
+    public void testHasAnyRoleStopsAtTheFirstHeld() {
+        assertTrue(cache.hasAnyRole(1, "bob", 2, 0, 63));
+
+        assertEquals(dao.checks, Arrays.asList("bob/2", "bob/0"));
+        assertFalse(cache.hasAnyRole(1, "bob", 2, 3));
+        assertEquals(dao.checks.size(), 3);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.UserIdentity;
+import edu.mit.ll.nics.common.entity.Org;
+import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
+
+/**
+ * Tests that a {@link UserIdentity} reads the org memberships of its user once per workspace, however often a request
+ * checks them.
+ */
+public class UserIdentityTest {
+
+    private static class CountingOrgDAO extends OrgDAOImpl {
+        final AtomicInteger queries = new AtomicInteger();
+
+        @Override
+        public List<Org> getUserOrgs(int userId, int workspaceId) {
+            queries.incrementAndGet();
+            return workspaceId == 1 ? new ArrayList<Org>(Arrays.asList(new Org(), new Org())) : null;
+        }
+    }
+
+    private CountingOrgDAO orgDao;
+
+    private UserIdentity identity;
+
+    @BeforeMethod
+    public void setUp() {
+        orgDao = new CountingOrgDAO();
+        identity = new UserIdentity(7, "bob", orgDao);
+    }
+
+    @Test
+    public void testMembershipsAreReadOncePerWorkspace() {
+        List<Org> orgs = identity.getOrgs(1);
+
+        assertSame(identity.getOrgs(1), orgs);
+        assertEquals(identity.getOrgIds(1).size(), 2);
+        assertEquals(identity.getOrgIds(1).size(), 2);
+        assertEquals(orgDao.queries.get(), 1);
+
+        identity.getOrgs(2);
+        identity.getOrgIds(2);
+        assertEquals(orgDao.queries.get(), 2);
+    }
+
+    @Test
+    public void testNoMembershipsAreRemembered() {
+        assertTrue(identity.getOrgs(2).isEmpty());
+        assertTrue(identity.getOrgIds(2).isEmpty());
+
+        assertEquals(orgDao.queries.get(), 1);
+    }
+
+    @Test
+    public void testMembershipsCannotBeModified() {
+        try {
+            identity.getOrgs(1).clear();
+            fail("The memberships of an identity are shared by its requests");
+        } catch(UnsupportedOperationException e) {
+            assertEquals(identity.getOrgs(1).size(), 2);
+        }
+    }
+}
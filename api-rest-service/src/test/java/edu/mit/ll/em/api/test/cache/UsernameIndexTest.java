@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.UsernameIndex;
+import edu.mit.ll.em.api.dataaccess.cache.CacheSettings;
+import edu.mit.ll.em.api.dataaccess.cache.EntityLoader;
+import edu.mit.ll.em.api.dataaccess.cache.LruEntityCache;
+import edu.mit.ll.em.api.dataaccess.cache.NegativeCache;
+import edu.mit.ll.em.api.dataaccess.cache.RemovalListener;
+import edu.mit.ll.nics.common.entity.User;
+import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
+
+/**
+ * Unit tests for {@link UsernameIndex}, over a user DAO that matches usernames exactly, as the database does.
+ */
+public class UsernameIndexTest {
+
+    private static class FakeUserDAO extends UserDAOImpl {
+        final Map<String, User> users = new HashMap<String, User>();
+        final List<String> queries = new ArrayList<String>();
+
+        @Override
+        public User getUser(String username) {
+            queries.add(username);
+            return users.get(username);
+        }
+
+        @Override
+        public User getUserById(int userId) {
+            for(User user : users.values()) {
+                if(user.getUserId() == userId) {
+                    return user;
+                }
+            }
+            return null;
+        }
+    }
+
+    private FakeUserDAO userDao;
+
+    private LruEntityCache<Integer, User> userCache;
+
+    private UsernameIndex index;
+
+    @BeforeMethod
+    public void setUp() {
+        userDao = new FakeUserDAO();
+        userDao.users.put("bob", user(1, "bob"));
+        userCache = new LruEntityCache<Integer, User>(
+                new CacheSettings("userentity", 100, 60, 0, CacheSettings.Policy.LRU),
+                new EntityLoader<Integer, User>() {
+                    @Override
+                    public User load(Integer userId) {
+                        User user = userDao.getUserById(userId);
+                        index.index(user);
+                        return user;
+                    }
+                },
+                new RemovalListener<Integer, User>() {
+                    @Override
+                    public void onRemoval(Integer userId, User user) {
+                        index.unindex(userId, user);
+                    }
+                });
+        index = new UsernameIndex(userCache, new NegativeCache<String>(30, 100), userDao);
+    }
+
+    @Test
+    public void testWrongCaseMissDoesNotHideTheUser() {
+        assertNull(index.get("BOB"));
+        assertNull(index.get("bob "));
+
+        User bob = index.get("bob");
+
+        assertEquals(bob.getUserId(), 1);
+        assertEquals(userDao.queries.get(userDao.queries.size() - 1), "bob");
+    }
+
+    @Test
+    public void testDatabaseIsQueriedWithTheUsernameAsGiven() {
+        index.get(" Bob");
+
+        assertEquals(userDao.queries.get(0), " Bob");
+    }
+
+    @Test
+    public void testIndexedUserIsNotQueriedAgain() {
+        User bob = index.get("bob");
+
+        assertSame(index.get("bob"), bob);
+        assertEquals(userDao.queries.size(), 1);
+    }
+
+    @Test
+    public void testIndexMatchesExactly() {
+        index.get("bob");
+
+        assertNull(index.get("Bob"));
+        assertEquals(userDao.queries.size(), 2);
+    }
+
+    @Test
+    public void testUnknownUsernameIsRemembered() {
+        assertNull(index.get("alice"));
+        assertNull(index.get("alice"));
+
+        assertEquals(userDao.queries.size(), 1);
+    }
+
+    @Test
+    public void testInvalidateForgetsUnknownUsername() {
+        assertNull(index.get("alice"));
+        userDao.users.put("alice", user(2, "alice"));
+
+        index.invalidate("alice");
+
+        assertEquals(index.get("alice").getUserId(), 2);
+    }
+
+    @Test
+    public void testUserLoadedByIdIsIndexed() throws Exception {
+        userCache.get(1);
+
+        assertEquals(index.get("bob").getUserId(), 1);
+        assertEquals(userDao.queries.size(), 0);
+    }
+
+    @Test
+    public void testRenamedUserIsNotFoundByItsOldName() {
+        index.get("bob");
+        User renamed = user(1, "robert");
+        userDao.users.clear();
+        userDao.users.put("robert", renamed);
+
+        userCache.put(1, renamed);
+        index.index(renamed);
+
+        assertNull(index.get("bob"));
+        assertSame(index.get("robert"), renamed);
+    }
+
+    @Test
+    public void testEvictedUserIsUnindexed() {
+        index.get("bob");
+
+        userCache.invalidate(1);
+
+        assertEquals(index.size(), 0);
+        assertEquals(index.get("bob").getUserId(), 1);
+        assertEquals(userDao.queries.size(), 2);
+    }
+
+    private static User user(int userId, String username) {
+        User user = new User();
+        user.setUserId(userId);
+        user.setUsername(username);
+        return user;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.main;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.main.CompressionInterceptor;
+
+/**
+ * Unit tests for the Accept-Encoding negotiation and inflated size limit of {@link CompressionInterceptor}.
+ */
+public class CompressionInterceptorTest {
+
+    private static byte[] gzip(int zeros) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(new byte[zeros]);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        long total = 0;
+        int n;
+        while((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+
+    @Test
+    public void testNegotiatePrefersGzipOnTies() {
+        assertEquals(CompressionInterceptor.negotiate("gzip, deflate"), CompressionInterceptor.GZIP);
+        assertEquals(CompressionInterceptor.negotiate("deflate, gzip"), CompressionInterceptor.GZIP);
+        assertEquals(CompressionInterceptor.negotiate("x-gzip"), CompressionInterceptor.GZIP);
+    }
+
+    @Test
+    public void testNegotiateFollowsQuality() {
+        assertEquals(CompressionInterceptor.negotiate("gzip;q=0.5, deflate"), CompressionInterceptor.DEFLATE);
+        assertEquals(CompressionInterceptor.negotiate("gzip;q=0, deflate;q=0.1"), CompressionInterceptor.DEFLATE);
+        assertNull(CompressionInterceptor.negotiate("gzip;q=0, deflate;q=0"));
+        assertNull(CompressionInterceptor.negotiate("gzip;q=bogus"));
+    }
+
+    @Test
+    public void testNegotiateWildcardAndUnknown() {
+        assertEquals(CompressionInterceptor.negotiate("*"), CompressionInterceptor.GZIP);
+        assertEquals(CompressionInterceptor.negotiate("gzip;q=0, *"), CompressionInterceptor.DEFLATE);
+        assertNull(CompressionInterceptor.negotiate("br, identity"));
+        assertNull(CompressionInterceptor.negotiate(null));
+    }
+
+    @Test
+    public void testBodyWithinLimitIsRead() throws IOException {
+        CompressionInterceptor.LimitedInputStream in = new CompressionInterceptor.LimitedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(gzip(10000))), 10000);
+
+        assertEquals(drain(in), 10000);
+        assertFalse(in.isExceeded());
+    }
+
+    @Test
+    public void testBodyInflatingPastLimitIsRefused() throws IOException {
+        byte[] bomb = gzip(10 * 1024 * 1024);
+        assertTrue(bomb.length < 64 * 1024);
+
+        CompressionInterceptor.LimitedInputStream in = new CompressionInterceptor.LimitedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(bomb)), 1024 * 1024);
+        try {
+            drain(in);
+            fail("Read past the limit");
+        } catch(WebApplicationException e) {
+            assertEquals(e.getResponse().getStatus(), Response.Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode());
+        }
+        assertTrue(in.isExceeded());
+    }
+
+    @Test
+    public void testNoLimit() throws IOException {
+        CompressionInterceptor.LimitedInputStream in = new CompressionInterceptor.LimitedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(gzip(100000))), 0);
+
+        assertEquals(drain(in), 100000);
+    }
+}
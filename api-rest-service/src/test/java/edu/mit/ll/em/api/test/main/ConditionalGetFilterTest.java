@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.main;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
+import edu.mit.ll.em.api.main.ConditionalGetFilter;
+
+/**
+ * Unit tests for the version key resolution and ETags of {@link ConditionalGetFilter}.
+ */
+public class ConditionalGetFilterTest {
+
+    private static final String URI = "http://localhost/em-api/v1/features/collabroom/12";
+
+    private static final List<String> KEYS = Arrays.asList(ResourceVersions.COLLABROOM_FEATURES + "12",
+            ResourceVersions.FEATURES);
+
+    private static MultivaluedMap<String, String> params(String... namesAndValues) {
+        MultivaluedMap<String, String> params = new MultivaluedHashMap<String, String>();
+        for(int i = 0; i < namesAndValues.length; i += 2) {
+            params.add(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    private static EntityTag tag(ResourceVersions versions, long window, String user) {
+        return ConditionalGetFilter.entityTag(versions, window, KEYS, URI, user, null);
+    }
+
+    @Test
+    public void testResolvePathThenQueryParameters() {
+        List<String> keys = ConditionalGetFilter.resolve(
+                new String[]{"features.collabroom.{collabRoomId}", "incidents.{incidentId}.{orgId}", "orgs"},
+                params("collabRoomId", "12", "orgId", "1"),
+                params("collabRoomId", "99", "incidentId", "7"));
+
+        assertEquals(keys, Arrays.asList("features.collabroom.12", "incidents.7.1", "orgs"));
+    }
+
+    @Test
+    public void testResolveMissingParameterIsEmpty() {
+        List<String> keys = ConditionalGetFilter.resolve(new String[]{"features.collabroom.{collabRoomId}"},
+                params(), params());
+
+        assertEquals(keys, Collections.singletonList("features.collabroom."));
+    }
+
+    @Test
+    public void testResolveUnclosedBraceIsKeptAsIs() {
+        List<String> keys = ConditionalGetFilter.resolve(new String[]{"a.{b}.{c"}, params("b", "1"), params());
+
+        assertEquals(keys, Collections.singletonList("a.1.{c"));
+    }
+
+    @Test
+    public void testTagIsStableUntilAVersionMoves() {
+        ResourceVersions versions = new ResourceVersions();
+        EntityTag tag = tag(versions, 5, "alice");
+
+        assertTrue(tag.isWeak());
+        assertEquals(tag(versions, 5, "alice"), tag);
+
+        versions.changed(ResourceVersions.INCIDENTS);
+        assertEquals(tag(versions, 5, "alice"), tag, "a key the resource doesn't use");
+
+        versions.changed(ResourceVersions.COLLABROOM_FEATURES + "12");
+        assertFalse(tag(versions, 5, "alice").equals(tag));
+    }
+
+    @Test
+    public void testTagChangesWithChangedAllWindowAndUser() {
+        ResourceVersions versions = new ResourceVersions();
+        EntityTag tag = tag(versions, 5, "alice");
+
+        assertFalse(tag(versions, 6, "alice").equals(tag));
+        assertFalse(tag(versions, 5, "bob").equals(tag));
+
+        versions.changedAll();
+        assertFalse(tag(versions, 5, "alice").equals(tag));
+    }
+
+    @Test
+    public void testTagsOfAnotherNodeNeverMatch() {
+        assertFalse(tag(new ResourceVersions(), 5, "alice").equals(tag(new ResourceVersions(), 5, "alice")));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.main;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.lang.reflect.Method;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.main.ResourceAnnotations;
+import edu.mit.ll.em.api.rs.Bulkhead;
+import edu.mit.ll.em.api.rs.RateLimited;
+
+/**
+ * Tests where {@link ResourceAnnotations} finds the annotations of resource methods: on the method, on the interface
+ * method it implements, and, for {@link ResourceAnnotations#findOnMethodOrClass}, on the resource class or interface.
+ */
+public class ResourceAnnotationsTest {
+
+    @Bulkhead("interface")
+    public interface Resource {
+
+        @RateLimited("interface")
+        void limited();
+
+        @Bulkhead("method")
+        void isolated();
+
+        void plain();
+    }
+
+    public static class ResourceImpl implements Resource {
+
+        @Override
+        public void limited() {
+        }
+
+        @Override
+        @RateLimited("impl")
+        public void isolated() {
+        }
+
+        @Override
+        public void plain() {
+        }
+    }
+
+    @Bulkhead("class")
+    public static class AnnotatedImpl extends ResourceImpl {
+    }
+
+    @Test
+    public void findsOnTheImplementedMethod() throws Exception {
+        assertEquals(ResourceAnnotations.find(ResourceImpl.class, method("limited"), RateLimited.class).value(),
+                "interface");
+    }
+
+    @Test
+    public void methodWinsOverTheInterface() throws Exception {
+        assertEquals(ResourceAnnotations.find(ResourceImpl.class, method("isolated"), RateLimited.class).value(),
+                "impl");
+    }
+
+    @Test
+    public void findsOnTheInterfaceMethodOfASuperclass() throws Exception {
+        assertEquals(ResourceAnnotations.find(AnnotatedImpl.class, method("limited"), RateLimited.class).value(),
+                "interface");
+    }
+
+    @Test
+    public void findIgnoresTheClass() throws Exception {
+        assertNull(ResourceAnnotations.find(ResourceImpl.class, method("plain"), Bulkhead.class));
+    }
+
+    @Test
+    public void findsOnMethodOrClass() throws Exception {
+        assertEquals(ResourceAnnotations.findOnMethodOrClass(ResourceImpl.class, method("isolated"),
+                Bulkhead.class).value(), "method");
+        assertEquals(ResourceAnnotations.findOnMethodOrClass(ResourceImpl.class, method("plain"),
+                Bulkhead.class).value(), "interface");
+        assertEquals(ResourceAnnotations.findOnMethodOrClass(AnnotatedImpl.class, method("plain"),
+                Bulkhead.class).value(), "class");
+        assertNull(ResourceAnnotations.findOnMethodOrClass(ResourceImpl.class, method("plain"),
+                RateLimited.class));
+    }
+
+    @Test
+    public void defaultsToTheDeclaringClass() throws Exception {
+        assertEquals(ResourceAnnotations.find(null, Resource.class.getMethod("limited"), RateLimited.class).value(),
+                "interface");
+        assertEquals(ResourceAnnotations.findOnMethodOrClass(null, method("plain"), Bulkhead.class).value(),
+                "interface");
+    }
+
+    private static Method method(String name) throws NoSuchMethodException {
+        return ResourceImpl.class.getMethod(name);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.MessageImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.main.MetricsFaultInterceptor;
+import edu.mit.ll.em.api.metrics.EndpointMetrics;
+import edu.mit.ll.em.api.metrics.LatencyHistogram;
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tests the counts and windowed percentiles of {@link EndpointMetrics} and {@link LatencyHistogram}, and that a request
+ * is completed once, including by the {@link MetricsFaultInterceptor}.
+ */
+public class EndpointMetricsTest {
+
+    private RequestMetrics metrics;
+
+    @BeforeMethod
+    public void setUp() {
+        BaseConfiguration config = new BaseConfiguration();
+        // No rotation timer, the tests end the windows
+        config.setProperty(APIConfig.METRICS_ENABLED, false);
+        metrics = new RequestMetrics(config);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        metrics.freeResources();
+    }
+
+    @Test
+    public void percentilesCoverTheLastWindow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int micros = 1; micros <= 100; micros++) {
+            histogram.record(micros * 1000L);
+        }
+        assertEquals(histogram.getValueAtPercentile(50), -1, "no window has ended yet");
+
+        histogram.rotate();
+        assertEquals(histogram.getValueAtPercentile(50), 50);
+        assertEquals(histogram.getValueAtPercentile(99), 99);
+        assertEquals(histogram.getValueAtPercentile(100), 100);
+
+        histogram.record(2000000);
+        histogram.rotate();
+        assertEquals(histogram.getValueAtPercentile(50), 2000);
+
+        histogram.rotate();
+        assertEquals(histogram.getValueAtPercentile(50), -1, "no calls in the last window");
+        assertEquals(histogram.getCount(), 101);
+        assertEquals(histogram.getSumMicros(), 5050 + 2000);
+    }
+
+    @Test
+    public void negativeLatenciesRecordAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5000);
+        histogram.rotate();
+        assertEquals(histogram.getValueAtPercentile(50), 0);
+        assertEquals(histogram.getSumMicros(), 0);
+    }
+
+    @Test
+    public void requestCompletesOnce() {
+        EndpointMetrics endpoint = metrics.getEndpoint("EndpointMetricsTest.completesOnce");
+        EndpointMetrics.Request request = endpoint.requestStarted();
+        assertEquals(endpoint.getInFlight(), 1);
+
+        request.complete(200, 10);
+        request.complete(500, -1);
+
+        assertEquals(endpoint.getInFlight(), 0);
+        assertEquals(endpoint.getRequestCount(), 1);
+        assertEquals(endpoint.getServerErrorCount(), 0);
+        assertEquals(endpoint.getResponseBytes(), 10);
+    }
+
+    @Test
+    public void countsStatusClasses() {
+        EndpointMetrics endpoint = metrics.getEndpoint("EndpointMetricsTest.statuses");
+        endpoint.requestStarted().complete(200, -1);
+        endpoint.requestStarted().complete(404, -1);
+        endpoint.requestStarted().complete(429, -1);
+        endpoint.requestStarted().complete(503, -1);
+
+        assertEquals(endpoint.getRequestCount(), 4);
+        assertEquals(endpoint.getClientErrorCount(), 2);
+        assertEquals(endpoint.getServerErrorCount(), 1);
+        assertEquals(endpoint.getResponseBytes(), 0);
+        assertTrue(Double.isNaN(endpoint.getP50Millis()), "no window has ended yet");
+    }
+
+    @Test
+    public void countsCacheLoadsByCache() {
+        EndpointMetrics endpoint = metrics.getEndpoint("EndpointMetricsTest.cacheLoads");
+        endpoint.cacheLoadCompleted("users", 2000000);
+        endpoint.cacheLoadCompleted("users", 3000000);
+        endpoint.cacheLoadCompleted("orgs", 1000000);
+
+        assertEquals(endpoint.getCacheLoadCount(), 3);
+        assertEquals(endpoint.getCacheLoadMillis(), 6.0);
+        assertEquals(endpoint.getRequestCount(), 0, "cache loads are not requests");
+    }
+
+    @Test
+    public void faultInterceptorCompletesTheRequest() {
+        EndpointMetrics endpoint = metrics.getEndpoint("EndpointMetricsTest.fault");
+        EndpointMetrics.Request request = endpoint.requestStarted();
+        metrics.setCurrent(endpoint);
+
+        ExchangeImpl exchange = new ExchangeImpl();
+        exchange.put(EndpointMetrics.Request.class, request);
+        MessageImpl message = new MessageImpl();
+        message.setExchange(exchange);
+        new MetricsFaultInterceptor(metrics).handleMessage(message);
+
+        assertEquals(endpoint.getInFlight(), 0);
+        assertEquals(endpoint.getServerErrorCount(), 1);
+        assertNull(exchange.get(EndpointMetrics.Request.class));
+        assertNull(metrics.getCurrent());
+
+        // Already completed, as when the response was written before the fault
+        request.complete(200, 10);
+        assertEquals(endpoint.getRequestCount(), 1);
+    }
+
+    @Test
+    public void faultInterceptorIgnoresUntimedRequests() {
+        MessageImpl message = new MessageImpl();
+        message.setExchange(new ExchangeImpl());
+        new MetricsFaultInterceptor(metrics).handleMessage(message);
+    }
+}
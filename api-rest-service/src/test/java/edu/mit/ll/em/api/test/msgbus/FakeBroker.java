@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * A RabbitMQ broker in memory for the publisher tests. Its connection and channels are {@link Proxy} instances that
+ * record what is published on them and can be made to fail.
+ */
+public class FakeBroker extends ConnectionFactory {
+
+    /**
+     * Messages published, as topic, a space, and body
+     */
+    public final List<String> published = new CopyOnWriteArrayList<String>();
+
+    public final List<FakeChannel> channels = new CopyOnWriteArrayList<FakeChannel>();
+
+    /**
+     * Publishes that throw an IOException before they succeed again
+     */
+    public final AtomicInteger failingPublishes = new AtomicInteger();
+
+    public final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Publishes wait for it to be counted down, if set
+     */
+    public volatile CountDownLatch publishGate;
+
+    public volatile boolean connectionOpen = true;
+
+    @Override
+    public Connection newConnection(String name) {
+        connections.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if("createChannel".equals(method.getName())) {
+                            FakeChannel channel = new FakeChannel();
+                            channels.add(channel);
+                            return channel.proxy;
+                        }
+                        if("close".equals(method.getName())) {
+                            connectionOpen = false;
+                            return null;
+                        }
+                        if("isOpen".equals(method.getName())) {
+                            return connectionOpen;
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * @return the channels neither closed nor failed
+     */
+    public int openChannels() {
+        int open = 0;
+        for(FakeChannel channel : channels) {
+            if(channel.open) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if(type == boolean.class) {
+            return false;
+        }
+        if(type == int.class) {
+            return 0;
+        }
+        if(type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * One channel of the broker
+     */
+    public class FakeChannel implements InvocationHandler {
+
+        public final Channel proxy = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {Channel.class}, this);
+
+        public volatile boolean open = true;
+
+        public volatile boolean confirmSelected;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if("basicPublish".equals(name)) {
+                CountDownLatch gate = publishGate;
+                if(gate != null) {
+                    try {
+                        gate.await();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting to publish");
+                    }
+                }
+                int failing;
+                do {
+                    failing = failingPublishes.get();
+                } while(failing > 0 && !failingPublishes.compareAndSet(failing, failing - 1));
+                if(failing > 0) {
+                    open = false;
+                    throw new IOException("publish failed");
+                }
+                published.add(args[1] + " " + new String((byte[]) args[3], StandardCharsets.UTF_8));
+                return null;
+            }
+            if("confirmSelect".equals(name)) {
+                confirmSelected = true;
+                return null;
+            }
+            if("waitForConfirms".equals(name)) {
+                return open;
+            }
+            if("close".equals(name)) {
+                open = false;
+                return null;
+            }
+            if("isOpen".equals(name)) {
+                return open;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+}
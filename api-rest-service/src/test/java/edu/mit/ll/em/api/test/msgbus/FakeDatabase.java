@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+/**
+ * A database in memory for the outbox tests, understanding only the statements of the
+ * {@link edu.mit.ll.em.api.msgbus.NotificationOutbox} and {@link edu.mit.ll.em.api.msgbus.OutboxRelay}. Any other
+ * update stands for a DAO write and is recorded as its SQL. Its data source, connections and statements are
+ * {@link Proxy} instances, and a connection's writes are only applied when it commits, or when it is in auto-commit.
+ */
+public class FakeDatabase {
+
+    /**
+     * A row of the outbox table
+     */
+    public static class OutboxRow {
+        public final long id;
+        public final String topic;
+        public final String body;
+        public volatile Timestamp sent;
+
+        OutboxRow(long id, String topic, String body, Timestamp sent) {
+            this.id = id;
+            this.topic = topic;
+            this.body = body;
+            this.sent = sent;
+        }
+    }
+
+    public final DataSource dataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {DataSource.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if("getConnection".equals(method.getName())) {
+                        if(down) {
+                            throw new SQLException("database down");
+                        }
+                        openConnections.incrementAndGet();
+                        return new FakeConnection().proxy;
+                    }
+                    return defaultValue(method.getReturnType());
+                }
+            });
+
+    /**
+     * Committed DAO writes, as their SQL
+     */
+    public final List<String> writes = new ArrayList<String>();
+
+    /**
+     * Committed rows of the outbox table
+     */
+    public final List<OutboxRow> outbox = new ArrayList<OutboxRow>();
+
+    /**
+     * Number of rows marked sent by each update doing so
+     */
+    public final List<Integer> markedSent = new ArrayList<Integer>();
+
+    public final AtomicInteger openConnections = new AtomicInteger();
+
+    /**
+     * Another node holds the relay's advisory lock
+     */
+    public volatile boolean lockHeld;
+
+    /**
+     * Connections can't be opened
+     */
+    public volatile boolean down;
+
+    /**
+     * Creating the outbox table fails
+     */
+    public volatile boolean failSchema;
+
+    /**
+     * Inserting into the outbox fails
+     */
+    public volatile boolean failOutboxInsert;
+
+    private long nextId = 1;
+
+    /**
+     * Adds a committed row to the outbox
+     *
+     * @param sent when the row was sent, null if it wasn't
+     */
+    public synchronized void addRow(String topic, String body, Timestamp sent) {
+        outbox.add(new OutboxRow(nextId++, topic, body, sent));
+    }
+
+    public synchronized List<String> getWrites() {
+        return new ArrayList<String>(writes);
+    }
+
+    public synchronized int getOutboxSize() {
+        return outbox.size();
+    }
+
+    public synchronized List<Integer> getMarkedSent() {
+        return new ArrayList<Integer>(markedSent);
+    }
+
+    /**
+     * @return the rows of the outbox not sent yet
+     */
+    public synchronized int unsent() {
+        int unsent = 0;
+        for(OutboxRow row : outbox) {
+            if(row.sent == null) {
+                unsent++;
+            }
+        }
+        return unsent;
+    }
+
+    private synchronized List<Object[]> selectUnsent(int limit) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for(OutboxRow row : outbox) {
+            if(row.sent == null && rows.size() < limit) {
+                rows.add(new Object[] {row.id, row.topic, row.body});
+            }
+        }
+        return rows;
+    }
+
+    private synchronized void markSent(Object[] ids) {
+        List<Object> idList = Arrays.asList(ids);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        int marked = 0;
+        for(OutboxRow row : outbox) {
+            if(idList.contains(row.id)) {
+                row.sent = now;
+                marked++;
+            }
+        }
+        markedSent.add(marked);
+    }
+
+    private synchronized int purge(Timestamp before) {
+        int purged = 0;
+        for(Iterator<OutboxRow> rows = outbox.iterator(); rows.hasNext(); ) {
+            Timestamp sent = rows.next().sent;
+            if(sent != null && sent.before(before)) {
+                rows.remove();
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if(type == boolean.class) {
+            return false;
+        }
+        if(type == int.class) {
+            return 0;
+        }
+        if(type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static ResultSet resultSet(final List<Object[]> rows) {
+        return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+            private int index = -1;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if("next".equals(name)) {
+                    return ++index < rows.size();
+                }
+                if(name.startsWith("get") && args != null && args[0] instanceof Integer) {
+                    return rows.get(index)[(Integer) args[0] - 1];
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    /**
+     * One connection, holding its uncommitted writes
+     */
+    private class FakeConnection implements InvocationHandler {
+
+        final Connection proxy = (Connection) FakeDatabase.proxy(Connection.class, this);
+
+        final List<Runnable> pending = new ArrayList<Runnable>();
+
+        boolean autoCommit = true;
+
+        boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if("close".equals(name)) {
+                if(!closed) {
+                    closed = true;
+                    pending.clear();
+                    openConnections.decrementAndGet();
+                }
+                return null;
+            }
+            if(closed && !"isClosed".equals(name)) {
+                throw new SQLException("connection closed");
+            }
+            if("isClosed".equals(name)) {
+                return closed;
+            }
+            if("setAutoCommit".equals(name)) {
+                autoCommit = (Boolean) args[0];
+                return null;
+            }
+            if("getAutoCommit".equals(name)) {
+                return autoCommit;
+            }
+            if("commit".equals(name)) {
+                for(Runnable write : pending) {
+                    write.run();
+                }
+                pending.clear();
+                return null;
+            }
+            if("rollback".equals(name)) {
+                pending.clear();
+                return null;
+            }
+            if("createStatement".equals(name)) {
+                return FakeDatabase.proxy(Statement.class, new FakeStatement(this, null));
+            }
+            if("prepareStatement".equals(name)) {
+                return FakeDatabase.proxy(PreparedStatement.class, new FakeStatement(this, (String) args[0]));
+            }
+            if("createArrayOf".equals(name)) {
+                final Object[] elements = (Object[]) args[1];
+                return FakeDatabase.proxy(Array.class, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getArray".equals(method.getName()) ? elements : defaultValue(method.getReturnType());
+                    }
+                });
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        void write(Runnable write) {
+            if(autoCommit) {
+                write.run();
+            } else {
+                pending.add(write);
+            }
+        }
+    }
+
+    /**
+     * A statement, or a prepared statement when created with its SQL
+     */
+    private class FakeStatement implements InvocationHandler {
+
+        private final FakeConnection connection;
+
+        private final String sql;
+
+        private final Map<Integer, Object> parameters = new HashMap<Integer, Object>();
+
+        FakeStatement(FakeConnection connection, String sql) {
+            this.connection = connection;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if(name.startsWith("set") && args.length == 2 && args[0] instanceof Integer) {
+                parameters.put((Integer) args[0], args[1]);
+                return null;
+            }
+            if("execute".equals(name)) {
+                if(failSchema) {
+                    throw new SQLException("permission denied for schema public");
+                }
+                return false;
+            }
+            if("executeUpdate".equals(name)) {
+                return executeUpdate();
+            }
+            if("executeQuery".equals(name)) {
+                return executeQuery();
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private int executeUpdate() throws SQLException {
+            if(sql.startsWith("INSERT INTO em_api_outbox")) {
+                if(failOutboxInsert) {
+                    throw new SQLException("outbox insert failed");
+                }
+                final String topic = (String) parameters.get(1);
+                final String body = (String) parameters.get(2);
+                connection.write(new Runnable() {
+                    @Override
+                    public void run() {
+                        addRow(topic, body, null);
+                    }
+                });
+                return 1;
+            }
+            if(sql.startsWith("UPDATE em_api_outbox")) {
+                final Object[] ids = (Object[]) ((Array) parameters.get(1)).getArray();
+                connection.write(new Runnable() {
+                    @Override
+                    public void run() {
+                        markSent(ids);
+                    }
+                });
+                return ids.length;
+            }
+            if(sql.startsWith("DELETE FROM em_api_outbox")) {
+                return purge((Timestamp) parameters.get(1));
+            }
+            final String write = sql;
+            connection.write(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(FakeDatabase.this) {
+                        writes.add(write);
+                    }
+                }
+            });
+            return 1;
+        }
+
+        private ResultSet executeQuery() throws SQLException {
+            if(sql.startsWith("SELECT pg_try_advisory_xact_lock")) {
+                return resultSet(Arrays.<Object[]>asList(new Object[] {!lockHeld}));
+            }
+            if(sql.startsWith("SELECT id, topic, body FROM em_api_outbox")) {
+                return resultSet(selectUnsent((Integer) parameters.get(1)));
+            }
+            throw new SQLException("unexpected query " + sql);
+        }
+    }
+}
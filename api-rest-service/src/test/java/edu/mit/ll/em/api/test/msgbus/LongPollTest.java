@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.msgbus.MsgBusQueue;
+import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionMgr;
+import edu.mit.ll.em.api.msgbus.SubscriptionSession;
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.rs.StringConstant;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tests long-polls parked on their subscription's queue as a {@link MsgBusQueue.Waiter}: they hold no thread while
+ * waiting, are resumed by the post bringing their messages, and exactly once when a timeout races that post.
+ */
+public class LongPollTest {
+
+    // The threads of the executor long-polls used to wait on
+    private static final int OLD_POOL_SIZE = 64;
+
+    private MsgBusSubscriptionMgr mgr;
+
+    /**
+     * Stands in for a suspended response, recording what it was resumed with
+     */
+    private static class Poll extends MsgBusQueue.Waiter {
+        final AtomicInteger resumes = new AtomicInteger();
+        final CountDownLatch resumed = new CountDownLatch(1);
+        volatile Collection<MsgEnvelope> msgs;
+        volatile Thread resumedOn;
+
+        Poll(int maxBatch) {
+            super(maxBatch);
+        }
+
+        @Override
+        protected void resume(Collection<MsgEnvelope> msgs) {
+            this.msgs = msgs;
+            this.resumedOn = Thread.currentThread();
+            resumes.incrementAndGet();
+            resumed.countDown();
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.METRICS_ENABLED, false);
+        config.setProperty(APIConfig.MSGBUS_TICKMILLIS, 10);
+        config.setProperty(APIConfig.MSGBUS_MAXBATCHSIZE, 3);
+        config.setProperty(APIConfig.MSGBUS_MAXWAITMILLIS, 5000);
+        mgr = new MsgBusSubscriptionMgr(config);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        mgr.freeResources();
+    }
+
+    @Test
+    public void testManyMoreIdlePollsThanThreads() throws Exception {
+        int subscribers = OLD_POOL_SIZE * 16;
+        for(int i = 1; i <= subscribers; i++) {
+            subscribe(i, 60);
+        }
+        int threads = Thread.activeCount();
+
+        List<Poll> polls = new ArrayList<Poll>();
+        for(int i = 1; i <= subscribers; i++) {
+            Poll poll = new Poll(10);
+            assertTrue(mgr.getFromSubscription(i, poll));
+            polls.add(poll);
+        }
+
+        // Every poll is waiting, and none is holding a thread to do so
+        assertTrue(Thread.activeCount() <= threads + 2, Thread.activeCount() + " threads, " + threads + " before");
+        for(int i = 1; i <= subscribers; i++) {
+            assertTrue(mgr.getSessions().get((long) i).isWaiting());
+            assertEquals(polls.get(i - 1).resumes.get(), 0);
+        }
+
+        for(int i = 1; i <= subscribers; i++) {
+            mgr.postToSubscription(i, message("update " + i));
+        }
+
+        for(int i = 1; i <= subscribers; i++) {
+            Poll poll = polls.get(i - 1);
+            assertEquals(poll.resumes.get(), 1);
+            assertEquals(poll.msgs.size(), 1);
+            assertEquals(poll.msgs.iterator().next().getMsgType(), "update " + i);
+            assertFalse(mgr.getSessions().get((long) i).isWaiting());
+        }
+    }
+
+    @Test
+    public void testPostResumesOnThePostingThread() throws Exception {
+        subscribe(1, 60);
+        Poll poll = new Poll(10);
+        mgr.getFromSubscription(1, poll);
+
+        mgr.postToSubscription(1, message("update"));
+
+        assertSame(poll.resumedOn, Thread.currentThread());
+        assertEquals(poll.msgs.size(), 1);
+    }
+
+    @Test
+    public void testWaitingMessagesResumeRightAway() throws Exception {
+        subscribe(1, 60);
+        mgr.postToSubscription(1, message("update"));
+        Poll poll = new Poll(10);
+
+        mgr.getFromSubscription(1, poll);
+
+        assertEquals(poll.resumes.get(), 1);
+        assertEquals(poll.msgs.size(), 1);
+        assertFalse(mgr.getSessions().get(1L).isWaiting());
+    }
+
+    @Test
+    public void testBatchLimitedByMaxBatchSize() throws Exception {
+        subscribe(1, 60);
+        Poll poll = new Poll(10);
+        mgr.getFromSubscription(1, poll);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>();
+        for(int i = 0; i < 5; i++) {
+            msgs.add(message("update " + i));
+        }
+        mgr.postToSubscription(1, msgs);
+
+        assertEquals(poll.msgs.size(), 3);
+        assertEquals(mgr.getFromSubscription(1, 10, 0).size(), 2);
+    }
+
+    @Test
+    public void testTimeoutResumesWithNoMessages() throws Exception {
+        subscribe(1, 60);
+        Poll poll = new Poll(10);
+        mgr.getFromSubscription(1, poll);
+
+        assertTrue(poll.cancel());
+        assertTrue(poll.msgs.isEmpty());
+        assertFalse(mgr.getSessions().get(1L).isWaiting());
+
+        // The next message waits for the next poll
+        mgr.postToSubscription(1, message("update"));
+        assertEquals(poll.resumes.get(), 1);
+        assertEquals(mgr.getFromSubscription(1, 10, 0).size(), 1);
+    }
+
+    @Test
+    public void testCancelAfterResumeDoesNothing() throws Exception {
+        subscribe(1, 60);
+        Poll poll = new Poll(10);
+        mgr.getFromSubscription(1, poll);
+        mgr.postToSubscription(1, message("update"));
+
+        assertFalse(poll.cancel());
+        assertEquals(poll.resumes.get(), 1);
+        assertEquals(poll.msgs.size(), 1);
+    }
+
+    @Test
+    public void testCancelledBeforeParkingIsLeftAlone() throws Exception {
+        subscribe(1, 60);
+        Poll poll = new Poll(10);
+        poll.cancel();
+
+        mgr.getFromSubscription(1, poll);
+        mgr.postToSubscription(1, message("update"));
+
+        assertEquals(poll.resumes.get(), 1);
+        assertEquals(mgr.getSessions().get(1L).getQueue().getWaiterCount(), 0);
+        assertEquals(mgr.getFromSubscription(1, 10, 0).size(), 1);
+    }
+
+    @Test
+    public void testTimeoutRacingPostResumesOnceAndLosesNothing() throws Exception {
+        subscribe(1, 60);
+        final SubscriptionSession ss = mgr.getSessions().get(1L);
+        for(int i = 0; i < 500; i++) {
+            final Poll poll = new Poll(10);
+            mgr.getFromSubscription(1, poll);
+
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread timeout = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    poll.cancel();
+                }
+            });
+            timeout.start();
+            start.countDown();
+            ss.post(message("update " + i));
+            timeout.join(5000);
+
+            assertTrue(poll.resumed.await(5, TimeUnit.SECONDS));
+            assertEquals(poll.resumes.get(), 1);
+            // The message went to the poll, or is still queued for the next one
+            assertEquals(poll.msgs.size() + ss.getQueue().size(), 1, "iteration " + i);
+            ss.getQueue().get();
+        }
+    }
+
+    @Test
+    public void testEndSubscriptionResumesParkedPoll() throws Exception {
+        subscribe(1, 60);
+        Poll poll = new Poll(10);
+        mgr.getFromSubscription(1, poll);
+
+        assertTrue(mgr.endSubscription(1));
+
+        assertEquals(poll.resumes.get(), 1);
+        assertTrue(poll.msgs.isEmpty());
+    }
+
+    @Test
+    public void testUnknownSubscriptionLeavesPollAlone() throws Exception {
+        Poll poll = new Poll(10);
+
+        assertFalse(mgr.getFromSubscription(1, poll));
+
+        assertFalse(poll.isDone());
+        assertEquals(poll.resumes.get(), 0);
+    }
+
+    @Test
+    public void testParkedPollKeepsSessionAlive() throws Exception {
+        subscribe(1, 1);
+        Poll poll = new Poll(10);
+        mgr.getFromSubscription(1, poll);
+
+        Thread.sleep(2500);
+        assertEquals(mgr.getSessionCount(), 1);
+        assertEquals(poll.resumes.get(), 0);
+
+        poll.cancel();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(mgr.getSessionCount() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(mgr.getSessionCount(), 0);
+        assertNull(mgr.getFromSubscription(1, 10, 0));
+    }
+
+    @Test
+    public void testWaitLimitedByMaxWait() {
+        assertEquals(mgr.limitWaitMillis(60000), 5000);
+        assertEquals(mgr.limitWaitMillis(100), 100);
+        assertEquals(mgr.limitWaitMillis(-1), 0);
+    }
+
+    private void subscribe(long subscriberId, int timeoutSeconds) throws Exception {
+        Map<String, String> attrs = new HashMap<String, String>();
+        attrs.put(StringConstant.URIOPT_SUBSCRIBER_ID, String.valueOf(subscriberId));
+        attrs.put(StringConstant.URIOPT_TOPICS, "iweb.NICS.incident");
+        attrs.put(StringConstant.URIOPT_TIMEOUT, String.valueOf(timeoutSeconds));
+        mgr.beginSubscription(attrs);
+    }
+
+    private static MsgEnvelope message(String type) {
+        MsgEnvelope msg = new MsgEnvelope();
+        msg.setMsgType(type);
+        msg.setMsgPayload("{}");
+        return msg;
+    }
+}
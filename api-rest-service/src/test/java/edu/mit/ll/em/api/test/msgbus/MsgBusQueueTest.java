@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.msgbus.MsgBusQueue;
+import edu.mit.ll.em.api.msgbus.MsgBusQueue.Overflow;
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+
+/**
+ * Unit tests for {@link MsgBusQueue}: the order of its ring as the ring wraps and grows, and what each
+ * {@link Overflow} policy does to a full queue. The ring starts with 16 slots.
+ */
+public class MsgBusQueueTest {
+
+    private static final String UPDATE = "update";
+
+    @Test
+    public void testOrderIsKeptAsTheRingWrapsAndGrows() {
+        MsgBusQueue queue = new MsgBusQueue(1000, Long.MAX_VALUE, Overflow.DROP_OLDEST);
+        int posted = 0;
+        int taken = 0;
+        // Move the head near the end of the ring, so what follows wraps around
+        for(; posted < 14; posted++) {
+            queue.put(message(UPDATE, null, posted));
+        }
+        for(MsgEnvelope msg : queue.get(14, 0)) {
+            assertEquals(msg.getMsgPayload(), String.valueOf(taken++));
+        }
+
+        // Wraps, then grows from 16 to 32 and 64 slots with the head mid ring
+        for(; posted < 14 + 40; posted++) {
+            queue.put(message(UPDATE, null, posted));
+        }
+        assertEquals(queue.size(), 40);
+        for(MsgEnvelope msg : queue.get()) {
+            assertEquals(msg.getMsgPayload(), String.valueOf(taken++));
+        }
+        assertEquals(taken, posted);
+        assertEquals(queue.getMaxDepth(), 40);
+    }
+
+    @Test
+    public void testGetTakesAtMostABatch() {
+        MsgBusQueue queue = new MsgBusQueue(1000, Long.MAX_VALUE, Overflow.DROP_OLDEST);
+        for(int i = 0; i < 20; i++) {
+            queue.put(message(UPDATE, null, i));
+        }
+
+        assertEquals(payloads(queue.get(5, 0)), Arrays.asList("0", "1", "2", "3", "4"));
+        assertEquals(queue.size(), 15);
+        assertEquals(queue.getDeliveredCount(), 5);
+    }
+
+    @Test
+    public void testDropOldestMakesRoom() {
+        MsgBusQueue queue = new MsgBusQueue(4, Long.MAX_VALUE, Overflow.DROP_OLDEST);
+        for(int i = 0; i < 6; i++) {
+            assertTrue(queue.put(message(UPDATE, null, i)));
+        }
+
+        assertEquals(payloads(queue.get()), Arrays.asList("2", "3", "4", "5"));
+        assertEquals(queue.getDroppedCount(), 2);
+    }
+
+    @Test
+    public void testDropOldestMakesRoomForBytes() {
+        // Each message is estimated at 64 + 2 * (6 + 1) = 78 bytes
+        MsgBusQueue queue = new MsgBusQueue(100, 3 * 78, Overflow.DROP_OLDEST);
+        for(int i = 0; i < 5; i++) {
+            queue.put(message(UPDATE, null, i));
+        }
+
+        assertEquals(queue.getBytes(), 3 * 78);
+        assertEquals(payloads(queue.get()), Arrays.asList("2", "3", "4"));
+        assertEquals(queue.getBytes(), 0);
+    }
+
+    @Test
+    public void testDisconnectClosesTheQueue() {
+        MsgBusQueue queue = new MsgBusQueue(2, Long.MAX_VALUE, Overflow.DISCONNECT);
+        assertTrue(queue.put(message(UPDATE, null, 0)));
+        assertTrue(queue.put(message(UPDATE, null, 1)));
+
+        assertFalse(queue.put(message(UPDATE, null, 2)));
+
+        assertTrue(queue.isOverflowed());
+        assertEquals(queue.size(), 0);
+        assertFalse(queue.put(message(UPDATE, null, 3)));
+    }
+
+    @Test
+    public void testCoalesceKeepsEveryMessageUntilFull() {
+        MsgBusQueue queue = new MsgBusQueue(4, Long.MAX_VALUE, Overflow.COALESCE);
+        queue.put(message(UPDATE, incident(1), 0));
+        queue.put(message(UPDATE, incident(1), 1));
+        queue.put(message(UPDATE, incident(1), 2));
+
+        assertEquals(payloads(queue.get()), Arrays.asList("0", "1", "2"));
+        assertEquals(queue.getCoalescedCount(), 0);
+    }
+
+    @Test
+    public void testCoalesceReplacesTheLatestMessageOfTheSameEntityInPlace() {
+        MsgBusQueue queue = new MsgBusQueue(4, Long.MAX_VALUE, Overflow.COALESCE);
+        queue.put(message(UPDATE, incident(1), 0));
+        queue.put(message(UPDATE, incident(2), 1));
+        queue.put(message(UPDATE, incident(2), 2));
+        queue.put(message(UPDATE, incident(3), 3));
+
+        queue.put(message(UPDATE, incident(2), 4));
+
+        assertEquals(payloads(queue.get()), Arrays.asList("0", "1", "4", "3"));
+        assertEquals(queue.getCoalescedCount(), 1);
+        assertEquals(queue.getDroppedCount(), 0);
+    }
+
+    @Test
+    public void testCoalesceKeysOnTypeAndTopic() {
+        MsgBusQueue queue = new MsgBusQueue(3, Long.MAX_VALUE, Overflow.COALESCE);
+        queue.put(message(UPDATE, incident(1), 0));
+        queue.put(message(UPDATE, incident(2), 1));
+        queue.put(message("delete", incident(3), 2));
+
+        // Another entity, and another type of the same entity, drop the oldest
+        queue.put(message(UPDATE, incident(4), 3));
+        queue.put(message(UPDATE, incident(3), 4));
+
+        assertEquals(payloads(queue.get()), Arrays.asList("2", "3", "4"));
+        assertEquals(queue.getCoalescedCount(), 0);
+        assertEquals(queue.getDroppedCount(), 2);
+    }
+
+    @Test
+    public void testCoalesceDropsOldestForMessagesWithoutTopic() {
+        MsgBusQueue queue = new MsgBusQueue(2, Long.MAX_VALUE, Overflow.COALESCE);
+        queue.put(message(UPDATE, null, 0));
+        queue.put(message(UPDATE, null, 1));
+        queue.put(message(UPDATE, null, 2));
+
+        assertEquals(payloads(queue.get()), Arrays.asList("1", "2"));
+        assertEquals(queue.getCoalescedCount(), 0);
+    }
+
+    @Test
+    public void testCoalesceFindsItsMessageAfterTheRingWrapsAndGrows() {
+        MsgBusQueue queue = new MsgBusQueue(24, Long.MAX_VALUE, Overflow.COALESCE);
+        for(int i = 0; i < 10; i++) {
+            queue.put(message(UPDATE, incident(100 + i), 100 + i));
+        }
+        queue.get();
+
+        // Head at 10, wraps and grows to 32 slots, then moves on
+        for(int i = 0; i < 24; i++) {
+            queue.put(message(UPDATE, incident(i), i));
+        }
+        assertEquals(payloads(queue.get(3, 0)), Arrays.asList("0", "1", "2"));
+        for(int i = 24; i < 27; i++) {
+            queue.put(message(UPDATE, incident(i), i));
+        }
+
+        // Full, so these replace the latest of their incident
+        queue.put(message(UPDATE, incident(5), 1005));
+        queue.put(message(UPDATE, incident(25), 1025));
+        // Taken already, so this drops the oldest
+        queue.put(message(UPDATE, incident(1), 1001));
+
+        List<String> expected = new ArrayList<String>();
+        for(int i = 4; i < 27; i++) {
+            expected.add(String.valueOf(i == 5 ? 1005 : i == 25 ? 1025 : i));
+        }
+        expected.add("1001");
+        assertEquals(payloads(queue.get()), expected);
+        assertEquals(queue.getCoalescedCount(), 2);
+        assertEquals(queue.getDroppedCount(), 1);
+    }
+
+    @Test
+    public void testCoalesceForgetsTheMessagesTaken() {
+        MsgBusQueue queue = new MsgBusQueue(2, Long.MAX_VALUE, Overflow.COALESCE);
+        queue.put(message(UPDATE, incident(1), 0));
+        queue.put(message(UPDATE, incident(2), 1));
+        assertEquals(payloads(queue.get(1, 0)), Arrays.asList("0"));
+        queue.put(message(UPDATE, incident(3), 2));
+
+        // The message of incident 1 is gone, so nothing to replace
+        queue.put(message(UPDATE, incident(1), 3));
+
+        assertEquals(payloads(queue.get()), Arrays.asList("2", "3"));
+        assertEquals(queue.getCoalescedCount(), 0);
+    }
+
+    @Test
+    public void testCoalescedMessageTooLargeForItsPlaceDropsOldest() {
+        // Each small message is estimated at 64 + 2 * (6 + 27 + 1) = 132 bytes
+        MsgBusQueue queue = new MsgBusQueue(100, 3 * 132, Overflow.COALESCE);
+        queue.put(message(UPDATE, incident(1), 0));
+        queue.put(message(UPDATE, incident(2), 1));
+        queue.put(message(UPDATE, incident(3), 2));
+
+        MsgEnvelope larger = message(UPDATE, incident(2), 3);
+        larger.setMsgPayload("0123456789");
+        queue.put(larger);
+
+        assertEquals(payloads(queue.get()), Arrays.asList("2", "0123456789"));
+        assertEquals(queue.getCoalescedCount(), 0);
+        assertEquals(queue.getDroppedCount(), 2);
+        assertEquals(queue.getBytes(), 0);
+    }
+
+    private static String incident(int incidentId) {
+        return "iweb.NICS.incident." + incidentId + ".update";
+    }
+
+    private static MsgEnvelope message(String type, String topic, int payload) {
+        MsgEnvelope msg = new MsgEnvelope();
+        msg.setMsgType(type);
+        msg.setMsgTopic(topic);
+        msg.setMsgPayload(String.valueOf(payload));
+        return msg;
+    }
+
+    private static List<String> payloads(Collection<MsgEnvelope> msgs) {
+        List<String> payloads = new ArrayList<String>();
+        for(MsgEnvelope msg : msgs) {
+            payloads.add(msg.getMsgPayload());
+        }
+        return payloads;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+import edu.mit.ll.em.api.msgbus.NotificationOutbox;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tests that {@link NotificationOutbox#execute(Callable)} commits or rolls back a DAO write and the notification
+ * announcing it together. A JdbcTemplate on the same data source stands in for the nics-dao DAOs.
+ */
+public class NotificationOutboxTest {
+
+    private static final String DAO_WRITE = "UPDATE incident SET incidentname = ? WHERE incidentid = ?";
+
+    private BaseConfiguration config;
+
+    private FakeBroker broker;
+
+    private FakeDatabase database;
+
+    private RabbitPublisher publisher;
+
+    private NotificationOutbox outbox;
+
+    private JdbcTemplate dao;
+
+    @BeforeMethod
+    public void setUp() {
+        config = new BaseConfiguration();
+        config.setProperty(APIConfig.METRICS_ENABLED, false);
+        config.setProperty(APIConfig.RABBIT_EXCHANGENAME_KEY, "test");
+        config.setProperty(APIConfig.RABBIT_PUBLISH_ASYNC, false);
+        config.setProperty(APIConfig.OUTBOX_ENABLED, true);
+        config.setProperty(APIConfig.OUTBOX_POLLMILLIS, 50);
+        broker = new FakeBroker();
+        database = new FakeDatabase();
+        publisher = new RabbitPublisher(config, broker, new RequestMetrics(config));
+        outbox = new NotificationOutbox(config, database.dataSource, publisher);
+        dao = new JdbcTemplate(database.dataSource);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        outbox.freeResources();
+        publisher.freeResources();
+    }
+
+    @Test
+    public void commitsTheWriteAndItsNotificationTogether() throws Exception {
+        String result = outbox.execute(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                dao.update(DAO_WRITE, "renamed", 1);
+                outbox.produce("iweb.NICS.incident.1.update", "renamed");
+
+                // Neither is visible before the commit
+                assertTrue(database.getWrites().isEmpty());
+                assertEquals(database.getOutboxSize(), 0);
+                return "done";
+            }
+        });
+
+        assertEquals(result, "done");
+        assertEquals(database.getWrites(), Collections.singletonList(DAO_WRITE));
+        assertEquals(database.getOutboxSize(), 1);
+        assertEquals(outbox.getWrittenCount(), 1);
+        assertFalse(TransactionSynchronizationManager.hasResource(database.dataSource));
+        awaitPublished(1);
+        assertEquals(broker.published, Collections.singletonList("iweb.NICS.incident.1.update renamed"));
+    }
+
+    @Test
+    public void rollsBackTheWriteAndItsNotificationTogether() throws Exception {
+        try {
+            outbox.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    dao.update(DAO_WRITE, "renamed", 1);
+                    outbox.produce("iweb.NICS.incident.1.update", "renamed");
+                    throw new IllegalStateException("failed after the writes");
+                }
+            });
+            fail("the work should have failed");
+        } catch(IllegalStateException e) {
+            assertEquals(e.getMessage(), "failed after the writes");
+        }
+
+        assertTrue(database.getWrites().isEmpty());
+        assertEquals(database.getOutboxSize(), 0);
+        assertFalse(TransactionSynchronizationManager.hasResource(database.dataSource));
+        Thread.sleep(200);
+        assertTrue(broker.published.isEmpty());
+    }
+
+    @Test
+    public void failedNotificationRollsBackTheWrite() throws Exception {
+        database.failOutboxInsert = true;
+        try {
+            outbox.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    dao.update(DAO_WRITE, "renamed", 1);
+                    outbox.produce("iweb.NICS.incident.1.update", "renamed");
+                    return null;
+                }
+            });
+            fail("the notification should have failed");
+        } catch(IOException e) {
+            // Expected
+        }
+
+        assertTrue(database.getWrites().isEmpty());
+        assertFalse(TransactionSynchronizationManager.hasResource(database.dataSource));
+    }
+
+    @Test
+    public void nestedWorkJoinsTheOuterTransaction() throws Exception {
+        try {
+            outbox.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    outbox.execute(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            dao.update(DAO_WRITE, "renamed", 1);
+                            outbox.produce("iweb.NICS.incident.1.update", "renamed");
+                            return null;
+                        }
+                    });
+                    // The inner work did not commit on its own
+                    assertTrue(database.getWrites().isEmpty());
+                    throw new IllegalStateException("outer work failed");
+                }
+            });
+            fail("the work should have failed");
+        } catch(IllegalStateException e) {
+            // Expected
+        }
+
+        assertTrue(database.getWrites().isEmpty());
+        assertEquals(database.getOutboxSize(), 0);
+    }
+
+    @Test
+    public void publishesDirectlyOutsideATransaction() throws Exception {
+        outbox.produce("iweb.NICS.incident.1.update", "renamed");
+
+        assertEquals(broker.published, Collections.singletonList("iweb.NICS.incident.1.update renamed"));
+        assertEquals(database.getOutboxSize(), 0);
+        assertEquals(outbox.getWrittenCount(), 0);
+    }
+
+    @Test
+    public void relayPublishesCommittedNotificationsInOrder() throws Exception {
+        outbox.execute(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                outbox.produce("a", "1");
+                outbox.produce("b", "2");
+                outbox.produce("a", "3");
+                return null;
+            }
+        });
+
+        awaitPublished(3);
+        assertEquals(broker.published, Arrays.asList("a 1", "b 2", "a 3"));
+        assertEquals(outbox.getRelay().getRelayedCount(), 3);
+    }
+
+    @Test
+    public void disabledOutboxPublishesDirectly() throws Exception {
+        outbox.freeResources();
+        config.setProperty(APIConfig.OUTBOX_ENABLED, false);
+        outbox = new NotificationOutbox(config, database.dataSource, publisher);
+
+        outbox.execute(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                outbox.produce("a", "1");
+                return null;
+            }
+        });
+
+        assertFalse(outbox.isEnabled());
+        assertNull(outbox.getRelay());
+        assertEquals(broker.published, Collections.singletonList("a 1"));
+        assertEquals(database.getOutboxSize(), 0);
+    }
+
+    @Test
+    public void outboxDisabledByDefault() throws Exception {
+        outbox.freeResources();
+        config.clearProperty(APIConfig.OUTBOX_ENABLED);
+        outbox = new NotificationOutbox(config, database.dataSource, publisher);
+
+        assertFalse(outbox.isEnabled());
+        assertNull(outbox.getRelay());
+    }
+
+    @Test
+    public void missingTableDisablesTheOutbox() throws Exception {
+        outbox.freeResources();
+        database.failSchema = true;
+        outbox = new NotificationOutbox(config, database.dataSource, publisher);
+
+        assertFalse(outbox.isEnabled());
+        assertEquals(database.openConnections.get(), 0);
+    }
+
+    private void awaitPublished(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(broker.published.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(broker.published.size(), count);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+import edu.mit.ll.em.api.msgbus.OutboxRelay;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tests {@link OutboxRelay}: publishing unsent rows in order and in batches, marking them sent, and leaving them
+ * unsent through broker and database failures or while another node holds the lock.
+ */
+public class OutboxRelayTest {
+
+    private BaseConfiguration config;
+
+    private FakeBroker broker;
+
+    private FakeDatabase database;
+
+    private RabbitPublisher publisher;
+
+    private OutboxRelay relay;
+
+    @BeforeMethod
+    public void setUp() {
+        config = new BaseConfiguration();
+        config.setProperty(APIConfig.METRICS_ENABLED, false);
+        config.setProperty(APIConfig.RABBIT_EXCHANGENAME_KEY, "test");
+        config.setProperty(APIConfig.RABBIT_PUBLISH_ASYNC, false);
+        config.setProperty(APIConfig.OUTBOX_POLLMILLIS, 50);
+        broker = new FakeBroker();
+        database = new FakeDatabase();
+        publisher = new RabbitPublisher(config, broker, new RequestMetrics(config));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if(relay != null) {
+            relay.shutdown();
+        }
+        publisher.freeResources();
+    }
+
+    private void startRelay() {
+        relay = new OutboxRelay(database.dataSource, publisher, config);
+        relay.start();
+    }
+
+    @Test
+    public void publishesUnsentRowsInIdOrderAndMarksThemSent() throws Exception {
+        database.addRow("a", "1", null);
+        database.addRow("b", "2", null);
+        database.addRow("a", "3", null);
+        startRelay();
+
+        awaitPublished(3);
+        awaitUnsent(0);
+        assertEquals(broker.published, Arrays.asList("a 1", "b 2", "a 3"));
+        assertEquals(relay.getRelayedCount(), 3);
+    }
+
+    @Test
+    public void publishesInBatches() throws Exception {
+        config.setProperty(APIConfig.OUTBOX_BATCHSIZE, 2);
+        for(int i = 1; i <= 5; i++) {
+            database.addRow("a", String.valueOf(i), null);
+        }
+        startRelay();
+
+        awaitPublished(5);
+        awaitUnsent(0);
+        assertEquals(broker.published, Arrays.asList("a 1", "a 2", "a 3", "a 4", "a 5"));
+        assertEquals(database.getMarkedSent(), Arrays.asList(2, 2, 1));
+    }
+
+    @Test
+    public void wakeUpPublishesBeforeTheNextPoll() throws Exception {
+        config.setProperty(APIConfig.OUTBOX_POLLMILLIS, 60000);
+        startRelay();
+        Thread.sleep(100);
+
+        database.addRow("a", "1", null);
+        relay.wakeUp();
+
+        awaitPublished(1);
+    }
+
+    @Test
+    public void brokerFailureLeavesTheBatchUnsentUntilRetried() throws Exception {
+        broker.failingPublishes.set(1);
+        database.addRow("a", "1", null);
+        database.addRow("b", "2", null);
+        startRelay();
+
+        awaitPublished(2);
+        awaitUnsent(0);
+        // The failed batch was rolled back, and published whole on the retry
+        assertEquals(broker.published, Arrays.asList("a 1", "b 2"));
+        assertEquals(database.getMarkedSent(), Arrays.asList(2));
+        assertEquals(relay.getFailureCount(), 1);
+    }
+
+    @Test
+    public void databaseOutageIsRetried() throws Exception {
+        database.down = true;
+        database.addRow("a", "1", null);
+        startRelay();
+        awaitFailures(1);
+
+        database.down = false;
+        awaitPublished(1);
+        awaitUnsent(0);
+    }
+
+    @Test
+    public void skipsWhileAnotherNodeHoldsTheLock() throws Exception {
+        database.lockHeld = true;
+        database.addRow("a", "1", null);
+        startRelay();
+        Thread.sleep(200);
+
+        assertTrue(broker.published.isEmpty());
+        assertEquals(database.unsent(), 1);
+        assertEquals(relay.getFailureCount(), 0);
+
+        database.lockHeld = false;
+        relay.wakeUp();
+        awaitPublished(1);
+    }
+
+    @Test
+    public void purgesRowsSentLongerAgoThanRetained() throws Exception {
+        long now = System.currentTimeMillis();
+        database.addRow("a", "1", new Timestamp(now - TimeUnit.HOURS.toMillis(48)));
+        database.addRow("a", "2", new Timestamp(now - TimeUnit.HOURS.toMillis(1)));
+        database.addRow("a", "3", null);
+        startRelay();
+
+        awaitPublished(1);
+        awaitUnsent(0);
+        assertEquals(database.getOutboxSize(), 2);
+        assertEquals(broker.published, Arrays.asList("a 3"));
+    }
+
+    @Test
+    public void stopsOnShutdown() throws Exception {
+        startRelay();
+        relay.shutdown();
+
+        database.addRow("a", "1", null);
+        relay.wakeUp();
+        Thread.sleep(200);
+
+        assertTrue(broker.published.isEmpty());
+        assertEquals(database.openConnections.get(), 0);
+        assertEquals(broker.openChannels(), 0);
+    }
+
+    private void awaitPublished(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(broker.published.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(broker.published.size(), count);
+    }
+
+    private void awaitUnsent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(database.unsent() > count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(database.unsent(), count);
+    }
+
+    private void awaitFailures(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(relay.getFailureCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(relay.getFailureCount() >= count);
+    }
+}
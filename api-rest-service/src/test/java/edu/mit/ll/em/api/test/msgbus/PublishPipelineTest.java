@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+import edu.mit.ll.em.api.msgbus.PublishPipeline;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tests the {@link PublishPipeline}: order within a topic across publisher threads, and each {@link
+ * PublishPipeline.Overflow} policy, with the broker held up so the queue fills.
+ */
+public class PublishPipelineTest {
+
+    private File spillDir;
+
+    private BaseConfiguration config;
+
+    private FakeBroker broker;
+
+    private RabbitPublisher publisher;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        spillDir = File.createTempFile("PublishPipelineTest", "");
+        assertTrue(spillDir.delete());
+        config = new BaseConfiguration();
+        config.setProperty(APIConfig.METRICS_ENABLED, false);
+        config.setProperty(APIConfig.RABBIT_EXCHANGENAME_KEY, "test");
+        config.setProperty(APIConfig.RABBIT_PUBLISH_THREADS, 1);
+        config.setProperty(APIConfig.RABBIT_PUBLISH_QUEUESIZE, 2);
+        config.setProperty(APIConfig.RABBIT_PUBLISH_BATCHSIZE, 1);
+        config.setProperty(APIConfig.RABBIT_PUBLISH_BLOCKMILLIS, 50);
+        config.setProperty(APIConfig.RABBIT_PUBLISH_SHUTDOWNMILLIS, 0);
+        config.setProperty(APIConfig.RABBIT_PUBLISH_SPILLDIR, spillDir.getPath());
+        broker = new FakeBroker();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        release();
+        if(publisher != null) {
+            publisher.freeResources();
+            publisher = null;
+        }
+        File[] files = spillDir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        spillDir.delete();
+    }
+
+    @Test
+    public void keepsTheOrderOfEachTopic() throws Exception {
+        config.setProperty(APIConfig.RABBIT_PUBLISH_THREADS, 4);
+        config.setProperty(APIConfig.RABBIT_PUBLISH_QUEUESIZE, 1000);
+        config.setProperty(APIConfig.RABBIT_PUBLISH_BATCHSIZE, 3);
+        start();
+
+        for(int i = 0; i < 200; i++) {
+            publisher.produce("topic" + (i % 10), String.valueOf(i));
+        }
+        awaitPublished(200);
+
+        Map<String, Integer> last = new HashMap<String, Integer>();
+        for(String published : broker.published) {
+            String[] parts = published.split(" ");
+            Integer previous = last.put(parts[0], Integer.valueOf(parts[1]));
+            assertTrue(previous == null || previous < Integer.parseInt(parts[1]), "out of order: " +
+                    broker.published);
+        }
+        assertEquals(publisher.getPipeline().getConfirmedCount(), 200);
+    }
+
+    @Test
+    public void blockGivesUpOnceTheQueueStaysFull() throws Exception {
+        config.setProperty(APIConfig.RABBIT_PUBLISH_OVERFLOW, "block");
+        start();
+        holdUpTheBroker();
+        publisher.produce("t", "1");
+        publisher.produce("t", "2");
+
+        try {
+            publisher.produce("t", "3");
+            fail("the queue was full");
+        } catch(TimeoutException e) {
+            // Expected
+        }
+
+        release();
+        awaitPublished(3);
+        assertEquals(bodies(), Arrays.asList("0", "1", "2"));
+    }
+
+    @Test
+    public void dropOldestMakesRoom() throws Exception {
+        config.setProperty(APIConfig.RABBIT_PUBLISH_OVERFLOW, "drop-oldest");
+        start();
+        holdUpTheBroker();
+        for(int i = 1; i <= 4; i++) {
+            publisher.produce("t", String.valueOf(i));
+        }
+        assertEquals(publisher.getPipeline().getDroppedCount(), 2);
+
+        release();
+        awaitPublished(3);
+        assertEquals(bodies(), Arrays.asList("0", "3", "4"));
+    }
+
+    @Test
+    public void spillKeepsTheOrder() throws Exception {
+        config.setProperty(APIConfig.RABBIT_PUBLISH_OVERFLOW, "spill");
+        start();
+        holdUpTheBroker();
+        for(int i = 1; i <= 5; i++) {
+            publisher.produce("t", String.valueOf(i));
+        }
+        assertEquals(publisher.getPipeline().getSpilledCount(), 3);
+        assertEquals(publisher.getPipeline().getSpillBacklog(), 3);
+
+        release();
+        awaitPublished(6);
+        assertEquals(bodies(), Arrays.asList("0", "1", "2", "3", "4", "5"));
+        awaitSpillBacklog(0);
+    }
+
+    @Test
+    public void spilledMessagesArePublishedAfterARestart() throws Exception {
+        config.setProperty(APIConfig.RABBIT_PUBLISH_OVERFLOW, "spill");
+        start();
+        holdUpTheBroker();
+        publisher.produce("t", "1");
+        publisher.freeResources();
+        publisher = null;
+        assertEquals(broker.published.size(), 0);
+
+        broker = new FakeBroker();
+        start();
+        awaitPublished(2);
+        assertEquals(bodies(), Arrays.asList("0", "1"));
+        awaitSpillBacklog(0);
+    }
+
+    private void start() {
+        publisher = new RabbitPublisher(config, broker, new RequestMetrics(config));
+    }
+
+    /**
+     * Holds the publisher thread in the publish of a first message, 0, so what follows stays queued
+     */
+    private void holdUpTheBroker() throws Exception {
+        broker.publishGate = new CountDownLatch(1);
+        publisher.produce("t", "0");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(publisher.getPipeline().getQueueDepth() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(publisher.getPipeline().getQueueDepth(), 0);
+    }
+
+    private void release() {
+        CountDownLatch gate = broker.publishGate;
+        if(gate != null) {
+            gate.countDown();
+        }
+    }
+
+    private void awaitPublished(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(broker.published.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(broker.published.size(), count);
+    }
+
+    private void awaitSpillBacklog(long backlog) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(publisher.getPipeline().getSpillBacklog() != backlog && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(publisher.getPipeline().getSpillBacklog(), backlog);
+    }
+
+    private List<String> bodies() {
+        List<String> bodies = new ArrayList<String>();
+        for(String published : broker.published) {
+            bodies.add(published.substring(published.indexOf(' ') + 1));
+        }
+        return bodies;
+    }
+}
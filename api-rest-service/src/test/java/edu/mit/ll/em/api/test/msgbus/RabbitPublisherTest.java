@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+import edu.mit.ll.em.api.msgbus.RabbitPublisher;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tests the channel pool {@link RabbitPublisher} publishes synchronously through: reuse, the bound on open channels,
+ * and closing failed channels.
+ */
+public class RabbitPublisherTest {
+
+    private FakeBroker broker;
+
+    private RabbitPublisher publisher;
+
+    @BeforeMethod
+    public void setUp() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.METRICS_ENABLED, false);
+        config.setProperty(APIConfig.RABBIT_EXCHANGENAME_KEY, "test");
+        config.setProperty(APIConfig.RABBIT_PUBLISH_ASYNC, false);
+        config.setProperty(APIConfig.RABBIT_CHANNELS, 2);
+        config.setProperty(APIConfig.RABBIT_CHANNELWAITMILLIS, 100);
+        broker = new FakeBroker();
+        publisher = new RabbitPublisher(config, broker, new RequestMetrics(config));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        CountDownLatch gate = broker.publishGate;
+        if(gate != null) {
+            gate.countDown();
+        }
+        publisher.freeResources();
+    }
+
+    @Test
+    public void reusesIdleChannels() throws Exception {
+        publisher.produce("a", "1");
+        publisher.produce("b", "2");
+
+        assertEquals(broker.published.size(), 2);
+        assertEquals(broker.published.get(0), "a 1");
+        assertEquals(broker.channels.size(), 1);
+        assertEquals(broker.connections.get(), 1);
+    }
+
+    @Test
+    public void boundsOpenChannels() throws Exception {
+        broker.publishGate = new CountDownLatch(1);
+        Thread first = publishInBackground("a");
+        Thread second = publishInBackground("b");
+        awaitChannels(2);
+
+        try {
+            publisher.produce("c", "3");
+            fail("a third channel was opened");
+        } catch(TimeoutException e) {
+            // Expected, both channels are borrowed
+        }
+
+        broker.publishGate.countDown();
+        first.join(5000);
+        second.join(5000);
+        publisher.produce("c", "3");
+        assertEquals(broker.channels.size(), 2);
+        assertEquals(broker.published.size(), 3);
+    }
+
+    @Test
+    public void failedChannelIsClosedAndReplaced() throws Exception {
+        broker.failingPublishes.set(1);
+        try {
+            publisher.produce("a", "1");
+            fail("the publish should have failed");
+        } catch(IOException e) {
+            // Expected
+        }
+        assertEquals(broker.openChannels(), 0);
+
+        publisher.produce("a", "1");
+        assertEquals(broker.channels.size(), 2);
+        assertEquals(broker.published.size(), 1);
+    }
+
+    @Test
+    public void failuresGiveBackTheirPermits() throws Exception {
+        broker.failingPublishes.set(5);
+        for(int i = 0; i < 5; i++) {
+            try {
+                publisher.produce("a", String.valueOf(i));
+            } catch(IOException e) {
+                // Expected
+            }
+        }
+        // Would time out had the failures kept their permits
+        publisher.produce("a", "ok");
+        assertEquals(broker.published.size(), 1);
+    }
+
+    @Test
+    public void closedIdleChannelIsReplaced() throws Exception {
+        publisher.produce("a", "1");
+        broker.channels.get(0).open = false;
+
+        publisher.produce("a", "2");
+        assertEquals(broker.channels.size(), 2);
+        assertTrue(broker.channels.get(1).open);
+    }
+
+    @Test
+    public void freeResourcesClosesChannelsAndConnection() throws Exception {
+        publisher.produce("a", "1");
+        publisher.freeResources();
+
+        assertEquals(broker.openChannels(), 0);
+        assertFalse(broker.connectionOpen);
+        try {
+            publisher.produce("a", "2");
+            fail("published after shutting down");
+        } catch(IOException e) {
+            // Expected
+        }
+    }
+
+    private Thread publishInBackground(final String topic) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    publisher.produce(topic, "body");
+                } catch(Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void awaitChannels(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(broker.channels.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(broker.channels.size(), count);
+    }
+}
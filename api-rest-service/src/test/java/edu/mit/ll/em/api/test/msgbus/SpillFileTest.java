@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.msgbus.OutboundMessage;
+import edu.mit.ll.em.api.msgbus.SpillFile;
+
+/**
+ * Tests that a {@link SpillFile} gives back its messages in order, remembers what was committed across reopening,
+ * and compacts the committed records away.
+ */
+public class SpillFileTest {
+
+    private File file;
+
+    private SpillFile spill;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        file = File.createTempFile("SpillFileTest", ".spill");
+        assertTrue(file.delete());
+        spill = new SpillFile(file, 64);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        spill.close();
+        file.delete();
+    }
+
+    @Test
+    public void readsInOrderWithoutConsuming() throws IOException {
+        append(0, 3);
+
+        assertBodies(spill.read(2), 0, 1);
+        assertBodies(spill.read(10), 0, 1, 2);
+        assertEquals(spill.size(), 3);
+    }
+
+    @Test
+    public void commitSkipsTheBatch() throws IOException {
+        append(0, 3);
+        spill.commit(spill.read(2));
+
+        assertEquals(spill.size(), 1);
+        assertBodies(spill.read(10), 2);
+    }
+
+    @Test
+    public void emptiedOnceAllIsCommitted() throws IOException {
+        append(0, 3);
+        spill.commit(spill.read(3));
+
+        assertTrue(spill.isEmpty());
+        assertNull(spill.read(10));
+        assertEquals(spill.length(), 8);
+
+        append(3, 1);
+        assertBodies(spill.read(10), 3);
+    }
+
+    @Test
+    public void reopeningKeepsWhatWasCommitted() throws IOException {
+        append(0, 4);
+        spill.commit(spill.read(2));
+        // Read but not committed, so published again after reopening
+        spill.read(1);
+        spill.close();
+
+        spill = new SpillFile(file, 64);
+        assertEquals(spill.size(), 2);
+        assertBodies(spill.read(10), 2, 3);
+    }
+
+    @Test
+    public void compactsTheCommittedRecords() throws IOException {
+        append(0, 10);
+        long full = spill.length();
+        spill.commit(spill.read(7));
+
+        assertTrue(spill.length() < full - 64, "committed records not compacted away");
+        assertEquals(spill.size(), 3);
+        assertBodies(spill.read(10), 7, 8, 9);
+
+        append(10, 1);
+        spill.close();
+        spill = new SpillFile(file, 64);
+        assertBodies(spill.read(10), 7, 8, 9, 10);
+    }
+
+    @Test
+    public void keepsSmallCommittedPrefixes() throws IOException {
+        append(0, 10);
+        long full = spill.length();
+        spill.commit(spill.read(1));
+
+        assertEquals(spill.length(), full);
+        assertBodies(spill.read(1), 1);
+    }
+
+    @Test
+    public void dropsARecordCutShort() throws IOException {
+        append(0, 2);
+        spill.close();
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.seek(data.length());
+            data.writeInt(100);
+            data.write(new byte[] {1, 2, 3});
+        } finally {
+            data.close();
+        }
+
+        spill = new SpillFile(file, 64);
+        assertEquals(spill.size(), 2);
+        append(2, 1);
+        assertBodies(spill.read(10), 0, 1, 2);
+    }
+
+    @Test
+    public void readPositionPastTheEndStartsAtTheFront() throws IOException {
+        // As left by a compaction cut short once the records were moved to the front
+        append(0, 2);
+        spill.close();
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.writeLong(data.length() + 100);
+        } finally {
+            data.close();
+        }
+
+        spill = new SpillFile(file, 64);
+        assertBodies(spill.read(10), 0, 1);
+    }
+
+    private void append(int first, int count) throws IOException {
+        for(int i = first; i < first + count; i++) {
+            spill.append(new OutboundMessage("topic", "message " + i));
+        }
+    }
+
+    private static void assertBodies(SpillFile.Batch batch, int... expected) {
+        List<OutboundMessage> messages = batch.getMessages();
+        assertEquals(messages.size(), expected.length);
+        for(int i = 0; i < expected.length; i++) {
+            assertEquals(messages.get(i).getBody(), "message " + expected[i]);
+        }
+    }
+}
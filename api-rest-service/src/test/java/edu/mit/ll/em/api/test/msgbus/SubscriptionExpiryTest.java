@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionMgr;
+import edu.mit.ll.em.api.msgbus.SubscriptionSession;
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.rs.StringConstant;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tests that {@link MsgBusSubscriptionMgr} expires the subscriptions left unused past their timeout, and only those.
+ * The timer ticks every 10ms, so a session with a 1s timeout is gone soon after its second is up.
+ */
+public class SubscriptionExpiryTest {
+
+    private MsgBusSubscriptionMgr mgr;
+
+    private ExecutorService pollers;
+
+    @BeforeMethod
+    public void setUp() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.METRICS_ENABLED, false);
+        config.setProperty(APIConfig.MSGBUS_TICKMILLIS, 10);
+        config.setProperty(APIConfig.MSGBUS_MAXWAITMILLIS, 5000);
+        mgr = new MsgBusSubscriptionMgr(config);
+        pollers = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        mgr.freeResources();
+        pollers.shutdownNow();
+    }
+
+    @Test
+    public void testIdleSessionExpires() throws Exception {
+        subscribe(1, 1);
+        SubscriptionSession ss = mgr.getSessions().get(1L);
+
+        awaitSessionCount(0);
+
+        assertEquals(mgr.getExpiredCount(), 1);
+        assertTrue(ss.isTerminated());
+        assertNull(mgr.getFromSubscription(1, 10, 0));
+    }
+
+    @Test
+    public void testSessionInUseSurvivesItsTimeout() throws Exception {
+        subscribe(1, 1);
+
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2500);
+        while(System.nanoTime() < until) {
+            assertTrue(mgr.getFromSubscription(1, 10, 0).isEmpty());
+            Thread.sleep(100);
+        }
+
+        assertEquals(mgr.getSessionCount(), 1);
+        assertEquals(mgr.getExpiredCount(), 0);
+    }
+
+    @Test
+    public void testWaitingGetKeepsSessionAlive() throws Exception {
+        subscribe(1, 1);
+
+        // Waits 5s, well past the 1s timeout
+        Future<Collection<MsgEnvelope>> poll = poll(1, 5000);
+        Thread.sleep(2000);
+
+        assertEquals(mgr.getSessionCount(), 1);
+        mgr.postToSubscription(1, message("update"));
+        assertEquals(poll.get(5, TimeUnit.SECONDS).size(), 1);
+        assertEquals(mgr.getExpiredCount(), 0);
+    }
+
+    @Test
+    public void testSessionWithoutTimeoutNeverExpires() throws Exception {
+        subscribe(1, 0);
+        subscribe(2, 1);
+
+        awaitSessionCount(1);
+
+        assertTrue(mgr.getSessions().containsKey(1L));
+        assertEquals(mgr.getExpiredCount(), 1);
+    }
+
+    @Test
+    public void testResubscribingReplacesTheAbandonedSession() throws Exception {
+        subscribe(1, 1);
+        SubscriptionSession abandoned = mgr.getSessions().get(1L);
+        subscribe(1, 0);
+
+        assertTrue(abandoned.isTerminated());
+        assertEquals(mgr.getSessionCount(), 1);
+
+        // The abandoned session's expiry comes up, but must not remove its replacement
+        Thread.sleep(1500);
+        assertEquals(mgr.getSessionCount(), 1);
+        assertFalse(mgr.getSessions().get(1L).isTerminated());
+        assertEquals(mgr.getExpiredCount(), 0);
+    }
+
+    @Test
+    public void testPostWakesWaitingGet() throws Exception {
+        subscribe(1, 60);
+        Future<Collection<MsgEnvelope>> poll = poll(1, 5000);
+        awaitWaiting(1);
+
+        mgr.postToSubscription(1, message("update"));
+
+        Collection<MsgEnvelope> msgs = poll.get(1, TimeUnit.SECONDS);
+        assertEquals(msgs.size(), 1);
+        assertEquals(msgs.iterator().next().getMsgType(), "update");
+    }
+
+    @Test
+    public void testEndSubscriptionEndsWaitingGet() throws Exception {
+        subscribe(1, 60);
+        Future<Collection<MsgEnvelope>> poll = poll(1, 5000);
+        awaitWaiting(1);
+
+        assertTrue(mgr.endSubscription(1));
+
+        assertTrue(poll.get(1, TimeUnit.SECONDS).isEmpty());
+        assertFalse(mgr.endSubscription(1));
+        assertNull(mgr.getFromSubscription(1, 10, 0));
+    }
+
+    private void subscribe(long subscriberId, int timeoutSeconds) throws Exception {
+        Map<String, String> attrs = new HashMap<String, String>();
+        attrs.put(StringConstant.URIOPT_SUBSCRIBER_ID, String.valueOf(subscriberId));
+        attrs.put(StringConstant.URIOPT_TOPICS, "iweb.NICS.incident+iweb.NICS.collabroom");
+        attrs.put(StringConstant.URIOPT_TIMEOUT, String.valueOf(timeoutSeconds));
+        mgr.beginSubscription(attrs);
+    }
+
+    private Future<Collection<MsgEnvelope>> poll(final long subscriberId, final long waitMillis) {
+        return pollers.submit(new Callable<Collection<MsgEnvelope>>() {
+            @Override
+            public Collection<MsgEnvelope> call() throws Exception {
+                return mgr.getFromSubscription(subscriberId, 10, waitMillis);
+            }
+        });
+    }
+
+    private static MsgEnvelope message(String type) {
+        MsgEnvelope msg = new MsgEnvelope();
+        msg.setMsgType(type);
+        msg.setMsgPayload("{}");
+        return msg;
+    }
+
+    private void awaitSessionCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(mgr.getSessionCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(mgr.getSessionCount(), count);
+    }
+
+    private void awaitWaiting(long subscriberId) throws InterruptedException {
+        SubscriptionSession ss = mgr.getSessions().get(subscriberId);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!ss.isWaiting() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(ss.isWaiting());
+    }
+}
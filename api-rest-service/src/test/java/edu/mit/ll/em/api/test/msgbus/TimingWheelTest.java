@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.msgbus;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.msgbus.TimingWheel;
+
+/**
+ * Unit tests for {@link TimingWheel}, on a wheel of 8 slots ticking every 10ns from time 0, so a turn is 80ns.
+ */
+public class TimingWheelTest {
+
+    private TimingWheel<String> wheel;
+
+    @BeforeMethod
+    public void setUp() {
+        wheel = new TimingWheel<String>(10, 8, 0);
+    }
+
+    @Test
+    public void testItemIsReturnedOnceDue() {
+        wheel.schedule("a", 25);
+
+        // Rounded up to the tick at 30
+        assertTrue(wheel.advance(29).isEmpty());
+        assertEquals(wheel.advance(30), Collections.singletonList("a"));
+        assertTrue(wheel.advance(100).isEmpty());
+        assertEquals(wheel.size(), 0);
+    }
+
+    @Test
+    public void testItemMoreThanATurnAwayWaitsForItsTurn() {
+        // Tick 9 shares slot 1 with tick 1
+        wheel.schedule("late", 90);
+        wheel.schedule("early", 10);
+
+        assertEquals(wheel.advance(10), Collections.singletonList("early"));
+        assertTrue(wheel.advance(80).isEmpty());
+        assertEquals(wheel.size(), 1);
+        assertEquals(wheel.advance(90), Collections.singletonList("late"));
+    }
+
+    @Test
+    public void testOverdueTicksAreCollectedInOneAdvance() {
+        for(int tick = 1; tick <= 20; tick++) {
+            wheel.schedule("item" + tick, tick * 10);
+        }
+
+        // Many turns late, each slot is walked once
+        List<String> due = wheel.advance(1000);
+
+        assertEquals(due.size(), 20);
+        assertEquals(wheel.size(), 0);
+    }
+
+    @Test
+    public void testOverdueAdvanceLeavesItemsNotYetDue() {
+        wheel.schedule("due", 50);
+        wheel.schedule("notDue", 250);
+
+        assertEquals(wheel.advance(200), Collections.singletonList("due"));
+        assertEquals(wheel.size(), 1);
+        assertEquals(wheel.advance(250), Collections.singletonList("notDue"));
+    }
+
+    @Test
+    public void testItemDueInThePastGoesToTheNextTick() {
+        wheel.advance(50);
+        wheel.schedule("past", 10);
+
+        assertTrue(wheel.advance(59).isEmpty());
+        assertEquals(wheel.advance(60), Collections.singletonList("past"));
+    }
+
+    @Test
+    public void testRescheduledItemComesBackAtItsNewTime() {
+        wheel.schedule("session", 30);
+        List<String> due = wheel.advance(30);
+        assertEquals(due, Collections.singletonList("session"));
+
+        // Used meanwhile, so put back for its new expiry
+        wheel.schedule("session", 110);
+        assertTrue(wheel.advance(100).isEmpty());
+        assertEquals(wheel.advance(110), Collections.singletonList("session"));
+    }
+
+    @Test
+    public void testItemsOfATickAreReturnedTogether() {
+        wheel.schedule("a", 21);
+        wheel.schedule("b", 30);
+        wheel.schedule("c", 31);
+
+        assertEquals(wheel.advance(30), Arrays.asList("a", "b"));
+        assertEquals(wheel.advance(40), Collections.singletonList("c"));
+    }
+}
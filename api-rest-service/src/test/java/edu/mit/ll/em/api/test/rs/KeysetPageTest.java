@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.rs;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.rs.KeysetPage;
+import edu.mit.ll.em.api.rs.QueryConstraintParms;
+
+/**
+ * Unit tests for {@link KeysetPage}, reading from an in-memory table that, like the database, only orders rows by
+ * time and returns rows sharing a time in no particular order.
+ */
+public class KeysetPageTest {
+
+    private static final String COLUMN = "created";
+
+    private static class Row {
+        final long time;
+        final long id;
+
+        Row(long time, long id) {
+            this.time = time;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return time + "/" + id;
+        }
+    }
+
+    private static final KeysetPage.RowKey<Row> KEY = new KeysetPage.RowKey<Row>() {
+        @Override
+        public long getTime(Row row) {
+            return row.time;
+        }
+
+        @Override
+        public long getId(Row row) {
+            return row.id;
+        }
+    };
+
+    private static class Table implements KeysetPage.Query<Row> {
+        final List<Row> rows = new ArrayList<Row>();
+        int fetches;
+
+        Table add(long time, long... ids) {
+            for(long id : ids) {
+                rows.add(new Row(time, id));
+            }
+            return this;
+        }
+
+        @Override
+        public List<Row> fetch(Long fromDate, Long toDate, final boolean descending, int maxRows) {
+            fetches++;
+            List<Row> matching = new ArrayList<Row>();
+            for(Row row : rows) {
+                if((fromDate == null || row.time >= fromDate) && (toDate == null || row.time <= toDate)) {
+                    matching.add(row);
+                }
+            }
+            // By time only, ties end up in reverse id order
+            Collections.sort(matching, new Comparator<Row>() {
+                @Override
+                public int compare(Row row, Row other) {
+                    if(row.time != other.time) {
+                        return (row.time < other.time) != descending ? -1 : 1;
+                    }
+                    return Long.compare(other.id, row.id);
+                }
+            });
+            return new ArrayList<Row>(matching.subList(0, Math.min(maxRows, matching.size())));
+        }
+    }
+
+    private static QueryConstraintParms opts(String cursor, int limit, String sortOrder) {
+        QueryConstraintParms opts = new QueryConstraintParms();
+        opts.setCursor(cursor);
+        opts.setLimit(limit);
+        opts.setSortOrder(sortOrder);
+        return opts;
+    }
+
+    /**
+     * @return every row read, following the cursors from the first page to the last
+     */
+    private static List<Row> readAll(Table table, QueryConstraintParms opts, int maxRows) {
+        List<Row> read = new ArrayList<Row>();
+        String cursor = "";
+        int pages = 0;
+        while(cursor != null) {
+            opts.setCursor(cursor);
+            KeysetPage<Row> page = KeysetPage.read(opts, COLUMN, maxRows, KEY, table);
+            assertTrue(page.getRows().size() <= opts.getLimit());
+            read.addAll(page.getRows());
+            cursor = page.getNextCursor();
+            assertTrue(++pages < 100, "cursor doesn't advance");
+        }
+        return read;
+    }
+
+    private static String ids(List<Row> rows) {
+        StringBuilder ids = new StringBuilder();
+        for(Row row : rows) {
+            ids.append(row.id).append(' ');
+        }
+        return ids.toString().trim();
+    }
+
+    @Test
+    public void testOnlyRequestsWithACursorArePagedByKey() {
+        QueryConstraintParms opts = new QueryConstraintParms();
+        opts.setLimit(10);
+        assertFalse(KeysetPage.isKeysetRequest(opts, COLUMN));
+
+        opts.setCursor("");
+        assertTrue(KeysetPage.isKeysetRequest(opts, COLUMN));
+
+        opts.setSortByColumn("other");
+        assertFalse(KeysetPage.isKeysetRequest(opts, COLUMN));
+        assertFalse(KeysetPage.isKeysetRequest(null, COLUMN));
+    }
+
+    @Test
+    public void testAscendingPagesThroughTies() {
+        Table table = new Table().add(10, 1).add(20, 2, 3, 4, 5, 6).add(30, 7, 8).add(40, 9);
+
+        List<Row> read = readAll(table, opts("", 2, "asc"), 10);
+
+        assertEquals(ids(read), "1 2 3 4 5 6 7 8 9");
+    }
+
+    @Test
+    public void testDescendingPagesThroughTies() {
+        Table table = new Table().add(10, 1).add(20, 2, 3, 4, 5, 6).add(30, 7, 8).add(40, 9);
+
+        List<Row> read = readAll(table, opts("", 2, "desc"), 10);
+
+        assertEquals(ids(read), "9 8 7 6 5 4 3 2 1");
+    }
+
+    @Test
+    public void testTiesLongerThanThePageAreReadWhole() {
+        Table table = new Table().add(10, 1, 2, 3, 4, 5, 6, 7, 8);
+
+        KeysetPage<Row> page = KeysetPage.read(opts("", 3, "asc"), COLUMN, 10, KEY, table);
+
+        assertEquals(ids(page.getRows()), "1 2 3");
+        // Fetches of 4 and 8 rows were all one time, so they were read again with more rows until the run fit
+        assertEquals(table.fetches, 3);
+        assertEquals(ids(readAll(table, opts("", 3, "asc"), 10)), "1 2 3 4 5 6 7 8");
+    }
+
+    @Test
+    public void testLastPageHasNoCursor() {
+        Table table = new Table().add(10, 1).add(20, 2).add(30, 3).add(40, 4);
+
+        KeysetPage<Row> first = KeysetPage.read(opts("", 2, "asc"), COLUMN, 10, KEY, table);
+        KeysetPage<Row> second = KeysetPage.read(opts(first.getNextCursor(), 2, "asc"), COLUMN, 10, KEY, table);
+
+        assertEquals(ids(second.getRows()), "3 4");
+        assertNull(second.getNextCursor());
+    }
+
+    @Test
+    public void testDateRangeBoundsThePages() {
+        Table table = new Table().add(10, 1).add(20, 2, 3).add(30, 4).add(40, 5).add(50, 6);
+        QueryConstraintParms opts = opts("", 1, "asc");
+        opts.setFromDate(20L);
+        opts.setToDate(40L);
+
+        assertEquals(ids(readAll(table, opts, 10)), "2 3 4 5");
+
+        opts.setSortOrder("desc");
+        assertEquals(ids(readAll(table, opts, 10)), "5 4 3 2");
+    }
+
+    @Test
+    public void testLimitIsCappedByMaxRows() {
+        Table table = new Table().add(10, 1).add(20, 2).add(30, 3).add(40, 4);
+
+        KeysetPage<Row> page = KeysetPage.read(opts("", 100, "asc"), COLUMN, 3, KEY, table);
+
+        assertEquals(ids(page.getRows()), "1 2 3");
+    }
+
+    @Test
+    public void testBadCursorsAreRefused() {
+        Table table = new Table().add(10, 1);
+        String ascending = KeysetPage.encode(10, 1, false);
+
+        for(String cursor : new String[]{"not a cursor", "YTox", KeysetPage.encode(10, 1, true)}) {
+            try {
+                KeysetPage.read(opts(cursor, 2, "asc"), COLUMN, 10, KEY, table);
+                fail("Accepted cursor " + cursor);
+            } catch(IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            KeysetPage.read(opts(ascending, 2, "desc"), COLUMN, 10, KEY, table);
+            fail("Accepted an ascending cursor for a descending read");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(KeysetPage.decode(ascending, false)[0], 10);
+        assertEquals(KeysetPage.decode(ascending, false)[1], 1);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.rs;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.mit.ll.em.api.rs.QueryConstraintHelper;
+import edu.mit.ll.em.api.rs.StreamingListOutput;
+
+/**
+ * Unit tests for {@link StreamingListOutput}, checking its output against the JSON Jackson writes for the whole
+ * envelope, and that a fields selection only narrows the rows.
+ */
+public class StreamingListOutputTest {
+
+    private static final String ROWS = "rows";
+
+    @JsonPropertyOrder({"message", "rows", "count", "timestamp"})
+    public static class Envelope {
+        private String message = "ok";
+        private List<Row> rows = new ArrayList<Row>();
+        private int count;
+        private long timestamp = 1234567890000L;
+
+        public String getMessage() {
+            return message;
+        }
+
+        public List<Row> getRows() {
+            return rows;
+        }
+
+        public void setRows(List<Row> rows) {
+            this.rows = rows;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    // Leaves out a null list, so the rows have no place in the envelope's JSON
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class SparseEnvelope {
+        private String message = "ok";
+        private List<Row> rows;
+
+        public String getMessage() {
+            return message;
+        }
+
+        public List<Row> getRows() {
+            return rows;
+        }
+
+        public void setRows(List<Row> rows) {
+            this.rows = rows;
+        }
+    }
+
+    @JsonPropertyOrder({"id", "name", "detail", "tags"})
+    public static class Row {
+        private final int id;
+        private final String name;
+        private final Detail detail;
+        private final List<String> tags;
+
+        public Row(int id, String name, Detail detail, String... tags) {
+            this.id = id;
+            this.name = name;
+            this.detail = detail;
+            this.tags = Arrays.asList(tags);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Detail getDetail() {
+            return detail;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+    }
+
+    @JsonPropertyOrder({"id", "name"})
+    public static class Detail {
+        private final int id;
+        private final String name;
+
+        public Detail(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    static List<Row> rows() {
+        return Arrays.asList(
+                new Row(1, "first", new Detail(10, "detail \"one\""), "a", "b"),
+                new Row(2, "second", null),
+                new Row(3, "third é", new Detail(30, "detail three"), "c"));
+    }
+
+    @SuppressWarnings("unchecked")
+    static String write(Object envelope, String listProperty, List<?> rows, Set<String> fields) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new StreamingListOutput<Object>(envelope, listProperty, (List<Object>) rows, fields).write(output);
+        return output.toString("UTF-8");
+    }
+
+    // What the response was before it was streamed: the envelope, rows and all, written by a new ObjectMapper
+    static String expected(Envelope envelope, List<Row> rows) throws Exception {
+        envelope.setRows(rows);
+        try {
+            return new ObjectMapper().writeValueAsString(envelope);
+        } finally {
+            envelope.setRows(new ArrayList<Row>());
+        }
+    }
+
+    @Test
+    public void testMatchesEnvelopeWrittenWhole() throws Exception {
+        Envelope envelope = new Envelope();
+        envelope.setCount(3);
+
+        assertEquals(write(envelope, ROWS, rows(), null), expected(envelope, rows()));
+    }
+
+    @Test
+    public void testEmptyRows() throws Exception {
+        Envelope envelope = new Envelope();
+
+        assertEquals(write(envelope, ROWS, Collections.<Row>emptyList(), null),
+                expected(envelope, Collections.<Row>emptyList()));
+    }
+
+    @Test
+    public void testNullRowsWriteEmptyArray() throws Exception {
+        assertEquals(write(new Envelope(), ROWS, null, null),
+                "{\"message\":\"ok\",\"rows\":[],\"count\":0,\"timestamp\":1234567890000}");
+    }
+
+    @Test
+    public void testRowsAppendedWhenEnvelopeLeavesOutList() throws Exception {
+        assertEquals(write(new SparseEnvelope(), ROWS, rows().subList(1, 2), null),
+                "{\"message\":\"ok\",\"rows\":[{\"id\":2,\"name\":\"second\",\"detail\":null,\"tags\":[]}]}");
+    }
+
+    @Test
+    public void testRowsLeftUnchanged() throws Exception {
+        List<Row> rows = new ArrayList<Row>(rows());
+
+        write(new Envelope(), ROWS, rows, null);
+
+        assertEquals(rows.size(), 3);
+        for(int i = 0; i < rows.size(); i++) {
+            assertEquals(rows.get(i).getId(), i + 1);
+        }
+    }
+
+    @Test
+    public void testUnmodifiableRows() throws Exception {
+        Envelope envelope = new Envelope();
+        List<Row> rows = Collections.unmodifiableList(rows());
+
+        assertEquals(write(envelope, ROWS, rows, null), expected(envelope, rows));
+    }
+
+    @Test
+    public void testRepeatableWrite() throws Exception {
+        Envelope envelope = new Envelope();
+        List<Row> rows = rows();
+
+        assertEquals(write(envelope, ROWS, rows, null), write(envelope, ROWS, rows, null));
+    }
+
+    static Set<String> fields(String fields) {
+        return QueryConstraintHelper.makeColumnSelectionSet(fields);
+    }
+
+    @Test
+    public void testEmptyFieldsWriteEveryProperty() throws Exception {
+        Envelope envelope = new Envelope();
+
+        assertEquals(write(envelope, ROWS, rows(), fields("")), expected(envelope, rows()));
+        assertEquals(write(envelope, ROWS, rows(), fields(" , ")), expected(envelope, rows()));
+        assertEquals(write(envelope, ROWS, rows(), new HashSet<String>()), expected(envelope, rows()));
+    }
+
+    @Test
+    public void testFieldsNarrowRows() throws Exception {
+        assertEquals(write(new Envelope(), ROWS, rows(), fields("name,id")),
+                "{\"message\":\"ok\",\"rows\":["
+                        + "{\"id\":1,\"name\":\"first\"},"
+                        + "{\"id\":2,\"name\":\"second\"},"
+                        + "{\"id\":3,\"name\":\"third é\"}],"
+                        + "\"count\":0,\"timestamp\":1234567890000}");
+    }
+
+    @Test
+    public void testFieldsLeaveEnvelopeWhole() throws Exception {
+        // The envelope has a message and count too, neither of which is selected
+        String json = write(new Envelope(), ROWS, Collections.<Row>emptyList(), fields("id"));
+
+        assertEquals(json, "{\"message\":\"ok\",\"rows\":[],\"count\":0,\"timestamp\":1234567890000}");
+    }
+
+    @Test
+    public void testNestedBeanWrittenWhole() throws Exception {
+        // Detail has a name, which is not selected, but it is only narrowed as a row
+        assertEquals(write(new Envelope(), ROWS, rows().subList(0, 1), fields("detail")),
+                "{\"message\":\"ok\",\"rows\":[{\"detail\":{\"id\":10,\"name\":\"detail \\\"one\\\"\"}}],"
+                        + "\"count\":0,\"timestamp\":1234567890000}");
+    }
+
+    @Test
+    public void testNestedListOfBeansWrittenWhole() throws Exception {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("id", 1);
+        row.put("details", Arrays.asList(new Detail(10, "ten"), new Detail(20, "twenty")));
+        row.put("extra", "left out");
+
+        assertEquals(write(new SparseEnvelope(), ROWS, Collections.singletonList(row), fields("details")),
+                "{\"message\":\"ok\",\"rows\":[{\"details\":"
+                        + "[{\"id\":10,\"name\":\"ten\"},{\"id\":20,\"name\":\"twenty\"}]}]}");
+    }
+
+    @Test
+    public void testDottedFieldIsNotAPath() throws Exception {
+        // Only the rows' own properties can be selected
+        assertEquals(write(new SparseEnvelope(), ROWS, rows().subList(0, 1), fields("id,detail.name")),
+                "{\"message\":\"ok\",\"rows\":[{\"id\":1}]}");
+    }
+
+    @Test
+    public void testUnknownFieldsIgnored() throws Exception {
+        assertEquals(write(new SparseEnvelope(), ROWS, rows().subList(1, 2), fields("id,nosuchfield")),
+                "{\"message\":\"ok\",\"rows\":[{\"id\":2}]}");
+    }
+
+    @Test
+    public void testOnlyUnknownFieldsWriteEmptyRows() throws Exception {
+        assertEquals(write(new SparseEnvelope(), ROWS, rows().subList(0, 2), fields("nosuchfield")),
+                "{\"message\":\"ok\",\"rows\":[{},{}]}");
+    }
+
+    @Test
+    public void testFieldsKeepRowPropertyOrder() throws Exception {
+        Set<String> fields = new LinkedHashSet<String>(Arrays.asList("tags", "id"));
+
+        assertEquals(write(new SparseEnvelope(), ROWS, rows().subList(0, 1), fields),
+                "{\"message\":\"ok\",\"rows\":[{\"id\":1,\"tags\":[\"a\",\"b\"]}]}");
+    }
+
+    @Test
+    public void testUnfilteredAfterFiltered() throws Exception {
+        // The filtering writer must not leave anything behind on the shared mapper
+        Envelope envelope = new Envelope();
+        write(envelope, ROWS, rows(), fields("id"));
+
+        assertEquals(write(envelope, ROWS, rows(), null), expected(envelope, rows()));
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.metrics.RequestMetrics;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.AsyncRequestExecutors;
+
+/**
+ * Tests the answers of {@link AsyncRequestExecutors} to saturation, timeouts and shutdown, on an executor of one
+ * thread and a queue of one.
+ */
+public class AsyncRequestExecutorsTest {
+
+    private static final String EXECUTOR = "test";
+
+    private AsyncRequestExecutors executors;
+
+    private CountDownLatch release;
+
+    @BeforeMethod
+    public void setUp() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.METRICS_ENABLED, false);
+        config.setProperty(APIConfig.ASYNC_PREFIX + EXECUTOR + APIConfig.ASYNC_THREADS_SUFFIX, 1);
+        config.setProperty(APIConfig.ASYNC_PREFIX + EXECUTOR + APIConfig.ASYNC_QUEUESIZE_SUFFIX, 1);
+        config.setProperty(APIConfig.ASYNC_RETRYAFTERSECONDS, 7);
+        executors = new AsyncRequestExecutors(config, new RequestMetrics(config));
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        release.countDown();
+        executors.freeResources();
+    }
+
+    @Test
+    public void answersWithTheResponse() throws Exception {
+        FakeAsyncResponse response = new FakeAsyncResponse();
+        executors.submit(EXECUTOR, response, respond(Response.ok().build()));
+
+        assertEquals(response.awaitStatus(), 200);
+    }
+
+    @Test
+    public void queuedRequestTimesOutWithRetryAfter() throws Exception {
+        FakeAsyncResponse running = submitBlocking();
+        AtomicBoolean ran = new AtomicBoolean();
+        FakeAsyncResponse queued = new FakeAsyncResponse();
+        executors.submit(EXECUTOR, queued, flag(ran));
+
+        queued.timeout();
+        assertEquals(queued.awaitStatus(), 503);
+        assertEquals(queued.response.getHeaderString(HttpHeaders.RETRY_AFTER), "7");
+
+        release.countDown();
+        assertEquals(running.awaitStatus(), 200);
+        assertFalse(ran.get(), "a request answered on timeout must not run");
+    }
+
+    @Test
+    public void runningRequestTimesOutWithoutRetryAfter() throws Exception {
+        FakeAsyncResponse running = submitBlocking();
+
+        running.timeout();
+        assertEquals(running.awaitStatus(), 504);
+        assertNull(running.response.getHeaderString(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    public void fullQueueIsTurnedAway() throws Exception {
+        submitBlocking();
+        executors.submit(EXECUTOR, new FakeAsyncResponse(), respond(Response.ok().build()));
+
+        FakeAsyncResponse rejected = new FakeAsyncResponse();
+        executors.submit(EXECUTOR, rejected, respond(Response.ok().build()));
+        assertEquals(rejected.awaitStatus(), 503);
+        assertEquals(rejected.response.getHeaderString(HttpHeaders.RETRY_AFTER), "7");
+    }
+
+    @Test
+    public void freeResourcesTurnsQueuedAwayAndLetsRunningFinish() throws Exception {
+        FakeAsyncResponse running = new FakeAsyncResponse();
+        final CountDownLatch started = new CountDownLatch(1);
+        executors.submit(EXECUTOR, running, new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                started.countDown();
+                Thread.sleep(200);
+                return Response.ok().build();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        AtomicBoolean ran = new AtomicBoolean();
+        FakeAsyncResponse queued = new FakeAsyncResponse();
+        executors.submit(EXECUTOR, queued, flag(ran));
+
+        executors.freeResources();
+        assertEquals(queued.awaitStatus(), 503);
+        assertEquals(running.awaitStatus(), 200);
+        assertFalse(ran.get());
+
+        FakeAsyncResponse late = new FakeAsyncResponse();
+        executors.submit(EXECUTOR, late, respond(Response.ok().build()));
+        assertEquals(late.awaitStatus(), 503);
+    }
+
+    /**
+     * Occupies the executor's thread until release is counted down
+     */
+    private FakeAsyncResponse submitBlocking() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        FakeAsyncResponse response = new FakeAsyncResponse();
+        executors.submit(EXECUTOR, response, new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                started.countDown();
+                release.await();
+                return Response.ok().build();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return response;
+    }
+
+    private static Callable<Response> respond(final Response response) {
+        return new Callable<Response>() {
+            @Override
+            public Response call() {
+                return response;
+            }
+        };
+    }
+
+    private static Callable<Response> flag(final AtomicBoolean ran) {
+        return new Callable<Response>() {
+            @Override
+            public Response call() {
+                ran.set(true);
+                return Response.ok().build();
+            }
+        };
+    }
+
+    /**
+     * Keeps the first response it is resumed with, and the timeout handler to fire in place of the container
+     */
+    private static class FakeAsyncResponse implements AsyncResponse {
+
+        private final CountDownLatch resumed = new CountDownLatch(1);
+
+        private volatile TimeoutHandler timeoutHandler;
+
+        private volatile Response response;
+
+        private volatile Throwable thrown;
+
+        void timeout() {
+            timeoutHandler.handleTimeout(this);
+        }
+
+        int awaitStatus() throws InterruptedException {
+            assertTrue(resumed.await(5, TimeUnit.SECONDS), "not resumed");
+            assertNull(thrown);
+            return response.getStatus();
+        }
+
+        @Override
+        public synchronized boolean resume(Object response) {
+            if(isDone()) {
+                return false;
+            }
+            this.response = (Response) response;
+            resumed.countDown();
+            return true;
+        }
+
+        @Override
+        public synchronized boolean resume(Throwable response) {
+            if(isDone()) {
+                return false;
+            }
+            this.thrown = response;
+            resumed.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean cancel() {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return !isDone();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return resumed.getCount() == 0;
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return true;
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+            this.timeoutHandler = handler;
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.util.BulkheadCompartment;
+
+/**
+ * Tests admission to a {@link BulkheadCompartment}: places, waiting, turning requests away, and releasing a place once.
+ */
+public class BulkheadCompartmentTest {
+
+    @Test
+    public void admitsUpToMaxConcurrent() {
+        BulkheadCompartment compartment = new BulkheadCompartment("test", 2, 0, 0);
+        BulkheadCompartment.Permit first = compartment.enter();
+        assertNotNull(first);
+        assertNotNull(compartment.enter());
+        assertEquals(compartment.getInUse(), 2);
+
+        assertNull(compartment.enter());
+        assertEquals(compartment.getQueueFullCount(), 1);
+
+        first.release();
+        assertNotNull(compartment.enter());
+        assertEquals(compartment.getAdmittedCount(), 3);
+    }
+
+    @Test
+    public void releasesOnce() {
+        BulkheadCompartment compartment = new BulkheadCompartment("test", 1, 0, 0);
+        BulkheadCompartment.Permit permit = compartment.enter();
+        permit.release();
+        permit.release();
+        assertEquals(compartment.getInUse(), 0);
+
+        assertNotNull(compartment.enter());
+        assertNull(compartment.enter(), "a second release must not have added a place");
+    }
+
+    @Test
+    public void waitingRequestTimesOut() {
+        BulkheadCompartment compartment = new BulkheadCompartment("test", 1, 1, 50);
+        compartment.enter();
+
+        long start = System.nanoTime();
+        assertNull(compartment.enter());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(compartment.getTimedOutCount(), 1);
+        assertEquals(compartment.getWaiting(), 0);
+    }
+
+    @Test
+    public void waitingRequestGetsTheReleasedPlace() throws Exception {
+        final BulkheadCompartment compartment = new BulkheadCompartment("test", 1, 1, 5000);
+        BulkheadCompartment.Permit permit = compartment.enter();
+
+        final AtomicReference<BulkheadCompartment.Permit> admitted = new AtomicReference<BulkheadCompartment.Permit>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                admitted.set(compartment.enter());
+                done.countDown();
+            }
+        });
+        waiter.start();
+        awaitWaiting(compartment, 1);
+
+        // The one waiting place is taken
+        assertNull(compartment.enter());
+        assertEquals(compartment.getQueueFullCount(), 1);
+
+        permit.release();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull(admitted.get());
+        assertEquals(compartment.getInUse(), 1);
+    }
+
+    private static void awaitWaiting(BulkheadCompartment compartment, int waiting) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(compartment.getWaiting() < waiting && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(compartment.getWaiting(), waiting);
+    }
+}
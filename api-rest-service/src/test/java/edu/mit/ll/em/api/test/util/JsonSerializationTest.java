@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.mit.ll.em.api.util.JsonSerialization;
+
+/**
+ * Tests that {@link JsonSerialization#toJson(Object)} writes values exactly as the new ObjectMapper each notify method
+ * used to create wrote them.
+ */
+public class JsonSerializationTest {
+
+    public static class Payload {
+        private final int id;
+        private final String name;
+        private final Object detail;
+
+        public Payload(int id, String name, Object detail) {
+            this.id = id;
+            this.name = name;
+            this.detail = detail;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Declared as Object, written as its runtime type
+        public Object getDetail() {
+            return detail;
+        }
+    }
+
+    public static class DetailedPayload extends Payload {
+        public DetailedPayload(int id, String name, Object detail) {
+            super(id, name, detail);
+        }
+
+        @JsonProperty("extra")
+        public List<Integer> getExtras() {
+            return Arrays.asList(1, 2);
+        }
+
+        @JsonIgnore
+        public String getSecret() {
+            return "hidden";
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Sparse {
+        public String present = "here";
+        public String absent;
+        public Date when = new Date(1234567890000L);
+    }
+
+    @DataProvider
+    public Object[][] values() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("incidentid", 5);
+        map.put("payload", new Payload(1, "a \"quoted\" name", null));
+        return new Object[][] {
+                {null},
+                {"text with é and \n"},
+                {42},
+                {new Payload(1, "incident", new Payload(2, "nested", null))},
+                {new DetailedPayload(3, "subclass", new DetailedPayload(4, "nested", "leaf"))},
+                {new Sparse()},
+                {map},
+                {Arrays.asList(new Payload(5, "first", null), new DetailedPayload(6, "second", map))},
+                {Collections.emptyList()},
+                {new int[] {1, 2, 3}},
+        };
+    }
+
+    @Test(dataProvider = "values")
+    public void testOutputMatchesNewMapper(Object value) throws Exception {
+        String expected = new ObjectMapper().writeValueAsString(value);
+
+        assertEquals(JsonSerialization.toJson(value), expected);
+        // Again, through the writer cached by the first call
+        assertEquals(JsonSerialization.toJson(value), expected);
+    }
+
+    @Test
+    public void testWriterIsSharedPerType() {
+        assertSame(JsonSerialization.writerFor(Payload.class), JsonSerialization.writerFor(Payload.class));
+    }
+
+    @Test
+    public void testSubclassGetsItsOwnWriter() throws Exception {
+        JsonSerialization.toJson(new Payload(1, "base", null));
+
+        assertEquals(JsonSerialization.toJson(new DetailedPayload(2, "sub", null)),
+                new ObjectMapper().writeValueAsString(new DetailedPayload(2, "sub", null)));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2008-2021, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.test.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.testng.annotations.Test;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.RateLimit;
+import edu.mit.ll.em.api.util.RateLimits;
+
+/**
+ * Tests the token bucket arithmetic of {@link RateLimit}: tokens left, Retry-After, refills, dropping full buckets
+ * and the overflow bucket, and the per user limits of {@link RateLimits}.
+ */
+public class RateLimitTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void burstThenRefusal() {
+        // A token every 100ms, 3 at once
+        RateLimit limit = new RateLimit("test", 10, 3, 100);
+        long now = System.nanoTime();
+
+        assertEquals(limit.acquire("user", now).getRemaining(), 2);
+        assertEquals(limit.acquire("user", now).getRemaining(), 1);
+        assertEquals(limit.acquire("user", now).getRemaining(), 0);
+
+        RateLimit.Decision refused = limit.acquire("user", now);
+        assertFalse(refused.isAllowed());
+        assertEquals(refused.getRemaining(), 0);
+        assertEquals(refused.getRetryAfterSeconds(), 1);
+        assertEquals(limit.getLimitedCount(), 1);
+
+        RateLimit.Decision next = limit.acquire("user", now + 100 * MILLIS);
+        assertTrue(next.isAllowed());
+        assertEquals(next.getRemaining(), 0);
+        assertEquals(limit.getAllowedCount(), 4);
+    }
+
+    @Test
+    public void keysHaveBucketsOfTheirOwn() {
+        RateLimit limit = new RateLimit("test", 1, 1, 100);
+        long now = System.nanoTime();
+
+        assertTrue(limit.acquire("alice", now).isAllowed());
+        assertFalse(limit.acquire("alice", now).isAllowed());
+        assertTrue(limit.acquire("bob", now).isAllowed());
+        assertEquals(limit.getTrackedKeys(), 2);
+    }
+
+    @Test
+    public void retryAfterRoundsUpToWholeSeconds() {
+        // A token every 2s
+        RateLimit limit = new RateLimit("test", 0.5, 1, 100);
+        long now = System.nanoTime();
+        limit.acquire("user", now);
+
+        assertEquals(limit.acquire("user", now).getRetryAfterSeconds(), 2);
+        assertEquals(limit.acquire("user", now + 1500 * MILLIS).getRetryAfterSeconds(), 1);
+        assertTrue(limit.acquire("user", now + 2000 * MILLIS).isAllowed());
+    }
+
+    @Test
+    public void idleBucketRefillsOnlyToBurst() {
+        RateLimit limit = new RateLimit("test", 10, 3, 100);
+        long now = System.nanoTime();
+        limit.acquire("user", now);
+        limit.acquire("user", now);
+
+        long later = now + TimeUnit.HOURS.toNanos(1);
+        assertEquals(limit.acquire("user", later).getRemaining(), 2);
+    }
+
+    @Test
+    public void keysPastMaxKeysShareTheOverflowBucket() {
+        RateLimit limit = new RateLimit("test", 1, 1, 2);
+        long now = System.nanoTime();
+        limit.acquire("a", now);
+        limit.acquire("b", now);
+
+        assertTrue(limit.acquire("c", now).isAllowed());
+        assertFalse(limit.acquire("d", now).isAllowed(), "new keys must not be let through unlimited");
+        assertEquals(limit.getUntrackedCount(), 2);
+        assertEquals(limit.getTrackedKeys(), 2);
+    }
+
+    @Test
+    public void sweepDropsFullBuckets() {
+        RateLimit limit = new RateLimit("test", 10, 1, 2);
+        long now = System.nanoTime();
+        limit.acquire("a", now);
+        limit.acquire("b", now);
+
+        // a and b are full again 100ms later, and a sweep is due a second after the last
+        long later = now + 2000 * MILLIS;
+        assertTrue(limit.acquire("c", later).isAllowed());
+        assertEquals(limit.getTrackedKeys(), 1);
+        assertEquals(limit.getUntrackedCount(), 0);
+    }
+
+    @Test
+    public void deviceLimitHasAUserLimit() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.RATELIMIT_PREFIX + "tracks" + APIConfig.RATELIMIT_PERSECOND_SUFFIX, 1);
+        config.setProperty(APIConfig.RATELIMIT_PREFIX + "tracks" + APIConfig.RATELIMIT_BURST_SUFFIX, 2);
+        config.setProperty(APIConfig.RATELIMIT_PREFIX + "tracks" + APIConfig.RATELIMIT_DEVICES_SUFFIX, 3);
+        RateLimits limits = new RateLimits(config);
+        try {
+            RateLimit deviceLimit = limits.getLimit("tracks");
+            RateLimit userLimit = limits.getUserLimit(deviceLimit);
+            assertEquals(userLimit.getName(), "tracks" + RateLimits.USER_SUFFIX);
+            assertEquals(userLimit.getPerSecond(), 3.0, 0);
+            assertEquals(userLimit.getBurst(), 6);
+            assertSame(limits.getUserLimit(deviceLimit), userLimit);
+
+            // A new device per request gets past the device limit, not the user's
+            long now = System.nanoTime();
+            int allowed = 0;
+            for(int device = 0; device < 20; device++) {
+                if(userLimit.acquire("user", now).isAllowed() &&
+                        deviceLimit.acquire("user/" + device, now).isAllowed()) {
+                    allowed++;
+                }
+            }
+            assertEquals(allowed, 6);
+        } finally {
+            limits.freeResources();
+        }
+    }
+}